@@ -0,0 +1,214 @@
+package org.httpkit;
+
+import clojure.lang.ISeq;
+import clojure.lang.Seqable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.httpkit.HttpUtils.ASCII;
+import static org.httpkit.HttpUtils.UTF_8;
+
+/**
+ * Encodes the status line and headers of a response, see
+ * {@link HttpUtils#HttpEncode}: into a buffer kept per thread, copied once
+ * into the ByteBuffer returned, as that one is queued for writing. Header
+ * names are validated once and cached with their ": ", the Server and Date
+ * lines and common values are encoded ahead, numbers are written as digits.
+ */
+final class HeadEncoder {
+    private static final int MAX_NAMES = 1024; // cached, names are up to the application
+    private static final int MAX_RETAINED = 64 * 1024; // a thread's buffer, once grown for a large head
+
+    private static final ConcurrentHashMap<String, byte[]> NAMES = new ConcurrentHashMap<String, byte[]>();
+    private static final Map<String, byte[]> VALUES = new HashMap<String, byte[]>();
+
+    static {
+        for (String value : new String[]{"text/html", "text/html; charset=utf-8",
+                "text/html;charset=utf-8", "text/plain", "text/plain; charset=utf-8",
+                "text/css", "text/javascript", "application/javascript", "application/json",
+                "application/json; charset=utf-8", "application/json;charset=utf-8",
+                "application/edn", "application/transit+json", "application/octet-stream",
+                "application/xml", "image/png", "image/jpeg", "image/svg+xml",
+                "no-cache", "no-store", "keep-alive", "close", "chunked", "gzip", "bytes",
+                "nosniff", "Accept-Encoding", "*"}) {
+            VALUES.put(value, value.getBytes(ASCII));
+        }
+    }
+
+    private static class Line {
+        final String value;
+        final byte[] bytes;
+
+        Line(String value, byte[] bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private static volatile Line server = new Line(null, null); // the last Server line
+
+    private static final ThreadLocal<HeadEncoder> ENCODERS = new ThreadLocal<HeadEncoder>() {
+        protected HeadEncoder initialValue() {
+            return new HeadEncoder();
+        }
+    };
+
+    private byte[] buf = new byte[1024];
+    private int idx;
+
+    static ByteBuffer encode(int status, HeaderMap headers, String serverHeader) {
+        HeadEncoder encoder = ENCODERS.get();
+        encoder.idx = 0;
+        try {
+            encoder.append(HttpStatus.valueOf(status).getInitialLineBytes());
+            encoder.appendHeaders(headers);
+            if (serverHeader != null && !headers.containsKey("Server")) {
+                encoder.append(serverLine(serverHeader));
+            }
+            if (!headers.containsKey("Date")) {
+                encoder.append(DateFormatter.getDateLine()); // rfc says the Date is needed
+            }
+            encoder.append((byte) '\r', (byte) '\n');
+            return ByteBuffer.wrap(Arrays.copyOf(encoder.buf, encoder.idx));
+        } finally {
+            if (encoder.buf.length > MAX_RETAINED) {
+                encoder.buf = new byte[1024];
+            }
+        }
+    }
+
+    /** The header lines only, see {@link HttpUtils#HttpEncodeHeaders} */
+    static byte[] encodeHeaders(HeaderMap headers) {
+        HeadEncoder encoder = new HeadEncoder();
+        encoder.appendHeaders(headers);
+        return Arrays.copyOf(encoder.buf, encoder.idx);
+    }
+
+    static byte[] serverLine(String value) {
+        Line line = server;
+        if (!value.equals(line.value)) {
+            validateValue(value);
+            line = new Line(value, ("Server: " + value + "\r\n").getBytes(UTF_8));
+            server = line;
+        }
+        return line.bytes;
+    }
+
+    // "Name: ", validated
+    static byte[] name(String name) {
+        byte[] bytes = NAMES.get(name);
+        if (bytes == null) {
+            if (!HttpUtils.isToken(name)) {
+                throw new IllegalArgumentException("Invalid HTTP header name: " + name);
+            }
+            bytes = (name + ": ").getBytes(ASCII);
+            if (NAMES.size() < MAX_NAMES) {
+                NAMES.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private void appendHeaders(HeaderMap headers) {
+        for (int i = 0; i < headers.size(); i++) {
+            String k = headers.keyAt(i);
+            Object v = headers.valueAt(i);
+            // omit invalid headers and prevent possible exceptions (e.g., NullPointerException)
+            if (k == null || v == null) {
+                continue;
+            }
+            byte[] name = name(k);
+            // ring spec says it could be a seq
+            if (v instanceof Seqable) {
+                ISeq seq = ((Seqable) v).seq();
+                while (seq != null) {
+                    append(name);
+                    appendValue(seq.first());
+                    append((byte) '\r', (byte) '\n');
+                    seq = seq.next();
+                }
+            } else {
+                append(name);
+                appendValue(v);
+                append((byte) '\r', (byte) '\n');
+            }
+        }
+    }
+
+    private void appendValue(Object v) {
+        if (v instanceof Integer || v instanceof Long) {
+            appendDecimal(((Number) v).longValue());
+            return;
+        }
+        String value = v.toString();
+        byte[] known = VALUES.get(value);
+        if (known != null) {
+            append(known);
+            return;
+        }
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 128) {
+                // supposed to be ISO-8859-1, but utf-8 is compatible.
+                // filename in Content-Disposition can be utf8
+                String rest = value.substring(i);
+                validateValue(rest);
+                append(rest.getBytes(UTF_8));
+                return;
+            }
+            if (c == 0 || (c < 32 && c != '\t') || c == 127) {
+                throw new IllegalArgumentException("Invalid character in HTTP header value");
+            }
+            buf[idx++] = (byte) c;
+        }
+    }
+
+    private void appendDecimal(long n) {
+        if (n < 0) {
+            append(Long.toString(n).getBytes(ASCII));
+            return;
+        }
+        int digits = 1;
+        for (long m = n; m >= 10; m /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = idx + digits - 1; i >= idx; i--) {
+            buf[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        idx += digits;
+    }
+
+    static void validateValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0 || (c < 32 && c != '\t') || c == 127) {
+                throw new IllegalArgumentException("Invalid character in HTTP header value");
+            }
+        }
+    }
+
+    private void ensure(int more) {
+        if (idx + more > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, idx + more));
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, idx, bytes.length);
+        idx += bytes.length;
+    }
+
+    private void append(byte b1, byte b2) {
+        ensure(2);
+        buf[idx++] = b1;
+        buf[idx++] = b2;
+    }
+}
@@ -5,6 +5,7 @@ import clojure.lang.Seqable;
 
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.httpkit.HttpUtils.*;
 
@@ -132,11 +133,38 @@ public class HeaderMap {
         this.size = 0;
     }
 
+    int size() {
+        return size;
+    }
+
+    String keyAt(int i) {
+        return (String) arrays[i * 2];
+    }
+
+    Object valueAt(int i) {
+        return arrays[i * 2 + 1];
+    }
+
+    // Ring header names as camelCased, the same few for each response
+    private static final int MAX_CAMEL_CASED = 1024;
+    private static final ConcurrentHashMap<String, String> CAMEL_CASED = new ConcurrentHashMap<String, String>();
+
+    private static String camelCase(String key) {
+        String name = CAMEL_CASED.get(key);
+        if (name == null) {
+            name = HttpUtils.camelCase(key);
+            if (CAMEL_CASED.size() < MAX_CAMEL_CASED) {
+                CAMEL_CASED.put(key, name);
+            }
+        }
+        return name;
+    }
+
     public static HeaderMap camelCase(Map<String, Object> map) {
         HeaderMap tmp = new HeaderMap();
         if (map != null) {
             for (Map.Entry<String, Object> e : map.entrySet()) {
-                tmp.put(HttpUtils.camelCase(e.getKey()), e.getValue());
+                tmp.put(camelCase(e.getKey()), e.getValue());
             }
         }
         return tmp;
@@ -0,0 +1,331 @@
+package org.httpkit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The headers of a request or response as decoded: lowercase names to values,
+ * duplicates joined with "\n", in the order received. Flat arrays and an open
+ * addressing index, looked up ignoring case. Headers are added from the bytes
+ * of the line, see {@link HttpUtils#splitAndAddHeader(byte[], int, HeaderTable)}:
+ * well-known names and common values are found in static tables, perfect
+ * hashed, and not copied.
+ */
+public class HeaderTable extends AbstractMap<String, Object> {
+
+    /** Strings known ahead, found from their bytes in one probe */
+    static class Interned {
+        private final String[] slots;
+        private final int multiplier;
+        private final int shift;
+        private final boolean ignoreCase;
+        final int maxLength;
+
+        Interned(boolean ignoreCase, String... strings) {
+            this.ignoreCase = ignoreCase;
+            int bits = 32 - Integer.numberOfLeadingZeros(strings.length * 8 - 1);
+            int max = 0;
+            for (String s : strings) {
+                max = Math.max(max, s.length());
+            }
+            this.maxLength = max;
+            // the first multiplier without collision
+            for (int multiplier = 0x9e3779b1; ; multiplier += 2) {
+                String[] slots = new String[1 << bits];
+                boolean perfect = true;
+                for (String s : strings) {
+                    int i = (hash(s, ignoreCase) * multiplier) >>> (32 - bits);
+                    if (slots[i] != null) {
+                        perfect = false;
+                        break;
+                    }
+                    slots[i] = s;
+                }
+                if (perfect) {
+                    this.slots = slots;
+                    this.multiplier = multiplier;
+                    this.shift = 32 - bits;
+                    return;
+                }
+            }
+        }
+
+        /** The string of bytes {@code [from, to)} of {@code b}, their hash given */
+        String get(int hash, byte[] b, int from, int to) {
+            String s = slots[(hash * multiplier) >>> shift];
+            return s != null && equal(s, b, from, to, ignoreCase) ? s : null;
+        }
+    }
+
+    private static final Interned NAMES = new Interned(true,
+            "accept", "accept-charset", "accept-encoding", "accept-language", "accept-ranges",
+            "access-control-allow-origin", "access-control-request-headers",
+            "access-control-request-method", "age", "alt-svc", "authorization", "cache-control",
+            "connection", "content-disposition", "content-encoding", "content-language",
+            "content-length", "content-range", "content-type", "cookie", "date", "dnt", "etag",
+            "expect", "expires", "forwarded", "host", "if-match", "if-modified-since",
+            "if-none-match", "if-range", "if-unmodified-since", "keep-alive", "last-modified",
+            "location", "origin", "pragma", "priority", "range", "referer", "sec-ch-ua",
+            "sec-ch-ua-mobile", "sec-ch-ua-platform", "sec-fetch-dest", "sec-fetch-mode",
+            "sec-fetch-site", "sec-fetch-user", "sec-websocket-accept", "sec-websocket-extensions",
+            "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "server",
+            "set-cookie", "strict-transport-security", "te", "trailer", "transfer-encoding",
+            "upgrade", "upgrade-insecure-requests", "user-agent", "vary", "via",
+            "www-authenticate", "x-content-type-options", "x-forwarded-for", "x-forwarded-host",
+            "x-forwarded-port", "x-forwarded-proto", "x-real-ip", "x-request-id",
+            "x-requested-with");
+
+    private static final Interned VALUES = new Interned(false,
+            "*/*", "0", "1", "13", "100-continue", "?0", "?1", "\"Linux\"", "\"Windows\"",
+            "\"macOS\"", "Close", "Keep-Alive", "Upgrade", "XMLHttpRequest",
+            "application/json", "application/json; charset=utf-8",
+            "application/x-www-form-urlencoded", "br", "bytes", "chunked", "close", "cors",
+            "cross-site", "deflate", "document", "empty", "en-US,en;q=0.9", "gzip",
+            "gzip, deflate", "gzip, deflate, br", "gzip, deflate, br, zstd", "http", "https",
+            "identity", "keep-alive", "max-age=0", "navigate", "no-cache", "no-cors", "no-store",
+            "none", "nosniff", "permessage-deflate", "permessage-deflate; client_max_window_bits",
+            "same-origin", "same-site", "text/html", "text/html; charset=utf-8", "text/plain",
+            "text/plain; charset=utf-8", "trailers", "upgrade", "websocket");
+
+    private Object[] entries = new Object[32]; // name, value, name, value...
+    private int[] hashes = new int[16];
+    private int[] index = new int[32]; // entry + 1, 0 if free
+    private int size = 0;
+
+    /*
+     * 31 * h + c, as String.hashCode. Ignoring case, A-Z only are folded to
+     * lowercase: c | 0x20 would also fold other token characters into each
+     * other, '^' into '~'.
+     */
+    static int hash(byte[] b, int from, int to, boolean ignoreCase) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            int c = b[i] & 0xff;
+            h = 31 * h + (ignoreCase ? lower(c) : c);
+        }
+        return h;
+    }
+
+    static int hash(String s, boolean ignoreCase) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int c = s.charAt(i);
+            h = 31 * h + (ignoreCase ? lower(c) : c);
+        }
+        return h;
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c | 0x20 : c;
+    }
+
+    static boolean equal(String s, byte[] b, int from, int to, boolean ignoreCase) {
+        if (s.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int c = b[from + i] & 0xff;
+            int d = s.charAt(i);
+            if (c != d && (!ignoreCase || lower(c) != d)) { // s in lowercase
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int home(int hash) {
+        return (hash ^ (hash >>> 16)) & (index.length - 1);
+    }
+
+    // the entry named so, or -1
+    private int find(int hash, byte[] b, int from, int to) {
+        for (int i = home(hash); index[i] != 0; i = (i + 1) & (index.length - 1)) {
+            int e = index[i] - 1;
+            if (hashes[e] == hash && equal((String) entries[e * 2], b, from, to, true)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private int find(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        String name = (String) key;
+        int hash = hash(name, true);
+        for (int i = home(hash); index[i] != 0; i = (i + 1) & (index.length - 1)) {
+            int e = index[i] - 1;
+            if (hashes[e] == hash && name.equalsIgnoreCase((String) entries[e * 2])) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int hash, String name, Object value) {
+        if (size == hashes.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            index = new int[index.length * 2];
+            reindex();
+        }
+        entries[size * 2] = name;
+        entries[size * 2 + 1] = value;
+        hashes[size] = hash;
+        size++;
+        place(size - 1);
+    }
+
+    private void place(int e) {
+        int i = home(hashes[e]);
+        while (index[i] != 0) {
+            i = (i + 1) & (index.length - 1);
+        }
+        index[i] = e + 1;
+    }
+
+    private void reindex() {
+        Arrays.fill(index, 0);
+        for (int e = 0; e < size; e++) {
+            place(e);
+        }
+    }
+
+    /**
+     * Adds the header named by bytes {@code [nameFrom, nameTo)} of {@code b},
+     * its value in {@code [valueFrom, valueTo)}: appended to the value there
+     * is, after a "\n".
+     */
+    public void add(byte[] b, int nameFrom, int nameTo, int valueFrom, int valueTo) {
+        String value = null;
+        if (valueTo - valueFrom <= VALUES.maxLength) {
+            value = VALUES.get(hash(b, valueFrom, valueTo, false), b, valueFrom, valueTo);
+        }
+        if (value == null) {
+            value = new String(b, valueFrom, valueTo - valueFrom, StandardCharsets.ISO_8859_1);
+        }
+        int hash = hash(b, nameFrom, nameTo, true);
+        int e = find(hash, b, nameFrom, nameTo);
+        if (e >= 0) {
+            entries[e * 2 + 1] = entries[e * 2 + 1].toString() + "\n" + value;
+            return;
+        }
+        String name = NAMES.get(hash, b, nameFrom, nameTo);
+        if (name == null) {
+            name = new String(b, nameFrom, nameTo - nameFrom, StandardCharsets.ISO_8859_1)
+                    .toLowerCase(Locale.ROOT);
+        }
+        insert(hash, name, value);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int e = find(key);
+        return e < 0 ? null : entries[e * 2 + 1];
+    }
+
+    /** {@code name} is expected lowercase, as Ring has it */
+    @Override
+    public Object put(String name, Object value) {
+        int e = find(name);
+        if (e >= 0) {
+            Object previous = entries[e * 2 + 1];
+            entries[e * 2 + 1] = value;
+            return previous;
+        }
+        insert(hash(name, true), name, value);
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int e = find(key);
+        if (e < 0) {
+            return null;
+        }
+        Object previous = entries[e * 2 + 1];
+        removeAt(e);
+        return previous;
+    }
+
+    // rare: shifts the entries after, the index made again
+    private void removeAt(int e) {
+        System.arraycopy(entries, (e + 1) * 2, entries, e * 2, (size - e - 1) * 2);
+        System.arraycopy(hashes, e + 1, hashes, e, size - e - 1);
+        size--;
+        entries[size * 2] = null;
+        entries[size * 2 + 1] = null;
+        reindex();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(entries, 0, size * 2, null);
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            public int size() {
+                return size;
+            }
+
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    private int next = 0;
+                    private int last = -1;
+
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    public Map.Entry<String, Object> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next++;
+                        return new SimpleEntry<String, Object>((String) entries[last * 2],
+                                entries[last * 2 + 1]) {
+                            private final int e = last;
+
+                            @Override
+                            public Object setValue(Object value) {
+                                entries[e * 2 + 1] = value;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeAt(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+        };
+    }
+}
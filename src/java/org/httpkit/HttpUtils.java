@@ -8,11 +8,15 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import java.time.*;
 import java.time.format.DateTimeFormatter;
@@ -30,14 +34,16 @@ class DateFormatter {
     private static class CachedDate {
         final long epochSecond;
         final String value;
+        final byte[] line; // "Date: value\r\n"
 
         CachedDate(long epochSecond, String value) {
             this.epochSecond = epochSecond;
             this.value = value;
+            this.line = ("Date: " + value + "\r\n").getBytes(StandardCharsets.US_ASCII);
         }
     }
 
-    public static String getDate() {
+    private static CachedDate current() {
         long epochSecond = Math.floorDiv(System.currentTimeMillis(), 1000L);
         CachedDate current = cached;
         if (current.epochSecond != epochSecond) {
@@ -45,7 +51,16 @@ class DateFormatter {
                     FORMATTER.format(Instant.ofEpochSecond(epochSecond)));
             cached = current;
         }
-        return current.value;
+        return current;
+    }
+
+    public static String getDate() {
+        return current().value;
+    }
+
+    /** The Date header line, encoded once a second */
+    static byte[] getDateLine() {
+        return current().line;
     }
 }
 
@@ -144,6 +159,12 @@ public class HttpUtils {
         } else if (body instanceof File) {
             // serving file is better be done by Nginx
             return readAll((File) body);
+        } else if (body instanceof Path) {
+            return readAll(((Path) body).toFile());
+        } else if (body instanceof FileChannel) {
+            try (FileChannel ch = (FileChannel) body) {
+                return readAll(ch, ch.position(), ch.size() - ch.position());
+            }
         } else if (body instanceof Seqable) {
             ISeq seq = ((Seqable) body).seq();
             if (seq == null) {
@@ -363,6 +384,24 @@ public class HttpUtils {
         }
     }
 
+    // `length` bytes from `position`, mapped above the memmap threshold
+    public static ByteBuffer readAll(FileChannel ch, long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new ContentTooLargeException("File is too large to buffer: " + ch);
+        }
+        if (length >= MAPPED_BUFFER_THRESH_SIZE_BYTES) {
+            return ch.map(MapMode.READ_ONLY, position, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (ch.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file while reading " + ch);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     public static DynamicBytes readAll(InputStream is) throws IOException {
         try {
             DynamicBytes bytes = new DynamicBytes(32768); // init 32k
@@ -434,23 +473,76 @@ public class HttpUtils {
         headers.put(key, value);
     }
 
+    /**
+     * Same as {@link #splitAndAddHeader(String, Map)}, on the first
+     * {@code length} bytes of {@code line}, as read by
+     * {@link LineReader#readLineBytes}: no String is made for the name, or for
+     * a common value, see {@link HeaderTable}.
+     */
+    public static void splitAndAddHeader(byte[] line, int length, HeaderTable headers)
+            throws ProtocolException {
+        int colon = 0;
+        while (colon < length && line[colon] != ':') {
+            colon++;
+        }
+        if (colon == 0 || colon == length) {
+            throw new ProtocolException("Malformed HTTP header: "
+                    + new String(line, 0, length, StandardCharsets.ISO_8859_1));
+        }
+
+        for (int i = 0; i < colon; i++) {
+            if (!isTokenChar((char) (line[i] & 0xff))) {
+                throw new ProtocolException("Invalid HTTP header name: "
+                        + new String(line, 0, colon, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        int valueStart = colon + 1;
+        int valueEnd = length;
+        while (valueStart < valueEnd && (line[valueStart] == ' ' || line[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        for (int i = valueStart; i < valueEnd; i++) {
+            byte b = line[i];
+            if ((b >= 0 && b < 32 && b != '\t') || b == 127) {
+                throw new ProtocolException("Invalid character in HTTP header value");
+            }
+        }
+
+        headers.add(line, 0, colon, valueStart, valueEnd);
+    }
+
     public static boolean isToken(String value) {
         if (value == null || value.isEmpty()) {
             return false;
         }
         for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            boolean token = c >= '0' && c <= '9'
-                    || c >= 'A' && c <= 'Z'
-                    || c >= 'a' && c <= 'z'
-                    || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
-            if (!token) {
+            if (!isTokenChar(value.charAt(i))) {
                 return false;
             }
         }
         return true;
     }
 
+    private static final boolean[] TOKEN_CHARS = new boolean[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            TOKEN_CHARS[c] = c >= '0' && c <= '9'
+                    || c >= 'A' && c <= 'Z'
+                    || c >= 'a' && c <= 'z'
+                    || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+        }
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c < 128 && TOKEN_CHARS[c];
+    }
+
     public static boolean hasHeaderToken(String value, String token) {
         if (value == null) {
             return false;
@@ -615,8 +707,8 @@ public class HttpUtils {
             }
             if (!bodyForbidden && !closeDelimited && !chunked) {
                 int length = bodyBuffer == null ? 0 : bodyBuffer.remaining();
-                String contentLength = !legacyContentLength && headRequest
-                    && userContentLength != null ? userContentLength : Integer.toString(length);
+                Object contentLength = !legacyContentLength && headRequest
+                    && userContentLength != null ? userContentLength : Integer.valueOf(length);
                 headers.remove(CONTENT_LENGTH);
                 headers.put(CONTENT_LENGTH, contentLength);
             } else if (status == 304 && !closeDelimited && userContentLength != null) {
@@ -632,21 +724,11 @@ public class HttpUtils {
             if (chunked) {
                 headers.put("Transfer-Encoding", CHUNKED);
             } else if (!closeDelimited) {
-                headers.put(CONTENT_LENGTH, Integer.toString(b.length));
+                headers.put(CONTENT_LENGTH, b.length);
             }
             bodyBuffer = ByteBuffer.wrap(b);
         }
-        if (serverHeader != null && !headers.containsKey("Server")) {
-          headers.put("Server", serverHeader);
-        }
-        if (!headers.containsKey("Date")) {
-          headers.put("Date", DateFormatter.getDate()); // rfc says the Date is needed
-        }
-        DynamicBytes bytes = new DynamicBytes(196);
-        byte[] bs = HttpStatus.valueOf(status).getInitialLineBytes();
-        bytes.append(bs, bs.length);
-        headers.encodeHeaders(bytes);
-        ByteBuffer headBuffer = ByteBuffer.wrap(bytes.get(), 0, bytes.length());
+        ByteBuffer headBuffer = encodeHead(status, headers, serverHeader);
 
         if (bodyBuffer != null && !headRequest)
             return new ByteBuffer[]{headBuffer, bodyBuffer};
@@ -654,6 +736,40 @@ public class HttpUtils {
             return new ByteBuffer[]{headBuffer};
     }
 
+    /**
+     * Status line and headers of a response whose body, `contentLength` bytes,
+     * is written separately, eg: a file sent with FileChannel.transferTo
+     */
+    public static ByteBuffer HttpEncodeHead(int status, HeaderMap headers, long contentLength, String serverHeader) {
+        headers.remove("Transfer-Encoding");
+        headers.remove(CONTENT_LENGTH);
+        headers.put(CONTENT_LENGTH, contentLength);
+        return encodeHead(status, headers, serverHeader);
+    }
+
+    private static ByteBuffer encodeHead(int status, HeaderMap headers, String serverHeader) {
+        return HeadEncoder.encode(status, headers, serverHeader);
+    }
+
+    /**
+     * The header lines, as given: no status line, Server, Date nor the blank
+     * line ending the head. For a response encoded once and sent many times,
+     * those added as it is sent.
+     */
+    public static byte[] HttpEncodeHeaders(HeaderMap headers) {
+        return HeadEncoder.encodeHeaders(headers);
+    }
+
+    /** "Server: value\r\n", the same array while the value is */
+    public static byte[] serverHeaderLine(String value) {
+        return HeadEncoder.serverLine(value);
+    }
+
+    /** "Date: now\r\n", the same array for a second */
+    public static byte[] dateHeaderLine() {
+        return DateFormatter.getDateLine();
+    }
+
     public static boolean isBodyForbidden(int status) {
         return status / 100 == 1 || status == 204 || status == 205 || status == 304;
     }
@@ -666,6 +782,43 @@ public class HttpUtils {
         byte b0 = 0;
         b0 |= 1 << 7; // FIN
         b0 |= opcode;
+        return WsFrame(b0, data, length);
+    }
+
+    private static final int MAX_DEFLATED_RETAINED = 64 * 1024; // a thread's buffer, once grown
+    private static final ThreadLocal<byte[]> DEFLATED = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * A data frame of data compressed by deflater, a raw one, RSV1 set:
+     * permessage-deflate, RFC 7692. Sync flushed, without the 00 00 ff ff it
+     * ends with: the deflater keeps its context for the next message unless
+     * reset.
+     */
+    public static ByteBuffer WsEncode(byte opcode, byte[] data, int length, Deflater deflater) {
+        deflater.setInput(data, 0, length);
+        byte[] out = DEFLATED.get();
+        int n = 0;
+        while (true) {
+            n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+            // flushed once all input taken and space left: deflate may return early, after a setLevel
+            if (n < out.length && deflater.needsInput()) {
+                break;
+            }
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2); // more to flush
+            }
+        }
+        if (out.length <= MAX_DEFLATED_RETAINED) {
+            DEFLATED.set(out);
+        }
+        return WsFrame((byte) (0x80 | 0x40 | opcode), out, n - 4);
+    }
+
+    private static ByteBuffer WsFrame(byte b0, byte[] data, int length) {
         int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
         ByteBuffer buffer = ByteBuffer.allocate(length + headerLength);
         buffer.put(b0);
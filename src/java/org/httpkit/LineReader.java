@@ -19,6 +19,16 @@ public class LineReader {
     }
 
     public String readLine(ByteBuffer buffer) throws LineTooLargeException, ProtocolException {
+        int length = readLineBytes(buffer);
+        return length < 0 ? null : new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Like {@link #readLine}, without making a String: returns the length of
+     * the line, in {@link #lineBytes()} until the next read, or -1 if it is
+     * not complete yet.
+     */
+    public int readLineBytes(ByteBuffer buffer) throws LineTooLargeException, ProtocolException {
         byte b;
         boolean more = true;
         while (buffer.hasRemaining() && more) {
@@ -44,12 +54,21 @@ public class LineReader {
                 ++lineBufferIdx;
             }
         }
-        String line = null;
+        int length = -1;
         if (!more) {
-            line = new String(lineBuffer, 0, lineBufferIdx, StandardCharsets.ISO_8859_1);
+            length = lineBufferIdx;
             reset();
         }
-        return line;
+        return length;
+    }
+
+    public byte[] lineBytes() {
+        return lineBuffer;
+    }
+
+    // no partial line buffered
+    public boolean isEmpty() {
+        return lineBufferIdx == 0 && !readCR;
     }
 
     public final void reset() {
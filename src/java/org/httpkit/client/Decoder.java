@@ -4,8 +4,7 @@ import org.httpkit.*;
 
 import java.nio.ByteBuffer;
 import java.util.Locale;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.charset.StandardCharsets;
 
 import static org.httpkit.HttpUtils.*;
 import static org.httpkit.HttpVersion.HTTP_1_0;
@@ -20,7 +19,7 @@ enum State {
 
 public class Decoder {
 
-    private final Map<String, Object> headers = new TreeMap<String, Object>();
+    private final HeaderTable headers = new HeaderTable();
     // package visible
     final IRespListener listener;
     private final LineReader lineReader;
@@ -243,12 +242,12 @@ public class Decoder {
     }
 
     private void readHeaders(ByteBuffer buffer) throws LineTooLargeException, AbortException, ProtocolException {
-        String line = readHeaderLine(buffer);
-        while (line != null && !line.isEmpty()) {
-            HttpUtils.splitAndAddHeader(line, headers);
-            line = readHeaderLine(buffer);
+        int length = readHeaderBytes(buffer);
+        while (length > 0) {
+            HttpUtils.splitAndAddHeader(lineReader.lineBytes(), length, headers);
+            length = readHeaderBytes(buffer);
         }
-        if (line == null)
+        if (length < 0)
             return; // data is not received enough. for next run
 
         if (interimResponse) {
@@ -303,13 +302,20 @@ public class Decoder {
 
     private String readHeaderLine(ByteBuffer buffer)
             throws LineTooLargeException, ProtocolException {
-        String line = lineReader.readLine(buffer);
-        if (line != null) {
-            headerBytes += line.length() + 2;
+        int length = readHeaderBytes(buffer);
+        return length < 0 ? null : new String(lineReader.lineBytes(), 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    // the length of the line, in lineReader.lineBytes(), or -1
+    private int readHeaderBytes(ByteBuffer buffer)
+            throws LineTooLargeException, ProtocolException {
+        int length = lineReader.readLineBytes(buffer);
+        if (length >= 0) {
+            headerBytes += length + 2;
             if (headerBytes > MAX_HEADER_BYTES) {
                 throw new HeadersTooLargeException("HTTP headers exceed " + MAX_HEADER_BYTES + " bytes");
             }
         }
-        return line;
+        return length;
     }
 }
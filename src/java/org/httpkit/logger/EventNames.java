@@ -17,6 +17,42 @@ public class EventNames {
 
     public final String serverChannelCloseError;
 
+    /** TLS handshake or record error, the connection is closed */
+    public final String serverSslError;
+
+    /** Connection closed: request headers not received in time */
+    public final String serverTimeoutHeader;
+
+    /** Connection closed: no request body bytes received in time */
+    public final String serverTimeoutBody;
+
+    /** Connection closed: idle between requests for too long */
+    public final String serverTimeoutKeepAlive;
+
+    /** Connection closed: no WebSocket frames received in time */
+    public final String serverTimeoutWs;
+
+    /** Request answered 503 unhandled: queued too long while the queue is standing */
+    public final String serverShedQueueTime;
+
+    /** Request answered 503 unhandled: its deadline passed while queued */
+    public final String serverShedDeadline;
+
+    /** Request answered 503 unhandled: the oldest queued when its pool's queue was full */
+    public final String serverShedPoolFull;
+
+    /** Inline handler ran on the IO thread past its time budget */
+    public final String serverInlineSlow;
+
+    /** Autoscaling worker pool: threads added */
+    public final String serverPoolGrow;
+
+    /** Autoscaling worker pool: threads removed */
+    public final String serverPoolShrink;
+
+    /** Autoscaling worker pool: threads kept as they were */
+    public final String serverPoolHold;
+
     /** Prefix for HTTP status of processed requests */
     public final String serverStatusPrefix;
 
@@ -49,6 +85,18 @@ public class EventNames {
         this.serverWsDecodeError     = get(names, "serverWsDecodeError",     "httpkit.server.ws.decode.error");
         this.serverWsFrameError      = get(names, "serverWsFrameError",      "httpkit.server.ws.frame.error");
         this.serverChannelCloseError = get(names, "serverChannelCloseError", "httpkit.server.channel.close.error");
+        this.serverSslError          = get(names, "serverSslError",          "httpkit.server.ssl.error");
+        this.serverTimeoutHeader     = get(names, "serverTimeoutHeader",     "httpkit.server.timeout.header");
+        this.serverTimeoutBody       = get(names, "serverTimeoutBody",       "httpkit.server.timeout.body");
+        this.serverTimeoutKeepAlive  = get(names, "serverTimeoutKeepAlive",  "httpkit.server.timeout.keep-alive");
+        this.serverTimeoutWs         = get(names, "serverTimeoutWs",         "httpkit.server.timeout.ws");
+        this.serverShedQueueTime     = get(names, "serverShedQueueTime",     "httpkit.server.shed.queue-time");
+        this.serverShedDeadline      = get(names, "serverShedDeadline",      "httpkit.server.shed.deadline");
+        this.serverShedPoolFull      = get(names, "serverShedPoolFull",      "httpkit.server.shed.pool-full");
+        this.serverInlineSlow        = get(names, "serverInlineSlow",        "httpkit.server.inline.slow");
+        this.serverPoolGrow          = get(names, "serverPoolGrow",          "httpkit.server.pool.grow");
+        this.serverPoolShrink        = get(names, "serverPoolShrink",        "httpkit.server.pool.shrink");
+        this.serverPoolHold          = get(names, "serverPoolHold",          "httpkit.server.pool.hold");
         this.serverStatusPrefix      = get(names, "serverStatusPrefix",      "httpkit.server.status.processed.");
         this.serverStatus404         = get(names, "serverStatus404",         "httpkit.server.status.404");
         this.serverStatus413         = get(names, "serverStatus413",         "httpkit.server.status.413");
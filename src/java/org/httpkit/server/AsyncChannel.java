@@ -14,6 +14,7 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.Map;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -28,14 +29,17 @@ public class AsyncChannel {
 
     private final SelectionKey key;
     private final HttpServer server;
+    private final ResponseSink sink; // null when written straight to the connection
 
     final public AtomicBoolean closedRan = new AtomicBoolean();
     private IFn closeHandler;
     private IFn closeRingHandler;
 
     final private AtomicReference<IFn> receiveHandler = new AtomicReference<>(null);
+    final private AtomicReference<IFn> partialHandler = new AtomicReference<>(null);
     final private AtomicReference<IFn> pingHandler = new AtomicReference<>(null);
     final private AtomicReference<IFn> pongHandler = new AtomicReference<>(null);
+    final private AtomicReference<IFn> writableHandler = new AtomicReference<>(null);
     final private Object closeLock = new Object();
 
     private int closeStatus;
@@ -47,14 +51,64 @@ public class AsyncChannel {
     // streaming
     private volatile boolean headerSent = false;
     private volatile boolean websocketUpgraded = false;
+    private Compression.Encoder encoder; // a streamed response compressed, see Compression
+    private volatile PerMessageDeflate.Session deflate; // negotiated in the WebSocket handshake
 
     // messages sent from a WebSocket client should be handled orderly by server
     // Changed from a Single Thread(IO event thread), no volatile needed
     LinkingRunnable serialTask;
 
     public AsyncChannel(SelectionKey key, HttpServer server) {
+        this(key, server, null);
+    }
+
+    AsyncChannel(SelectionKey key, HttpServer server, ResponseSink sink) {
         this.key = key;
         this.server = server;
+        this.sink = sink;
+    }
+
+    // an HTTP/2 stream translates the HTTP/1.1 encoding into its own frames,
+    // a pipelined request's response may have to wait for its turn
+    private void write(boolean chunkInprogress, ByteBuffer... buffers) {
+        if (sink != null) {
+            sink.write(buffers);
+        } else {
+            server.tryWrite(key, chunkInprogress, buffers);
+        }
+    }
+
+    private void write(ByteBuffer head, FileRegion file) throws IOException {
+        if (sink != null) {
+            sink.write(head, file);
+        } else {
+            server.tryWrite(key, head, file);
+        }
+    }
+
+    private void responseComplete() {
+        releaseRequestBody();
+        if (sink != null) {
+            sink.complete();
+        } else {
+            server.responseComplete(key);
+        }
+    }
+
+    // the response is complete, or the connection closed, see HttpRequest#releaseBody
+    void releaseRequestBody() {
+        HttpRequest r = request;
+        if (r != null) {
+            r.releaseBody();
+        }
+    }
+
+    // the connection closed: an unfinished compressed stream's Deflater freed
+    synchronized void endEncoder() {
+        if (encoder != null) {
+            encoder.end();
+            encoder = null;
+        }
     }
 
     public synchronized void reset(HttpRequest request) {
@@ -63,6 +117,8 @@ public class AsyncChannel {
 
         headerSent = false;
         websocketUpgraded = false;
+        endEncoder();
+        deflate = null;
         synchronized (closeLock) {
             closedRan.set(false);
             closeHandler = null;
@@ -72,8 +128,10 @@ public class AsyncChannel {
             closeReason = "";
         }
         receiveHandler.set(null);
+        partialHandler.set(null);
         pingHandler.set(null);
         pongHandler.set(null);
+        writableHandler.set(null);
     }
 
     private static final byte[] finalChunkBytes = "0\r\n\r\n".getBytes();
@@ -84,8 +142,40 @@ public class AsyncChannel {
         return ByteBuffer.wrap(s.getBytes());
     }
 
+    // A response encoded beforehand: complete, the channel is done once it is written
+    private void writeEncoded(Object data) {
+        ByteBuffer[] buffers;
+        boolean closeAfterResponse;
+        if (data instanceof StaticResponse) {
+            StaticResponse r = (StaticResponse) data;
+            buffers = r.encode(request, server.serverHeader);
+            closeAfterResponse = r.closes(request);
+        } else {
+            buffers = StaticResponse.raw((ByteBuffer[]) data);
+            closeAfterResponse = StaticResponse.rawCloses(request);
+        }
+        headerSent = true;
+        if (closeAfterResponse || (isWebSocketCandidate() && !websocketUpgraded)) {
+            if (sink != null) {
+                sink.closeAfterResponse();
+            } else {
+                server.closeAfterResponse(key);
+            }
+        }
+        write(false, buffers);
+        try {
+            onClose(0);
+        } finally {
+            responseComplete();
+        }
+    }
+
     // Write first HTTP header and [first chunk data]? to client
     private void firstWrite(Object data, boolean close) throws IOException {
+        if (data instanceof StaticResponse || data instanceof ByteBuffer[]) {
+            writeEncoded(data);
+            return;
+        }
         ByteBuffer buffers[];
         int status = 200;
         Object body = data;
@@ -127,10 +217,25 @@ public class AsyncChannel {
             headers.put("Connection", "Keep-Alive");
         }
 
+        FileRegion file = null;
         if (close) { // normal response, Content-Length. Every http client understand it
-            buffers = HttpEncode(status, headers, body, server.serverHeader,
-                request.legacyContentLength, request.method == HttpMethod.HEAD);
+            if (request.method != HttpMethod.HEAD && !isBodyForbidden(status)) {
+                file = FileRegion.forBody(body);
+            }
+            if (file == null && request.compression != null) {
+                body = request.compression.compress(request, status, headers, body);
+            }
+            buffers = file != null
+                ? new ByteBuffer[]{HttpEncodeHead(status, headers, file.remaining(), server.serverHeader)}
+                : HttpEncode(status, headers, body, server.serverHeader,
+                    request.legacyContentLength, request.method == HttpMethod.HEAD);
         } else {
+            if (request.compression != null) {
+                encoder = request.compression.stream(request, status, headers);
+                if (encoder != null) {
+                    body = encoder.write(bodyBuffer(body), false); // never empty: starts the stream
+                }
+            }
             if (request.version == HttpVersion.HTTP_1_1) {
                 ByteBuffer[] bb = HttpEncodeChunked(status, headers, body, server.serverHeader);
                 if (bb.length == 1) {
@@ -149,14 +254,22 @@ public class AsyncChannel {
         }
         headerSent = true;
         if (closeAfterResponse) {
-            server.closeAfterResponse(key);
+            if (sink != null) {
+                sink.closeAfterResponse();
+            } else {
+                server.closeAfterResponse(key);
+            }
+        }
+        if (file != null) {
+            write(buffers[0], file);
+        } else {
+            write(!close, buffers);
         }
-        server.tryWrite(key, !close, buffers);
         if (close) {
             try {
                 onClose(0);
             } finally {
-                server.responseComplete(key);
+                responseComplete();
             }
         }
     }
@@ -168,6 +281,9 @@ public class AsyncChannel {
         }
         if (body != null) { // null is ignored
             ByteBuffer t = bodyBuffer(body);
+            if (encoder != null && t != null && t.hasRemaining()) {
+                t = encoder.write(t, false);
+            }
             if (t != null && t.hasRemaining()) {
                 ByteBuffer[] buffers;
                 if (request.version == HttpVersion.HTTP_1_1) {
@@ -179,7 +295,7 @@ public class AsyncChannel {
                 } else {
                     buffers = new ByteBuffer[]{t};
                 }
-                server.tryWrite(key, true, buffers);
+                write(true, buffers);
             }
         }
         if (close) {
@@ -193,6 +309,25 @@ public class AsyncChannel {
         }
     }
 
+    /**
+     * Sets the handler (fn [data last?]) of the data messages received from
+     * then on, called with each piece as read instead of the receive handler
+     * with whole messages: a String for text, a byte[] for binary. Pieces are
+     * handled in order, and the connection is not read from while those not
+     * yet handled add up to more than the server's max WebSocket message size,
+     * the limit of each piece, no longer of messages.
+     */
+    public void setPartialReceiveHandler(IFn fn) {
+        Object atta = key.attachment();
+        if (!(atta instanceof WsAtta)) {
+            throw new IllegalStateException("not a WebSocket: " + this);
+        }
+        if (!partialHandler.compareAndSet(null, fn)) {
+            throw new IllegalStateException("partial receive handler exist: " + partialHandler);
+        }
+        ((WsAtta) atta).decoder.setPartial(true);
+    }
+
     public void setPingHandler(IFn fn) {
         if (!pingHandler.compareAndSet(null, fn)) {
             throw new IllegalStateException("ping handler exist: " + pingHandler);
@@ -205,6 +340,48 @@ public class AsyncChannel {
         }
     }
 
+    /**
+     * Sets the handler (fn []) called once the bytes queued for the connection,
+     * having gone above the high watermark, drain below the low one. See
+     * {@link #isWritable()}.
+     */
+    public void setWritableHandler(IFn fn) {
+        if (!writableHandler.compareAndSet(null, fn)) {
+            throw new IllegalStateException("writable handler exist: " + writableHandler);
+        }
+    }
+
+    boolean hasWritableHandler() {
+        return writableHandler.get() != null;
+    }
+
+    public void onWritable() {
+        IFn f = writableHandler.get();
+        if (f != null) {
+            f.invoke();
+        }
+    }
+
+    /** Bytes sent but not yet taken by the socket: they are on the heap */
+    public long getQueuedBytes() {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta) {
+            return atta.toWrites.bytes();
+        }
+    }
+
+    /**
+     * False once the queued bytes go above the high watermark, until they drain
+     * below the low one (see {@link HttpServer#setWriteWatermarks}). send still
+     * queues: producers are expected to wait for the writable handler.
+     */
+    public boolean isWritable() {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta) {
+            return atta.writable;
+        }
+    }
+
     public void messageReceived(final Object mesg) {
         IFn f = receiveHandler.get();
         if (f != null) {
@@ -212,6 +389,17 @@ public class AsyncChannel {
         }
     }
 
+    public void partialReceived(Frame.PartialFrame piece) {
+        try {
+            IFn f = partialHandler.get();
+            if (f != null) {
+                f.invoke(piece.getMessage(), piece.last);
+            }
+        } finally {
+            ((WsAtta) key.attachment()).partialHandled(key, piece.data.length);
+        }
+    }
+
     public void pingReceived(final byte[] mesg) {
         IFn f = pingHandler.get();
         if (f != null) {
@@ -229,8 +417,23 @@ public class AsyncChannel {
         }
     }
 
+    /**
+     * Upgrades to a WebSocket: permessage-deflate is agreed on as offered by
+     * the client, if the server is to (see {@link HttpServer#setWebSocketDeflate})
+     * and the headers don't say otherwise.
+     */
     public synchronized void sendHandshake(Map<String, Object> headers) {
         HeaderMap map = HeaderMap.camelCase(headers);
+        PerMessageDeflate config = server.wsDeflate;
+        Object atta = key.attachment();
+        if (config != null && atta instanceof WsAtta && !map.containsKey("Sec-Websocket-Extensions")) {
+            PerMessageDeflate.Session session = config.negotiate(request.headers.get("sec-websocket-extensions"));
+            if (session != null) {
+                map.put("Sec-WebSocket-Extensions", session.response);
+                deflate = session;
+                ((WsAtta) atta).decoder.setDeflate(session); // before the client may send
+            }
+        }
         ByteBuffer[] response = HttpEncode(101, map, null);
         websocketUpgraded = true;
         server.tryWrite(key, response);
@@ -322,15 +525,25 @@ public class AsyncChannel {
             handler = closeHandler;
             ringHandler = closeRingHandler;
         }
+        ByteBuffer trailer = null; // of the compressed stream
+        if (!websocket && encoder != null && !encoder.isFinished()) {
+            trailer = encoder.write(null, true);
+        }
         if (websocket) {
             server.tryWrite(key, WsEncode(OPCODE_CLOSE, closePayload));
         } else if (request.version == HttpVersion.HTTP_1_0) {
+            if (trailer != null) {
+                write(true, trailer);
+            }
             server.finishCloseDelimitedResponse(key);
+        } else if (trailer != null) {
+            write(false, chunkSize(trailer.remaining()), trailer,
+                ByteBuffer.wrap(newLineBytes), ByteBuffer.wrap(finalChunkBytes));
         } else {
-            server.tryWrite(key, false, ByteBuffer.wrap(finalChunkBytes));
+            write(false, ByteBuffer.wrap(finalChunkBytes));
         }
         if (!websocket) {
-            server.responseComplete(key);
+            responseComplete();
         }
         if (handler != null) {
             handler.invoke(readable(0)); // server close is 0
@@ -355,12 +568,14 @@ public class AsyncChannel {
             }
 
             if (data instanceof String) { // null is not allowed
-                server.tryWrite(key, WsEncode(OPCODE_TEXT, ((String) data).getBytes(UTF_8)));
+                byte[] bytes = ((String) data).getBytes(UTF_8);
+                server.tryWrite(key, wsEncode(OPCODE_TEXT, bytes, bytes.length));
             } else if (data instanceof byte[]) {
-                server.tryWrite(key, WsEncode(OPCODE_BINARY, (byte[]) data));
+                byte[] bytes = (byte[]) data;
+                server.tryWrite(key, wsEncode(OPCODE_BINARY, bytes, bytes.length));
             } else if (data instanceof InputStream) {
                 DynamicBytes bytes = readAll((InputStream) data);
-                server.tryWrite(key, WsEncode(OPCODE_BINARY, bytes.get(), bytes.length()));
+                server.tryWrite(key, wsEncode(OPCODE_BINARY, bytes.get(), bytes.length()));
             } else if (data instanceof Frame.PingFrame) {
                 server.tryWrite(key, WsEncode(OPCODE_PING, ((Frame) data).data));
             } else if (data instanceof Frame.PongFrame) {
@@ -385,6 +600,44 @@ public class AsyncChannel {
         return true;
     }
 
+    // a data message, compressed if agreed on
+    private ByteBuffer wsEncode(byte opcode, byte[] data, int length) {
+        PerMessageDeflate.Session session = deflate;
+        return session != null ? session.encode(opcode, data, length) : WsEncode(opcode, data, length);
+    }
+
+    /**
+     * A message of {@link Topic#broadcast}: its shared frame queued without
+     * taking this channel's lock, unless compressed with context takeover,
+     * then encoded on its own, as {@link #send}.
+     *
+     * @return false if not a WebSocket, or closed
+     */
+    boolean sendShared(Topic.Message message, List<ServerLoop> wakeups) {
+        if (!websocketUpgraded) {
+            return false;
+        }
+        PerMessageDeflate.Session session = deflate;
+        if (session != null && session.serverContextTakeover) {
+            synchronized (this) {
+                if (closedRan.get()) {
+                    return false;
+                }
+                server.tryWrite(key, session.encode(message.opcode, message.data, message.data.length));
+                return true;
+            }
+        }
+        return server.tryWriteShared(key, closedRan, message.frame(session), wakeups);
+    }
+
+    // the connection is closed: the compression's native memory released
+    void endDeflate() {
+        PerMessageDeflate.Session session = deflate;
+        if (session != null) {
+            session.end();
+        }
+    }
+
     public String toString() {
         Socket s = ((SocketChannel) key.channel()).socket();
         return s.getLocalSocketAddress() + "<->" + s.getRemoteSocketAddress();
@@ -0,0 +1,203 @@
+package org.httpkit.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.httpkit.PrefixThreadFactory;
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+/**
+ * A thread pool sizing itself, for handlers mixing CPU bound and blocking work.
+ * Every interval it samples the time tasks waited in the queue, the share of
+ * the threads' time spent running them, and the throughput, then climbs the
+ * hill: while tasks wait longer than the target with the threads busy, it adds
+ * threads, as long as the throughput improves for it. If it did not, more
+ * threads do not help (eg: CPU bound, or a saturated downstream): it steps back.
+ * Mostly idle threads are removed. Each decision is logged through the
+ * EventLogger, see {@link EventNames#serverPoolGrow}, and with the sample it
+ * was made on through the decision logger, if any.
+ */
+public class AutoScalingExecutor extends ThreadPoolExecutor {
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetWait; // ns
+    private final ScheduledExecutorService controller;
+
+    private volatile EventLogger<String> eventLogger = EventLogger.NOP;
+    private volatile EventNames eventNames = EventNames.DEFAULT;
+    private volatile ContextLogger<String, Throwable> errorLogger = ContextLogger.ERROR_PRINTER;
+    private volatile ContextLogger<String, String> decisionLogger; // null: none
+
+    // totals, ns
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+
+    // controller thread only
+    private long lastSample = System.nanoTime();
+    private long lastCompleted, lastWaited, lastBusy;
+    private double lastThroughput = 0;
+    private int lastMove = 0; // +1 grew, -1 shrank, 0 held
+    private volatile String lastDecision = "none";
+
+    public AutoScalingExecutor(int minThreads, int maxThreads, long targetWaitMs, long intervalMs,
+                               BlockingQueue<Runnable> queue, String prefix) {
+        super(minThreads, minThreads, 0, TimeUnit.MILLISECONDS, queue, new PrefixThreadFactory(prefix));
+        if (minThreads < 1 || maxThreads < minThreads || targetWaitMs < 0 || intervalMs <= 0) {
+            throw new IllegalArgumentException("Expected 1 <= min <= max threads, target >= 0, interval > 0: "
+                + minThreads + ", " + maxThreads + ", " + targetWaitMs + ", " + intervalMs);
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetWait = targetWaitMs * 1000000;
+        this.controller = new ScheduledThreadPoolExecutor(1, new PrefixThreadFactory(prefix + "autoscaler-"));
+        controller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                adjust();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void setEventLogger(EventLogger<String> eventLogger, EventNames eventNames) {
+        this.eventLogger = eventLogger;
+        this.eventNames = eventNames;
+    }
+
+    /** Told of the controller's failures */
+    public void setErrorLogger(ContextLogger<String, Throwable> errorLogger) {
+        this.errorLogger = errorLogger;
+    }
+
+    /** Told each decision: its event name, and the sample it was made on */
+    public void setDecisionLogger(ContextLogger<String, String> decisionLogger) {
+        this.decisionLogger = decisionLogger;
+    }
+
+    // a task as queued: unwrapped by RingHandler.ShedOldestPolicy
+    class Timed implements Runnable {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        Timed(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            waited.addAndGet(start - queuedAt);
+            try {
+                task.run();
+            } finally {
+                busy.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        super.execute(new Timed(task));
+    }
+
+    // Controller thread, every interval
+    void adjust() {
+        try {
+            sample();
+        } catch (Throwable e) { // would cancel the next ones
+            lastDecision = "failed: " + e;
+            Telemetry.log(errorLogger, "autoscaling pool failed to adjust", e);
+        }
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long completed = getCompletedTaskCount();
+        long waitedNow = waited.get();
+        long busyNow = busy.get();
+        long dt = Math.max(1, now - lastSample);
+        long tasks = completed - lastCompleted;
+        int threads = getCorePoolSize();
+
+        double throughput = tasks * 1e9 / dt;
+        double wait = tasks == 0 ? (getQueue().isEmpty() ? 0 : dt) : (double) (waitedNow - lastWaited) / tasks;
+        // busy time is counted once tasks complete: long ones show as active
+        double utilization = Math.max((double) (busyNow - lastBusy) / ((double) threads * dt),
+            (double) getActiveCount() / threads);
+
+        int move = decide(threads, wait, utilization, throughput);
+        lastSample = now;
+        lastCompleted = completed;
+        lastWaited = waitedNow;
+        lastBusy = busyNow;
+        lastThroughput = throughput;
+        lastMove = move;
+        int target = move == 0 ? threads : resize(threads + move * step(threads));
+        String decision = String.format("threads=%d->%d move=%d wait=%.1fms utilization=%.2f throughput=%.1f/s",
+            threads, target, move, wait / 1e6, utilization, throughput);
+        lastDecision = decision;
+        String event = target > threads ? eventNames.serverPoolGrow
+            : target < threads ? eventNames.serverPoolShrink : eventNames.serverPoolHold;
+        Telemetry.log(eventLogger, event);
+        ContextLogger<String, String> logger = decisionLogger;
+        if (logger != null) {
+            Telemetry.log(logger, event, decision);
+        }
+    }
+
+    // +1 to grow, -1 to shrink, 0 to hold
+    private int decide(int threads, double wait, double utilization, double throughput) {
+        if (wait > targetWait && utilization > 0.8) { // saturated
+            if (lastMove > 0 && throughput < lastThroughput * 1.05) {
+                return threads > minThreads ? -1 : 0; // growing did not help
+            }
+            return threads < maxThreads ? 1 : 0;
+        }
+        if (utilization < 0.5 && wait <= targetWait / 2 && threads > minThreads) {
+            return -1;
+        }
+        return 0;
+    }
+
+    private static int step(int threads) {
+        return Math.max(1, threads / 8);
+    }
+
+    // the number of threads now
+    private int resize(int target) {
+        int threads = Math.max(minThreads, Math.min(maxThreads, target));
+        int current = getCorePoolSize();
+        if (threads > current) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        } else if (threads < current) {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads); // idle threads past it exit
+        }
+        return threads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /** The last sample and decision, for auditing */
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    @Override
+    protected void terminated() {
+        controller.shutdownNow();
+        super.terminated();
+    }
+
+    @Override
+    public String toString() {
+        return "AutoScalingExecutor[threads=" + getCorePoolSize() + " in [" + minThreads + ", " + maxThreads
+            + "], queued=" + getQueue().size() + ", last: " + lastDecision + "]";
+    }
+}
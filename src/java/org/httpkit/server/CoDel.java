@@ -0,0 +1,43 @@
+package org.httpkit.server;
+
+/**
+ * Controlled delay, as a worker takes a request off the executor's queue, see
+ * {@link RingHandler#setQueueTarget}. A queue is standing, not just absorbing a
+ * burst, when its shortest sojourn time over an interval is above the target.
+ * While it is, requests queued more than twice the target are shed: their
+ * clients have likely given up, and the workers go on to fresher ones.
+ */
+class CoDel {
+    private final long target; // ns
+    private final long interval;
+
+    private long intervalEnd; // of the current interval
+    private long minSojourn = Long.MAX_VALUE; // in the current interval
+    private boolean overloaded = false; // in the last interval
+
+    CoDel(long targetMs, long intervalMs) {
+        if (targetMs <= 0 || intervalMs <= 0) {
+            throw new IllegalArgumentException("Expected target and interval > 0: " + targetMs + ", " + intervalMs);
+        }
+        this.target = targetMs * 1000000;
+        this.interval = intervalMs * 1000000;
+        this.intervalEnd = System.nanoTime() + interval;
+    }
+
+    /** True if the request queued for {@code sojourn} ns is to be shed */
+    synchronized boolean shouldShed(long sojourn, long now) {
+        if (now - intervalEnd >= 0) {
+            // judged if it had requests and just ended: an idle one, or gap since, says nothing
+            overloaded = minSojourn != Long.MAX_VALUE && now - intervalEnd < interval && minSojourn > target;
+            minSojourn = sojourn;
+            intervalEnd = now + interval;
+        } else if (sojourn < minSojourn) {
+            minSojourn = sojourn;
+        }
+        return overloaded && sojourn > 2 * target;
+    }
+
+    synchronized boolean isOverloaded() {
+        return overloaded;
+    }
+}
@@ -0,0 +1,316 @@
+package org.httpkit.server;
+
+import static org.httpkit.HttpUtils.NON_TEXT_CONTENT_TYPES;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.httpkit.DynamicBytes;
+import org.httpkit.HeaderMap;
+import org.httpkit.HttpUtils;
+
+/**
+ * Response compression, see {@link RingHandler#setCompression}: gzip or
+ * deflate as the request's Accept-Encoding allows, for bodies of a textual
+ * Content-Type (text, json, xml, javascript... but the
+ * {@link HttpUtils#NON_TEXT_CONTENT_TYPES}) of {@code minSize} bytes or more.
+ * Streamed responses are compressed as sent, each send flushed. Deflaters are
+ * pooled per thread: compression runs on the thread sending the response, a
+ * worker, never the IO one.
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int POOL_SIZE = 4; // Deflaters kept per thread, of each kind and level
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static class Pool {
+        // by level + 1, a Deflater not reused across levels: setLevel makes the next deflate return early
+        @SuppressWarnings("unchecked")
+        final ArrayDeque<Deflater>[] raw = new ArrayDeque[Deflater.BEST_COMPRESSION + 2]; // gzip, framed here
+        @SuppressWarnings("unchecked")
+        final ArrayDeque<Deflater>[] zlib = new ArrayDeque[Deflater.BEST_COMPRESSION + 2];
+        final byte[] in = new byte[8192]; // input not on the heap, copied
+        final byte[] out = new byte[16384];
+
+        ArrayDeque<Deflater> deflaters(boolean nowrap, int level) {
+            ArrayDeque<Deflater>[] byLevel = nowrap ? raw : zlib;
+            ArrayDeque<Deflater> deflaters = byLevel[level + 1];
+            if (deflaters == null) {
+                deflaters = byLevel[level + 1] = new ArrayDeque<Deflater>();
+            }
+            return deflaters;
+        }
+    }
+
+    private static final ThreadLocal<Pool> POOLS = new ThreadLocal<Pool>() {
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    /** A Deflater of this level from the current thread's pool, raw if nowrap */
+    static Deflater borrowDeflater(boolean nowrap, int level) {
+        Deflater d = POOLS.get().deflaters(nowrap, level).pollFirst();
+        return d == null ? new Deflater(level, nowrap) : d;
+    }
+
+    /** Back to the current thread's pool of its kind and level, reset, or ended if full */
+    static void releaseDeflater(Deflater d, boolean nowrap, int level) {
+        ArrayDeque<Deflater> deflaters = POOLS.get().deflaters(nowrap, level);
+        if (deflaters.size() < POOL_SIZE) {
+            d.reset();
+            deflaters.addFirst(d);
+        } else {
+            d.end();
+        }
+    }
+
+    final int minSize;
+    final int level;
+
+    public Compression(int minSize, int level) {
+        if (minSize < 0 || level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Expected minSize >= 0 and level in [-1, 9]: " + minSize + ", " + level);
+        }
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    public Compression() {
+        this(1024, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** "gzip", "deflate", or null: the coding acceptEncoding prefers, gzip on a tie */
+    public static String negotiate(Object acceptEncoding) {
+        if (!(acceptEncoding instanceof String)) {
+            return null;
+        }
+        double gzip = -1, deflate = -1, any = -1; // q, -1: not listed
+        for (String coding : ((String) acceptEncoding).split("[,\n]")) {
+            int semi = coding.indexOf(';');
+            String name = (semi < 0 ? coding : coding.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+            double q = semi < 0 ? 1 : quality(coding.substring(semi + 1));
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (name.equals(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    // q=0.5, 1 if none or invalid
+    private static double quality(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /** True for a textual type, parameters ignored */
+    public static boolean isCompressibleType(Object contentType) {
+        if (!(contentType instanceof String)) {
+            return false;
+        }
+        String type = ((String) contentType).toLowerCase(Locale.ROOT);
+        int parameter = type.indexOf(';');
+        if (parameter >= 0) {
+            type = type.substring(0, parameter);
+        }
+        type = type.trim();
+        if (NON_TEXT_CONTENT_TYPES.contains(type)) {
+            return false;
+        }
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+            || type.contains("javascript") || type.equals("application/edn")
+            || type.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * True if a response of this status and headers is one to compress, length
+     * aside: then it varies by Accept-Encoding, said in its Vary header
+     */
+    boolean isCandidate(int status, HeaderMap headers) {
+        if (HttpUtils.isBodyForbidden(status) || status == 206 || headers.containsKey("Content-Encoding")
+                || headers.containsKey("Content-Range") || !isCompressibleType(headers.get("Content-Type"))
+                || headers.containsToken("Cache-Control", "no-transform")) {
+            return false;
+        }
+        if (!headers.containsToken("Vary", "accept-encoding") && !headers.containsToken("Vary", "*")) {
+            Object vary = headers.get("Vary");
+            headers.putOrReplace("Vary", vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding");
+        }
+        return true;
+    }
+
+    // the headers of the response compressed with coding: its ETag no longer the same bytes
+    private static void encoded(HeaderMap headers, String coding) {
+        headers.put("Content-Encoding", coding);
+        Object etag = headers.get("Etag"); // as camelCased
+        if (etag instanceof String && ((String) etag).startsWith("\"")) {
+            headers.putOrReplace("Etag", "W/" + etag);
+        }
+    }
+
+    /**
+     * The body to send in answer to req: compressed, Content-Encoding set, if
+     * it is a candidate of {@code minSize} bytes or more and accepted. Else as
+     * read into a buffer, or null.
+     */
+    ByteBuffer compress(HttpRequest req, int status, HeaderMap headers, Object body) throws IOException {
+        if (body == null || !isCandidate(status, headers)) {
+            return HttpUtils.bodyBuffer(body);
+        }
+        ByteBuffer buffer = HttpUtils.bodyBuffer(body);
+        String coding;
+        if (buffer == null || buffer.remaining() < minSize
+                || (coding = negotiate(req.headers.get("accept-encoding"))) == null) {
+            return buffer;
+        }
+        encoded(headers, coding);
+        Encoder encoder = new Encoder(coding, level);
+        return encoder.write(buffer, true);
+    }
+
+    /** An encoder for the streamed response, Content-Encoding set, or null if not to compress */
+    Encoder stream(HttpRequest req, int status, HeaderMap headers) {
+        if (!isCandidate(status, headers)) {
+            return null;
+        }
+        String coding = negotiate(req.headers.get("accept-encoding"));
+        if (coding == null) {
+            return null;
+        }
+        encoded(headers, coding);
+        return new Encoder(coding, level);
+    }
+
+    /**
+     * Compresses a body, written at once or a piece at a time: sync flushed,
+     * each piece can be decompressed once received. Not thread safe. The
+     * Deflater goes back to the pool of the thread finishing.
+     */
+    static class Encoder {
+        private final boolean gzip;
+        private final int level;
+        private Deflater deflater;
+        private final CRC32 crc;
+        private boolean started = false;
+
+        Encoder(String coding, int level) {
+            this.gzip = GZIP.equals(coding);
+            this.crc = gzip ? new CRC32() : null;
+            this.level = level;
+            this.deflater = borrowDeflater(gzip, level);
+        }
+
+        boolean isFinished() {
+            return deflater == null;
+        }
+
+        /** Ends an unfinished stream, the client gone: its Deflater's native memory freed, not pooled */
+        void end() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        /** The compressed bytes of data, the trailer too if finish: none can be written after */
+        ByteBuffer write(ByteBuffer data, boolean finish) {
+            if (deflater == null) {
+                throw new IllegalStateException("Compressed body already finished");
+            }
+            Pool pool = POOLS.get();
+            DynamicBytes out = new DynamicBytes(Math.max(64, (data == null ? 0 : data.remaining()) / 3));
+            if (gzip && !started) {
+                out.append(GZIP_HEADER, GZIP_HEADER.length);
+            }
+            started = true;
+            if (data != null && data.hasRemaining()) {
+                if (crc != null) {
+                    crc.update(data.duplicate());
+                }
+                if (data.hasArray()) {
+                    deflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                    drain(pool.out, out, Deflater.NO_FLUSH);
+                } else {
+                    while (data.hasRemaining()) {
+                        int n = Math.min(pool.in.length, data.remaining());
+                        data.get(pool.in, 0, n);
+                        deflater.setInput(pool.in, 0, n);
+                        drain(pool.out, out, Deflater.NO_FLUSH);
+                    }
+                }
+            }
+            if (finish) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(pool.out);
+                    out.append(pool.out, n);
+                }
+                if (gzip) {
+                    appendInt(out, (int) crc.getValue());
+                    appendInt(out, (int) deflater.getBytesRead());
+                }
+                release();
+            } else {
+                // flushed once all input taken and the output not filled up
+                int n;
+                do {
+                    n = deflater.deflate(pool.out, 0, pool.out.length, Deflater.SYNC_FLUSH);
+                    out.append(pool.out, n);
+                } while (n == pool.out.length || !deflater.needsInput());
+            }
+            return ByteBuffer.wrap(out.get(), 0, out.length());
+        }
+
+        private void drain(byte[] buf, DynamicBytes out, int flush) {
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(buf, 0, buf.length, flush);
+                out.append(buf, n);
+            }
+        }
+
+        private static void appendInt(DynamicBytes out, int v) { // little endian
+            out.append((byte) v, (byte) (v >>> 8));
+            out.append((byte) (v >>> 16), (byte) (v >>> 24));
+        }
+
+        private void release() {
+            Deflater d = deflater;
+            deflater = null;
+            releaseDeflater(d, gzip, level);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Compression[minSize=" + minSize + ", level=" + level + "]";
+    }
+}
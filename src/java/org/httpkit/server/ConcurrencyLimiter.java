@@ -0,0 +1,185 @@
+package org.httpkit.server;
+
+/**
+ * Caps the requests in flight in the Ring handler, see
+ * {@link RingHandler#setConcurrencyLimiter}. The limit adapts to the latency
+ * observed, measured from {@link HttpRequest#startTime} so that time queued for
+ * a worker counts. Requests past the limit are answered 503 right away, instead
+ * of waiting in the executor's queue until they are useless to the caller.
+ * <p>
+ * Subclasses compute the next limit from each sample, holding the lock.
+ */
+public abstract class ConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight = 0;
+    private long rejected = 0;
+    private double latency = 0; // ns, moving average
+
+    protected ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max: "
+                + minLimit + ", " + initialLimit + ", " + maxLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * The next limit after a request completed in {@code latency} ns, with
+     * {@code inFlight} requests in flight (itself included).
+     */
+    protected abstract double update(double limit, long latency, int inFlight);
+
+    /** False if the request is over the limit: it is rejected */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            rejected++;
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /** The request completed in {@code latency} ns */
+    public synchronized void release(long latency) {
+        this.latency = this.latency == 0 ? latency : this.latency * 0.9 + latency * 0.1;
+        double next = update(limit, latency, inFlight);
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+        inFlight--;
+    }
+
+    /** The request did not run, no sample */
+    public synchronized void release() {
+        inFlight--;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /** Requests rejected so far */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /** Moving average of the latency, in ns */
+    public synchronized long getLatency() {
+        return (long) latency;
+    }
+
+    /** For the Retry-After of a rejected request: about when a slot frees up */
+    public synchronized int retryAfterSeconds() {
+        return (int) Math.max(1, Math.ceil(latency / 1e9));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[limit=" + getLimit() + ", inFlight=" + getInFlight()
+            + ", rejected=" + getRejected() + "]";
+    }
+
+    private static double log10(double limit) {
+        return Math.max(1, Math.log10(limit));
+    }
+
+    /**
+     * Additive increase, multiplicative decrease: +1 per request completing
+     * while the limit is used, times {@code backoff} per request slower than
+     * {@code latencyThresholdMs}.
+     */
+    public static class Aimd extends ConcurrencyLimiter {
+        private final long latencyThreshold;
+        private final double backoff;
+
+        public Aimd(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs, double backoff) {
+            super(initialLimit, minLimit, maxLimit);
+            if (backoff <= 0 || backoff >= 1) {
+                throw new IllegalArgumentException("backoff must be in (0, 1): " + backoff);
+            }
+            this.latencyThreshold = latencyThresholdMs * 1000000;
+            this.backoff = backoff;
+        }
+
+        protected double update(double limit, long latency, int inFlight) {
+            if (latency > latencyThreshold) {
+                return limit * backoff;
+            }
+            if (inFlight * 2 >= limit) { // not limited by the load
+                return limit + 1;
+            }
+            return limit;
+        }
+    }
+
+    /**
+     * Follows the ratio of a long term average latency to the latest one: the
+     * limit shrinks as requests queue and get slower, down to half at once, and
+     * grows by a queue of sqrt(limit) while latency holds. {@code tolerance}
+     * (eg: 1.5) is the latency increase accepted before shrinking.
+     */
+    public static class Gradient extends ConcurrencyLimiter {
+        private final double tolerance;
+        private double longLatency = 0; // ns, slow moving average
+
+        public Gradient(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+            super(initialLimit, minLimit, maxLimit);
+            if (tolerance < 1) {
+                throw new IllegalArgumentException("tolerance must be >= 1: " + tolerance);
+            }
+            this.tolerance = tolerance;
+        }
+
+        protected double update(double limit, long latency, int inFlight) {
+            longLatency = longLatency == 0 ? latency : longLatency * 0.99 + latency * 0.01;
+            if (longLatency > 2 * latency) {
+                longLatency *= 0.95; // the load went away: forget it faster
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / Math.max(1, latency)));
+            double next = limit * gradient + Math.sqrt(limit);
+            if (next > limit && inFlight * 2 < limit) {
+                return limit; // not limited by the load
+            }
+            return limit * 0.8 + next * 0.2;
+        }
+    }
+
+    /**
+     * TCP Vegas: estimates the requests queued from the latency over the lowest
+     * one seen, limit * (1 - min / latency), and keeps it between alpha and beta
+     * (3 and 6 times log10(limit)).
+     */
+    public static class Vegas extends ConcurrencyLimiter {
+        private static final int PROBE_EVERY = 1000; // samples, to forget an old min
+        private long minLatency = Long.MAX_VALUE;
+        private int samples = 0;
+
+        public Vegas(int initialLimit, int minLimit, int maxLimit) {
+            super(initialLimit, minLimit, maxLimit);
+        }
+
+        protected double update(double limit, long latency, int inFlight) {
+            if (++samples % PROBE_EVERY == 0) {
+                minLatency = latency;
+            }
+            minLatency = Math.min(minLatency, latency);
+            double queued = Math.ceil(limit * (1 - (double) minLatency / Math.max(1, latency)));
+            double log = log10(limit);
+            if (queued <= log) {
+                return inFlight * 2 < limit ? limit : limit + 6 * log;
+            } else if (queued < 3 * log) {
+                return inFlight * 2 < limit ? limit : limit + log;
+            } else if (queued > 6 * log) {
+                return limit - log;
+            }
+            return limit;
+        }
+    }
+}
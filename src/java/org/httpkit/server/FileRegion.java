@@ -0,0 +1,98 @@
+package org.httpkit.server;
+
+import org.httpkit.HttpUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A response body sent straight from the file: queued in {@link ServerAtta#toWrites}
+ * and written with {@link FileChannel#transferTo} (sendfile), a socket buffer at a
+ * time, without being copied to the heap. The channel is closed once written,
+ * or when the connection is.
+ */
+class FileRegion {
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    private FileRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /** null if the body is not a File, Path or FileChannel */
+    static FileRegion of(Object body) throws IOException {
+        FileChannel ch;
+        if (body instanceof File) {
+            ch = new RandomAccessFile((File) body, "r").getChannel();
+        } else if (body instanceof Path) {
+            ch = FileChannel.open((Path) body, StandardOpenOption.READ);
+        } else if (body instanceof FileChannel) {
+            ch = (FileChannel) body; // from its current position, like a stream
+        } else {
+            return null;
+        }
+        try {
+            long position = ch.position();
+            return new FileRegion(ch, position, Math.max(0, ch.size() - position));
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A region for the response body, or null to buffer it as usual: not a file,
+     * or one HttpEncode is to report as a 500
+     */
+    static FileRegion forBody(Object body) {
+        try {
+            return of(body);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    long remaining() {
+        return remaining;
+    }
+
+    boolean hasRemaining() {
+        return remaining > 0;
+    }
+
+    /** Non-blocking with a non-blocking target: may write nothing */
+    long transferTo(WritableByteChannel target) throws IOException {
+        long n = channel.transferTo(position, remaining, target);
+        if (n == 0 && position + remaining > channel.size()) {
+            throw new IOException("File truncated while being sent");
+        }
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    /** The rest of the region in memory, when it must go through user space (TLS, HTTP/2) */
+    ByteBuffer toBuffer() throws IOException {
+        try {
+            return HttpUtils.readAll(channel, position, remaining);
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
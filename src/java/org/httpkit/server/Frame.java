@@ -60,6 +60,27 @@ public abstract class Frame {
         }
     }
 
+    /**
+     * A piece of a data message, as read: see
+     * {@link AsyncChannel#setPartialReceiveHandler}. Inflated if compressed,
+     * and decoded if text, characters split across pieces in the next one.
+     */
+    public static class PartialFrame extends Frame {
+        private final String text; // null if binary
+        public final boolean last;
+
+        PartialFrame(byte[] data, String text, boolean last) {
+            super(data);
+            this.text = text;
+            this.last = last;
+        }
+
+        /** The piece of text (a String), or of binary (a byte[]) */
+        public Object getMessage() {
+            return text != null ? text : data;
+        }
+    }
+
     public static class PingFrame extends Frame {
         public PingFrame(byte[] data) {
             super(data);
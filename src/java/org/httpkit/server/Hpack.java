@@ -0,0 +1,457 @@
+package org.httpkit.server;
+
+import org.httpkit.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2, RFC 7541. Header names and values are
+ * kept as ISO-8859-1 strings, one char per octet, like {@link org.httpkit.LineReader}.
+ */
+class Hpack {
+
+    static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+        {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+        {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+        {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+        {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+        {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+        {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+        {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+        {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+        {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+        {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+        {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+        {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+        {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // name => lowest static index, name + '\0' + value => static index
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    /** The dynamic table, evicting oldest entries beyond maxSize octets */
+    static class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int head = 0;   // slot of the newest entry
+        private int count = 0;
+        private int size = 0;   // RFC 7541 4.1: name + value + 32 per entry
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        // 0 is the newest entry
+        String name(int i) {
+            return names[slot(i)];
+        }
+
+        String value(int i) {
+            return values[slot(i)];
+        }
+
+        private int slot(int i) {
+            return (head - i + names.length) % names.length;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            if (entrySize > maxSize) { // 4.4: an entry larger than the table empties it
+                evict(maxSize);
+                return;
+            }
+            evict(entrySize);
+            if (count == names.length) {
+                String[] n = new String[names.length * 2], v = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    n[count - 1 - i] = name(i);
+                    v[count - 1 - i] = value(i);
+                }
+                names = n;
+                values = v;
+                head = count - 1;
+            }
+            head = (head + 1) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        // make room for `needed` octets
+        private void evict(int needed) {
+            while (count > 0 && size + needed > maxSize) {
+                int oldest = slot(count - 1);
+                size -= names[oldest].length() + values[oldest].length() + 32;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        // dynamic index (0 based) of the exact entry, or of the name when
+        // nameOnly, -1 if absent
+        int find(String name, String value, boolean nameOnly) {
+            for (int i = 0; i < count; i++) {
+                if (name.equals(name(i)) && (nameOnly || value.equals(value(i)))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    static class Decoder {
+        private final Table table;
+        private final int maxTableSize;     // advertised SETTINGS_HEADER_TABLE_SIZE
+        private final int maxHeaderListSize;
+
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.table = new Table(maxTableSize);
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /** Decodes a complete header block into name, value, name, value... */
+        List<String> decode(ByteBuffer block) throws ProtocolException {
+            List<String> headers = new ArrayList<String>(16);
+            int listSize = 0;
+            boolean headerSeen = false;
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                String name, value;
+                if ((b & 0x80) != 0) { // 6.1 indexed
+                    int index = readInt(block, 7);
+                    name = name(index);
+                    value = value(index);
+                } else if ((b & 0x40) != 0) { // 6.2.1 incremental indexing
+                    int index = readInt(block, 6);
+                    name = index == 0 ? readString(block) : name(index);
+                    value = readString(block);
+                    table.add(name, value);
+                } else if ((b & 0x20) != 0) { // 6.3 table size update
+                    if (headerSeen) {
+                        throw new ProtocolException("HPACK table size update after a header");
+                    }
+                    int size = readInt(block, 5);
+                    if (size > maxTableSize) {
+                        throw new ProtocolException("HPACK table size update too large: " + size);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else { // 6.2.2 without indexing, 6.2.3 never indexed
+                    int index = readInt(block, 4);
+                    name = index == 0 ? readString(block) : name(index);
+                    value = readString(block);
+                }
+                headerSeen = true;
+                listSize += name.length() + value.length() + 32;
+                if (listSize > maxHeaderListSize) {
+                    throw new ProtocolException("HTTP/2 header list too large");
+                }
+                headers.add(name);
+                headers.add(value);
+            }
+            return headers;
+        }
+
+        private String name(int index) throws ProtocolException {
+            if (index <= 0) {
+                throw new ProtocolException("Invalid HPACK index: " + index);
+            } else if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            } else if (index - STATIC_TABLE.length <= table.length()) {
+                return table.name(index - STATIC_TABLE.length - 1);
+            }
+            throw new ProtocolException("Invalid HPACK index: " + index);
+        }
+
+        private String value(int index) throws ProtocolException {
+            name(index); // validate
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return table.value(index - STATIC_TABLE.length - 1);
+        }
+
+        private String readString(ByteBuffer block) throws ProtocolException {
+            if (!block.hasRemaining()) {
+                throw new ProtocolException("Truncated HPACK string");
+            }
+            boolean huffman = (block.get(block.position()) & 0x80) != 0;
+            int length = readInt(block, 7);
+            if (length > block.remaining()) {
+                throw new ProtocolException("Truncated HPACK string");
+            }
+            if (huffman) {
+                return huffmanDecode(block, length);
+            }
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (block.get() & 0xff);
+            }
+            return new String(chars);
+        }
+    }
+
+    /** Encodes response headers. Must be used in the order the blocks are sent */
+    static class Encoder {
+        private final Table table = new Table(4096);
+        private int pendingSizeUpdate = -1;
+
+        // peer's SETTINGS_HEADER_TABLE_SIZE
+        void setMaxTableSize(int size) {
+            size = Math.min(size, 4096);
+            table.setMaxSize(size);
+            pendingSizeUpdate = size;
+        }
+
+        void encode(ByteBuffer out, String name, String value) {
+            if (pendingSizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+            Integer exact = STATIC_INDEX.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(out, 0x80, 7, exact);
+                return;
+            }
+            int dynamic = table.find(name, value, false);
+            if (dynamic >= 0) {
+                writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamic);
+                return;
+            }
+            Integer nameIndex = STATIC_INDEX.get(name);
+            if (nameIndex == null) {
+                int i = table.find(name, value, true);
+                nameIndex = i < 0 ? 0 : STATIC_TABLE.length + 1 + i;
+            }
+            if (isVolatile(name)) { // without indexing
+                writeInt(out, 0x00, 4, nameIndex);
+            } else {
+                writeInt(out, 0x40, 6, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (!isVolatile(name)) {
+                table.add(name, value);
+            }
+        }
+
+        // changes per response, or too sensitive to be kept in the table
+        private static boolean isVolatile(String name) {
+            return name.equals("date") || name.equals("content-length")
+                || name.equals("set-cookie") || name.equals("etag") || name.equals("last-modified");
+        }
+
+        // upper bound of the encoded size, to size the output buffer
+        static int maxEncodedLength(String name, String value) {
+            return name.length() + value.length() + 24;
+        }
+    }
+
+    static int readInt(ByteBuffer in, int prefixBits) throws ProtocolException {
+        int max = (1 << prefixBits) - 1;
+        int value = in.get() & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated HPACK integer");
+            }
+            int b = in.get() & 0xff;
+            if (shift > 21) {
+                throw new ProtocolException("HPACK integer overflow");
+            }
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static void writeInt(ByteBuffer out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.put((byte) (flags | value));
+            return;
+        }
+        out.put((byte) (flags | max));
+        value -= max;
+        while (value >= 0x80) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Huffman when it is shorter
+    static void writeString(ByteBuffer out, String s) {
+        int length = s.length();
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength < length) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            long current = 0;
+            int n = 0; // bits in current
+            for (int i = 0; i < length; i++) {
+                int c = s.charAt(i) & 0xff;
+                current = (current << LENGTHS[c]) | CODES[c];
+                n += LENGTHS[c];
+                while (n >= 8) {
+                    n -= 8;
+                    out.put((byte) (current >>> n));
+                }
+            }
+            if (n > 0) { // pad with the EOS prefix
+                out.put((byte) ((current << (8 - n)) | (0xff >>> n)));
+            }
+        } else {
+            writeInt(out, 0x00, 7, length);
+            for (int i = 0; i < length; i++) {
+                out.put((byte) s.charAt(i));
+            }
+        }
+    }
+
+    // RFC 7541 Appendix B
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    // Decoding tree: node i has children TREE[2i] (bit 0) and TREE[2i + 1]
+    // (bit 1). A negative child is a leaf holding ~symbol
+    private static final int[] TREE;
+
+    static {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int sym = 0; sym < 256; sym++) {
+            int node = 0;
+            for (int bit = LENGTHS[sym] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((CODES[sym] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[child] = ~sym;
+                } else {
+                    if (tree[child] == 0) {
+                        tree[child] = nodes++;
+                    }
+                    node = tree[child];
+                }
+            }
+        }
+        TREE = tree;
+    }
+
+    static String huffmanDecode(ByteBuffer in, int length) throws ProtocolException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;     // bits since the last symbol
+        boolean allOnes = true;
+        for (int i = 0; i < length; i++) {
+            int b = in.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int child = TREE[2 * node + one];
+                depth++;
+                allOnes &= one == 1;
+                if (child < 0) {
+                    sb.append((char) ~child);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (child == 0) { // only EOS (30 ones) is missing from the tree
+                    throw new ProtocolException("Invalid HPACK Huffman code");
+                } else {
+                    node = child;
+                }
+            }
+        }
+        // 5.2: padding is at most 7 bits, the most significant bits of EOS
+        if (depth > 7 || !allOnes) {
+            throw new ProtocolException("Invalid HPACK Huffman padding");
+        }
+        return sb.toString();
+    }
+}
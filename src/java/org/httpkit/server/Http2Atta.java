@@ -0,0 +1,16 @@
+package org.httpkit.server;
+
+public class Http2Atta extends ServerAtta {
+
+    final Http2Connection conn;
+
+    Http2Atta(Http2Connection conn) {
+        this.conn = conn;
+        conn.atta = this;
+    }
+
+    @Override
+    boolean isIdle() {
+        return conn.isIdle();
+    }
+}
@@ -0,0 +1,746 @@
+package org.httpkit.server;
+
+import org.httpkit.HttpMethod;
+import org.httpkit.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.httpkit.HttpUtils.ASCII;
+import static org.httpkit.HttpVersion.HTTP_1_1;
+import static org.httpkit.server.Frame.CloseFrame.CLOSE_NORMAL;
+
+/**
+ * Server side of one HTTP/2 connection, RFC 7540: frame decoding, stream
+ * multiplexing and flow control. Complete requests are handed to the server
+ * as {@link HttpRequest}s; responses come back through {@link Http2Stream}
+ * and go out as HEADERS and DATA frames, interleaved within the flow-control
+ * windows.
+ * <p>
+ * Frames are decoded by the IO loop. State shared with response writers is
+ * guarded by the connection's attachment, the lock tryWrite takes, so frames
+ * reach the socket in the order they were encoded.
+ */
+class Http2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ASCII);
+
+    // frame types
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    // error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    // settings
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int FRAME_HEADER_SIZE = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384; // ours
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int HEADER_TABLE_SIZE = 4096;
+
+    private final HttpServer server;
+    private final SelectionKey key;
+    private final int maxBody;
+    private final int maxConcurrentStreams;
+    private final int maxHeaderListSize;
+    private final boolean legacyUnsafeRemoteAddr;
+    ServerAtta atta; // the lock, set by Http2Atta
+
+    // ----- IO loop only -----
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE);
+    private int prefaceRead;
+    private final Hpack.Decoder hpackDecoder;
+    private int continuationStream = 0; // expecting CONTINUATION frames of this stream
+    private int continuationFlags;
+    private ByteBuffer headerBlock;
+    private int lastStreamId = 0;
+    // filled by decode, drained by the server
+    final List<Http2Stream> ready = new ArrayList<Http2Stream>();
+    final List<Http2Stream> closed = new ArrayList<Http2Stream>();
+
+    // ----- guarded by atta -----
+    final Map<Integer, Http2Stream> streams = new TreeMap<Integer, Http2Stream>();
+    private final Hpack.Encoder hpackEncoder = new Hpack.Encoder();
+    private final List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+    private int sendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean goAway = false; // sent or received, no new streams
+    private boolean failed = false;  // connection error, GOAWAY sent
+
+    Http2Connection(HttpServer server, SelectionKey key, int maxBody, int maxLine,
+                    int maxConcurrentStreams, boolean legacyUnsafeRemoteAddr, boolean prefaceRead) {
+        this.server = server;
+        this.key = key;
+        this.maxBody = maxBody;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.maxHeaderListSize = maxLine * 8;
+        this.legacyUnsafeRemoteAddr = legacyUnsafeRemoteAddr;
+        this.prefaceRead = prefaceRead ? PREFACE.length : 0;
+        this.hpackDecoder = new Hpack.Decoder(HEADER_TABLE_SIZE, maxHeaderListSize);
+    }
+
+    /** The server connection preface */
+    void start() {
+        synchronized (atta) {
+            ByteBuffer settings = frameHeader(18, SETTINGS, 0, 0);
+            settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxConcurrentStreams);
+            settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+            settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderListSize);
+            settings.flip();
+            out.add(settings);
+            flush();
+        }
+    }
+
+    /**
+     * h2c upgrade, RFC 7540 3.2: the HTTP/1.1 request becomes stream 1,
+     * half-closed (remote)
+     */
+    void upgrade(HttpRequest request, ByteBuffer settings) throws Http2Exception {
+        synchronized (atta) {
+            applySettings(settings);
+            Http2Stream stream = new Http2Stream(1, this, initialWindowSize);
+            request.isHttp2 = true;
+            stream.request = request;
+            stream.remoteClosed = true;
+            stream.dispatched = true;
+            streams.put(1, stream);
+            lastStreamId = 1;
+            ready.add(stream);
+        }
+    }
+
+    boolean isIdle() {
+        synchronized (atta) {
+            return streams.isEmpty();
+        }
+    }
+
+    /** Decodes frames. Completed requests are added to `ready`, reset streams to `closed` */
+    void decode(ByteBuffer input) {
+        synchronized (atta) {
+            if (failed) {
+                return;
+            }
+            try {
+                while (prefaceRead < PREFACE.length && input.hasRemaining()) {
+                    if (input.get() != PREFACE[prefaceRead++]) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid HTTP/2 connection preface");
+                    }
+                }
+                while (input.hasRemaining()) {
+                    int n = Math.min(input.remaining(), frame.remaining());
+                    ByteBuffer chunk = input.duplicate();
+                    chunk.limit(chunk.position() + n);
+                    frame.put(chunk);
+                    input.position(input.position() + n);
+                    frame.flip();
+                    try {
+                        while (frame.remaining() >= FRAME_HEADER_SIZE) {
+                            int length = ((frame.get(frame.position()) & 0xff) << 16)
+                                | ((frame.get(frame.position() + 1) & 0xff) << 8)
+                                | (frame.get(frame.position() + 2) & 0xff);
+                            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                                throw new Http2Exception(FRAME_SIZE_ERROR, "Frame too large: " + length);
+                            }
+                            if (frame.remaining() < FRAME_HEADER_SIZE + length) {
+                                break;
+                            }
+                            frame.position(frame.position() + 3);
+                            int type = frame.get() & 0xff;
+                            int flags = frame.get() & 0xff;
+                            int streamId = frame.getInt() & 0x7fffffff;
+                            ByteBuffer payload = frame.slice();
+                            payload.limit(length);
+                            frame.position(frame.position() + length);
+                            try {
+                                onFrame(type, flags, streamId, payload);
+                            } catch (Http2Exception e) {
+                                if (e.getStreamId() == 0) {
+                                    throw e;
+                                }
+                                resetStream(e.getStreamId(), e.getErrorCode());
+                            }
+                        }
+                    } finally {
+                        frame.compact();
+                    }
+                }
+            } catch (Http2Exception e) {
+                goAway(e.getErrorCode());
+            } catch (ProtocolException e) {
+                goAway(PROTOCOL_ERROR);
+            }
+            flush();
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                } else if (payload.remaining() != 5) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, streamId, "Bad PRIORITY length");
+                }
+                break;
+            case RST_STREAM:
+                onRstStream(streamId, payload);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+                } else if (payload.remaining() != 8) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Bad PING length");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    ByteBuffer pong = frameHeader(8, PING, FLAG_ACK, 0);
+                    pong.put(payload).flip();
+                    out.add(pong);
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                goAway = true;
+                closeIfDone();
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            default: // 4.1: unknown types are ignored
+        }
+    }
+
+    private static ByteBuffer unpad(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return payload;
+        }
+        if (!payload.hasRemaining()) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Missing pad length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding exceeds payload");
+        }
+        payload.limit(payload.limit() - padding);
+        return payload;
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining();
+        if (length > 0) { // the connection window, consumed whatever the stream state
+            windowUpdate(0, length);
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            return; // closed by us, frames in flight
+        }
+        if (stream.remoteClosed) {
+            throw new Http2Exception(STREAM_CLOSED, streamId, "DATA after END_STREAM");
+        }
+        ByteBuffer data = unpad(flags, streamId, payload);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (!stream.dispatched && !stream.appendBody(data, maxBody)) {
+            stream.errorStatus = 413;
+            stream.errorMessage = "request body exceeds " + maxBody + " bytes";
+            stream.dispatched = true;
+            ready.add(stream);
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            if (!stream.dispatched) {
+                completeRequest(stream);
+            }
+            streamDone(stream);
+        } else if (length > 0) {
+            windowUpdate(streamId, length);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Bad HEADERS stream id " + streamId);
+        }
+        ByteBuffer block = unpad(flags, streamId, payload);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (block.remaining() < 5) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Bad HEADERS priority");
+            }
+            block.position(block.position() + 5);
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(flags, streamId, block);
+        } else {
+            continuationStream = streamId;
+            continuationFlags = flags;
+            headerBlock = ByteBuffer.allocate(Math.max(block.remaining() * 2, 1024));
+            headerBlock.put(block);
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws ProtocolException {
+        if (continuationStream == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        if (headerBlock.remaining() < payload.remaining()) {
+            if (headerBlock.position() + payload.remaining() > maxHeaderListSize) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+            }
+            ByteBuffer expanded = ByteBuffer.allocate(
+                Math.max(headerBlock.capacity() * 2, headerBlock.position() + payload.remaining()));
+            headerBlock.flip();
+            expanded.put(headerBlock);
+            headerBlock = expanded;
+        }
+        headerBlock.put(payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            continuationStream = 0;
+            headerBlock.flip();
+            ByteBuffer block = headerBlock;
+            headerBlock = null;
+            onHeaderBlock(continuationFlags, streamId, block);
+        }
+    }
+
+    private void onHeaderBlock(int flags, int streamId, ByteBuffer block) throws Http2Exception {
+        List<String> fields;
+        try { // always decoded, to keep the HPACK table in sync
+            fields = hpackDecoder.decode(block);
+        } catch (ProtocolException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        if (streamId <= lastStreamId) { // trailers
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+            }
+            if (stream.remoteClosed || !endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            }
+            stream.remoteClosed = true;
+            if (!stream.dispatched) {
+                completeRequest(stream);
+            }
+            streamDone(stream);
+            return;
+        }
+        lastStreamId = streamId;
+        if (goAway) {
+            return;
+        }
+        if (streams.size() >= maxConcurrentStreams) {
+            throw new Http2Exception(REFUSED_STREAM, streamId, "Too many streams");
+        }
+
+        Http2Stream stream = new Http2Stream(streamId, this, initialWindowSize);
+        stream.request = newRequest(stream, fields);
+        streams.put(streamId, stream);
+        if (stream.request == null) {
+            stream.dispatched = true;
+            ready.add(stream);
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            if (!stream.dispatched) {
+                completeRequest(stream);
+            }
+        }
+    }
+
+    // null when a 400 is to be sent instead, see errorStatus
+    private HttpRequest newRequest(Http2Stream stream, List<String> fields) throws Http2Exception {
+        String method = null, path = null, authority = null;
+        Map<String, Object> headers = new HashMap<String, Object>(fields.size());
+        boolean regularSeen = false;
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i), value = fields.get(i + 1);
+            for (int j = 0; j < name.length(); j++) {
+                char c = name.charAt(j);
+                if (c >= 'A' && c <= 'Z') {
+                    throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Uppercase header name");
+                }
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Pseudo-header after regular header");
+                }
+                if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else if (!name.equals(":scheme")) {
+                    throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Bad pseudo-header " + name);
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (isConnectionSpecific(name)
+                || (name.equals("te") && !value.equals("trailers"))) {
+                throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Connection-specific header " + name);
+            }
+            if (name.equals("content-length")) {
+                try {
+                    stream.declaredLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Bad content-length");
+                }
+            }
+            Object previous = headers.get(name);
+            if (previous != null) { // 8.1.2.5: cookies are split
+                value = previous + (name.equals("cookie") ? "; " : "\n") + value;
+            }
+            headers.put(name, value);
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "Missing :method or :path");
+        }
+        if (authority != null && !headers.containsKey("host")) {
+            headers.put("host", authority);
+        }
+
+        HttpMethod httpMethod;
+        try {
+            httpMethod = HttpMethod.valueOf(method);
+        } catch (IllegalArgumentException e) {
+            stream.errorStatus = 400;
+            stream.errorMessage = "Unsupported HTTP method";
+            return null;
+        }
+        HttpRequest request = new HttpRequest(httpMethod, path, HTTP_1_1, legacyUnsafeRemoteAddr);
+        try {
+            request.setHeaders(headers);
+        } catch (ProtocolException e) {
+            stream.errorStatus = 400;
+            stream.errorMessage = e.getMessage();
+            return null;
+        }
+        request.isHttp2 = true;
+        return request;
+    }
+
+    private void completeRequest(Http2Stream stream) throws Http2Exception {
+        if (stream.hasDeclaredLengthMismatch()) {
+            throw new Http2Exception(PROTOCOL_ERROR, stream.id, "content-length mismatch");
+        }
+        stream.finishBody();
+        stream.dispatched = true;
+        ready.add(stream);
+    }
+
+    private void onRstStream(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        } else if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad RST_STREAM length");
+        } else if (streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        }
+        forgetStream(streamId);
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        out.add((ByteBuffer) frameHeader(0, SETTINGS, FLAG_ACK, 0).flip());
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad SETTINGS length");
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    hpackEncoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Bad ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Bad INITIAL_WINDOW_SIZE");
+                    }
+                    int delta = value - initialWindowSize;
+                    initialWindowSize = value;
+                    for (Http2Stream stream : streams.values()) {
+                        if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Window overflow");
+                        }
+                        stream.sendWindow += delta;
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 16777215) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Bad MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default: // ignored, incl. MAX_CONCURRENT_STREAMS: we never push
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, streamId, "Zero WINDOW_UPDATE");
+        }
+        if (streamId == 0) {
+            if ((long) sendWindow + increment > Integer.MAX_VALUE) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+            }
+            sendWindow += increment;
+        } else {
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null) {
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                }
+                stream.sendWindow += increment;
+            } else if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+            }
+        }
+    }
+
+    private void windowUpdate(int streamId, int increment) {
+        ByteBuffer update = frameHeader(4, WINDOW_UPDATE, 0, streamId);
+        update.putInt(increment).flip();
+        out.add(update);
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        sendReset(streamId, errorCode);
+        forgetStream(streamId);
+    }
+
+    // reset by either side: the handler is told through `closed`
+    private void forgetStream(int streamId) {
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.reset = true;
+            stream.dropPending();
+            ready.remove(stream);
+            if (stream.channel != null) {
+                closed.add(stream);
+            }
+        }
+        closeIfDone();
+    }
+
+    private void sendReset(int streamId, int errorCode) {
+        ByteBuffer rst = frameHeader(4, RST_STREAM, 0, streamId);
+        rst.putInt(errorCode).flip();
+        out.add(rst);
+    }
+
+    private void goAway(int errorCode) {
+        goAway = true;
+        failed = true;
+        ByteBuffer frame = frameHeader(8, GOAWAY, 0, 0);
+        frame.putInt(lastStreamId).putInt(errorCode).flip();
+        out.add(frame);
+        atta.keepalive = false; // closed once written
+    }
+
+    // Both sides done: forget it. A response completed before the request
+    // body was read asks the client to stop sending, 8.1
+    private void streamDone(Http2Stream stream) {
+        if (stream.localClosed && !stream.remoteClosed && !stream.reset) {
+            sendReset(stream.id, NO_ERROR);
+            stream.reset = true;
+            streams.remove(stream.id);
+        } else if (stream.isClosed()) {
+            streams.remove(stream.id);
+        }
+        closeIfDone();
+    }
+
+    // after GOAWAY, the connection is closed with its last stream
+    private void closeIfDone() {
+        if (goAway && streams.isEmpty()) {
+            atta.keepalive = false;
+        }
+    }
+
+    void writeHeaders(Http2Stream stream, int status, List<String> headers, boolean endStream) {
+        int size = 8;
+        for (int i = 0; i < headers.size(); i += 2) {
+            size += Hpack.Encoder.maxEncodedLength(headers.get(i), headers.get(i + 1));
+        }
+        ByteBuffer block = ByteBuffer.allocate(size);
+        hpackEncoder.encode(block, ":status", Integer.toString(status));
+        for (int i = 0; i < headers.size(); i += 2) {
+            hpackEncoder.encode(block, headers.get(i), headers.get(i + 1));
+        }
+        block.flip();
+
+        int type = HEADERS;
+        do {
+            int n = Math.min(block.remaining(), peerMaxFrameSize);
+            int flags = n == block.remaining() ? FLAG_END_HEADERS : 0;
+            if (type == HEADERS && endStream) {
+                flags |= FLAG_END_STREAM;
+            }
+            out.add((ByteBuffer) frameHeader(n, type, flags, stream.id).flip());
+            ByteBuffer fragment = block.duplicate();
+            fragment.limit(fragment.position() + n);
+            block.position(block.position() + n);
+            out.add(fragment);
+            type = CONTINUATION;
+        } while (block.hasRemaining());
+
+        if (endStream) {
+            stream.localClosed = true;
+            streamDone(stream);
+        }
+    }
+
+    /**
+     * Writes pending frames, with DATA from each stream taking turns, a frame
+     * at a time, as long as both the stream's and the connection's windows allow
+     */
+    void flush() {
+        boolean progress = true;
+        while (progress && !streams.isEmpty()) {
+            progress = false;
+            Iterator<Http2Stream> it = new ArrayList<Http2Stream>(streams.values()).iterator();
+            while (it.hasNext()) {
+                Http2Stream stream = it.next();
+                if (stream.localClosed || stream.reset) {
+                    continue;
+                }
+                int n = Math.min(Math.min(stream.pendingBytes, peerMaxFrameSize),
+                    Math.min(stream.sendWindow, sendWindow));
+                boolean last = stream.endQueued && stream.pendingBytes == Math.max(n, 0);
+                if (n <= 0 && !last) {
+                    continue;
+                }
+                n = Math.max(n, 0);
+                out.add((ByteBuffer) frameHeader(n, DATA, last ? FLAG_END_STREAM : 0, stream.id).flip());
+                stream.takePending(n, out);
+                stream.sendWindow -= n;
+                sendWindow -= n;
+                progress = true;
+                if (last) {
+                    stream.localClosed = true;
+                    streamDone(stream);
+                }
+            }
+        }
+        if (!out.isEmpty()) {
+            ByteBuffer[] buffers = out.toArray(new ByteBuffer[out.size()]);
+            out.clear();
+            server.tryWrite(key, buffers);
+        } else if (!atta.keepalive && atta.toWrites.isEmpty()) {
+            atta.loop.queue(key, CLOSE_NORMAL);
+        }
+    }
+
+    /** On connection close: the channels of streams still open */
+    List<AsyncChannel> closeStreams() {
+        synchronized (atta) {
+            List<AsyncChannel> channels = new ArrayList<AsyncChannel>(streams.size());
+            for (Http2Stream stream : streams.values()) {
+                stream.reset = true;
+                if (stream.channel != null) {
+                    channels.add(stream.channel);
+                }
+            }
+            streams.clear();
+            return channels;
+        }
+    }
+
+    static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+        ByteBuffer b = ByteBuffer.allocate(FRAME_HEADER_SIZE + (type == DATA || type == HEADERS
+            || type == CONTINUATION ? 0 : length));
+        b.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        b.put((byte) type).put((byte) flags).putInt(streamId);
+        return b;
+    }
+
+    // 8.1.2.2
+    static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+            || name.equals("transfer-encoding") || name.equals("upgrade");
+    }
+}
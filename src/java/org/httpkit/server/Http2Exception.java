@@ -0,0 +1,30 @@
+package org.httpkit.server;
+
+import org.httpkit.ProtocolException;
+
+/**
+ * An HTTP/2 error, RFC 7540 section 5.4. A stream error resets one stream,
+ * a connection error (stream 0) sends GOAWAY and closes the connection.
+ */
+public class Http2Exception extends ProtocolException {
+    private final int errorCode;
+    private final int streamId;
+
+    public Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+}
@@ -0,0 +1,259 @@
+package org.httpkit.server;
+
+import org.httpkit.HttpMethod;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.httpkit.HttpUtils.isBodyForbidden;
+
+/**
+ * One HTTP/2 stream. The request is assembled by the IO loop. The response
+ * arrives HTTP/1.1 encoded, exactly as {@link RespCallback} and {@link AsyncChannel}
+ * write it for a keep-alive connection, and is translated here into HEADERS and
+ * DATA frames, so Ring handlers and streaming work unchanged.
+ */
+class Http2Stream implements ResponseSink {
+
+    private enum State {HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DELIMITER, TRAILER, DONE}
+
+    final int id;
+    final Http2Connection conn;
+
+    // ----- request, IO loop only -----
+    HttpRequest request;
+    AsyncChannel channel;
+    boolean dispatched = false;
+    boolean remoteClosed = false; // END_STREAM received
+    long declaredLength = -1;     // content-length, if sent
+    private byte[] body;
+    private int bodyLength = 0;
+    // rejected before reaching the handler, eg: body too large
+    int errorStatus = 0;
+    String errorMessage;
+
+    // ----- response, guarded by the connection's atta -----
+    int sendWindow;
+    final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+    int pendingBytes = 0;
+    boolean endQueued = false;   // END_STREAM goes with the last pending byte
+    boolean localClosed = false; // END_STREAM sent
+    boolean reset = false;
+
+    private State state = State.HEAD;
+    private final StringBuilder line = new StringBuilder(128);
+    private int lineStart = 0;
+    private long remaining;
+
+    Http2Stream(int id, Http2Connection conn, int sendWindow) {
+        this.id = id;
+        this.conn = conn;
+        this.sendWindow = sendWindow;
+    }
+
+    boolean isClosed() {
+        return reset || (localClosed && remoteClosed);
+    }
+
+    // request body, returns false when larger than maxBody
+    boolean appendBody(ByteBuffer data, int maxBody) {
+        int n = data.remaining();
+        if (bodyLength + n > maxBody) {
+            return false;
+        }
+        if (body == null) {
+            body = new byte[declaredLength >= 0 && declaredLength <= maxBody
+                ? (int) declaredLength : Math.max(n, 1024)];
+        } else if (body.length < bodyLength + n) {
+            body = Arrays.copyOf(body, Math.min(maxBody, Math.max(bodyLength + n, body.length * 2)));
+        }
+        data.get(body, bodyLength, n);
+        bodyLength += n;
+        return true;
+    }
+
+    boolean hasDeclaredLengthMismatch() {
+        return declaredLength >= 0 && declaredLength != bodyLength;
+    }
+
+    void finishBody() {
+        if (body != null) {
+            request.setBody(body, bodyLength);
+        }
+    }
+
+    /** HTTP/1.1 encoded response bytes, maybe in another thread: worker thread */
+    public void write(ByteBuffer... buffers) {
+        synchronized (conn.atta) {
+            if (reset || state == State.DONE) {
+                return;
+            }
+            for (ByteBuffer b : buffers) {
+                while (b.hasRemaining() && state != State.DONE) {
+                    consume(b);
+                }
+            }
+            conn.flush();
+        }
+    }
+
+    // no transferTo: the body goes in DATA frames
+    public void write(ByteBuffer head, FileRegion file) throws IOException {
+        write(head, file.toBuffer());
+    }
+
+    // the end of the response is in its encoding
+    public void complete() {
+    }
+
+    // the connection outlives the stream
+    public void closeAfterResponse() {
+    }
+
+    private void consume(ByteBuffer b) {
+        switch (state) {
+            case HEAD:
+                if (readLine(b)) {
+                    if (line.length() == lineStart) {
+                        onHead();
+                    } else {
+                        line.append('\n'); // keep lines apart
+                        lineStart = line.length();
+                    }
+                }
+                break;
+            case BODY:
+            case CHUNK_DATA:
+                int n = (int) Math.min(remaining, b.remaining());
+                ByteBuffer data = b.duplicate();
+                data.limit(data.position() + n);
+                b.position(b.position() + n);
+                pending.add(data);
+                pendingBytes += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    if (state == State.BODY) {
+                        endQueued = true;
+                        state = State.DONE;
+                    } else {
+                        state = State.CHUNK_DELIMITER;
+                    }
+                }
+                break;
+            case CHUNK_SIZE:
+                if (readLine(b)) {
+                    String size = line.toString();
+                    line.setLength(0);
+                    int ext = size.indexOf(';');
+                    remaining = Long.parseLong((ext < 0 ? size : size.substring(0, ext)).trim(), 16);
+                    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                }
+                break;
+            case CHUNK_DELIMITER:
+                if (readLine(b)) {
+                    line.setLength(0);
+                    state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILER:
+                if (readLine(b)) {
+                    if (line.length() == 0) {
+                        endQueued = true;
+                        state = State.DONE;
+                    }
+                    line.setLength(0);
+                }
+                break;
+            default:
+                b.position(b.limit());
+        }
+    }
+
+    // appends to `line` until LF, without the CRLF. true when a line is complete
+    private boolean readLine(ByteBuffer b) {
+        while (b.hasRemaining()) {
+            byte c = b.get();
+            if (c == '\n') {
+                return true;
+            } else if (c != '\r') {
+                line.append((char) (c & 0xff));
+            }
+        }
+        return false;
+    }
+
+    // the head is in `line`, LF separated, ending with the empty line
+    private void onHead() {
+        String head = line.toString();
+        line.setLength(0);
+        lineStart = 0;
+        String[] lines = head.split("\n");
+        int status = Integer.parseInt(lines[0].substring(9, 12)); // HTTP/1.1 200 OK
+        List<String> headers = new ArrayList<String>(lines.length * 2);
+        boolean chunked = false;
+        long length = -1;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("transfer-encoding")) {
+                chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+            } else if (!Http2Connection.isConnectionSpecific(name)) {
+                if (name.equals("content-length")) {
+                    length = Long.parseLong(value);
+                }
+                headers.add(name);
+                headers.add(value);
+            }
+        }
+
+        if (status / 100 == 1) { // interim, the final head follows
+            conn.writeHeaders(this, status, headers, false);
+            return;
+        }
+        boolean noBody = request.method == HttpMethod.HEAD || isBodyForbidden(status)
+            || (!chunked && length <= 0);
+        conn.writeHeaders(this, status, headers, noBody);
+        if (noBody) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else {
+            remaining = length;
+            state = State.BODY;
+        }
+    }
+
+    // moves up to n pending bytes into out
+    void takePending(int n, List<ByteBuffer> out) {
+        pendingBytes -= n;
+        while (n > 0) {
+            ByteBuffer head = pending.peek();
+            if (head.remaining() <= n) {
+                pending.poll();
+                n -= head.remaining();
+                out.add(head);
+            } else {
+                ByteBuffer part = head.duplicate();
+                part.limit(part.position() + n);
+                head.position(head.position() + n);
+                out.add(part);
+                n = 0;
+            }
+        }
+    }
+
+    void dropPending() {
+        pending.clear();
+        pendingBytes = 0;
+        state = State.DONE;
+    }
+}
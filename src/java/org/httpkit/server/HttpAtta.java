@@ -7,4 +7,17 @@ public class HttpAtta extends ServerAtta {
     }
 
     public final HttpDecoder decoder;
-}
\ No newline at end of file
+
+    // bytes of the HTTP/2 connection preface matched so far, -1 when not expected
+    int prefaceMatched = -1;
+
+    // pipelining, null when disabled, see HttpServer#setPipelineDepth
+    ResponseSequencer sequencer;
+    // decoded, but can not be pipelined: waits for the responses in flight
+    HttpRequest parked;
+
+    @Override
+    boolean isIdle() {
+        return sequencer == null || sequencer.inFlight() == 0;
+    }
+}
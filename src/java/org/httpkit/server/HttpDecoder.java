@@ -1,12 +1,13 @@
 package org.httpkit.server;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.httpkit.HeaderTable;
 import org.httpkit.HttpMethod;
 import org.httpkit.HttpUtils;
 import org.httpkit.HttpVersion;
@@ -55,9 +56,18 @@ public class HttpDecoder {
     private int xForwardedPort;
     private boolean proxyLineParsed;
     HttpRequest request; // package visible
-    private Map<String, Object> headers = new TreeMap<String, Object>();
+    private HeaderTable headers = new HeaderTable();
     byte[] content;
 
+    // hand the body to the handler as it arrives, see HttpServer#setStreamRequestBody
+    boolean streamBodies = false;
+    Runnable onBodyDrained;
+    private RequestBody body; // while streaming one
+
+    // bodies larger than this go to a temporary file, 0: never. See HttpServer#setBodySpillThreshold
+    int spillThreshold = 0;
+    private SpilledBody spill; // while reading one
+
     private final int maxBody;
     private final int maxHeaderBytes;
     private final LineReader lineReader;
@@ -196,6 +206,9 @@ public class HttpDecoder {
                     break;
                 case READ_HEADER:
                     readHeaders(buffer);
+                    if (body != null) {
+                        return request; // the body follows, see streamBody
+                    }
                     break;
                 case READ_CHUNK_SIZE:
                     line = lineReader.readLine(buffer);
@@ -205,7 +218,15 @@ public class HttpDecoder {
                             state = State.READ_CHUNK_FOOTER;
                         } else {
                             throwIfBodyIsTooLarge();
-                            if (content == null) {
+                            if (body != null || spill != null) {
+                                // not buffered
+                            } else if (spillThreshold > 0 && readCount + readRemaining > spillThreshold) {
+                                spill = SpilledBody.create();
+                                if (content != null) {
+                                    spill.write(content, readCount);
+                                    content = null;
+                                }
+                            } else if (content == null) {
                                 content = new byte[readRemaining];
                             } else if (content.length < readCount + readRemaining) {
                                 // *1.3 to protect slow client
@@ -241,7 +262,89 @@ public class HttpDecoder {
 
     private void finish() {
         state = State.ALL_READ;
-        request.setBody(content, readCount);
+        if (body != null) {
+            body.finish();
+        } else if (spill != null) {
+            request.setSpilledBody(spill, readCount);
+            spill = null; // the request's now
+        } else {
+            request.setBody(content, readCount);
+        }
+    }
+
+    // nothing of the next request read yet
+    boolean isIdle() {
+        return (state == State.READ_INITIAL || state == State.CONNECTION_OPEN)
+            && headerBytes == 0 && lineReader.isEmpty();
+    }
+
+    // the head is read, not the whole body
+    boolean isReadingBody() {
+        switch (state) {
+            case READ_FIXED_LENGTH_CONTENT:
+            case READ_CHUNK_SIZE:
+            case READ_CHUNKED_CONTENT:
+            case READ_CHUNK_FOOTER:
+            case READ_CHUNK_DELIMITER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** A request was returned before its body: it is streamed to the handler */
+    public boolean isStreamingBody() {
+        return body != null;
+    }
+
+    /**
+     * Feeds body bytes of the streamed request. Returns true once it is complete,
+     * the decoder is then ready for the next request, which may follow in buffer.
+     */
+    public boolean streamBody(ByteBuffer buffer) throws LineTooLargeException,
+            ProtocolException, RequestTooLargeException {
+        decode(buffer);
+        if (state == State.ALL_READ) {
+            reset();
+            return true;
+        }
+        return false;
+    }
+
+    // false while the handler has not caught up, see RequestBody#WINDOW
+    boolean isBodyReadable() {
+        return body == null || body.isReadable();
+    }
+
+    // the response is complete: the rest of the body is dropped
+    void discardBody() {
+        if (body != null) {
+            body.discard();
+        }
+    }
+
+    void failBody(IOException e) {
+        if (body != null) {
+            body.fail(e);
+        }
+    }
+
+    // the connection is closed
+    void close() {
+        failBody(new IOException("Connection closed before the request body was read"));
+        if (spill != null) {
+            spill.delete();
+            spill = null;
+        }
+    }
+
+    private boolean startStreaming() {
+        if (!streamBodies || request.isWebSocket) {
+            return false;
+        }
+        body = new RequestBody(onBodyDrained);
+        request.setStreamedBody(body);
+        return true;
     }
 
     private void readEmptyLine(ByteBuffer buffer, State nextState)
@@ -268,27 +371,35 @@ public class HttpDecoder {
             if (HttpUtils.isForbiddenTrailer(name)) {
                 throw new ProtocolException("Forbidden trailer field: " + name);
             }
-            HttpUtils.splitAndAddHeader(line, headers);
+            if (body == null) { // the handler may already be reading the headers
+                HttpUtils.splitAndAddHeader(line, headers);
+            }
             line = readHeaderLine(buffer);
         }
     }
 
     void readFixedLength(ByteBuffer buffer) {
         int toRead = Math.min(buffer.remaining(), readRemaining);
-        buffer.get(content, readCount, toRead);
+        if (body != null) {
+            body.offer(buffer, toRead);
+        } else if (spill != null) {
+            spill.write(buffer, toRead);
+        } else {
+            buffer.get(content, readCount, toRead);
+        }
         readRemaining -= toRead;
         readCount += toRead;
     }
 
     private void readHeaders(ByteBuffer buffer) throws LineTooLargeException,
             RequestTooLargeException, ProtocolException {
-        String line = readHeaderLine(buffer);
-        while (line != null && !line.isEmpty()) {
-            HttpUtils.splitAndAddHeader(line, headers);
-            line = readHeaderLine(buffer);
+        int length = readHeaderBytes(buffer);
+        while (length > 0) {
+            HttpUtils.splitAndAddHeader(lineReader.lineBytes(), length, headers);
+            length = readHeaderBytes(buffer);
         }
 
-        if (line == null) {
+        if (length < 0) {
             return;
         }
 
@@ -313,6 +424,7 @@ public class HttpDecoder {
                 throw new ProtocolException("Unsupported Transfer-Encoding: " + te);
             }
             state = State.READ_CHUNK_SIZE;
+            startStreaming();
         } else {
             if (cl != null) {
                 try {
@@ -322,7 +434,13 @@ public class HttpDecoder {
                     readRemaining = Integer.parseInt(cl);
                     if (readRemaining > 0) {
                         throwIfBodyIsTooLarge();
-                        content = new byte[readRemaining];
+                        if (startStreaming()) {
+                            request.contentLength = readRemaining;
+                        } else if (spillThreshold > 0 && readRemaining > spillThreshold) {
+                            spill = SpilledBody.create();
+                        } else {
+                            content = new byte[readRemaining];
+                        }
                         state = State.READ_FIXED_LENGTH_CONTENT;
                     } else {
                         state = State.ALL_READ;
@@ -351,24 +469,36 @@ public class HttpDecoder {
 
     public void reset() {
         state = State.READ_INITIAL;
-        headers = new TreeMap<String, Object>();
+        headers = new HeaderTable();
         readCount = 0;
         headerBytes = 0;
         content = null;
+        body = null;
+        if (spill != null) { // never handed to a request
+            spill.delete();
+            spill = null;
+        }
         lineReader.reset();
         request = null;
     }
 
     private String readHeaderLine(ByteBuffer buffer)
             throws LineTooLargeException, ProtocolException {
-        String line = lineReader.readLine(buffer);
-        if (line != null) {
-            headerBytes += line.length() + 2;
+        int length = readHeaderBytes(buffer);
+        return length < 0 ? null : new String(lineReader.lineBytes(), 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    // the length of the line, in lineReader.lineBytes(), or -1
+    private int readHeaderBytes(ByteBuffer buffer)
+            throws LineTooLargeException, ProtocolException {
+        int length = lineReader.readLineBytes(buffer);
+        if (length >= 0) {
+            headerBytes += length + 2;
             if (headerBytes > maxHeaderBytes) {
                 throw new HeadersTooLargeException("HTTP headers exceed " + maxHeaderBytes + " bytes");
             }
         }
-        return line;
+        return length;
     }
 
     private void throwIfBodyIsTooLarge() throws RequestTooLargeException {
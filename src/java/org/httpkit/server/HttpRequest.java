@@ -17,13 +17,21 @@ public class HttpRequest {
     public final HttpVersion version;
 
     private byte[] body;
+    private RequestBody streamedBody; // see HttpDecoder#streamBodies
+    private SpilledBody spilledBody; // see HttpDecoder#spillThreshold
     private final boolean legacyUnsafeRemoteAddr;
     private String proxyRemoteAddr;
 
     // package visible
     int serverPort = 80;
+    private boolean hostHasPort = false;
     String serverName;
+    boolean isSecure = false;
+    boolean isHttp2 = false;
     public String protocol() {
+        if (isHttp2) {
+            return "HTTP/2.0";
+        }
         if (version == HttpVersion.HTTP_1_0) {
             return "HTTP/1.0";
         }
@@ -36,7 +44,9 @@ public class HttpRequest {
     boolean isKeepAlive = false;
     boolean isWebSocket = false;
     boolean legacyContentLength = true;
+    Compression compression; // null: the response is not compressed
     long startTime;
+    long deadline; // System.nanoTime() the response is due by, 0: none
     boolean sentContinue = false;
 
     SocketAddress remoteAddr;
@@ -56,11 +66,30 @@ public class HttpRequest {
         }
     }
 
+    // received over TLS
+    void setSecure() {
+        isSecure = true;
+        if (!hostHasPort) {
+            serverPort = 443;
+        }
+    }
+
     public void setStartTime(long time) {
         this.startTime = time;
     }
 
+    // the handler would wait for the IO thread to read the body
+    boolean isStreamingBody() {
+        return streamedBody != null;
+    }
+
     public InputStream getBody() {
+        if (streamedBody != null) {
+            return streamedBody;
+        }
+        if (spilledBody != null) {
+            return spilledBody;
+        }
         if (body != null) {
             return new BytesInputStream(body, contentLength);
         }
@@ -97,6 +126,26 @@ public class HttpRequest {
         this.contentLength = count;
     }
 
+    void setStreamedBody(RequestBody body) {
+        this.streamedBody = body;
+    }
+
+    boolean hasStreamedBody() {
+        return streamedBody != null;
+    }
+
+    void setSpilledBody(SpilledBody body, int count) {
+        this.spilledBody = body;
+        this.contentLength = count;
+    }
+
+    // the response is complete, or the connection closed: the temporary file goes
+    void releaseBody() {
+        if (spilledBody != null) {
+            spilledBody.delete();
+        }
+    }
+
     void setProxyRemoteAddr(String remoteAddr) {
         this.proxyRemoteAddr = remoteAddr;
     }
@@ -129,6 +178,7 @@ public class HttpRequest {
                             }
                         }
                         serverPort = Integer.parseInt(serverPortCandidate);
+                        hostHasPort = true;
                         if (serverPort < 0 || serverPort > 65535) {
                             throw new NumberFormatException("port out of range");
                         }
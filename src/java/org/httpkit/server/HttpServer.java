@@ -3,34 +3,61 @@ package org.httpkit.server;
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.httpkit.HttpUtils.ASCII;
 import static org.httpkit.HttpUtils.HttpEncode;
 import static org.httpkit.HttpUtils.WsEncode;
+import static org.httpkit.HttpUtils.getStringValue;
+import static org.httpkit.HttpUtils.hasHeaderToken;
 import static org.httpkit.server.Frame.CloseFrame.CLOSE_AWAY;
 import static org.httpkit.server.Frame.CloseFrame.CLOSE_NORMAL;
 
 import java.io.IOException;
 import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 
 import org.httpkit.HeaderMap;
 import org.httpkit.HeadersTooLargeException;
 import org.httpkit.HttpMethod;
+import org.httpkit.HttpVersion;
 import org.httpkit.LineTooLargeException;
+import org.httpkit.PrefixThreadFactory;
 import org.httpkit.ProtocolException;
 import org.httpkit.RequestTooLargeException;
 import org.httpkit.logger.ContextLogger;
@@ -38,6 +65,7 @@ import org.httpkit.logger.EventNames;
 import org.httpkit.logger.EventLogger;
 import org.httpkit.server.Frame.BinaryFrame;
 import org.httpkit.server.Frame.CloseFrame;
+import org.httpkit.server.Frame.PartialFrame;
 import org.httpkit.server.Frame.PingFrame;
 import org.httpkit.server.Frame.PongFrame;
 import org.httpkit.server.Frame.TextFrame;
@@ -54,42 +82,203 @@ class PendingKey {
 
     public static final int OP_WRITE = -1;
     public static final int RESPONSE_COMPLETE = -2;
+    public static final int TLS_TASKS_DONE = -3;
+    public static final int BODY_DRAINED = -4;
+}
+
+class ServerLoop implements Runnable {
+    final HttpServer server;
+    final Selector selector;
+    // null when connections are accepted by another loop
+    final ServerSocketChannel serverChannel;
+    final String name;
+    Thread thread;
+
+    // queue operations from worker threads to the IO thread
+    final ConcurrentLinkedQueue<PendingKey> pending = new ConcurrentLinkedQueue<PendingKey>();
+
+    // sockets accepted by the acceptor, registered by this loop's own thread
+    final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+    final ConcurrentHashMap<SelectionKey, Boolean> keptAlive = new ConcurrentHashMap<SelectionKey, Boolean>();
+
+    // shared, single thread
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(HttpServer.READ_BUFFER_SIZE);
+    // gathering writes of queued buffers, single thread
+    final ByteBuffer[] iov = new ByteBuffer[WriteQueue.IOV_MAX];
+
+    // open connections, for :least-loaded balancing
+    final AtomicInteger connections = new AtomicInteger();
+
+    // connection deadlines, see HttpServer#setTimeouts
+    final TimingWheel timeouts = new TimingWheel(HttpServer.now());
+
+    ServerLoop(HttpServer server, Selector selector, ServerSocketChannel serverChannel, String name) {
+        this.server = server;
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.name = name;
+    }
+
+    void queue(SelectionKey key, int op) {
+        queue(key, op, true);
+    }
+
+    // wakeup false: left to the caller, see HttpServer#tryWriteShared
+    void queue(SelectionKey key, int op, boolean wakeup) {
+        pending.add(new PendingKey(key, op));
+        if (wakeup) {
+            wakeup();
+        }
+    }
+
+    void wakeup() {
+        if (Thread.currentThread() != thread) { // else drained before the next select
+            selector.wakeup();
+        }
+    }
+
+    void handOver(SocketChannel s) {
+        accepted.add(s);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel s;
+                while ((s = accepted.poll()) != null) {
+                    server.register(this, s);
+                }
+                PendingKey k;
+                while (!pending.isEmpty()) {
+                    k = pending.poll();
+                    if (k.Op == PendingKey.OP_WRITE) {
+                        if (k.key.isValid()) {
+                            server.updateInterestOps(k.key);
+                        }
+                    } else if (k.Op == PendingKey.RESPONSE_COMPLETE) {
+                        server.resumeAfterResponse(k.key);
+                    } else if (k.Op == PendingKey.TLS_TASKS_DONE) {
+                        server.resumeTls(this, k.key);
+                    } else if (k.Op == PendingKey.BODY_DRAINED) {
+                        server.resumeBody(this, k.key);
+                    } else {
+                        server.closeKey(k.key, k.Op);
+                    }
+                }
+                // queued by this thread meanwhile, eg: an inline handler's response
+                int selected = !pending.isEmpty() ? selector.selectNow()
+                    : selector.select(timeouts.isEmpty() ? 0 : TimingWheel.TICK_MS);
+                if (!timeouts.isEmpty()) {
+                    server.expireTimeouts(this);
+                }
+                if (selected <= 0) {
+                    continue;
+                }
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    keptAlive.remove(key);
+
+                    // TODO I do not know if this is needed
+                    // if !valid, isAcceptable, isReadable.. will Exception
+                    // run hours happily after commented, but not sure.
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        server.accept(this, key);
+                    } else if (key.isReadable()) {
+                        server.doRead(this, key);
+                    } else if (key.isWritable()) {
+                        server.doWrite(key);
+                    }
+                }
+            } catch (ClosedSelectorException ignore) {
+                return; // stopped
+                // do not exits the while IO event loop. if exits, then will not process any IO event
+                // jvm can catch any exception, including OOM
+            } catch (Throwable e) {
+                if (server.loopError(this, e)) {
+                    return;
+                }
+            }
+        }
+    }
 }
 
 public class HttpServer implements Runnable {
 
     static final String THREAD_NAME = "server-loop";
 
+    static final int READ_BUFFER_SIZE = 1024 * 64 - 1;
+
     private final IHandler handler;
     private final int maxBody; // max http body size
     private final int maxLine; // max header line size
 
     private final int maxWs; // websocket, max message size
 
-    private final Selector selector;
-    private final ServerSocketChannel serverChannel;
-
     private final ProxyProtocolOption proxyProtocolOption;
     private final boolean legacyUnsafeRemoteAddr;
 
     public final String serverHeader;
     private final SocketAddress socketAddress;
 
-    private Thread serverThread;
+    // Owns the listening socket. Also does all the IO when there is one loop
+    private final ServerLoop acceptor;
+    // Connections are spread over these. Each owns its own selector,
+    // pending queue, read buffer and keep-alive set
+    private final ServerLoop[] loops;
+    private final boolean dedicatedAcceptor;
+    private final boolean leastLoaded;
+    private int nextLoop = 0; // acceptor thread only
 
-    // queue operations from worker threads to the IO thread
-    private final ConcurrentLinkedQueue<PendingKey> pending = new ConcurrentLinkedQueue<PendingKey>();
+    // TLS termination, see setSslContext
+    private SSLContext sslContext;
+    private ExecutorService sslTaskExecutor;
+    private boolean ownSslTaskExecutor;
+
+    // HTTP/2, see setHttp2
+    private boolean http2;
+    private int http2MaxStreams;
+
+    // pipelined requests handled concurrently per connection, see setPipelineDepth
+    private int pipelineDepth = 1;
+
+    // request bodies handed to the handler as they arrive, see setStreamRequestBody
+    private boolean streamRequestBody;
 
-    private final ConcurrentHashMap<SelectionKey, Boolean> keptAlive = new ConcurrentHashMap<SelectionKey, Boolean>();
+    // request bodies larger than this go to a temporary file, see setBodySpillThreshold
+    private int bodySpillThreshold;
+
+    // connection timeouts in ms, 0: none, see setTimeouts
+    private int headerTimeout;
+    private int bodyTimeout;
+    private int keepAliveTimeout;
+    private int wsIdleTimeout;
+
+    static final int TIMEOUT_HEADER = 1;
+    static final int TIMEOUT_BODY = 2;
+    static final int TIMEOUT_KEEP_ALIVE = 3;
+    static final int TIMEOUT_WS = 4;
+
+    // permessage-deflate offered to WebSockets, null: none, see setWebSocketDeflate
+    volatile PerMessageDeflate wsDeflate;
+
+    // bytes queued for a connection, see setWriteWatermarks
+    private int writeLowWatermark = 32 * 1024;
+    private int writeHighWatermark = 64 * 1024;
 
     enum Status { STOPPED, RUNNING, STOPPING }
 
     // Will not set keep-alive headers when STOPPING, allowing reqs to drain
     private final AtomicReference<Status> status = new AtomicReference<Status> (Status.STOPPED);
 
-    // shared, single thread
-    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64 - 1);
-
     private final ContextLogger<String, Throwable> errorLogger;
     private final ContextLogger<String, Throwable> warnLogger;
     private final EventLogger<String> eventLogger;
@@ -108,6 +297,21 @@ public class HttpServer implements Runnable {
     public static interface AddressFinder {
         SocketAddress findAddress() throws IOException;
     }
+
+    private static AddressFinder inetAddress(final String ip, final int port) {
+        return new AddressFinder() {
+            public SocketAddress findAddress() {
+                return new InetSocketAddress(ip, port);
+            }
+        };
+    }
+
+    private static final ServerChannelFactory DEFAULT_CHANNEL_FACTORY = new ServerChannelFactory() {
+        public ServerSocketChannel createChannel(SocketAddress address) throws IOException {
+            return ServerSocketChannel.open();
+        }
+    };
+
     public HttpServer(String ip, int port, IHandler handler, int maxBody, int maxLine, int maxWs,
                       ProxyProtocolOption proxyProtocolOption)
             throws IOException {
@@ -123,38 +327,11 @@ public class HttpServer implements Runnable {
                       ContextLogger<String, Throwable> warnLogger,
                       EventLogger<String> eventLogger, EventNames eventNames)
             throws IOException {
-        this.errorLogger = errorLogger;
-        this.warnLogger = warnLogger;
-        this.eventLogger = eventLogger;
-        this.eventNames = eventNames;
-        this.handler = handler;
-        this.maxLine = maxLine;
-        this.maxBody = maxBody;
-        this.maxWs = maxWs;
-        this.proxyProtocolOption = proxyProtocolOption == null
-            ? ProxyProtocolOption.DISABLED : proxyProtocolOption;
-        this.legacyUnsafeRemoteAddr = legacyUnsafeRemoteAddr;
-        this.serverHeader = serverHeader;
-
-        this.socketAddress = new InetSocketAddress(ip, port);
-
-        Selector openedSelector = Selector.open();
-        ServerSocketChannel openedChannel = null;
-        try {
-            openedChannel = ServerSocketChannel.open();
-            openedChannel.configureBlocking(false);
-            openedChannel.socket().bind(socketAddress);
-            openedChannel.register(openedSelector, OP_ACCEPT);
-        } catch (IOException | RuntimeException | Error e) {
-            closeSetupResource(openedChannel);
-            closeSetupResource(openedSelector);
-            throw e;
-        }
-        this.selector = openedSelector;
-        this.serverChannel = openedChannel;
+        this(inetAddress(ip, port), DEFAULT_CHANNEL_FACTORY, handler, maxBody, maxLine, maxWs,
+                proxyProtocolOption, serverHeader, legacyUnsafeRemoteAddr,
+                errorLogger, warnLogger, eventLogger, eventNames);
     }
 
-
     public HttpServer (AddressFinder addressFinder, ServerChannelFactory channelFactory, IHandler handler, int maxBody, int maxLine, int maxWs,
         ProxyProtocolOption proxyProtocolOption,
         String serverHeader,
@@ -162,6 +339,31 @@ public class HttpServer implements Runnable {
         ContextLogger<String, Throwable> errorLogger,
         ContextLogger<String, Throwable> warnLogger,
         EventLogger<String> eventLogger, EventNames eventNames)
+        throws IOException {
+        this(addressFinder, channelFactory, handler, maxBody, maxLine, maxWs, proxyProtocolOption,
+                serverHeader, legacyUnsafeRemoteAddr, errorLogger, warnLogger, eventLogger, eventNames,
+                1, false, false);
+    }
+
+    /**
+     * @param ioThreads   number of selector loops doing reads, decodes and writes. When
+     *                    greater than 1, a dedicated acceptor thread hands new connections
+     *                    to the loops, unless reusePort is set.
+     * @param reusePort   with ioThreads greater than 1, give each loop its own listening
+     *                    socket, from channelFactory, bound with SO_REUSEPORT and let the
+     *                    kernel spread connections.
+     *                    Requires Java 9+ and an IP socket address.
+     * @param leastLoaded hand new connections to the loop with the fewest open connections
+     *                    instead of round-robin.
+     */
+    public HttpServer (AddressFinder addressFinder, ServerChannelFactory channelFactory, IHandler handler, int maxBody, int maxLine, int maxWs,
+        ProxyProtocolOption proxyProtocolOption,
+        String serverHeader,
+        boolean legacyUnsafeRemoteAddr,
+        ContextLogger<String, Throwable> errorLogger,
+        ContextLogger<String, Throwable> warnLogger,
+        EventLogger<String> eventLogger, EventNames eventNames,
+        int ioThreads, boolean reusePort, boolean leastLoaded)
         throws IOException {
             this.errorLogger = errorLogger;
             this.warnLogger = warnLogger;
@@ -175,22 +377,80 @@ public class HttpServer implements Runnable {
                 ? ProxyProtocolOption.DISABLED : proxyProtocolOption;
             this.legacyUnsafeRemoteAddr = legacyUnsafeRemoteAddr;
             this.serverHeader = serverHeader;
+            this.leastLoaded = leastLoaded;
             this.socketAddress = addressFinder.findAddress();
 
-            ServerSocketChannel openedChannel = channelFactory.createChannel(socketAddress);
-            Selector openedSelector = null;
+            if (ioThreads < 1) {
+                throw new IllegalArgumentException("ioThreads must be positive: " + ioThreads);
+            }
+            reusePort = reusePort && ioThreads > 1;
+            if (reusePort && !(socketAddress instanceof InetSocketAddress)) {
+                throw new IllegalArgumentException("SO_REUSEPORT requires an IP socket address");
+            }
+            this.dedicatedAcceptor = ioThreads > 1 && !reusePort;
+
+            List<Closeable> opened = new ArrayList<Closeable>();
             try {
+                ServerSocketChannel openedChannel = channelFactory.createChannel(socketAddress);
+                opened.add(openedChannel);
+                Selector openedSelector = openSelector(opened);
                 openedChannel.configureBlocking(false);
-                openedSelector = Selector.open();
+                if (reusePort) {
+                    enableReusePort(openedChannel);
+                }
                 openedChannel.bind(socketAddress);
                 openedChannel.register(openedSelector, OP_ACCEPT);
+
+                if (ioThreads == 1) {
+                    this.acceptor = new ServerLoop(this, openedSelector, openedChannel, THREAD_NAME);
+                    this.loops = new ServerLoop[]{acceptor};
+                } else if (reusePort) {
+                    InetSocketAddress bound = new InetSocketAddress(
+                        ((InetSocketAddress) socketAddress).getAddress(),
+                        openedChannel.socket().getLocalPort());
+                    this.loops = new ServerLoop[ioThreads];
+                    this.loops[0] = new ServerLoop(this, openedSelector, openedChannel, THREAD_NAME + "-1");
+                    for (int i = 1; i < ioThreads; i++) {
+                        ServerSocketChannel ch = channelFactory.createChannel(bound);
+                        opened.add(ch);
+                        Selector selector = openSelector(opened);
+                        ch.configureBlocking(false);
+                        enableReusePort(ch);
+                        ch.bind(bound);
+                        ch.register(selector, OP_ACCEPT);
+                        this.loops[i] = new ServerLoop(this, selector, ch, THREAD_NAME + "-" + (i + 1));
+                    }
+                    this.acceptor = loops[0];
+                } else {
+                    this.acceptor = new ServerLoop(this, openedSelector, openedChannel, THREAD_NAME);
+                    this.loops = new ServerLoop[ioThreads];
+                    for (int i = 0; i < ioThreads; i++) {
+                        this.loops[i] = new ServerLoop(this, openSelector(opened), null, THREAD_NAME + "-" + (i + 1));
+                    }
+                }
             } catch (IOException | RuntimeException | Error e) {
-                closeSetupResource(openedChannel);
-                closeSetupResource(openedSelector);
+                for (Closeable c : opened) {
+                    closeSetupResource(c);
+                }
                 throw e;
             }
-            this.serverChannel = openedChannel;
-            this.selector = openedSelector;
+    }
+
+    private static Selector openSelector(List<Closeable> opened) throws IOException {
+        Selector selector = Selector.open();
+        opened.add(selector);
+        return selector;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void enableReusePort(ServerSocketChannel ch) throws IOException {
+        SocketOption<Boolean> option;
+        try { // Java 9+
+            option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("SO_REUSEPORT requires Java 9+", e);
+        }
+        ch.setOption(option, true);
     }
 
     private static void closeSetupResource(Closeable resource) {
@@ -202,19 +462,314 @@ public class HttpServer implements Runnable {
         }
     }
 
-    void accept(SelectionKey key) {
+    /**
+     * Terminates TLS on every connection, must be called before {@link #start()}.
+     * Sessions are cached by the context, so clients can resume them.
+     *
+     * @param taskExecutor runs the engine's delegated handshake tasks (key exchange,
+     *                     certificate checks) off the IO loops. When null, a small
+     *                     pool is created and shut down with the server.
+     */
+    public void setSslContext(SSLContext context, ExecutorService taskExecutor) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("TLS must be configured before the server starts");
+        }
+        this.sslContext = context;
+        this.ownSslTaskExecutor = context != null && taskExecutor == null;
+        if (ownSslTaskExecutor) {
+            int n = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new PrefixThreadFactory("http-kit-server-tls-"));
+            pool.allowCoreThreadTimeOut(true);
+            this.sslTaskExecutor = pool;
+        } else {
+            this.sslTaskExecutor = taskExecutor;
+        }
+    }
+
+    /**
+     * Serves HTTP/2 next to HTTP/1.1, must be called before {@link #start()}. Over TLS
+     * it is offered with ALPN (Java 9+); cleartext connections may start with the
+     * HTTP/2 preface (prior knowledge) or upgrade with {@code Upgrade: h2c}.
+     *
+     * @param maxConcurrentStreams requests a client may have in flight on one connection
+     */
+    public void setHttp2(boolean enabled, int maxConcurrentStreams) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("HTTP/2 must be configured before the server starts");
+        }
+        if (enabled && maxConcurrentStreams < 1) {
+            throw new IllegalArgumentException("maxConcurrentStreams must be positive: " + maxConcurrentStreams);
+        }
+        this.http2 = enabled;
+        this.http2MaxStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * Handles up to {@code depth} pipelined requests of a connection concurrently
+     * on the worker pool instead of one after the other, must be called before
+     * {@link #start()}. Responses still go out in request order (see
+     * {@link ResponseSequencer}); those ready together share one gathering write.
+     * Requests that can not be pipelined (HTTP/1.0, Connection: close, WebSocket
+     * and h2c upgrades) wait for the ones in flight. 1, the default, disables it.
+     */
+    public void setPipelineDepth(int depth) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("Pipelining must be configured before the server starts");
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        }
+        this.pipelineDepth = depth;
+    }
+
+    /**
+     * Agrees on permessage-deflate with the WebSocket clients offering it, in
+     * {@link AsyncChannel#sendHandshake}: their messages are then compressed
+     * both ways. Null, the default: the extension is declined.
+     */
+    public void setWebSocketDeflate(PerMessageDeflate deflate) {
+        this.wsDeflate = deflate;
+    }
+
+    /**
+     * Dispatches HTTP/1 requests as soon as their headers are read, must be called
+     * before {@link #start()}. The body is then an InputStream fed by the IO loop as
+     * it arrives (see {@link RequestBody}); the connection is not read while the
+     * handler is behind. Memory no longer grows with the body, maxBody still applies.
+     */
+    public void setStreamRequestBody(boolean enabled) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("Body streaming must be configured before the server starts");
+        }
+        this.streamRequestBody = enabled;
+    }
+
+    /**
+     * Writes HTTP/1 request bodies larger than {@code bytes} to a temporary file
+     * as they arrive instead of the heap, must be called before {@link #start()}.
+     * The handler gets a {@link SpilledBody}; the file is deleted once the response
+     * is complete. Lets maxBody grow past what the heap could buffer per request.
+     * 0, the default, disables it. Streamed bodies (setStreamRequestBody) are never
+     * spilled.
+     */
+    public void setBodySpillThreshold(int bytes) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("Body spilling must be configured before the server starts");
+        }
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        this.bodySpillThreshold = bytes;
+    }
+
+    /**
+     * A connection stops being writable ({@link AsyncChannel#isWritable()}) once
+     * more than {@code high} bytes wait for its socket, and becomes writable again,
+     * calling the channel's writable handler, once they drain to {@code low}. Sends
+     * are never refused: this lets streaming and WebSocket producers pace themselves
+     * to slow clients. Must be called before {@link #start()}; 32KB and 64KB by
+     * default.
+     */
+    public void setWriteWatermarks(int low, int high) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("Write watermarks must be configured before the server starts");
+        }
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Expected 0 <= low <= high: " + low + ", " + high);
+        }
+        this.writeLowWatermark = low;
+        this.writeHighWatermark = high;
+    }
+
+    /**
+     * Closes connections stuck in a phase for too long, must be called before
+     * {@link #start()}. In ms, 0 (the default) disables a phase:
+     * <ul>
+     * <li>headerTimeout: from the first byte of a request (or the connection,
+     * including the TLS handshake) to its last header line. Not extended by
+     * reads, slowloris clients trickling headers are cut off</li>
+     * <li>bodyTimeout: without request body bytes, while the server is reading</li>
+     * <li>keepAliveTimeout: idle between requests (HTTP/2: without open streams)</li>
+     * <li>wsIdleTimeout: without WebSocket frames from the client</li>
+     * </ul>
+     * There is no deadline while the handler has the request, or while a response
+     * is being written. Deadlines are kept on a timing wheel per IO loop, with a
+     * 100ms resolution.
+     */
+    public void setTimeouts(int headerTimeout, int bodyTimeout, int keepAliveTimeout, int wsIdleTimeout) {
+        if (status.get() != Status.STOPPED) {
+            throw new IllegalStateException("Timeouts must be configured before the server starts");
+        }
+        if (headerTimeout < 0 || bodyTimeout < 0 || keepAliveTimeout < 0 || wsIdleTimeout < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.headerTimeout = headerTimeout;
+        this.bodyTimeout = bodyTimeout;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.wsIdleTimeout = wsIdleTimeout;
+    }
+
+    static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private int timeoutOf(int phase) {
+        switch (phase) {
+            case TIMEOUT_HEADER:
+                return headerTimeout;
+            case TIMEOUT_BODY:
+                return bodyTimeout;
+            case TIMEOUT_KEEP_ALIVE:
+                return keepAliveTimeout;
+            case TIMEOUT_WS:
+                return wsIdleTimeout;
+            default:
+                return 0;
+        }
+    }
+
+    // Arms the deadline of the phase the connection is in now, see setTimeouts.
+    // Loop thread only. A read restarts the deadline of the phases about inactivity
+    void updateTimeout(SelectionKey key, boolean read) {
+        if (!key.isValid()) {
+            return;
+        }
+        ServerAtta atta = (ServerAtta) key.attachment();
+        if (atta.timeout == null && headerTimeout == 0 && bodyTimeout == 0
+                && keepAliveTimeout == 0 && wsIdleTimeout == 0) {
+            return;
+        }
+        int phase;
+        boolean restart = read;
+        synchronized (atta) {
+            if (!atta.toWrites.isEmpty()) {
+                phase = 0; // the client is reading
+            } else if (atta instanceof WsAtta) {
+                phase = TIMEOUT_WS;
+            } else if (atta instanceof Http2Atta) {
+                phase = atta.isIdle() ? TIMEOUT_KEEP_ALIVE : 0;
+            } else {
+                HttpDecoder decoder = ((HttpAtta) atta).decoder;
+                if (decoder.isStreamingBody()) {
+                    phase = decoder.isBodyReadable() ? TIMEOUT_BODY : 0;
+                } else if (atta.requestInProgress) {
+                    phase = 0;
+                } else if (decoder.isReadingBody()) {
+                    phase = TIMEOUT_BODY;
+                } else if (!decoder.isIdle()) {
+                    phase = TIMEOUT_HEADER;
+                    restart = false;
+                } else if (!atta.isIdle()) {
+                    phase = 0; // pipelined responses in flight
+                } else {
+                    // a new connection has until its first request's headers
+                    phase = atta.timeout == null || atta.timeout.phase == TIMEOUT_HEADER
+                        ? TIMEOUT_HEADER : TIMEOUT_KEEP_ALIVE;
+                    restart = false;
+                }
+            }
+        }
+        TimingWheel.Timeout t = atta.timeout;
+        int ms = timeoutOf(phase);
+        if (ms == 0) {
+            if (t != null) {
+                atta.loop.timeouts.cancel(t);
+            }
+        } else if (t == null || restart || t.phase != phase) {
+            if (t == null) {
+                t = atta.timeout = new TimingWheel.Timeout(key, atta);
+            }
+            atta.loop.timeouts.arm(t, phase, ms, now());
+        }
+    }
+
+    void expireTimeouts(ServerLoop loop) {
+        TimingWheel.Timeout t = loop.timeouts.advance(now());
+        while (t != null) {
+            TimingWheel.Timeout next = t.next;
+            t.next = null;
+            if (t.key.isValid() && t.key.attachment() == t.atta) {
+                switch (t.phase) {
+                    case TIMEOUT_HEADER:
+                        Telemetry.log(eventLogger, eventNames.serverTimeoutHeader);
+                        break;
+                    case TIMEOUT_BODY:
+                        Telemetry.log(eventLogger, eventNames.serverTimeoutBody);
+                        break;
+                    case TIMEOUT_KEEP_ALIVE:
+                        Telemetry.log(eventLogger, eventNames.serverTimeoutKeepAlive);
+                        break;
+                    default:
+                        Telemetry.log(eventLogger, eventNames.serverTimeoutWs);
+                }
+                t.phase = 0;
+                closeKey(t.key, CLOSE_AWAY);
+            }
+            t = next;
+        }
+    }
+
+    private static final Method SET_APPLICATION_PROTOCOLS;
+
+    static {
+        Method m = null;
+        try { // Java 9+
+            m = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+        } catch (NoSuchMethodException ignored) {
+        }
+        SET_APPLICATION_PROTOCOLS = m;
+    }
+
+    // ALPN: the client sends the HTTP/2 preface if it picked h2
+    private static void offerHttp2(SSLEngine engine) {
+        if (SET_APPLICATION_PROTOCOLS == null) {
+            return;
+        }
+        SSLParameters params = engine.getSSLParameters();
+        try {
+            SET_APPLICATION_PROTOCOLS.invoke(params, (Object) new String[]{"h2", "http/1.1"});
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return;
+        }
+        engine.setSSLParameters(params);
+    }
+
+    private List<ServerLoop> allLoops() {
+        List<ServerLoop> all = new ArrayList<ServerLoop>(loops.length + 1);
+        Collections.addAll(all, loops);
+        if (!all.contains(acceptor)) {
+            all.add(0, acceptor);
+        }
+        return all;
+    }
+
+    private ServerLoop pickLoop() {
+        if (leastLoaded) {
+            ServerLoop least = loops[0];
+            for (int i = 1; i < loops.length; i++) {
+                if (loops[i].connections.get() < least.connections.get()) {
+                    least = loops[i];
+                }
+            }
+            return least;
+        }
+        ServerLoop next = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return next;
+    }
+
+    void accept(ServerLoop loop, SelectionKey key) {
         ServerSocketChannel ch = (ServerSocketChannel) key.channel();
         SocketChannel s;
         try {
             while ((s = ch.accept()) != null) {
-                try {
-                    s.configureBlocking(false);
-                    HttpAtta atta = new HttpAtta(maxBody, maxLine, proxyProtocolOption, legacyUnsafeRemoteAddr);
-                    SelectionKey k = s.register(selector, OP_READ, atta);
-                    atta.channel = new AsyncChannel(k, this);
-                } catch (IOException | RuntimeException | Error e) {
-                    closeSetupResource(s);
-                    throw e;
+                // with a dedicated acceptor, connections go to the IO loops
+                ServerLoop target = dedicatedAcceptor && loop == acceptor ? pickLoop() : loop;
+                if (target == loop) {
+                    register(loop, s);
+                } else {
+                    target.handOver(s);
                 }
             }
         } catch (Exception e) {
@@ -224,34 +779,128 @@ public class HttpServer implements Runnable {
         }
     }
 
-    private void closeKey(final SelectionKey key, int status) {
+    void register(ServerLoop loop, SocketChannel s) throws IOException {
+        try {
+            s.configureBlocking(false);
+            HttpAtta atta = new HttpAtta(maxBody, maxLine, proxyProtocolOption, legacyUnsafeRemoteAddr);
+            atta.loop = loop;
+            if (http2) {
+                atta.prefaceMatched = 0;
+            }
+            if (sslContext != null) {
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                if (http2) {
+                    offerHttp2(engine);
+                }
+                engine.beginHandshake();
+                atta.tls = new TlsConnection(engine);
+            }
+            final SelectionKey k = s.register(loop.selector, OP_READ, atta);
+            atta.channel = new AsyncChannel(k, this);
+            if (streamRequestBody) {
+                final ServerLoop owner = loop;
+                atta.decoder.streamBodies = true;
+                atta.decoder.onBodyDrained = new Runnable() {
+                    public void run() {
+                        owner.queue(k, PendingKey.BODY_DRAINED);
+                    }
+                };
+            }
+            atta.decoder.spillThreshold = bodySpillThreshold;
+            if (pipelineDepth > 1) {
+                atta.sequencer = new ResponseSequencer(this, k, atta);
+            }
+            loop.connections.incrementAndGet();
+            updateTimeout(k, false);
+        } catch (IOException | RuntimeException | Error e) {
+            closeSetupResource(s);
+            throw e;
+        }
+    }
+
+    void closeKey(final SelectionKey key, int status) {
 
-        keptAlive.remove(key);
+        ServerAtta att = (ServerAtta) key.attachment();
+        ServerLoop loop = att == null ? null : att.loop;
+        if (loop != null) {
+            loop.keptAlive.remove(key);
+            if (att.timeout != null && Thread.currentThread() == loop.thread) {
+                loop.timeouts.cancel(att.timeout); // else skipped once due
+            }
+        }
 
         try {
-            key.channel().close();
+            Channel ch = key.channel();
+            if (ch.isOpen()) {
+                if (att != null && att.tls != null) {
+                    sendCloseNotify(key, att);
+                }
+                ch.close();
+                if (loop != null) {
+                    loop.connections.decrementAndGet();
+                }
+            }
         } catch (Exception ex) {
             Telemetry.log(warnLogger, "failed to close key", ex);
         }
 
-        ServerAtta att = (ServerAtta) key.attachment();
+        if (att != null) {
+            synchronized (att) {
+                att.releaseWrites();
+            }
+        }
+
         if (att instanceof HttpAtta) {
+            ((HttpAtta) att).decoder.close();
+            att.channel.releaseRequestBody();
+            att.channel.endEncoder();
             handler.clientClose(att.channel, -1);
+            ResponseSequencer sequencer = ((HttpAtta) att).sequencer;
+            if (sequencer != null) {
+                for (AsyncChannel channel : sequencer.close()) {
+                    channel.releaseRequestBody();
+                    channel.endEncoder();
+                    handler.clientClose(channel, -1);
+                }
+            }
+        } else if (att instanceof Http2Atta) {
+            for (AsyncChannel channel : ((Http2Atta) att).conn.closeStreams()) {
+                channel.endEncoder();
+                handler.clientClose(channel, -1);
+            }
         } else if (att != null) {
             WsAtta wsAtta = (WsAtta) att;
+            att.channel.endDeflate();
             handler.clientClose(att.channel,
                     wsAtta.closeStatus == 0 ? status : wsAtta.closeStatus,
                     wsAtta.closeReason);
         }
     }
 
+    // Best effort, the socket is about to be closed
+    private void sendCloseNotify(SelectionKey key, ServerAtta atta) {
+        synchronized (atta) {
+            if (!atta.toWrites.isEmpty()) {
+                return;
+            }
+            ByteBuffer closeNotify = atta.tls.closeOutbound();
+            if (closeNotify != null) {
+                try {
+                    ((SocketChannel) key.channel()).write(closeNotify);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
     private void savePendingInput(ServerAtta atta, ByteBuffer input) {
         if (input.hasRemaining()) {
             if (atta.pendingInput == null) {
                 atta.pendingInput = ByteBuffer.allocate(
-                    Math.min(buffer.capacity(), Math.max(1024, input.remaining())));
+                    Math.min(READ_BUFFER_SIZE, Math.max(1024, input.remaining())));
             } else if (atta.pendingInput.remaining() < input.remaining()) {
-                int capacity = Math.min(buffer.capacity(), Math.max(
+                int capacity = Math.min(READ_BUFFER_SIZE, Math.max(
                     atta.pendingInput.position() + input.remaining(), atta.pendingInput.capacity() * 2));
                 ByteBuffer expanded = ByteBuffer.allocate(capacity);
                 atta.pendingInput.flip();
@@ -263,10 +912,12 @@ public class HttpServer implements Runnable {
     }
 
     private boolean canReadWhileInProgress(ServerAtta atta) {
-        return atta.pendingInput == null || atta.pendingInput.position() < buffer.capacity();
+        return (atta.pendingInput == null || atta.pendingInput.position() < READ_BUFFER_SIZE)
+            && (atta.tls == null || atta.tls.peerNetData.hasRemaining())
+            && (!(atta instanceof HttpAtta) || ((HttpAtta) atta).decoder.isBodyReadable());
     }
 
-    private void updateInterestOps(SelectionKey key) {
+    void updateInterestOps(SelectionKey key) {
         if (!key.isValid()) {
             return;
         }
@@ -280,18 +931,22 @@ public class HttpServer implements Runnable {
             } else if (atta.requestInProgress) {
                 key.interestOps(readOp);
             } else if (atta.isKeepAlive()) {
-                key.interestOps(OP_READ);
-                keptAlive.put(key, true);
+                key.interestOps(atta.isReadPaused() ? 0 : OP_READ);
+                if (atta.isIdle()) {
+                    atta.loop.keptAlive.put(key, true);
+                }
             } else {
                 close = true;
             }
         }
         if (close) {
             closeKey(key, CLOSE_NORMAL);
+        } else {
+            updateTimeout(key, false);
         }
     }
 
-    private void resumeAfterResponse(SelectionKey key) {
+    void resumeAfterResponse(SelectionKey key) {
         if (!key.isValid()) {
             return;
         }
@@ -304,95 +959,297 @@ public class HttpServer implements Runnable {
 
         ByteBuffer pendingInput = atta.pendingInput;
         atta.pendingInput = null;
-        if (pendingInput != null && atta.isKeepAlive()) {
+        SocketChannel ch = (SocketChannel) key.channel();
+        HttpRequest parked = atta instanceof HttpAtta ? ((HttpAtta) atta).parked : null;
+        if (parked != null) { // the pipelined requests before it are answered
+            ((HttpAtta) atta).parked = null;
+            if (pendingInput == null) {
+                pendingInput = ByteBuffer.allocate(0);
+            } else {
+                pendingInput.flip();
+            }
+            dispatchHttp((HttpAtta) atta, key, ch, parked, pendingInput);
+        } else if (atta instanceof HttpAtta && ((HttpAtta) atta).decoder.isStreamingBody()) {
+            // answered before the whole body: it is read on, and dropped
+            ((HttpAtta) atta).decoder.discardBody();
+        } else if (pendingInput != null && atta.isKeepAlive()) {
             pendingInput.flip();
-            SocketChannel ch = (SocketChannel) key.channel();
             if (atta instanceof HttpAtta) {
                 decodeHttp((HttpAtta) atta, key, ch, pendingInput);
             } else {
                 decodeWs((WsAtta) atta, key, pendingInput);
             }
+        } else if (atta instanceof HttpAtta && ((HttpAtta) atta).decoder.requiresContinue()) {
+            sendContinue((HttpAtta) atta, key); // held back for the pipelined responses
+        }
+        if (atta.tls != null && atta.tls.peerNetData.position() > 0 && key.isValid()) {
+            // records left buffered while the request was in progress
+            try {
+                unwrapTls(atta.loop, key);
+            } catch (IOException e) {
+                tlsError(key, e);
+            }
+        }
+        if (key.isValid()) {
+            updateInterestOps(key);
         }
-        updateInterestOps(key);
     }
 
-    private void decodeHttp(HttpAtta atta, SelectionKey key, SocketChannel ch, ByteBuffer input) {
-        try {
-            HttpRequest request = atta.decoder.decode(input);
-
-            if (request != null) {
+    // the handler caught up with a streamed request body, or partial WebSocket messages
+    void resumeBody(ServerLoop loop, SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        ServerAtta atta = (ServerAtta) key.attachment();
+        if (atta.tls != null && atta.tls.peerNetData.position() > 0) {
+            resumeTls(loop, key);
+        } else {
+            updateInterestOps(key);
+        }
+    }
 
-                    // Get AsyncChannel to associate with this request.
-                    // Logic has had subtle issues in the past.
-                    //
-                    // 1. If HttpAtta's channel is open, use that (pre-existing) channel.
-                    //    [#578] Important to ensure that we preserve attached handlers, etc.
-                    //
-                    // 2. If HttpAtta's channel is closed, KEEP it closed and create a new channel.
-                    //    [#375] Important to ensure that AsyncChannels (which may be held by users!)
-                    //    stay closed once closed, and don't get accidentally reset+reused for
-                    //    different logical requests.
+    void resumeTls(ServerLoop loop, SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            unwrapTls(loop, key);
+        } catch (IOException e) {
+            tlsError(key, e);
+        }
+        if (key.isValid()) {
+            updateInterestOps(key);
+        }
+    }
 
-                    // Is this reasonable?
-                AsyncChannel channel = atta.channel.isClosed() ? new AsyncChannel(key, this) : atta.channel;
-                atta.channel = channel;
+    private void decodeHttp(HttpAtta atta, SelectionKey key, SocketChannel ch, ByteBuffer input) {
+        if (atta.decoder.isStreamingBody() && !feedBody(atta, key, input)) {
+            return; // the rest of a body the response did not wait for
+        }
+        try {
+            do {
+                HttpRequest request = atta.decoder.decode(input);
+                if (request == null) {
+                    if (atta.decoder.requiresContinue()) {
+                        if (atta.sequencer != null && atta.sequencer.resumeWhen(0)) {
+                            // the 100 can not go out before the responses in flight
+                            waitForPipeline(atta, key, input);
+                        } else {
+                            sendContinue(atta, key);
+                        }
+                    }
+                    return;
+                }
 
                 if (status.get() != Status.RUNNING) {
                     request.isKeepAlive = false;
                 }
 
-                request.setStartTime(System.nanoTime());
-                channel.reset(request);
-
-                ServerAtta activeAtta;
-                if (request.isWebSocket) {
-                    request.isKeepAlive = false;
-                    activeAtta = new WsAtta(channel, maxWs);
-                    key.attach(activeAtta);
-                } else {
-                    atta.keepalive = request.isKeepAlive;
-                    activeAtta = atta;
+                if (atta.sequencer == null) {
+                    dispatchHttp(atta, key, ch, request, input);
+                    return;
                 }
-                request.channel = channel;
-                // can't call socket() on anything else
-                if (socketAddress instanceof InetSocketAddress){
-                    request.remoteAddr = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
+                if (!isPipelinable(request) || atta.decoder.isStreamingBody()) {
+                    if (atta.sequencer.resumeWhen(0)) {
+                        atta.parked = request;
+                        if (atta.decoder.isStreamingBody()) {
+                            feedBody(atta, key, input); // buffered meanwhile, see onInput
+                        } else {
+                            atta.decoder.reset();
+                        }
+                        waitForPipeline(atta, key, input);
+                    } else {
+                        dispatchHttp(atta, key, ch, request, input);
+                    }
+                    return;
+                }
+                atta.decoder.reset();
+                dispatchPipelined(atta, key, ch, request);
+                if (atta.sequencer.resumeWhen(pipelineDepth - 1)) {
+                    waitForPipeline(atta, key, input);
+                    return;
                 }
+            } while (input.hasRemaining());
+        } catch (HeadersTooLargeException e) {
+            Telemetry.log(eventLogger, eventNames.serverStatusPrefix + 431);
+            tryWriteHttpResponse(key, atta, 431, e.getMessage());
+        } catch (ProtocolException e) {
+            tryWriteHttpResponse(key, atta, 400, e.getMessage());
+        } catch (RequestTooLargeException e) {
+            Telemetry.log(eventLogger, eventNames.serverStatus413);
+            tryWriteHttpResponse(key, atta, 413, e.getMessage());
+        } catch (LineTooLargeException e) {
+            Telemetry.log(eventLogger, eventNames.serverStatus414);
+            tryWriteHttpResponse(key, atta, 414, e.getMessage()); // close after write
+        } catch (UncheckedIOException e) { // spilling the body, see SpilledBody
+            Telemetry.log(errorLogger, "failed to spill request body", e.getCause());
+            Telemetry.log(eventLogger, eventNames.serverStatus500);
+            tryWriteHttpResponse(key, atta, 500, "Internal Server Error");
+        }
+    }
+
+    private void dispatchHttp(HttpAtta atta, SelectionKey key, SocketChannel ch,
+                              HttpRequest request, ByteBuffer input) {
+        // Get AsyncChannel to associate with this request.
+        // Logic has had subtle issues in the past.
+        //
+        // 1. If HttpAtta's channel is open, use that (pre-existing) channel.
+        //    [#578] Important to ensure that we preserve attached handlers, etc.
+        //
+        // 2. If HttpAtta's channel is closed, KEEP it closed and create a new channel.
+        //    [#375] Important to ensure that AsyncChannels (which may be held by users!)
+        //    stay closed once closed, and don't get accidentally reset+reused for
+        //    different logical requests.
+
+        // Is this reasonable?
+        AsyncChannel channel = atta.channel.isClosed() ? new AsyncChannel(key, this) : atta.channel;
+        atta.channel = channel;
+
+        request.setStartTime(System.nanoTime());
+        if (atta.tls != null) {
+            request.setSecure();
+        }
+        channel.reset(request);
+
+        if (atta.tls == null && isHttp2Upgrade(request)) {
+            atta.decoder.reset();
+            upgradeToHttp2(atta, key, request, input);
+            return;
+        }
+
+        ServerAtta activeAtta;
+        if (request.isWebSocket) {
+            request.isKeepAlive = false;
+            activeAtta = new WsAtta(channel, maxWs);
+            activeAtta.loop = atta.loop;
+            activeAtta.tls = atta.tls;
+            key.attach(activeAtta);
+        } else {
+            atta.keepalive = request.isKeepAlive;
+            activeAtta = atta;
+        }
+        request.channel = channel;
+        // can't call socket() on anything else
+        if (socketAddress instanceof InetSocketAddress){
+            request.remoteAddr = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
+        }
+
+        activeAtta.requestInProgress = true;
+        if (atta.decoder.isStreamingBody()) {
+            if (atta.decoder.requiresContinue()) {
+                sendContinue(atta, key); // the handler waits for the body
+            }
+            handler.handle(request, new RespCallback(key, this, null, request));
+            if (feedBody(atta, key, input)) {
+                savePendingInput(atta, input);
+            }
+            updateInterestOps(key);
+            return;
+        }
+        savePendingInput(activeAtta, input);
+        atta.decoder.reset();
+        updateInterestOps(key);
+        handler.handle(request, new RespCallback(key, this, null, request));
+    }
+
+    /**
+     * Feeds a streamed request body from the IO loop, see RequestBody. True once
+     * the body is complete: input may hold the next request. The connection is
+     * closed if the body turns out malformed or too large, the handler may have
+     * answered already.
+     */
+    private boolean feedBody(HttpAtta atta, SelectionKey key, ByteBuffer input) {
+        try {
+            return atta.decoder.streamBody(input);
+        } catch (RequestTooLargeException e) {
+            Telemetry.log(eventLogger, eventNames.serverStatus413);
+            atta.decoder.failBody(new IOException(e.getMessage(), e));
+        } catch (ProtocolException | LineTooLargeException e) {
+            atta.decoder.failBody(new IOException(e.getMessage(), e));
+        }
+        closeKey(key, CLOSE_AWAY);
+        return false;
+    }
+
+    // Keep-alive HTTP/1.1 requests that do not change the protocol
+    private static boolean isPipelinable(HttpRequest request) {
+        return request.isKeepAlive && !request.isWebSocket
+            && request.version == HttpVersion.HTTP_1_1
+            && getStringValue(request.headers, "upgrade") == null;
+    }
+
+    // Runs concurrently with the requests before it, the response waits for theirs
+    private void dispatchPipelined(HttpAtta atta, SelectionKey key, SocketChannel ch, HttpRequest request) {
+        ResponseSequencer.Slot slot = atta.sequencer.next();
+        AsyncChannel channel = new AsyncChannel(key, this, slot);
+        slot.channel = channel;
+        request.setStartTime(System.nanoTime());
+        if (atta.tls != null) {
+            request.setSecure();
+        }
+        channel.reset(request);
+        request.channel = channel;
+        if (socketAddress instanceof InetSocketAddress) {
+            request.remoteAddr = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
+        }
+        handler.handle(request, new RespCallback(key, this, slot, request));
+    }
+
+    // Input is buffered until the sequencer resumes decoding, see resumeAfterResponse
+    private void waitForPipeline(HttpAtta atta, SelectionKey key, ByteBuffer input) {
+        atta.requestInProgress = true;
+        savePendingInput(atta, input);
+        updateInterestOps(key);
+    }
+
+    private void sendContinue(HttpAtta atta, SelectionKey key) {
+        tryWrite(key, HttpEncode(100, new HeaderMap(), null, serverHeader));
+        atta.decoder.setSentContinue();
+    }
 
-                activeAtta.requestInProgress = true;
-                savePendingInput(activeAtta, input);
-                atta.decoder.reset();
-                updateInterestOps(key);
-                handler.handle(request, new RespCallback(key, this));
-            } else if (atta.decoder.requiresContinue()) {
-                tryWrite(key, HttpEncode(100, new HeaderMap(), null, serverHeader));
-                atta.decoder.setSentContinue();
-            }
-        } catch (HeadersTooLargeException e) {
-            atta.keepalive = false;
-            Telemetry.log(eventLogger, eventNames.serverStatusPrefix + 431);
-            tryWriteHttpResponse(key, atta, 431, e.getMessage());
-        } catch (ProtocolException e) {
-            atta.keepalive = false;
-            tryWriteHttpResponse(key, atta, 400, e.getMessage());
-        } catch (RequestTooLargeException e) {
+    private boolean isHttp2Upgrade(HttpRequest request) {
+        return http2 && !request.isWebSocket && request.contentLength == 0 && !request.hasStreamedBody()
+            && hasHeaderToken(getStringValue(request.headers, "upgrade"), "h2c")
+            && getStringValue(request.headers, "http2-settings") != null;
+    }
+
+    // RFC 7540 3.2: the request is answered on stream 1
+    private void upgradeToHttp2(HttpAtta atta, SelectionKey key, HttpRequest request, ByteBuffer input) {
+        ByteBuffer settings;
+        try {
+            String encoded = getStringValue(request.headers, "http2-settings").trim();
+            settings = ByteBuffer.wrap(Base64.getUrlDecoder().decode(encoded));
+        } catch (IllegalArgumentException e) {
             atta.keepalive = false;
-            Telemetry.log(eventLogger, eventNames.serverStatus413);
-            tryWriteHttpResponse(key, atta, 413, e.getMessage());
-        } catch (LineTooLargeException e) {
-            atta.keepalive = false; // close after write
-            Telemetry.log(eventLogger, eventNames.serverStatus414);
-            tryWriteHttpResponse(key, atta, 414, e.getMessage());
+            tryWriteHttpResponse(key, atta, 400, "Invalid HTTP2-Settings");
+            return;
         }
+        tryWrite(key, ByteBuffer.wrap(SWITCHING_TO_H2C));
+        startHttp2(atta, key, input, request, settings);
     }
 
+    private static final byte[] SWITCHING_TO_H2C = ("HTTP/1.1 101 Switching Protocols\r\n"
+        + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(ASCII);
+
+    // An error response, then the connection is closed
     private void tryWriteHttpResponse(SelectionKey key, HttpAtta atta,
                                       int status, String message) {
         HeaderMap headers = new HeaderMap();
         headers.put("Connection", "Close");
         HttpRequest request = atta.decoder.request;
-        tryWrite(key, HttpEncode(status, headers, message, serverHeader, true,
-            request != null && request.method == HttpMethod.HEAD));
+        ByteBuffer[] response = HttpEncode(status, headers, message, serverHeader, true,
+            request != null && request.method == HttpMethod.HEAD);
+        if (atta.sequencer != null && atta.sequencer.inFlight() > 0) {
+            // after the responses to the pipelined requests before it
+            atta.requestInProgress = true; // nothing more is decoded
+            ResponseSequencer.Slot slot = atta.sequencer.next();
+            slot.closeAfterResponse();
+            slot.write(response);
+            slot.complete();
+        } else {
+            atta.keepalive = false;
+            tryWrite(key, response);
+        }
     }
 
     private void decodeWs(WsAtta atta, SelectionKey key, ByteBuffer input) {
@@ -402,6 +1259,13 @@ public class HttpServer implements Runnable {
                 if (frame instanceof TextFrame || frame instanceof BinaryFrame) {
                     handler.handle(atta.channel, frame);
                     atta.decoder.reset();
+                } else if (frame instanceof PartialFrame) {
+                    // a piece of a message: the decoder resets itself once the frame is read
+                    boolean readOn = atta.partialDecoded(frame.data.length);
+                    handler.handle(atta.channel, frame);
+                    if (!readOn && key.isValid()) {
+                        key.interestOps(key.interestOps() & ~OP_READ); // see WsAtta#partialHandled
+                    }
                 } else if (frame instanceof PingFrame) {
                     handler.handle(atta.channel, frame);
                     atta.decoder.reset();
@@ -446,8 +1310,9 @@ public class HttpServer implements Runnable {
         tryWrite(key, WsEncode(WSDecoder.OPCODE_CLOSE, payload));
     }
 
-    private void doRead(final SelectionKey key) {
+    void doRead(ServerLoop loop, final SelectionKey key) {
         SocketChannel ch = (SocketChannel) key.channel();
+        ByteBuffer buffer = loop.buffer;
         try {
             final ServerAtta atta = (ServerAtta) key.attachment();
             if (atta.requestInProgress && !canReadWhileInProgress(atta)) {
@@ -455,62 +1320,287 @@ public class HttpServer implements Runnable {
                 return;
             }
 
-            buffer.clear(); // clear for read
-            if (atta.requestInProgress && atta.pendingInput != null) {
-                buffer.limit(buffer.capacity() - atta.pendingInput.position());
-            }
-            int read = ch.read(buffer);
-            if (read == -1) {
-                // remote entity shut the socket down cleanly.
-                closeKey(key, CLOSE_AWAY);
-            } else if (read > 0) {
-                buffer.flip(); // flip for read
-                if (atta.requestInProgress) {
-                    savePendingInput(atta, buffer);
-                    updateInterestOps(key);
-                } else if (atta instanceof HttpAtta) {
-                    decodeHttp((HttpAtta) atta, key, ch, buffer);
-                } else {
-                    decodeWs((WsAtta) atta, key, buffer);
+            if (atta.tls != null) {
+                readTls(loop, key, atta);
+            } else {
+                buffer.clear(); // clear for read
+                if (atta.requestInProgress && atta.pendingInput != null) {
+                    buffer.limit(READ_BUFFER_SIZE - atta.pendingInput.position());
+                }
+                int read = ch.read(buffer);
+                if (read == -1) {
+                    // remote entity shut the socket down cleanly.
+                    closeKey(key, CLOSE_AWAY);
+                } else if (read > 0) {
+                    buffer.flip(); // flip for read
+                    onInput(key, atta, buffer);
                 }
             }
+        } catch (SSLException e) {
+            tlsError(key, e);
         } catch (IOException e) { // the remote forcibly closed the connection
             closeKey(key, CLOSE_AWAY);
         }
+        updateTimeout(key, true);
+    }
+
+    private void onInput(SelectionKey key, ServerAtta atta, ByteBuffer input) {
+        if (atta.requestInProgress) {
+            if (atta instanceof HttpAtta && ((HttpAtta) atta).decoder.isStreamingBody()) {
+                if (feedBody((HttpAtta) atta, key, input)) {
+                    savePendingInput(atta, input); // the next request
+                }
+            } else {
+                savePendingInput(atta, input);
+            }
+            updateInterestOps(key);
+        } else if (atta instanceof Http2Atta) {
+            decodeHttp2((Http2Atta) atta, key, input);
+        } else if (atta instanceof HttpAtta) {
+            HttpAtta httpAtta = (HttpAtta) atta;
+            if (httpAtta.prefaceMatched >= 0) {
+                input = matchPreface(httpAtta, key, input);
+                if (input == null) {
+                    return;
+                }
+            }
+            decodeHttp(httpAtta, key, (SocketChannel) key.channel(), input);
+        } else {
+            decodeWs((WsAtta) atta, key, input);
+        }
+    }
+
+    // A connection's first bytes: HTTP/2 with prior knowledge, or HTTP/1. Returns
+    // the input for the HTTP/1 decoder, null if consumed as HTTP/2 or still unsure
+    private ByteBuffer matchPreface(HttpAtta atta, SelectionKey key, ByteBuffer input) {
+        byte[] preface = Http2Connection.PREFACE;
+        int matched = atta.prefaceMatched;
+        int i = input.position();
+        while (matched < preface.length && i < input.limit() && input.get(i) == preface[matched]) {
+            matched++;
+            i++;
+        }
+        if (matched == preface.length) {
+            input.position(i);
+            startHttp2(atta, key, input, null, null);
+            return null;
+        } else if (i == input.limit()) {
+            input.position(i);
+            atta.prefaceMatched = matched;
+            return null;
+        }
+        int replay = atta.prefaceMatched; // from previous reads, eg: "P" of "POST"
+        atta.prefaceMatched = -1;
+        if (replay == 0) {
+            return input;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(replay + input.remaining());
+        joined.put(preface, 0, replay).put(input).flip();
+        return joined;
+    }
+
+    private void startHttp2(HttpAtta atta, SelectionKey key, ByteBuffer input,
+                            HttpRequest upgraded, ByteBuffer settings) {
+        Http2Connection conn = new Http2Connection(this, key, maxBody, maxLine, http2MaxStreams,
+            legacyUnsafeRemoteAddr, upgraded == null);
+        Http2Atta h2 = new Http2Atta(conn);
+        h2.loop = atta.loop;
+        h2.tls = atta.tls;
+        h2.channel = atta.channel;
+        key.attach(h2);
+        conn.start();
+        if (upgraded != null) {
+            try {
+                conn.upgrade(upgraded, settings);
+            } catch (Http2Exception e) { // bad HTTP2-Settings
+                h2.keepalive = false;
+            }
+        }
+        decodeHttp2(h2, key, input);
+    }
+
+    private void decodeHttp2(Http2Atta atta, SelectionKey key, ByteBuffer input) {
+        Http2Connection conn = atta.conn;
+        conn.decode(input);
+        Http2Stream[] closed, ready;
+        synchronized (atta) {
+            closed = conn.closed.toArray(new Http2Stream[conn.closed.size()]);
+            conn.closed.clear();
+            ready = conn.ready.toArray(new Http2Stream[conn.ready.size()]);
+            conn.ready.clear();
+        }
+        for (Http2Stream stream : closed) { // reset by the client
+            handler.clientClose(stream.channel, -1);
+        }
+        for (Http2Stream stream : ready) {
+            dispatchHttp2(key, stream);
+        }
+    }
+
+    // Streams of one connection are handled concurrently, like separate requests
+    private void dispatchHttp2(SelectionKey key, Http2Stream stream) {
+        AsyncChannel channel = new AsyncChannel(key, this, stream);
+        stream.channel = channel;
+        if (stream.errorStatus != 0) {
+            if (stream.errorStatus == 413) {
+                Telemetry.log(eventLogger, eventNames.serverStatus413);
+            }
+            stream.write(HttpEncode(stream.errorStatus, new HeaderMap(), stream.errorMessage, serverHeader));
+            return;
+        }
+        HttpRequest request = stream.request;
+        request.setStartTime(System.nanoTime());
+        if (((ServerAtta) key.attachment()).tls != null) {
+            request.setSecure();
+        }
+        if (status.get() != Status.RUNNING) {
+            request.isKeepAlive = false;
+        }
+        channel.reset(request);
+        request.channel = channel;
+        if (socketAddress instanceof InetSocketAddress) {
+            request.remoteAddr = ((SocketChannel) key.channel()).socket().getRemoteSocketAddress();
+        }
+        handler.handle(request, new RespCallback(key, this, stream, null));
+    }
+
+    private void readTls(ServerLoop loop, SelectionKey key, ServerAtta atta) throws IOException {
+        ByteBuffer peerNetData = atta.tls.peerNetData;
+        if (!peerNetData.hasRemaining()) {
+            // full: wait for the buffered records to be unwrapped, see resumeTls
+            key.interestOps(key.interestOps() & ~OP_READ);
+            return;
+        }
+        int read = ((SocketChannel) key.channel()).read(peerNetData);
+        if (read == -1) {
+            closeKey(key, CLOSE_AWAY);
+        } else if (read > 0) {
+            unwrapTls(loop, key);
+            if (key.isValid() && ((ServerAtta) key.attachment()).requestInProgress) {
+                // decided while peerNetData was flipped, eg: a streamed request body
+                updateInterestOps(key);
+            }
+        }
+    }
+
+    // Drives the handshake and feeds decrypted bytes to the decoders, IO loop only
+    private void unwrapTls(ServerLoop loop, SelectionKey key) throws IOException {
+        TlsConnection tls = ((ServerAtta) key.attachment()).tls;
+        if (tls.taskRunning) {
+            return; // resumed by TLS_TASKS_DONE
+        }
+        ByteBuffer peerNetData = tls.peerNetData;
+        ByteBuffer buffer = loop.buffer;
+        peerNetData.flip();
+        try {
+            while (key.isValid()) {
+                switch (tls.engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runDelegatedTasks(key, tls);
+                        return;
+                    case NEED_WRAP:
+                        writeHandshake(key, tls);
+                        continue;
+                }
+                if (!peerNetData.hasRemaining()) {
+                    return;
+                }
+                // may have been upgraded to WebSocket by the previous record
+                ServerAtta atta = (ServerAtta) key.attachment();
+                buffer.clear();
+                if (atta.requestInProgress && atta.pendingInput != null) {
+                    buffer.limit(READ_BUFFER_SIZE - atta.pendingInput.position());
+                }
+                SSLEngineResult res = tls.engine.unwrap(peerNetData, buffer);
+                switch (res.getStatus()) {
+                    case BUFFER_UNDERFLOW: // need more data from peer
+                        return;
+                    case BUFFER_OVERFLOW:
+                        if (atta.requestInProgress) {
+                            return; // continued by resumeAfterResponse
+                        }
+                        throw new SSLException("TLS request buffer overflow");
+                    case CLOSED:
+                        closeKey(key, CLOSE_AWAY);
+                        return;
+                }
+                if (res.bytesProduced() > 0) {
+                    buffer.flip();
+                    onInput(key, atta, buffer);
+                } else if (res.bytesConsumed() == 0
+                        && res.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK
+                        && res.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    throw new SSLException("TLS engine made no progress while unwrapping request");
+                }
+            }
+        } finally {
+            peerNetData.compact();
+        }
+    }
+
+    // The whole flight in one write: small segments would be held back by Nagle
+    private void writeHandshake(SelectionKey key, TlsConnection tls) throws SSLException {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta) {
+            List<ByteBuffer> flight = new ArrayList<ByteBuffer>(4);
+            do {
+                Collections.addAll(flight, tls.wrapHandshake());
+            } while (tls.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            queueWrite(key, atta, flight.toArray(new ByteBuffer[flight.size()]), true);
+        }
+    }
+
+    private void runDelegatedTasks(final SelectionKey key, final TlsConnection tls) {
+        tls.taskRunning = true;
+        Runnable tasks = new Runnable() {
+            public void run() {
+                try {
+                    Runnable task;
+                    while ((task = tls.engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    tls.taskRunning = false;
+                    ((ServerAtta) key.attachment()).loop.queue(key, PendingKey.TLS_TASKS_DONE);
+                }
+            }
+        };
+        try {
+            sslTaskExecutor.execute(tasks);
+        } catch (RejectedExecutionException e) { // shutting down
+            tasks.run();
+        }
+    }
+
+    private void tlsError(SelectionKey key, IOException e) {
+        if (e instanceof SSLException) {
+            Telemetry.log(eventLogger, eventNames.serverSslError);
+        }
+        closeKey(key, CLOSE_AWAY);
     }
 
-    private void doWrite(SelectionKey key) {
+    void doWrite(SelectionKey key) {
         ServerAtta atta = (ServerAtta) key.attachment();
         SocketChannel ch = (SocketChannel) key.channel();
+        boolean writable = false;
         try {
             // the sync is per socket (per client). virtually, no contention
             // 1. keep byte data order, 2. ensure visibility
             synchronized (atta) {
-                LinkedList<ByteBuffer> toWrites = atta.toWrites;
-                int size = toWrites.size();
-                if (size == 1) {
-                    ch.write(toWrites.get(0));
-                    // TODO investigate why needed.
-                    // ws request for write, but has no data?
-                } else if (size > 0) {
-                    ByteBuffer buffers[] = new ByteBuffer[size];
-                    toWrites.toArray(buffers);
-                    ch.write(buffers, 0, buffers.length);
-                }
-                Iterator<ByteBuffer> ite = toWrites.iterator();
-                while (ite.hasNext()) {
-                    if (!ite.next().hasRemaining()) {
-                        ite.remove();
-                    }
+                boolean done = atta.toWrites.writeTo(ch, atta.loop.iov);
+                if (!atta.writable && atta.toWrites.bytes() <= writeLowWatermark) {
+                    atta.writable = writable = true;
                 }
                 // all done
-                if (toWrites.size() == 0) {
+                if (done) {
                     if (atta.isKeepAlive()) {
                         if (atta.requestInProgress) {
                             key.interestOps(canReadWhileInProgress(atta) ? OP_READ : 0);
                         } else {
-                            key.interestOps(OP_READ);
-                            keptAlive.put(key, true);
+                            key.interestOps(atta.isReadPaused() ? 0 : OP_READ);
+                            if (atta.isIdle()) {
+                                atta.loop.keptAlive.put(key, true);
+                            }
                         }
                     } else {
                         closeKey(key, CLOSE_NORMAL);
@@ -520,6 +1610,17 @@ public class HttpServer implements Runnable {
         } catch (IOException e) { // the remote forcibly closed the connection
             closeKey(key, CLOSE_AWAY);
         }
+        if (writable && key.isValid() && atta.channel != null) {
+            handler.clientWritable(atta.channel);
+        }
+        updateTimeout(key, false);
+    }
+
+    // Caller holds the atta's lock, after queueing
+    private void checkHighWatermark(ServerAtta atta) {
+        if (atta.writable && atta.toWrites.bytes() > writeHighWatermark) {
+            atta.writable = false;
+        }
     }
 
     public void tryWrite(final SelectionKey key, ByteBuffer... buffers) {
@@ -530,41 +1631,145 @@ public class HttpServer implements Runnable {
         ServerAtta atta = (ServerAtta) key.attachment();
         synchronized (atta) {
             atta.chunkedResponseInprogress(chunkInprogress);
-            if (atta.toWrites.isEmpty()) {
-                SocketChannel ch = (SocketChannel) key.channel();
+            if (atta.tls != null) {
                 try {
-                    // TCP buffer most of time is empty, writable(8K ~ 256k)
-                    // One IO thread => One thread reading + Many thread writing
-                    // Save 2 system call
-                    ch.write(buffers, 0, buffers.length);
-                    if (buffers[buffers.length - 1].hasRemaining()) {
-                        for (ByteBuffer b : buffers) {
-                            if (b.hasRemaining()) {
-                                atta.toWrites.add(b);
-                            }
+                    buffers = atta.tls.wrap(buffers);
+                } catch (SSLException e) {
+                    atta.loop.queue(key, CLOSE_AWAY);
+                    return;
+                }
+            }
+            queueWrite(key, atta, buffers, true);
+        }
+    }
+
+    /**
+     * A frame shared by many connections, see {@link Topic#broadcast}: queued
+     * unless {@code closed}, as read holding the connection's lock, the one
+     * its close frame is queued with. The loop is not woken up: added to
+     * {@code wakeups} if to be, by the caller once for all the frames.
+     *
+     * @return false if closed, or closed for failing to encrypt the frame
+     */
+    boolean tryWriteShared(SelectionKey key, AtomicBoolean closed, ByteBuffer frame, List<ServerLoop> wakeups) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        synchronized (atta) {
+            if (closed.get()) {
+                return false;
+            }
+            ByteBuffer[] buffers = {frame};
+            if (atta.tls != null) {
+                try {
+                    buffers = atta.tls.wrap(buffers);
+                } catch (SSLException e) {
+                    atta.loop.queue(key, CLOSE_AWAY);
+                    return false; // not sent: the connection is closing
+                }
+            }
+            if (queueWrite(key, atta, buffers, false) && !wakeups.contains(atta.loop)) {
+                wakeups.add(atta.loop);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A response with a file body: over cleartext HTTP/1 the file is sent with
+     * transferTo, never copied to the heap. TLS encrypts in user space, so the
+     * file is read (or mapped) into a buffer there instead.
+     */
+    void tryWrite(final SelectionKey key, ByteBuffer head, FileRegion file) {
+        tryWrite(key, Arrays.<Object>asList(head, file));
+    }
+
+    // ByteBuffers and FileRegions, in order, see ResponseSequencer
+    void tryWrite(final SelectionKey key, List<Object> parts) {
+        ServerAtta atta = (ServerAtta) key.attachment();
+        boolean hasFile = false;
+        for (Object part : parts) {
+            hasFile |= part instanceof FileRegion;
+        }
+        if (!hasFile || atta.tls != null) {
+            ByteBuffer[] buffers = new ByteBuffer[parts.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                Object part = parts.get(i);
+                try {
+                    buffers[i] = part instanceof FileRegion ? ((FileRegion) part).toBuffer() : (ByteBuffer) part;
+                } catch (IOException e) { // the head may be out: can not answer with a 500
+                    Telemetry.log(warnLogger, "failed to read file body", e);
+                    for (int j = i + 1; j < buffers.length; j++) {
+                        if (parts.get(j) instanceof FileRegion) {
+                            ((FileRegion) parts.get(j)).close();
                         }
-                        pending.add(new PendingKey(key, PendingKey.OP_WRITE));
-                        selector.wakeup();
-                    } else if (!atta.isKeepAlive()) {
-                        pending.add(new PendingKey(key, CLOSE_NORMAL));
-                        selector.wakeup();
                     }
-                } catch (IOException e) {
-                    pending.add(new PendingKey(key, CLOSE_AWAY));
-                    selector.wakeup();
+                    atta.loop.queue(key, CLOSE_AWAY);
+                    return;
                 }
-            } else {
-                // If has pending write, order should be maintained. (WebSocket)
-                Collections.addAll(atta.toWrites, buffers);
-                pending.add(new PendingKey(key, PendingKey.OP_WRITE));
-                selector.wakeup();
             }
+            tryWrite(key, buffers);
+            return;
+        }
+        synchronized (atta) {
+            atta.chunkedResponseInprogress(false);
+            boolean idle = atta.toWrites.isEmpty();
+            for (Object part : parts) {
+                if (part instanceof FileRegion) {
+                    atta.toWrites.add((FileRegion) part);
+                } else if (((ByteBuffer) part).hasRemaining()) {
+                    atta.toWrites.add((ByteBuffer) part);
+                }
+            }
+            if (!idle) {
+                checkHighWatermark(atta);
+                atta.loop.queue(key, PendingKey.OP_WRITE);
+                return;
+            }
+            try {
+                if (!atta.toWrites.writeTo((SocketChannel) key.channel(), new ByteBuffer[parts.size()])) {
+                    checkHighWatermark(atta);
+                    atta.loop.queue(key, PendingKey.OP_WRITE);
+                } else if (!atta.isKeepAlive()) {
+                    atta.loop.queue(key, CLOSE_NORMAL);
+                }
+            } catch (IOException e) {
+                atta.loop.queue(key, CLOSE_AWAY);
+            }
+        }
+    }
+
+    // Caller holds the atta's lock. Buffers are on the wire format (encrypted if TLS).
+    // True if an operation was queued to the loop
+    private boolean queueWrite(SelectionKey key, ServerAtta atta, ByteBuffer[] buffers, boolean wakeup) {
+        if (atta.toWrites.isEmpty()) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            try {
+                // TCP buffer most of time is empty, writable(8K ~ 256k)
+                // One IO thread => One thread reading + Many thread writing
+                // Save 2 system call
+                ch.write(buffers, 0, buffers.length);
+                if (buffers[buffers.length - 1].hasRemaining()) {
+                    atta.toWrites.addAll(buffers);
+                    checkHighWatermark(atta);
+                    atta.loop.queue(key, PendingKey.OP_WRITE, wakeup);
+                } else if (!atta.isKeepAlive()) {
+                    atta.loop.queue(key, CLOSE_NORMAL, wakeup);
+                } else {
+                    return false;
+                }
+            } catch (IOException e) {
+                atta.loop.queue(key, CLOSE_AWAY, wakeup);
+            }
+        } else {
+            // If has pending write, order should be maintained. (WebSocket)
+            atta.toWrites.addAll(buffers);
+            checkHighWatermark(atta);
+            atta.loop.queue(key, PendingKey.OP_WRITE, wakeup);
         }
+        return true;
     }
 
     void responseComplete(SelectionKey key) {
-        pending.add(new PendingKey(key, PendingKey.RESPONSE_COMPLETE));
-        selector.wakeup();
+        ((ServerAtta) key.attachment()).loop.queue(key, PendingKey.RESPONSE_COMPLETE);
     }
 
     void closeAfterResponse(SelectionKey key) {
@@ -579,89 +1784,81 @@ public class HttpServer implements Runnable {
         synchronized (atta) {
             atta.keepalive = false;
             atta.chunkedResponseInprogress(false);
-            pending.add(new PendingKey(key,
-                atta.toWrites.isEmpty() ? CLOSE_NORMAL : PendingKey.OP_WRITE));
-            selector.wakeup();
+            atta.loop.queue(key, atta.toWrites.isEmpty() ? CLOSE_NORMAL : PendingKey.OP_WRITE);
         }
     }
 
-    public void run() {
-        while (true) {
-            try {
-                PendingKey k;
-                while (!pending.isEmpty()) {
-                    k = pending.poll();
-                    if (k.Op == PendingKey.OP_WRITE) {
-                        if (k.key.isValid()) {
-                            updateInterestOps(k.key);
-                        }
-                    } else if (k.Op == PendingKey.RESPONSE_COMPLETE) {
-                        resumeAfterResponse(k.key);
-                    } else {
-                        closeKey(k.key, k.Op);
-                    }
-                }
-                if (selector.select() <= 0) {
-                    continue;
-                }
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iterator = selectedKeys.iterator();
-                while (iterator.hasNext()) {
-                    SelectionKey key = iterator.next();
-                    iterator.remove();
-
-                    keptAlive.remove(key);
-
-                    // TODO I do not know if this is needed
-                    // if !valid, isAcceptable, isReadable.. will Exception
-                    // run hours happily after commented, but not sure.
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isAcceptable()) {
-                        accept(key);
-                    } else if (key.isReadable()) {
-                        doRead(key);
-                    } else if (key.isWritable()) {
-                        doWrite(key);
-                    }
-                }
-            } catch (ClosedSelectorException ignore) {
-                return; // stopped
-                // do not exits the while IO event loop. if exits, then will not process any IO event
-                // jvm can catch any exception, including OOM
-            } catch (Throwable e) {
-                Telemetry.log(errorLogger,
-                        "http server loop error, see stack trace for details", e);
-                Telemetry.log(eventLogger, eventNames.serverLoopError);
-                if (e instanceof Error) {
-                    status.set(Status.STOPPED);
-                    closeAndWarn(selector);
-                    closeAndWarn(serverChannel);
-                    return;
+    // Error in a loop: log it, and stop the whole server on Errors (eg: OOM),
+    // the loop exiting: its connections would no longer be served
+    boolean loopError(ServerLoop loop, Throwable e) {
+        Telemetry.log(errorLogger,
+                "http server loop error, see stack trace for details", e);
+        Telemetry.log(eventLogger, eventNames.serverLoopError);
+        if (e instanceof Error) {
+            status.set(Status.STOPPED);
+            List<ServerLoop> all = allLoops();
+            for (ServerLoop l : all) {
+                if (l.serverChannel != null) {
+                    closeAndWarn(l.serverChannel);
                 }
             }
+            for (ServerLoop l : all) {
+                closeLoop(l); // the other loops exit on their closed selector
+            }
+            if (ownSslTaskExecutor) {
+                sslTaskExecutor.shutdownNow();
+            }
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Runs the server in the current thread, returning once it is stopped: the
+     * accepting loop, and the other IO loops in threads of their own.
+     */
+    public void run() {
+        if (!status.compareAndSet(Status.STOPPED, Status.RUNNING)) { return; }
+        acceptor.thread = Thread.currentThread();
+        startLoops(acceptor);
+        acceptor.run();
     }
 
     public boolean start() throws IOException {
         if (!status.compareAndSet(Status.STOPPED, Status.RUNNING)) { return false; }
-        serverThread = new Thread(this, THREAD_NAME);
-        serverThread.start();
+        startLoops(null);
         return true;
     }
 
+    // a thread for each loop but the one given
+    private void startLoops(ServerLoop except) {
+        for (ServerLoop loop : allLoops()) {
+            if (loop != except) {
+                loop.thread = new Thread(loop, loop.name);
+                loop.thread.start();
+            }
+        }
+    }
+
     public boolean stop(int timeout                         ) { return stop(timeout, null); }
     public boolean stop(int timeout, final Runnable callback) {
 
         if (!status.compareAndSet(Status.RUNNING, Status.STOPPING)) { return false; }
 
+        final List<ServerLoop> all = allLoops();
+
         // stop accepting new requests
-        closeAndWarn(serverChannel);
+        for (ServerLoop loop : all) {
+            if (loop.serverChannel != null) {
+                closeAndWarn(loop.serverChannel);
+            }
+        }
 
         // Shutdown idle connections
-        for (SelectionKey key : keptAlive.keySet()) {
-            closeKey(key, 0);
+        for (ServerLoop loop : all) {
+            for (SelectionKey key : loop.keptAlive.keySet()) {
+                closeKey(key, 0);
+            }
         }
 
         // From this point, no new connections should be entering the system.
@@ -672,6 +1869,37 @@ public class HttpServer implements Runnable {
         handler.close(timeout);
 
         // close socket, notify on-close handlers
+        for (ServerLoop loop : all) {
+            closeLoop(loop);
+        }
+
+        if (ownSslTaskExecutor) {
+            sslTaskExecutor.shutdownNow();
+        }
+
+        // Start daemon thread to run once the loop threads actually complete.
+        // This could take some time if handler.close() was struggling to
+        // actually kill some tasks.
+        Thread cbThread = new Thread(new Runnable() {
+                public void run() {
+                    for (ServerLoop loop : all) {
+                        try { loop.thread.join(); } catch (InterruptedException e) { }
+                    }
+                    if (callback != null) {
+                        try { callback.run(); } catch (Throwable t) { }
+                    }
+                    status.set(Status.STOPPED);
+                }
+            });
+
+        cbThread.setDaemon(true);
+        cbThread.start();
+
+        return true;
+    }
+
+    private void closeLoop(ServerLoop loop) {
+        Selector selector = loop.selector;
         if (selector.isOpen()) {
             //            Set<SelectionKey> keys = selector.keys();
             //            SelectionKey[] keys = t.toArray(new SelectionKey[t.size()]);
@@ -705,35 +1933,31 @@ public class HttpServer implements Runnable {
             closeAndWarn(selector);
         }
 
-        // Start daemon thread to run once serverThread actually completes.
-        // This could take some time if handler.close() was struggling to
-        // actually kill some tasks.
-        Thread cbThread = new Thread(new Runnable() {
-                public void run() {
-                    try { serverThread.join(); } catch (InterruptedException e) { }
-                    if (callback != null) {
-                        try { callback.run(); } catch (Throwable t) { }
-                    }
-                    status.set(Status.STOPPED);
-                }
-            });
-
-        cbThread.setDaemon(true);
-        cbThread.start();
-
-        return true;
+        // accepted, but never registered
+        SocketChannel s;
+        while ((s = loop.accepted.poll()) != null) {
+            closeSetupResource(s);
+        }
     }
 
     public int getPort() {
          if (socketAddress instanceof InetSocketAddress){
-           return this.serverChannel.socket().getLocalPort();
+           return acceptor.serverChannel.socket().getLocalPort();
          }
          return -1;
 
     }
 
     public Status  getStatus() { return status.get();           }
-    public boolean isAlive()   { return serverThread.isAlive(); }
+    public IHandler getHandler() { return handler; }
+    public boolean isAlive() {
+        for (ServerLoop loop : allLoops()) {
+            if (loop.thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     void closeAndWarn(Closeable closable) {
         try {
@@ -745,11 +1969,13 @@ public class HttpServer implements Runnable {
     }
 
     /**
-     * Joins the thread in which the server runs; this will block until the server is stopped.
+     * Joins the threads in which the server runs; this will block until the server is stopped.
      *
      * @throws InterruptedException
      */
     public void join() throws InterruptedException {
-        serverThread.join();
+        for (ServerLoop loop : allLoops()) {
+            loop.thread.join();
+        }
     }
 }
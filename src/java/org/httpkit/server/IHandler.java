@@ -9,6 +9,11 @@ public interface IHandler {
 
     public void clientClose(AsyncChannel channel, int status, String reason);
 
+    // the connection's write queue drained below the low watermark, see AsyncChannel#isWritable
+    default void clientWritable(AsyncChannel channel) {
+        channel.onWritable();
+    }
+
     // close any resource with this handler
     void close(int timeoutMs);
 }
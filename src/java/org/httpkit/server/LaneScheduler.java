@@ -0,0 +1,237 @@
+package org.httpkit.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Priority lanes in front of the worker pool, see
+ * {@link RingHandler#setLanes}. At most {@code parallelism} tasks are handed to
+ * the executor at once, the others wait in their lane: so its own queue stays
+ * empty and the lanes decide what runs next. Strict lanes go first, in the
+ * order they were added. The others share what is left by weight, weighted
+ * fair queuing: a lane's virtual time advances by 1/weight per task run, the
+ * lane behind runs next. A lane idle for a while gets no credit for it.
+ */
+public class LaneScheduler {
+
+    public static class Lane {
+        final Object name;
+        final int weight;
+        final boolean strict;
+        final int capacity;
+        private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+        private double pass = 0; // virtual time
+
+        // stats, under the scheduler's lock
+        private long dispatched = 0;
+        private long rejected = 0;
+        private long totalWait = 0; // ns
+        private long maxWait = 0;
+
+        Lane(Object name, int weight, boolean strict, int capacity) {
+            this.name = name;
+            this.weight = weight;
+            this.strict = strict;
+            this.capacity = capacity;
+        }
+
+        public Object getName() {
+            return name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public boolean isStrict() {
+            return strict;
+        }
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final Lane lane;
+        final long queuedAt = System.nanoTime();
+
+        Task(Runnable runnable, Lane lane) {
+            this.runnable = runnable;
+            this.lane = lane;
+        }
+    }
+
+    private final Executor execs;
+    private final int parallelism;
+    private final List<Lane> lanes = new ArrayList<Lane>();
+    private final Map<Object, Lane> byName = new HashMap<Object, Lane>();
+    private Lane defaultLane;
+    private int running = 0; // tasks handed to the executor
+    private double virtualTime = 0;
+
+    public LaneScheduler(Executor execs, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be > 0: " + parallelism);
+        }
+        this.execs = execs;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Adds a lane holding up to {@code capacity} waiting tasks. Strict lanes
+     * ignore their weight. The first lane not strict is the default one.
+     */
+    public synchronized Lane addLane(Object name, int weight, boolean strict, int capacity) {
+        if (byName.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate lane: " + name);
+        }
+        if (weight < 1 || capacity < 0) {
+            throw new IllegalArgumentException("Expected weight > 0 and capacity >= 0: " + weight + ", " + capacity);
+        }
+        Lane lane = new Lane(name, weight, strict, capacity);
+        lanes.add(lane);
+        byName.put(name, lane);
+        if (defaultLane == null && !strict) {
+            defaultLane = lane;
+        }
+        return lane;
+    }
+
+    /** The lane named so, or the default one */
+    public synchronized Lane getLane(Object name) {
+        Lane lane = name == null ? null : byName.get(name);
+        if (lane != null) {
+            return lane;
+        }
+        if (defaultLane == null) {
+            throw new IllegalStateException("No lane that is not strict: no default lane");
+        }
+        return defaultLane;
+    }
+
+    public synchronized List<Lane> getLanes() {
+        return Collections.unmodifiableList(new ArrayList<Lane>(lanes));
+    }
+
+    /** @throws RejectedExecutionException if the lane is full, or by the executor */
+    public void execute(Runnable runnable, Lane lane) {
+        Task task = new Task(runnable, lane);
+        synchronized (this) {
+            if (running >= parallelism) {
+                if (lane.queue.size() >= lane.capacity) {
+                    lane.rejected++;
+                    throw new RejectedExecutionException("Lane " + lane.name + " is full");
+                }
+                if (lane.queue.isEmpty() && !lane.strict) {
+                    lane.pass = Math.max(lane.pass, virtualTime);
+                }
+                lane.queue.addLast(task);
+                return;
+            }
+            running++;
+        }
+        try {
+            execs.execute(new Worker(task));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                running--;
+                lane.rejected++;
+            }
+            throw e;
+        }
+        synchronized (this) { // once handed over: a rejected task was not served
+            started(task);
+        }
+    }
+
+    // The task's lane was served
+    private void started(Task task) {
+        Lane lane = task.lane;
+        long wait = System.nanoTime() - task.queuedAt;
+        lane.dispatched++;
+        lane.totalWait += wait;
+        lane.maxWait = Math.max(lane.maxWait, wait);
+        if (!lane.strict) {
+            lane.pass = Math.max(lane.pass, virtualTime) + 1.0 / lane.weight;
+        }
+    }
+
+    // The next task to run, or null if none is waiting: one slot less running
+    private synchronized Task next() {
+        Lane next = null;
+        for (Lane lane : lanes) {
+            if (lane.queue.isEmpty()) {
+                continue;
+            }
+            if (lane.strict) {
+                next = lane;
+                break;
+            }
+            if (next == null || lane.pass < next.pass) {
+                next = lane;
+            }
+        }
+        if (next == null) {
+            running--;
+            return null;
+        }
+        if (!next.strict) {
+            virtualTime = next.pass;
+        }
+        Task task = next.queue.pollFirst();
+        started(task);
+        return task;
+    }
+
+    // Runs tasks as long as some wait, keeping the slot
+    private class Worker implements Runnable {
+        private Task task;
+
+        Worker(Task task) {
+            this.task = task;
+        }
+
+        public void run() {
+            RuntimeException error = null; // rethrown once done, not to lose the slot
+            while (task != null) {
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                task = next();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /** Returns {name {:depth :dispatched :rejected :mean-wait-ms :max-wait-ms}} */
+    public synchronized Map<Object, Map<String, Object>> getStats() {
+        Map<Object, Map<String, Object>> stats = new HashMap<Object, Map<String, Object>>();
+        for (Lane lane : lanes) {
+            Map<String, Object> s = new HashMap<String, Object>();
+            s.put("depth", lane.queue.size());
+            s.put("dispatched", lane.dispatched);
+            s.put("rejected", lane.rejected);
+            s.put("mean-wait-ms", lane.dispatched == 0 ? 0.0 : lane.totalWait / 1e6 / lane.dispatched);
+            s.put("max-wait-ms", lane.maxWait / 1e6);
+            stats.put(lane.name, s);
+        }
+        return stats;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LaneScheduler[lanes=" + lanes.size() + ", running=" + running + "/" + parallelism + "]";
+    }
+}
@@ -0,0 +1,181 @@
+package org.httpkit.server;
+
+import static org.httpkit.server.ClojureRing.*;
+
+import java.util.Iterator;
+
+import clojure.lang.APersistentMap;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.MapEntry;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+
+/**
+ * The Ring request map of an HttpRequest, see
+ * {@link ClojureRing#buildRequestMap}. Most handlers read a few keys: values
+ * are looked up in the request as asked, the headers map, remote address and
+ * body made on first access. assoc, dissoc, seq and the like work on a
+ * PersistentHashMap copy, made once: the map middlewares assoc to is a plain
+ * one.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class LazyRequestMap extends APersistentMap implements IObj {
+    private static final Keyword[] KEYS = {
+        SERVER_PORT, SERVER_NAME, PROTOCOL, REMOTE_ADDR, URI, QUERY_STRING, SCHEME,
+        ASYC_CHANNEL, WEBSOCKET, REQUEST_METHOD, START_TIME, HEADERS, CONTENT_TYPE,
+        CONTENT_LENGTH, CHARACTER_ENCODING, BODY};
+
+    private final HttpRequest req;
+
+    // made on first access
+    private Object headers;
+    private Object body;
+    private boolean bodyMade = false;
+    private String remoteAddr;
+    private IPersistentMap map;
+
+    LazyRequestMap(HttpRequest req) {
+        this.req = req;
+    }
+
+    private synchronized Object headers() {
+        if (headers == null) {
+            // Ring requires lowercase keys and joins duplicate headers with ",",
+            // except ";" for Cookie. Ref. #615
+            headers = PersistentArrayMap.create(ringHeaders(req.headers));
+        }
+        return headers;
+    }
+
+    // one stream, however often it is looked up
+    private synchronized Object body() {
+        if (!bodyMade) {
+            body = req.getBody();
+            bodyMade = true;
+        }
+        return body;
+    }
+
+    private synchronized String remoteAddr() {
+        if (remoteAddr == null) {
+            remoteAddr = req.getRemoteAddr();
+        }
+        return remoteAddr;
+    }
+
+    // the copy assoc and the like work on
+    private synchronized IPersistentMap map() {
+        if (map == null) {
+            ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+            for (Keyword k : KEYS) {
+                m = m.assoc(k, valAt(k));
+            }
+            if (req.deadline != 0) {
+                m = m.assoc(DEADLINE, req.deadline);
+            }
+            map = m.persistent();
+        }
+        return map;
+    }
+
+    public Object valAt(Object key, Object notFound) {
+        if (key == URI) {
+            return req.uri;
+        } else if (key == REQUEST_METHOD) {
+            return req.method.KEY;
+        } else if (key == HEADERS) {
+            return headers();
+        } else if (key == BODY) {
+            return body();
+        } else if (key == QUERY_STRING) {
+            return req.queryString;
+        } else if (key == ASYC_CHANNEL) {
+            return req.channel;
+        } else if (key == WEBSOCKET) {
+            return req.isWebSocket;
+        } else if (key == REMOTE_ADDR) {
+            return remoteAddr();
+        } else if (key == SCHEME) {
+            return req.isSecure ? HTTPS : HTTP;
+        } else if (key == SERVER_NAME) {
+            return req.serverName;
+        } else if (key == SERVER_PORT) {
+            return req.serverPort;
+        } else if (key == PROTOCOL) {
+            return req.protocol();
+        } else if (key == CONTENT_TYPE) {
+            return req.contentType;
+        } else if (key == CONTENT_LENGTH) {
+            return req.contentLength;
+        } else if (key == CHARACTER_ENCODING) {
+            return req.charset;
+        } else if (key == START_TIME) {
+            return req.startTime;
+        } else if (key == DEADLINE && req.deadline != 0) {
+            return req.deadline;
+        }
+        return notFound;
+    }
+
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    public boolean containsKey(Object key) {
+        if (key == DEADLINE) {
+            return req.deadline != 0;
+        }
+        for (Keyword k : KEYS) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public IMapEntry entryAt(Object key) {
+        return containsKey(key) ? MapEntry.create(key, valAt(key)) : null;
+    }
+
+    public int count() {
+        return KEYS.length + (req.deadline != 0 ? 1 : 0);
+    }
+
+    public IPersistentMap assoc(Object key, Object val) {
+        return map().assoc(key, val);
+    }
+
+    public IPersistentMap assocEx(Object key, Object val) {
+        return map().assocEx(key, val);
+    }
+
+    public IPersistentMap without(Object key) {
+        return map().without(key);
+    }
+
+    public ISeq seq() {
+        return map().seq();
+    }
+
+    public Iterator iterator() {
+        return ((Iterable) map()).iterator();
+    }
+
+    public IPersistentCollection empty() {
+        return PersistentHashMap.EMPTY;
+    }
+
+    public IPersistentMap meta() {
+        return null;
+    }
+
+    public IObj withMeta(IPersistentMap meta) {
+        return ((IObj) map()).withMeta(meta);
+    }
+}
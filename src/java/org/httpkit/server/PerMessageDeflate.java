@@ -0,0 +1,239 @@
+package org.httpkit.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.httpkit.HttpUtils;
+
+/**
+ * The permessage-deflate WebSocket extension, RFC 7692, see
+ * {@link HttpServer#setWebSocketDeflate}: negotiated in the handshake, see
+ * {@link AsyncChannel#sendHandshake}. Data messages of {@code minSize} bytes
+ * or more are sent compressed, the client's inflated by {@link WSDecoder}.
+ * <p>
+ * Context takeover, the default, compresses a message with those before it:
+ * the best ratio for repetitive messages, but a Deflater (~256KB, native) and
+ * an Inflater (~40KB) kept per connection. Without it, either side's are
+ * borrowed per message from the thread's. The JDK's Deflater has a 15 bits
+ * window: offers asking for a smaller server_max_window_bits are declined.
+ * The client's window can be limited, {@code clientMaxWindowBits}, when it
+ * offers to.
+ */
+public class PerMessageDeflate {
+    public static final String NAME = "permessage-deflate";
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    final boolean serverNoContextTakeover;
+    final boolean clientNoContextTakeover;
+    final int clientMaxWindowBits; // 15: not limited
+    final int level;
+    final int minSize;
+
+    public PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover,
+                             int clientMaxWindowBits, int level, int minSize) {
+        if (clientMaxWindowBits < 8 || clientMaxWindowBits > 15
+                || level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION || minSize < 0) {
+            throw new IllegalArgumentException("Expected clientMaxWindowBits in [8, 15], level in [-1, 9] and minSize >= 0: "
+                + clientMaxWindowBits + ", " + level + ", " + minSize);
+        }
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.clientMaxWindowBits = clientMaxWindowBits;
+        this.level = level;
+        this.minSize = minSize;
+    }
+
+    public PerMessageDeflate() {
+        this(false, false, 15, Deflater.DEFAULT_COMPRESSION, 64);
+    }
+
+    /**
+     * The session agreed on for the first acceptable offer of the request's
+     * Sec-WebSocket-Extensions, or null if none is
+     */
+    Session negotiate(Object extensions) {
+        if (!(extensions instanceof String)) {
+            return null;
+        }
+        for (String offer : ((String) extensions).split("[,\n]")) {
+            Session session = accept(offer.split(";"));
+            if (session != null) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    // null if the offer is not one for us, or asks for what we can't do
+    private Session accept(String[] offer) {
+        if (!NAME.equalsIgnoreCase(offer[0].trim())) {
+            return null;
+        }
+        boolean serverNoTakeover = serverNoContextTakeover;
+        boolean clientNoTakeover = clientNoContextTakeover;
+        int clientBits = -1; // not offered
+        Set<String> seen = new HashSet<String>();
+        for (int i = 1; i < offer.length; i++) {
+            String param = offer[i].trim();
+            int eq = param.indexOf('=');
+            String name = (eq < 0 ? param : param.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+            if (!seen.add(name)) {
+                return null;
+            }
+            if (name.equals("server_no_context_takeover") && value == null) {
+                serverNoTakeover = true;
+            } else if (name.equals("client_no_context_takeover") && value == null) {
+                clientNoTakeover = true; // a hint, made binding in the response
+            } else if (name.equals("server_max_window_bits")) {
+                if (windowBits(value) != 15) {
+                    return null;
+                }
+            } else if (name.equals("client_max_window_bits")) {
+                clientBits = value == null ? 15 : windowBits(value);
+                if (clientBits < 0) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        StringBuilder response = new StringBuilder(NAME);
+        if (serverNoTakeover) {
+            response.append("; server_no_context_takeover");
+        }
+        if (clientNoTakeover) {
+            response.append("; client_no_context_takeover");
+        }
+        if (clientBits >= 0 && clientMaxWindowBits < clientBits) {
+            response.append("; client_max_window_bits=").append(clientMaxWindowBits);
+        }
+        return new Session(response.toString(), !serverNoTakeover, !clientNoTakeover, level, minSize);
+    }
+
+    // 8 to 15, -1 if invalid
+    private static int windowBits(String value) {
+        if (value == null || value.length() > 2) {
+            return -1;
+        }
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The extension as agreed on with a client. Messages are sent with
+     * {@link AsyncChannel#send} holding the channel's lock, the client's
+     * inflated on the IO thread.
+     */
+    static class Session {
+        final String response; // Sec-WebSocket-Extensions
+        final boolean serverContextTakeover;
+        final boolean clientContextTakeover;
+        private final int level;
+        private final int minSize;
+
+        private Deflater deflater; // with context takeover
+        private Inflater inflater; // with context takeover, or for messages received partially
+        // the deflater in use, or ended: the connection may close meanwhile
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+        private volatile boolean ended = false;
+
+        Session(String response, boolean serverContextTakeover, boolean clientContextTakeover,
+                int level, int minSize) {
+            this.response = response;
+            this.serverContextTakeover = serverContextTakeover;
+            this.clientContextTakeover = clientContextTakeover;
+            this.level = level;
+            this.minSize = minSize;
+        }
+
+        /** The frame of the data message, compressed unless small */
+        ByteBuffer encode(byte opcode, byte[] data, int length) {
+            if (length < minSize || !busy.compareAndSet(false, true)) {
+                return HttpUtils.WsEncode(opcode, data, length);
+            }
+            try {
+                if (serverContextTakeover) {
+                    if (deflater == null) {
+                        deflater = new Deflater(level, true);
+                    }
+                    return HttpUtils.WsEncode(opcode, data, length, deflater);
+                }
+                Deflater d = Compression.borrowDeflater(true, level);
+                try {
+                    return HttpUtils.WsEncode(opcode, data, length, d);
+                } finally {
+                    Compression.releaseDeflater(d, true, level);
+                }
+            } finally {
+                busy.set(false);
+                if (ended && busy.compareAndSet(false, true)) {
+                    endDeflater();
+                }
+            }
+        }
+
+        /**
+         * The Inflater of the next message, IO thread only: the thread's if
+         * without context takeover, unless held across reads (a message
+         * received partially)
+         */
+        Inflater inflater(boolean held) {
+            if (!clientContextTakeover && !held) {
+                return INFLATERS.get();
+            }
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            return inflater;
+        }
+
+        /** A message was inflated with i, or failed to */
+        void inflated(Inflater i, boolean failed) {
+            if (!clientContextTakeover || failed || i.finished()) { // a final block: a new stream next
+                i.reset();
+            }
+        }
+
+        /** The connection is closed: native memory released, on the IO thread */
+        void end() {
+            ended = true;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            if (busy.compareAndSet(false, true)) {
+                endDeflater();
+            }
+        }
+
+        private void endDeflater() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PerMessageDeflate[serverNoContextTakeover=" + serverNoContextTakeover
+            + ", clientNoContextTakeover=" + clientNoContextTakeover
+            + ", clientMaxWindowBits=" + clientMaxWindowBits + ", level=" + level
+            + ", minSize=" + minSize + "]";
+    }
+}
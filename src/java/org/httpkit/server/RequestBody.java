@@ -0,0 +1,139 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A request body handed to the handler as it arrives, see
+ * {@link HttpServer#setStreamRequestBody}. The IO loop offers what it reads;
+ * once {@link #WINDOW} bytes are buffered it stops reading the connection, and
+ * goes on when the handler has read half of them. Reads block.
+ */
+class RequestBody extends InputStream {
+    // buffered bytes at most, plus one socket read
+    static final int WINDOW = 256 * 1024;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private int offset = 0; // in the first chunk
+    private int buffered = 0;
+    private boolean paused = false;
+    private boolean finished = false;
+    private boolean discarded = false;
+    private IOException error;
+
+    // tells the IO loop to read again
+    private final Runnable onDrained;
+
+    RequestBody(Runnable onDrained) {
+        this.onDrained = onDrained;
+    }
+
+    // ----- IO loop -----
+
+    synchronized void offer(ByteBuffer src, int n) {
+        if (discarded) {
+            src.position(src.position() + n);
+            return;
+        }
+        byte[] chunk = new byte[n];
+        src.get(chunk);
+        chunks.addLast(chunk);
+        buffered += n;
+        notifyAll();
+    }
+
+    // false to stop reading the connection, until onDrained
+    synchronized boolean isReadable() {
+        if (buffered >= WINDOW) {
+            paused = true;
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void fail(IOException e) {
+        if (!finished && error == null) {
+            error = e;
+        }
+        notifyAll();
+    }
+
+    // the response is complete: what is left of the body is read and dropped
+    synchronized void discard() {
+        discarded = true;
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    // ----- handler -----
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        boolean resume = false;
+        int n;
+        synchronized (this) {
+            while (chunks.isEmpty()) {
+                if (error != null) {
+                    throw error;
+                }
+                if (finished) {
+                    return -1;
+                }
+                if (discarded) {
+                    throw new IOException("Request body discarded: the response is complete");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] chunk = chunks.peekFirst();
+            n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            if (offset == chunk.length) {
+                chunks.pollFirst();
+                offset = 0;
+            }
+            buffered -= n;
+            if (paused && buffered <= WINDOW / 2) {
+                paused = false;
+                resume = true;
+            }
+        }
+        if (resume) {
+            onDrained.run();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBody[buffered=" + available() + "]";
+    }
+}
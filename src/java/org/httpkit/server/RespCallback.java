@@ -1,19 +1,34 @@
 package org.httpkit.server;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 
 public class RespCallback {
     private final SelectionKey key;
     private final HttpServer server;
+    private final ResponseSink sink; // null when written straight to the connection
+    private final HttpRequest request; // its body is released once answered, may be null
 
     public RespCallback(SelectionKey key, HttpServer server) {
+        this(key, server, null, null);
+    }
+
+    RespCallback(SelectionKey key, HttpServer server, ResponseSink sink, HttpRequest request) {
         this.key = key;
         this.server = server;
+        this.sink = sink;
+        this.request = request;
     }
 
     // maybe in another thread :worker thread
     public void run(ByteBuffer... buffers) {
+        releaseBody();
+        if (sink != null) {
+            sink.write(buffers);
+            sink.complete();
+            return;
+        }
         if (key.attachment() instanceof WsAtta) {
             server.closeAfterResponse(key);
         }
@@ -21,8 +36,32 @@ public class RespCallback {
         server.responseComplete(key);
     }
 
+    // a file body, see HttpServer#tryWrite(SelectionKey, ByteBuffer, FileRegion)
+    void run(ByteBuffer head, FileRegion file) throws IOException {
+        releaseBody();
+        if (sink != null) {
+            sink.write(head, file);
+            sink.complete();
+            return;
+        }
+        if (key.attachment() instanceof WsAtta) {
+            server.closeAfterResponse(key);
+        }
+        server.tryWrite(key, head, file);
+        server.responseComplete(key);
+    }
+
+    // the response is encoded: the handler is done with the request body
+    private void releaseBody() {
+        if (request != null) {
+            request.releaseBody();
+        }
+    }
+
     void closeAfterResponse() {
-        if (server != null) {
+        if (sink != null) {
+            sink.closeAfterResponse();
+        } else if (server != null) {
             server.closeAfterResponse(key);
         }
     }
@@ -0,0 +1,182 @@
+package org.httpkit.server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.httpkit.server.Frame.CloseFrame.CLOSE_NORMAL;
+
+/**
+ * Pipelined requests of one connection are handled concurrently (see
+ * {@link HttpServer#setPipelineDepth}), their responses still have to go out
+ * in request order. Each request gets a {@link Slot}: the first one writes to
+ * the connection as usual, the others hold their response until it is their
+ * turn. When a response completes, the held responses behind it go out with
+ * one gathering write.
+ * <p>
+ * Guarded by the connection's atta.
+ */
+class ResponseSequencer {
+
+    private final HttpServer server;
+    private final SelectionKey key;
+    private final ServerAtta atta;
+
+    // in request order, the first one is being written
+    private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+    // the IO loop waits until no more than this are in flight, -1 if not
+    private int resumeAt = -1;
+
+    ResponseSequencer(HttpServer server, SelectionKey key, ServerAtta atta) {
+        this.server = server;
+        this.key = key;
+        this.atta = atta;
+    }
+
+    class Slot implements ResponseSink {
+        AsyncChannel channel;
+        // ByteBuffers and FileRegions, while not first
+        private final List<Object> held = new ArrayList<Object>(4);
+        private boolean complete = false;
+        private boolean closeAfter = false;
+        private boolean done = false; // written, or the connection is closed
+
+        public void write(ByteBuffer... buffers) {
+            synchronized (atta) {
+                if (done) {
+                    return;
+                }
+                if (slots.peekFirst() == this) {
+                    server.tryWrite(key, buffers);
+                } else {
+                    Collections.addAll(held, buffers);
+                }
+            }
+        }
+
+        public void write(ByteBuffer head, FileRegion file) {
+            synchronized (atta) {
+                if (done) {
+                    file.close();
+                } else if (slots.peekFirst() == this) {
+                    server.tryWrite(key, head, file);
+                } else {
+                    held.add(head);
+                    held.add(file);
+                }
+            }
+        }
+
+        public void complete() {
+            synchronized (atta) {
+                if (!done && !complete) {
+                    complete = true;
+                    if (slots.peekFirst() == this) {
+                        flush();
+                    }
+                }
+            }
+        }
+
+        private void discard() {
+            done = true;
+            for (Object o : held) {
+                if (o instanceof FileRegion) {
+                    ((FileRegion) o).close();
+                }
+            }
+            held.clear();
+        }
+
+        // applied when written: the responses before it still go out
+        public void closeAfterResponse() {
+            synchronized (atta) {
+                closeAfter = true;
+            }
+        }
+    }
+
+    Slot next() {
+        synchronized (atta) {
+            Slot slot = new Slot();
+            slots.addLast(slot);
+            return slot;
+        }
+    }
+
+    int inFlight() {
+        synchronized (atta) {
+            return slots.size();
+        }
+    }
+
+    /**
+     * The IO loop stops decoding until no more than {@code inFlight} requests
+     * are in flight, then gets a {@link PendingKey#RESPONSE_COMPLETE}. False if
+     * there are already no more than that.
+     */
+    boolean resumeWhen(int inFlight) {
+        synchronized (atta) {
+            if (slots.size() <= inFlight) {
+                return false;
+            }
+            resumeAt = inFlight;
+            return true;
+        }
+    }
+
+    // the first response is complete: out with it, and what is held behind it
+    private void flush() {
+        List<Object> out = new ArrayList<Object>();
+        Slot slot;
+        while ((slot = slots.peekFirst()) != null) {
+            out.addAll(slot.held);
+            slot.held.clear();
+            if (!slot.complete) {
+                break; // now first, writes straight to the connection
+            }
+            slots.pollFirst();
+            slot.done = true;
+            if (slot.closeAfter) {
+                atta.keepalive = false;
+                break;
+            }
+        }
+        if (!atta.keepalive) { // the connection closes after this response
+            for (Slot rest : slots) {
+                rest.discard();
+            }
+        }
+        if (!out.isEmpty()) {
+            server.tryWrite(key, out); // closes the connection if not keep-alive
+        } else if (!atta.keepalive) {
+            atta.loop.queue(key, atta.toWrites.isEmpty() ? CLOSE_NORMAL : PendingKey.OP_WRITE);
+        }
+
+        if (resumeAt >= 0 && slots.size() <= resumeAt) {
+            resumeAt = -1;
+            server.responseComplete(key);
+        } else if (slots.isEmpty()) {
+            atta.loop.queue(key, PendingKey.OP_WRITE); // idle: for keep-alive bookkeeping
+        }
+    }
+
+    /** The connection is closed, or about to be: returns the channels still in flight */
+    List<AsyncChannel> close() {
+        synchronized (atta) {
+            List<AsyncChannel> channels = new ArrayList<AsyncChannel>(slots.size());
+            for (Slot slot : slots) {
+                slot.discard();
+                if (slot.channel != null) {
+                    channels.add(slot.channel);
+                }
+            }
+            slots.clear();
+            resumeAt = -1;
+            return channels;
+        }
+    }
+}
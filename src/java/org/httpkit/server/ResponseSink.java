@@ -0,0 +1,23 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Takes a response instead of the connection, when it can not go straight to
+ * the socket: an {@link Http2Stream}, or a pipelined request waiting for its
+ * turn ({@link ResponseSequencer.Slot}). The response arrives HTTP/1.1 encoded,
+ * from {@link RespCallback} or {@link AsyncChannel}, maybe on a worker thread.
+ */
+interface ResponseSink {
+
+    void write(ByteBuffer... buffers);
+
+    void write(ByteBuffer head, FileRegion file) throws IOException;
+
+    // the last write of the response is done
+    void complete();
+
+    // the response asked to close the connection
+    void closeAfterResponse();
+}
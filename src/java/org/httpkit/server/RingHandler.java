@@ -2,6 +2,8 @@ package org.httpkit.server;
 
 import static clojure.lang.Keyword.intern;
 import static org.httpkit.HttpUtils.HttpEncode;
+import static org.httpkit.HttpUtils.HttpEncodeHead;
+import static org.httpkit.HttpUtils.isBodyForbidden;
 import static org.httpkit.HttpVersion.HTTP_1_0;
 import static org.httpkit.HttpVersion.HTTP_1_1;
 import static org.httpkit.server.ClojureRing.BODY;
@@ -9,12 +11,21 @@ import static org.httpkit.server.ClojureRing.HEADERS;
 import static org.httpkit.server.ClojureRing.buildRequestMap;
 import static org.httpkit.server.ClojureRing.getStatus;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -28,6 +39,7 @@ import org.httpkit.logger.EventNames;
 import org.httpkit.logger.EventLogger;
 import org.httpkit.server.Frame.TextFrame;
 import org.httpkit.server.Frame.BinaryFrame;
+import org.httpkit.server.Frame.PartialFrame;
 import org.httpkit.server.Frame.PingFrame;
 import org.httpkit.server.Frame.PongFrame;
 
@@ -35,9 +47,6 @@ import clojure.lang.AFn;
 import clojure.lang.IFn;
 import clojure.lang.IPersistentMap;
 import clojure.lang.Keyword;
-import clojure.lang.PersistentArrayMap;
-import clojure.lang.PersistentHashMap;
-import clojure.lang.ITransientMap;
 
 @SuppressWarnings({"rawtypes", "unchecked"})
 class ClojureRing {
@@ -58,8 +67,10 @@ class ClojureRing {
     static final Keyword WEBSOCKET = intern("websocket?");
     static final Keyword ASYC_CHANNEL = intern("async-channel");
     static final Keyword START_TIME = intern("start-time");
+    static final Keyword DEADLINE = intern("deadline");
 
     static final Keyword HTTP = intern("http");
+    static final Keyword HTTPS = intern("https");
 
     static final Keyword STATUS = intern("status");
 
@@ -74,7 +85,7 @@ class ClojureRing {
         return status;
     }
 
-    private static Map<String, Object> ringHeaders(Map<String, Object> headers) {
+    static Map<String, Object> ringHeaders(Map<String, Object> headers) {
         Map<String, Object> joined = null; // Copy only if actually needed
         for (Map.Entry<String, Object> e : headers.entrySet()) {
             Object v = e.getValue();
@@ -89,31 +100,9 @@ class ClojureRing {
         return joined != null ? joined : headers;
     }
 
+    // The Ring request of req, made lazily: see LazyRequestMap
     public static IPersistentMap buildRequestMap(HttpRequest req) {
-        // ring spec
-        ITransientMap m = PersistentHashMap.EMPTY.asTransient();
-        return
-            m
-            .assoc(SERVER_PORT, req.serverPort)
-            .assoc(SERVER_NAME, req.serverName)
-            .assoc(PROTOCOL, req.protocol())
-            .assoc(REMOTE_ADDR, req.getRemoteAddr())
-            .assoc(URI, req.uri)
-            .assoc(QUERY_STRING, req.queryString)
-            .assoc(SCHEME, HTTP) // only http is supported
-            .assoc(ASYC_CHANNEL, req.channel)
-            .assoc(WEBSOCKET, req.isWebSocket)
-            .assoc(REQUEST_METHOD, req.method.KEY)
-            .assoc(START_TIME, req.startTime)
-
-            // Ring requires lowercase keys and joins duplicate headers with ",",
-            // except ";" for Cookie. Ref. #615
-            .assoc(HEADERS, PersistentArrayMap.create(ringHeaders(req.headers)))
-            .assoc(CONTENT_TYPE, req.contentType)
-            .assoc(CONTENT_LENGTH, req.contentLength)
-            .assoc(CHARACTER_ENCODING, req.charset)
-            .assoc(BODY, req.getBody())
-            .persistent();
+        return new LazyRequestMap(req);
     }
 }
 
@@ -139,6 +128,13 @@ class HttpHandler implements Runnable {
     final String serverHeader;
     final boolean legacyContentLength;
     final AtomicBoolean completed = new AtomicBoolean(false);
+    ConcurrencyLimiter limiter; // null if none, released once complete
+    CoDel codel; // null: requests are not shed
+    IPersistentMap requestMap; // if built to pick the lane, else by run
+
+    private IPersistentMap requestMap() {
+        return requestMap != null ? requestMap : buildRequestMap(req);
+    }
 
     public HttpHandler(HttpRequest req, RespCallback cb, IFn handler, boolean isRingAsync,
                        ContextLogger<String, Throwable> errorLogger, EventLogger<String> eventLogger, EventNames eventNames, String serverHeader, boolean legacyContentLength) {
@@ -154,6 +150,9 @@ class HttpHandler implements Runnable {
     }
 
     public void run() {
+        if (shed()) {
+            return;
+        }
         if (isRingAsync) {
             runAsync();
         }
@@ -162,9 +161,44 @@ class HttpHandler implements Runnable {
         }
     }
 
+    // Answers 503 without running the handler if the client likely gave up
+    private boolean shed() {
+        long now = System.nanoTime();
+        String event;
+        if (req.deadline != 0 && now - req.deadline >= 0) {
+            event = eventNames.serverShedDeadline;
+        } else if (codel != null && codel.shouldShed(now - req.startTime, now)) {
+            event = eventNames.serverShedQueueTime;
+        } else {
+            return false;
+        }
+        respond503(event);
+        return true;
+    }
+
+    // Answers 503 without running the handler: taken off a full queue, see ShedOldestPolicy
+    void reject() {
+        respond503(eventNames.serverShedPoolFull);
+    }
+
+    private void respond503(String event) {
+        if (completed.compareAndSet(false, true)) {
+            try {
+                Telemetry.log(eventLogger, event);
+                Telemetry.log(eventLogger, eventNames.serverStatus503);
+                HeaderMap headers = ErrorResponse.headers();
+                addConnectionHeader(headers);
+                cb.run(HttpEncode(503, headers, "Server overloaded, please try again",
+                    this.serverHeader, true, req.method == HttpMethod.HEAD));
+            } finally {
+                releaseLimit();
+            }
+        }
+    }
+
     private void runSync() {
         try {
-            completeResponse(handler.invoke(buildRequestMap(req)));
+            completeResponse(handler.invoke(requestMap()));
         } catch (Throwable e) {
             completeError(e);
         }
@@ -172,7 +206,7 @@ class HttpHandler implements Runnable {
 
     private void runAsync() {
         try {
-            handler.invoke(buildRequestMap(req),
+            handler.invoke(requestMap(),
                            new AFn() {
                                public Object invoke(Object resp) {
                                    completeResponse(resp);
@@ -195,15 +229,28 @@ class HttpHandler implements Runnable {
             return;
         }
         try {
-            handleResponse((Map) resp);
+            handleResponse(resp);
         } catch (Throwable e) {
             handleError(e);
+        } finally {
+            releaseLimit();
         }
     }
 
     private void completeError(Throwable e) {
         if (completed.compareAndSet(false, true)) {
-            handleError(e);
+            try {
+                handleError(e);
+            } finally {
+                releaseLimit();
+            }
+        }
+    }
+
+    // the latency of the request, queued time included, adjusts the limit
+    private void releaseLimit() {
+        if (limiter != null) {
+            limiter.release(System.nanoTime() - req.startTime);
         }
     }
 
@@ -212,7 +259,23 @@ class HttpHandler implements Runnable {
             : new ClassCastException("Ring async raise value must be a Throwable"));
     }
 
-    private void handleResponse(Map resp) throws Throwable {
+    private void handleResponse(Object ret) throws Throwable {
+        if (ret instanceof StaticResponse) {
+            StaticResponse r = (StaticResponse) ret;
+            if (r.closes(req)) {
+                cb.closeAfterResponse();
+            }
+            cb.run(r.encode(req, this.serverHeader));
+            Telemetry.log(eventLogger, eventNames.serverStatusPrefix + r.status);
+            return;
+        } else if (ret instanceof ByteBuffer[]) {
+            if (StaticResponse.rawCloses(req)) {
+                cb.closeAfterResponse();
+            }
+            cb.run(StaticResponse.raw((ByteBuffer[]) ret));
+            return;
+        }
+        Map resp = (Map) ret;
         if (resp == null) { // handler return null
             HeaderMap headers = new HeaderMap();
             addConnectionHeader(headers);
@@ -225,8 +288,17 @@ class HttpHandler implements Runnable {
                 HeaderMap headers = HeaderMap.camelCase((Map) resp.get(HEADERS));
                 addConnectionHeader(headers);
                 final int status = getStatus(resp);
-                cb.run(HttpEncode(status, headers, body, this.serverHeader,
-                    this.legacyContentLength, req.method == HttpMethod.HEAD));
+                FileRegion file = req.method == HttpMethod.HEAD || isBodyForbidden(status)
+                    ? null : FileRegion.forBody(body);
+                if (file != null) {
+                    cb.run(HttpEncodeHead(status, headers, file.remaining(), this.serverHeader), file);
+                } else {
+                    if (req.compression != null) {
+                        body = req.compression.compress(req, status, headers, body);
+                    }
+                    cb.run(HttpEncode(status, headers, body, this.serverHeader,
+                        this.legacyContentLength, req.method == HttpMethod.HEAD));
+                }
                 Telemetry.log(eventLogger, eventNames.serverStatusPrefix + status);
             }
         }
@@ -302,6 +374,8 @@ class WSHandler implements Runnable {
                 channel.messageReceived(((TextFrame) frame).getText());
             } else if (frame instanceof BinaryFrame) {
                 channel.messageReceived(frame.data);
+            } else if (frame instanceof PartialFrame) {
+                channel.partialReceived((PartialFrame) frame);
             } else if (frame instanceof PingFrame) {
                 channel.pingReceived(frame.data);
             } else if (frame instanceof PongFrame) {
@@ -318,6 +392,28 @@ class WSHandler implements Runnable {
 }
 
 public class RingHandler implements IHandler {
+
+    /**
+     * Rejection policy of a bulkhead pool (see {@link #setPools}): when its
+     * queue is full, the request waiting longest is answered 503 to make room
+     * for the new one, fresher requests being more likely still wanted.
+     */
+    public static class ShedOldestPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            BlockingQueue<Runnable> queue = executor.getQueue();
+            Runnable oldest = queue.peek();
+            Runnable task = oldest instanceof AutoScalingExecutor.Timed // as an autoscaling pool queues it
+                ? ((AutoScalingExecutor.Timed) oldest).task : oldest;
+            if (executor.isShutdown() || !(task instanceof HttpHandler) || !queue.remove(oldest)) {
+                throw new RejectedExecutionException("Queue full");
+            }
+            ((HttpHandler) task).reject();
+            if (!queue.offer(r)) {
+                throw new RejectedExecutionException("Queue full");
+            }
+        }
+    }
+
     final ExecutorService execs;
     final IFn handler;
     final boolean isRingAsync;
@@ -328,6 +424,33 @@ public class RingHandler implements IHandler {
     final String serverHeader;
     final boolean legacyContentLength;
 
+    // null: requests are only rejected once the executor's queue is full
+    private volatile ConcurrencyLimiter limiter;
+    private volatile CoDel codel;
+    private volatile long defaultDeadline = 0; // ns, 0: none
+    private volatile String deadlineHeader; // lower case, null: none
+    private volatile LaneScheduler lanes; // null: straight to the executor
+    private volatile IFn laneFn;
+    private volatile Map<Object, ExecutorService> pools = Collections.emptyMap();
+    private volatile IFn poolFn;
+    private volatile ExecutorService wsExecs; // null: execs
+    private volatile IFn inlineFn; // null: none inline
+    private volatile long inlineBudget = 0; // ns, 0: not watched
+    private volatile Compression compression; // null: none
+    private final ConcurrentHashMap<Thread, InlineRun> inlineRuns = new ConcurrentHashMap<Thread, InlineRun>();
+    private ScheduledExecutorService watchdog;
+
+    // An inline handler running on an IO thread, see the watchdog
+    private static class InlineRun {
+        final HttpRequest req;
+        final long start = System.nanoTime();
+        volatile boolean reported = false;
+
+        InlineRun(HttpRequest req) {
+            this.req = req;
+        }
+    }
+
     public RingHandler(IFn handler, boolean isRingAsync, ExecutorService execs) {
         this(handler, isRingAsync, execs, ContextLogger.ERROR_PRINTER, EventLogger.NOP, EventNames.DEFAULT, "http-kit", true);
     }
@@ -363,11 +486,230 @@ public class RingHandler implements IHandler {
         this.legacyContentLength = legacyContentLength;
     }
 
+    /**
+     * Rejects HTTP requests with a 503 and a Retry-After once the limiter's
+     * limit of requests is in flight, before they queue for a worker.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Sheds requests queued for a worker more than twice {@code targetMs} with
+     * a 503, without running the handler, once no request got a worker within
+     * {@code targetMs} over an interval of {@code intervalMs}. 0: never.
+     */
+    public void setQueueTarget(long targetMs, long intervalMs) {
+        this.codel = targetMs > 0 ? new CoDel(targetMs, intervalMs) : null;
+    }
+
+    /**
+     * Gives each request a deadline, {@code defaultMs} after it was received,
+     * or sooner as asked by the client in milliseconds in the header named
+     * {@code header}. Exposed as the Ring request's :deadline, requests still
+     * queued by then are answered 503 without running the handler. 0 and null:
+     * none.
+     */
+    public void setDeadline(long defaultMs, String header) {
+        this.defaultDeadline = defaultMs * 1000000;
+        this.deadlineHeader = header == null ? null : header.toLowerCase();
+    }
+
+    /**
+     * Queues requests in the scheduler's lanes before the executor:
+     * {@code laneFn} is called with the Ring request on the IO thread, and
+     * returns the name of its lane. Null, or an unknown name: the default lane,
+     * WebSocket messages go there too. Null scheduler: none.
+     */
+    public void setLanes(LaneScheduler lanes, IFn laneFn) {
+        this.lanes = lanes;
+        this.laneFn = laneFn;
+    }
+
+    public LaneScheduler getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Bulkheads: {@code poolFn} is called with the Ring request on the IO
+     * thread, and returns the name of the pool running it. Null, or an unknown
+     * name: the default executor, behind the lanes if any. The pools are shut
+     * down with the server.
+     */
+    public void setPools(Map<Object, ExecutorService> pools, IFn poolFn) {
+        this.pools = new HashMap<Object, ExecutorService>(pools);
+        this.poolFn = poolFn;
+    }
+
+    /** Runs the WebSocket message handlers, null: the default executor */
+    public void setWebSocketPool(ExecutorService wsExecs) {
+        this.wsExecs = wsExecs;
+    }
+
+    /**
+     * Runs the requests {@code inlineFn} returns truthy for right on the IO
+     * thread: no hop to a worker and back, nor limits. They answer even when
+     * the pool is saturated, but must not block: the connections of the loop
+     * wait meanwhile. Not requests with a streamed body. Inline handlers still
+     * running after {@code budgetMs} are logged, with the IO thread's stack,
+     * 0: not watched. Null: none inline.
+     */
+    public synchronized void setInline(IFn inlineFn, long budgetMs) {
+        this.inlineFn = inlineFn;
+        this.inlineBudget = budgetMs * 1000000;
+        if (inlineFn != null && budgetMs > 0 && watchdog == null) {
+            watchdog = new ScheduledThreadPoolExecutor(1, new PrefixThreadFactory("http-kit-inline-watchdog-"));
+            long period = Math.max(1, budgetMs / 2);
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkInlineRuns();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compresses responses, see {@link Compression}: on the worker sending
+     * them, not for requests run inline nor files sent with sendfile. Null:
+     * none.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    // On the watchdog thread
+    private void checkInlineRuns() {
+        long budget = inlineBudget;
+        long now = System.nanoTime();
+        for (Map.Entry<Thread, InlineRun> e : inlineRuns.entrySet()) {
+            InlineRun run = e.getValue();
+            if (budget > 0 && !run.reported && now - run.start > budget) {
+                run.reported = true;
+                Exception stack = new Exception("IO thread " + e.getKey().getName() + " stack");
+                stack.setStackTrace(e.getKey().getStackTrace());
+                Telemetry.log(errorLogger, "inline handler running for " + (now - run.start) / 1000000
+                    + "ms on the IO thread: " + run.req.method + " " + run.req.uri, stack);
+            }
+        }
+    }
+
+    private void runInline(HttpHandler task) {
+        Thread thread = Thread.currentThread();
+        InlineRun run = new InlineRun(task.req);
+        inlineRuns.put(thread, run);
+        try {
+            task.run();
+        } finally {
+            inlineRuns.remove(thread);
+            long budget = inlineBudget;
+            if (budget > 0 && System.nanoTime() - run.start > budget) {
+                Telemetry.log(eventLogger, eventNames.serverInlineSlow);
+            }
+        }
+    }
+
+    // Handler tasks go to their pool or through the lanes if any, WebSocket ones to theirs
+    private void submit(Runnable task, HttpHandler http) {
+        if (http == null) {
+            ExecutorService wsExecs = this.wsExecs;
+            if (wsExecs != null) {
+                wsExecs.submit(task);
+                return;
+            }
+        } else if (poolFn != null) {
+            ExecutorService pool = pools.get(classify(poolFn, http, "pool fn"));
+            if (pool != null) {
+                pool.execute(task); // not wrapped, see ShedOldestPolicy
+                return;
+            }
+        }
+        LaneScheduler lanes = this.lanes;
+        if (lanes == null) {
+            execs.submit(task);
+            return;
+        }
+        Object name = null;
+        if (http != null && laneFn != null) {
+            name = classify(laneFn, http, "lane fn");
+        }
+        lanes.execute(task, lanes.getLane(name));
+    }
+
+    // The name returned by fn for the request, null on error: the default
+    private Object classify(IFn fn, HttpHandler http, String what) {
+        try {
+            if (http.requestMap == null) {
+                http.requestMap = buildRequestMap(http.req);
+            }
+            return fn.invoke(http.requestMap);
+        } catch (Throwable e) {
+            Telemetry.log(errorLogger, what + ", using the default", e);
+            return null;
+        }
+    }
+
+    private void setDeadline(HttpRequest req) {
+        long budget = defaultDeadline;
+        String header = deadlineHeader;
+        if (header != null) {
+            Object value = req.headers.get(header);
+            if (value instanceof String) {
+                try {
+                    long asked = Long.parseLong(((String) value).trim()) * 1000000;
+                    if (asked > 0 && (budget == 0 || asked < budget)) {
+                        budget = asked;
+                    }
+                } catch (NumberFormatException ignored) { // no deadline asked
+                }
+            }
+        }
+        if (budget > 0) {
+            req.deadline = req.startTime + budget;
+            if (req.deadline == 0) {
+                req.deadline = 1;
+            }
+        }
+    }
+
     public void handle(HttpRequest req, RespCallback cb) {
         req.legacyContentLength = legacyContentLength;
+        setDeadline(req);
+        HttpHandler task = new HttpHandler(req, cb, handler, isRingAsync, errorLogger, eventLogger, eventNames, this.serverHeader, this.legacyContentLength);
+        IFn inlineFn = this.inlineFn;
+        if (inlineFn != null && !req.isStreamingBody()) {
+            Object inline = classify(inlineFn, task, "inline fn");
+            if (inline != null && inline != Boolean.FALSE) {
+                runInline(task);
+                return;
+            }
+        }
+        req.compression = compression; // not inline: on the IO thread
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            Telemetry.log(eventLogger, eventNames.serverStatus503);
+            HeaderMap headers = ErrorResponse.headers();
+            headers.put("Retry-After", Integer.toString(limiter.retryAfterSeconds()));
+            cb.run(HttpEncode(503, headers,
+                "Server overloaded, please try again", this.serverHeader,
+                true, req.method == HttpMethod.HEAD));
+            return;
+        }
+        task.limiter = limiter;
+        task.codel = codel;
         try {
-            execs.submit(new HttpHandler(req, cb, handler, isRingAsync, errorLogger, eventLogger, eventNames, this.serverHeader, this.legacyContentLength));
+            submit(task, task);
         } catch (RejectedExecutionException e) {
+            if (limiter != null) {
+                limiter.release();
+            }
             Telemetry.log(errorLogger, "failed to submit task to executor service", e);
             Telemetry.log(eventLogger, eventNames.serverStatus503);
             cb.run(HttpEncode(503, ErrorResponse.headers(),
@@ -377,18 +719,38 @@ public class RingHandler implements IHandler {
     }
 
     public void close(int timeoutTs) {
+        synchronized (this) {
+            if (watchdog != null) {
+                watchdog.shutdownNow();
+            }
+        }
+        List<ExecutorService> all = new ArrayList<ExecutorService>(pools.values());
+        all.add(execs);
+        if (wsExecs != null) {
+            all.add(wsExecs);
+        }
         if (timeoutTs > 0) {
-            execs.shutdown();
+            for (ExecutorService e : all) {
+                e.shutdown();
+            }
+            long deadline = System.currentTimeMillis() + timeoutTs;
             try {
-                if (!execs.awaitTermination(timeoutTs, TimeUnit.MILLISECONDS)) {
-                    execs.shutdownNow();
+                for (ExecutorService e : all) {
+                    long left = Math.max(0, deadline - System.currentTimeMillis());
+                    if (!e.awaitTermination(left, TimeUnit.MILLISECONDS)) {
+                        e.shutdownNow();
+                    }
                 }
             } catch (InterruptedException ie) {
-                execs.shutdownNow();
+                for (ExecutorService e : all) {
+                    e.shutdownNow();
+                }
                 Thread.currentThread().interrupt();
             }
         } else {
-            execs.shutdownNow();
+            for (ExecutorService e : all) {
+                e.shutdownNow();
+            }
         }
     }
 
@@ -404,11 +766,11 @@ public class RingHandler implements IHandler {
         channel.serialTask = job;
         try {
             if (old == null) { // No previous job
-                execs.submit(job);
+                submit(job, null);
             } else {
                 if (!old.next.compareAndSet(null, job)) { // successfully append to previous task
                     // previous message is handled, order is guaranteed.
-                    execs.submit(job);
+                    submit(job, null);
                 }
             }
         } catch (RejectedExecutionException e) {
@@ -419,6 +781,27 @@ public class RingHandler implements IHandler {
         }
     }
 
+    // The writable handler may send again: executed in another thread, like a close handler
+    public void clientWritable(final AsyncChannel channel) {
+        if (!channel.hasWritableHandler() || channel.isClosed()) {
+            return;
+        }
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    channel.onWritable();
+                } catch (Exception e) {
+                    Telemetry.log(errorLogger, "on writable handler", e);
+                }
+            }
+        };
+        try {
+            execs.submit(task);
+        } catch (RejectedExecutionException e) { // shutting down
+            task.run();
+        }
+    }
+
     public void clientClose(final AsyncChannel channel, final int status) {
         clientClose(channel, status, "");
     }
@@ -1,14 +1,27 @@
 package org.httpkit.server;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
 
 public abstract class ServerAtta {
-    final LinkedList<ByteBuffer> toWrites = new LinkedList<ByteBuffer>();
+    // ByteBuffers, and FileRegions sent with transferTo
+    final WriteQueue toWrites = new WriteQueue();
+
+    // false once toWrites grows past the high watermark, until drained below
+    // the low one, see HttpServer#setWriteWatermarks
+    boolean writable = true;
 
     ByteBuffer pendingInput;
     boolean requestInProgress;
 
+    // the IO loop owning this connection
+    ServerLoop loop;
+
+    // null for cleartext connections
+    TlsConnection tls;
+
+    // the deadline of the phase the connection is in, see HttpServer#setTimeouts
+    TimingWheel.Timeout timeout;
+
     protected AsyncChannel channel;
 
     // close the connection after write?
@@ -35,4 +48,19 @@ public abstract class ServerAtta {
     public void chunkedResponseInprogress(boolean b) {
         chunkedResponseInprogress = b;
     }
+
+    // the connection is closed: files still queued are not going to be sent
+    void releaseWrites() {
+        toWrites.clear();
+    }
+
+    // no response in flight, may be closed by stop()
+    boolean isIdle() {
+        return true;
+    }
+
+    // not to be read from until the handler catches up, see WsAtta
+    boolean isReadPaused() {
+        return false;
+    }
 }
@@ -0,0 +1,142 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A request body larger than the spill threshold (see
+ * {@link HttpServer#setBodySpillThreshold}), written to a temporary file as it
+ * arrives instead of the heap. Handed to the handler as the request's body: it
+ * reads as an InputStream, {@link #map()} gives random access. The file is
+ * deleted once the response is complete, or the connection closed.
+ */
+public class SpilledBody extends InputStream {
+    private final Path path;
+    private final FileChannel channel;
+    private long size = 0;
+    private long position = 0; // of the next read
+    private boolean deleted = false;
+
+    private SpilledBody(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    // ----- IO loop -----
+
+    // Disk errors are unchecked: decoding does not throw IOException, see HttpServer#decodeHttp
+    static SpilledBody create() {
+        Path path = null;
+        try {
+            path = Files.createTempFile("http-kit-body", ".tmp");
+            return new SpilledBody(path, FileChannel.open(path, READ, WRITE));
+        } catch (IOException e) {
+            if (path != null) {
+                path.toFile().delete();
+            }
+            throw new UncheckedIOException("Can not spill the request body", e);
+        }
+    }
+
+    void write(ByteBuffer src, int n) {
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        try {
+            while (part.hasRemaining()) {
+                size += channel.write(part, size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can not spill the request body", e);
+        }
+        src.position(src.position() + n);
+    }
+
+    void write(byte[] bytes, int n) {
+        write(ByteBuffer.wrap(bytes, 0, n), n);
+    }
+
+    // the response is complete, or the connection closed. Best effort
+    synchronized void delete() {
+        if (deleted) {
+            return;
+        }
+        deleted = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ----- handler -----
+
+    public long size() {
+        return size;
+    }
+
+    /** The temporary file, deleted once the response is complete */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * The whole body, read-only. The mapping stays valid after the file is
+     * deleted, the disk space is reclaimed once it is garbage collected.
+     */
+    public MappedByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, size - position)), position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, size - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public String toString() {
+        return "SpilledBody[" + path + ", size=" + size + ", position=" + position + "]";
+    }
+}
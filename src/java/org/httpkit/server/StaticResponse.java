@@ -0,0 +1,184 @@
+package org.httpkit.server;
+
+import static org.httpkit.HttpUtils.CONTENT_LENGTH;
+import static org.httpkit.HttpVersion.HTTP_1_0;
+import static org.httpkit.HttpVersion.HTTP_1_1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.httpkit.HeaderMap;
+import org.httpkit.HttpMethod;
+import org.httpkit.HttpStatus;
+import org.httpkit.HttpUtils;
+
+import clojure.lang.Keyword;
+
+/**
+ * A Ring response encoded once, to be returned by handlers or sent as is: for
+ * those answering the same bytes to every request (health checks,
+ * robots.txt...). Each response writes read-only duplicates of the same
+ * buffers. What depends on the request or the time is added as sent: the
+ * Connection header, as {@link RingHandler} would, then Server and Date.
+ */
+public final class StaticResponse {
+    private static final byte[] KEEP_ALIVE = "Connection: Keep-Alive\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "Connection: Close\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    final int status;
+    private final ByteBuffer head; // status line and headers, but Connection, Server and Date
+    private final ByteBuffer body; // null if none
+    private final byte[] connection; // the response's own Connection line, null if none
+    private final boolean close; // Connection: close given
+    private final boolean hasServer;
+    private final boolean hasDate;
+
+    // Connection, Server, Date and the blank line, for the current second
+    private static class Tail {
+        final byte[] date;
+        final String server;
+        final ByteBuffer own; // the response's own Connection line, if any
+        final ByteBuffer keepAlive;
+        final ByteBuffer close;
+
+        Tail(byte[] date, String server, StaticResponse r) {
+            this.date = date;
+            this.server = server;
+            this.own = r.tail(r.connection, date, server);
+            this.keepAlive = r.tail(KEEP_ALIVE, date, server);
+            this.close = r.tail(CLOSE, date, server);
+        }
+    }
+
+    private volatile Tail tail = null;
+
+    private StaticResponse(int status, HeaderMap headers, ByteBuffer body) {
+        this.status = status;
+        this.close = headers.containsToken("Connection", "close");
+        Object connection = headers.get("Connection");
+        if (connection != null) {
+            HeaderMap line = new HeaderMap();
+            line.put("Connection", connection);
+            this.connection = HttpUtils.HttpEncodeHeaders(line);
+            headers.remove("Connection");
+        } else {
+            this.connection = null;
+        }
+        this.hasServer = headers.containsKey("Server");
+        this.hasDate = headers.containsKey("Date");
+        byte[] statusLine = HttpStatus.valueOf(status).getInitialLineBytes();
+        byte[] lines = HttpUtils.HttpEncodeHeaders(headers);
+        ByteBuffer head = ByteBuffer.allocate(statusLine.length + lines.length);
+        head.put(statusLine).put(lines).flip();
+        this.head = head.asReadOnlyBuffer();
+        this.body = body == null ? null : body.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes the response as {@link org.httpkit.HttpUtils#HttpEncode} would:
+     * headers as Ring has them, a body that is a String, byte[], File,
+     * InputStream or seq of those, read once, with its Content-Length.
+     *
+     * @throws IOException reading the body
+     * @throws IllegalArgumentException on an invalid header
+     */
+    public static StaticResponse compile(int status, Map<String, Object> headers, Object body)
+            throws IOException {
+        HeaderMap map = HeaderMap.camelCase(headers);
+        map.remove("Transfer-Encoding");
+        map.remove(CONTENT_LENGTH);
+        ByteBuffer buffer = null;
+        if (status / 100 == 1 || status == 204 || status == 304) {
+            // no body, nor its length
+        } else if (status == 205) {
+            map.put(CONTENT_LENGTH, 0);
+        } else {
+            buffer = HttpUtils.bodyBuffer(body);
+            map.put(CONTENT_LENGTH, buffer == null ? 0 : buffer.remaining());
+        }
+        return new StaticResponse(status, map, buffer);
+    }
+
+    /** The Ring response map {@code resp}, encoded once */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static StaticResponse compile(Map<Keyword, Object> resp) throws IOException {
+        return compile(ClojureRing.getStatus(resp), (Map) resp.get(ClojureRing.HEADERS),
+            resp.get(ClojureRing.BODY));
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    private ByteBuffer tail(byte[] connection, byte[] date, String server) {
+        byte[] serverLine = server == null || hasServer ? null : HttpUtils.serverHeaderLine(server);
+        int length = 2 + (connection == null ? 0 : connection.length)
+            + (serverLine == null ? 0 : serverLine.length) + (hasDate ? 0 : date.length);
+        ByteBuffer b = ByteBuffer.allocate(length);
+        if (connection != null) {
+            b.put(connection);
+        }
+        if (serverLine != null) {
+            b.put(serverLine);
+        }
+        if (!hasDate) {
+            b.put(date);
+        }
+        b.put((byte) '\r').put((byte) '\n').flip();
+        return b.asReadOnlyBuffer();
+    }
+
+    /** The buffers to write in answer to {@code req}, see {@link #closes} */
+    ByteBuffer[] encode(HttpRequest req, String serverHeader) {
+        byte[] date = HttpUtils.dateHeaderLine();
+        Tail t = tail;
+        if (t == null || t.date != date || !equal(t.server, serverHeader)) {
+            t = new Tail(date, serverHeader, this);
+            tail = t;
+        }
+        // as RingHandler's addConnectionHeader
+        ByteBuffer connection = t.own;
+        if (req.version == HTTP_1_0 && req.isKeepAlive && !close) {
+            connection = t.keepAlive;
+        } else if (req.version == HTTP_1_1 && !req.isKeepAlive) {
+            connection = t.close;
+        }
+        if (body == null || req.method == HttpMethod.HEAD) {
+            return new ByteBuffer[]{head.duplicate(), connection.duplicate()};
+        }
+        return new ByteBuffer[]{head.duplicate(), connection.duplicate(), body.duplicate()};
+    }
+
+    /** True if the connection is to be closed once answered to {@code req} */
+    boolean closes(HttpRequest req) {
+        return close || (req.version == HTTP_1_1 && !req.isKeepAlive);
+    }
+
+    /**
+     * A response encoded by the handler, written as is: the connection is
+     * closed after, unless HTTP/1.1 keeps it alive, as nothing says otherwise.
+     */
+    static ByteBuffer[] raw(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            duplicates[i] = buffers[i].duplicate(); // may be returned again
+        }
+        return duplicates;
+    }
+
+    static boolean rawCloses(HttpRequest req) {
+        return !(req.version == HTTP_1_1 && req.isKeepAlive);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "StaticResponse[status=" + status + ", head=" + head.remaining() + "B, body="
+            + (body == null ? 0 : body.remaining()) + "B]";
+    }
+}
@@ -12,6 +12,13 @@ final class Telemetry {
         }
     }
 
+    static void log(ContextLogger<String, String> logger, String event, String context) {
+        try {
+            logger.log(event, context);
+        } catch (Throwable ignored) {
+        }
+    }
+
     static void log(EventLogger<String> logger, String event) {
         try {
             logger.log(event);
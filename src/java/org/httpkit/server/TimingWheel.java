@@ -0,0 +1,106 @@
+package org.httpkit.server;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * The connection deadlines of one {@link ServerLoop}, see
+ * {@link HttpServer#setTimeouts}. A hashed timing wheel: a deadline goes in the
+ * slot of the tick it falls on, modulo the number of slots, so arming and
+ * cancelling are O(1) and advancing only visits the slots of the ticks passed.
+ * Deadlines more than a turn away stay in their slot until a later turn.
+ * <p>
+ * Loop thread only.
+ */
+class TimingWheel {
+    static final int TICK_MS = 100;
+    private static final int SLOTS = 512; // a turn is ~51s
+
+    static final class Timeout {
+        final SelectionKey key;
+        final ServerAtta atta; // the key may be attached to another one since
+        int phase = 0; // 0: not armed
+        long deadline;
+        private int slot = -1;
+        // in the slot's list; next also chains the expired ones, see advance
+        Timeout prev, next;
+
+        Timeout(SelectionKey key, ServerAtta atta) {
+            this.key = key;
+            this.atta = atta;
+        }
+    }
+
+    private final Timeout[] slots = new Timeout[SLOTS];
+    private long tick; // advanced to
+    private int size = 0;
+
+    TimingWheel(long now) {
+        this.tick = now / TICK_MS;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void arm(Timeout t, int phase, long delay, long now) {
+        cancel(t);
+        t.phase = phase;
+        t.deadline = now + delay;
+        long due = Math.max(tick + 1, (t.deadline + TICK_MS - 1) / TICK_MS);
+        int slot = (int) (due % SLOTS);
+        t.slot = slot;
+        t.prev = null;
+        t.next = slots[slot];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        slots[slot] = t;
+        size++;
+    }
+
+    void cancel(Timeout t) {
+        if (t.slot < 0) {
+            return;
+        }
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            slots[t.slot] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.slot = -1;
+        t.phase = 0;
+        t.prev = t.next = null;
+        size--;
+    }
+
+    /**
+     * Removes the timeouts due by now and returns them chained by next, their
+     * phase kept. Null if none.
+     */
+    Timeout advance(long now) {
+        long to = now / TICK_MS;
+        // a whole turn visits every slot
+        long from = Math.max(tick + 1, to - SLOTS + 1);
+        tick = Math.max(tick, to);
+        Timeout expired = null;
+        for (long i = from; i <= to && size > 0; i++) {
+            int slot = (int) (i % SLOTS);
+            Timeout t = slots[slot];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadline <= now) {
+                    int phase = t.phase;
+                    cancel(t);
+                    t.phase = phase;
+                    t.next = expired;
+                    expired = t;
+                }
+                t = next;
+            }
+        }
+        return expired;
+    }
+}
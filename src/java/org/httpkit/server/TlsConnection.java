@@ -0,0 +1,98 @@
+package org.httpkit.server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TLS state of one server connection. Records are unwrapped by the IO loop,
+ * wrapped by whichever thread writes, holding the attachment's lock, so they
+ * reach the socket in the order the engine produced them.
+ */
+class TlsConnection {
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    final SSLEngine engine;
+    // received, not yet unwrapped. Kept in write mode
+    final ByteBuffer peerNetData;
+    // scratch for wrap, copied out to right-sized buffers
+    private final ByteBuffer myNetData;
+
+    // a delegated task is running on the handshake executor
+    volatile boolean taskRunning = false;
+
+    TlsConnection(SSLEngine engine) {
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.peerNetData = ByteBuffer.allocate(Math.max(packetSize, 32 * 1024));
+        this.myNetData = ByteBuffer.allocate(packetSize);
+    }
+
+    boolean isHandshaking() {
+        HandshakeStatus hs = engine.getHandshakeStatus();
+        return hs != HandshakeStatus.NOT_HANDSHAKING && hs != HandshakeStatus.FINISHED;
+    }
+
+    /** Encrypts the buffers into TLS records, consuming them all */
+    ByteBuffer[] wrap(ByteBuffer... buffers) throws SSLException {
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>(2);
+        do {
+            myNetData.clear();
+            SSLEngineResult res = engine.wrap(buffers, myNetData);
+            if (res.getStatus() != Status.OK) {
+                throw new SSLException("Failed to wrap TLS response: " + res.getStatus());
+            }
+            if (res.bytesConsumed() == 0 && res.bytesProduced() == 0) {
+                if (hasRemaining(buffers)) {
+                    throw new SSLException("TLS engine made no progress while wrapping response");
+                }
+                break;
+            }
+            myNetData.flip();
+            ByteBuffer record = ByteBuffer.allocate(myNetData.remaining());
+            record.put(myNetData).flip();
+            records.add(record);
+        } while (hasRemaining(buffers));
+
+        if (records.isEmpty()) {
+            return new ByteBuffer[]{ByteBuffer.allocate(0)};
+        }
+        return records.toArray(new ByteBuffer[records.size()]);
+    }
+
+    /** Handshake data the engine wants to send, NEED_WRAP */
+    ByteBuffer[] wrapHandshake() throws SSLException {
+        ByteBuffer[] records = wrap(EMPTY_BUFFER);
+        if (!records[0].hasRemaining() && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+            throw new SSLException("TLS engine made no progress while wrapping handshake");
+        }
+        return records;
+    }
+
+    /** close_notify, or null if the engine has nothing to send */
+    ByteBuffer closeOutbound() {
+        engine.closeOutbound();
+        try {
+            myNetData.clear();
+            engine.wrap(EMPTY_BUFFER, myNetData);
+            myNetData.flip();
+            return myNetData.hasRemaining() ? myNetData : null;
+        } catch (SSLException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
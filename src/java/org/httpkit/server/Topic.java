@@ -0,0 +1,135 @@
+package org.httpkit.server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.httpkit.server.WSDecoder.OPCODE_BINARY;
+import static org.httpkit.server.WSDecoder.OPCODE_TEXT;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.httpkit.HttpUtils;
+
+/**
+ * A group of WebSocket channels sent the same messages, see
+ * {@link TopicRegistry}. Membership is a concurrent set: joining, leaving and
+ * broadcasting don't block each other. Channels closed are dropped at the next
+ * broadcast, or when they leave.
+ */
+public class Topic {
+    final Object name;
+    private final Set<AsyncChannel> members = ConcurrentHashMap.newKeySet();
+
+    public Topic(Object name) {
+        this.name = name;
+    }
+
+    public Object getName() {
+        return name;
+    }
+
+    /** True if the channel was not a member already */
+    public boolean subscribe(AsyncChannel channel) {
+        return members.add(channel);
+    }
+
+    /** True if the channel was a member */
+    public boolean unsubscribe(AsyncChannel channel) {
+        return members.remove(channel);
+    }
+
+    public boolean isSubscribed(AsyncChannel channel) {
+        return members.contains(channel);
+    }
+
+    /** The members, closed ones included until the next broadcast */
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Sends the message, a String as a text message, a byte[] as a binary one,
+     * to the channels subscribed and upgraded to WebSocket. Its frame is encoded
+     * once, the same bytes queued to every connection: only those compressing
+     * with context takeover (see {@link PerMessageDeflate}) encode their own.
+     * Each IO loop is woken up once, after all are queued.
+     *
+     * @return the number of channels sent the message
+     */
+    public int broadcast(Object message) {
+        Message m = new Message(message);
+        List<ServerLoop> wakeups = new ArrayList<ServerLoop>(4);
+        int sent = 0;
+        try {
+            Iterator<AsyncChannel> it = members.iterator();
+            while (it.hasNext()) {
+                AsyncChannel channel = it.next();
+                if (channel.sendShared(m, wakeups)) {
+                    sent++;
+                } else if (channel.isClosed()) {
+                    it.remove();
+                }
+            }
+        } finally {
+            for (ServerLoop loop : wakeups) {
+                loop.wakeup();
+            }
+        }
+        return sent;
+    }
+
+    /** A message of a broadcast: its frames encoded as first needed */
+    static class Message {
+        final byte opcode;
+        final byte[] data;
+        private ByteBuffer plain;
+        private ByteBuffer compressed; // without context takeover: the same for all
+
+        Message(Object message) {
+            if (message instanceof String) {
+                opcode = OPCODE_TEXT;
+                data = ((String) message).getBytes(UTF_8);
+            } else if (message instanceof byte[]) {
+                opcode = OPCODE_BINARY;
+                data = (byte[]) message;
+            } else {
+                throw new IllegalArgumentException("broadcast called with: " + message
+                    + (message == null ? "" : " (" + message.getClass() + ")") + ", but only string, byte[] expected");
+            }
+        }
+
+        /** The frame to queue, a duplicate of the shared one */
+        ByteBuffer frame(PerMessageDeflate.Session session) {
+            if (session == null) {
+                if (plain == null) {
+                    plain = shared(HttpUtils.WsEncode(opcode, data, data.length));
+                }
+                return plain.duplicate();
+            }
+            if (compressed == null) {
+                compressed = shared(session.encode(opcode, data, data.length));
+            }
+            return compressed.duplicate();
+        }
+
+        // off the heap: written to each socket as is, not copied to a temporary direct buffer
+        private static ByteBuffer shared(ByteBuffer frame) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(frame.remaining());
+            direct.put(frame);
+            direct.flip();
+            return direct.asReadOnlyBuffer();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Topic[" + name + ", " + members.size() + " members]";
+    }
+}
@@ -0,0 +1,59 @@
+package org.httpkit.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Topic}s by name, created as first subscribed to: for chat rooms,
+ * feeds and other fan-outs of the same messages to many WebSockets.
+ */
+public class TopicRegistry {
+    private final ConcurrentHashMap<Object, Topic> topics = new ConcurrentHashMap<Object, Topic>();
+
+    /** The topic of that name, created if none */
+    public Topic topic(Object name) {
+        Topic topic = topics.get(name);
+        if (topic == null) {
+            Topic created = new Topic(name);
+            topic = topics.putIfAbsent(name, created);
+            if (topic == null) {
+                topic = created;
+            }
+        }
+        return topic;
+    }
+
+    /** The topic of that name, or null if none */
+    public Topic get(Object name) {
+        return topics.get(name);
+    }
+
+    /** Removes the topic: its members no longer sent what is broadcast to the name */
+    public Topic remove(Object name) {
+        return topics.remove(name);
+    }
+
+    public boolean subscribe(Object name, AsyncChannel channel) {
+        return topic(name).subscribe(channel);
+    }
+
+    /** True if the channel was a member. Topics are kept once empty, until removed */
+    public boolean unsubscribe(Object name, AsyncChannel channel) {
+        Topic topic = topics.get(name);
+        return topic != null && topic.unsubscribe(channel);
+    }
+
+    /** See {@link Topic#broadcast}: 0 if no topic of that name */
+    public int broadcast(Object name, Object message) {
+        Topic topic = topics.get(name);
+        return topic == null ? 0 : topic.broadcast(message);
+    }
+
+    public int size() {
+        return topics.size();
+    }
+
+    @Override
+    public String toString() {
+        return "TopicRegistry[" + topics.size() + " topics]";
+    }
+}
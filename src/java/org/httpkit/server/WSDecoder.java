@@ -4,9 +4,10 @@ import org.httpkit.DynamicBytes;
 import org.httpkit.ProtocolException;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class WSDecoder {
 
@@ -34,6 +35,12 @@ public class WSDecoder {
     private int opcode = -1;
     private int fragmentedOpCode = -1;
     private int framePayloadIndex; // masking per frame
+    private volatile PerMessageDeflate.Session deflate; // null: not negotiated
+    private boolean compressed; // the message being read has RSV1 set
+    private volatile boolean partial; // data delivered as read, see AsyncChannel#setPartialReceiveHandler
+    private boolean partialMessage; // the message being read is
+    private int messageOpcode;
+    private byte[] utf8Left; // of a text message in pieces: a character split
 
     // 8 bytes are enough
     // protect against long/short/int are not fully received
@@ -61,15 +68,23 @@ public class WSDecoder {
                 case FRAME_START:
                     byte b = buffer.get(); // FIN, RSV, OPCODE
                     finalFlag = (b & 0x80) != 0;
+                    opcode = b & 0x0F;
 
-                    if ((b & 0x70) != 0) {
+                    // RSV1: a compressed message, said by its first frame
+                    int rsv = b & 0x70;
+                    if (rsv != 0 && (rsv != 0x40 || deflate == null
+                            || opcode == OPCODE_CONT || isControlFrame(opcode))) {
                         throw new ProtocolException("unsupported websocket extension data");
                     }
 
-                    opcode = b & 0x0F;
                     if (!isSupportedOpcode(opcode)) {
                         throw new ProtocolException("unsupported websocket opcode: " + opcode);
                     }
+                    if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+                        compressed = rsv != 0;
+                        partialMessage = partial;
+                        messageOpcode = opcode;
+                    }
                     if (isControlFrame(opcode)) {
                         if (!finalFlag) {
                             throw new ProtocolException("fragmented websocket control frame");
@@ -120,7 +135,14 @@ public class WSDecoder {
                         if (length < 65536) {
                             throw new ProtocolException("invalid data frame length. most significant bit is not zero or length fits in unsigned short.");
                         }
-                        abortIfTooLarge(length);
+                        if (partialMessage && !isControlFrame(opcode)) {
+                            if (length > Integer.MAX_VALUE) { // nor negative
+                                throw new WebSocketException(1009, "Max frame length " + Integer.MAX_VALUE
+                                        + ", got: " + length);
+                            }
+                        } else {
+                            abortIfTooLarge(length);
+                        }
                         payloadLength = (int) length;
                         state = State.MASKING_KEY;
                     }
@@ -129,6 +151,15 @@ public class WSDecoder {
                     if (isAvailable(buffer, 4)) {
                         maskingKey = tmpBuffer.getInt();
                         tmpBuffer.clear();
+                        framePayloadIndex = 0; // reset
+                        state = State.PAYLOAD;
+                        if (partialMessage && !isControlFrame(opcode)) {
+                            Frame piece = readPiece(buffer);
+                            if (piece != null) {
+                                return piece;
+                            }
+                            break;
+                        }
                         if (!isControlFrame(opcode)) {
                             long messageLength = payloadLength;
                             if (opcode == OPCODE_CONT) {
@@ -137,24 +168,22 @@ public class WSDecoder {
                             abortIfTooLarge(messageLength);
                         }
                         frameContent = new byte[payloadLength];
-                        framePayloadIndex = 0; // reset
-                        state = State.PAYLOAD;
                         // No break. since payloadLength can be 0
                     } else {
                         break; // wait for more data from TCP
                     }
                 case PAYLOAD:
+                    if (partialMessage && !isControlFrame(opcode)) {
+                        Frame piece = readPiece(buffer);
+                        if (piece != null) {
+                            return piece;
+                        }
+                        break;
+                    }
                     int read = Math.min(buffer.remaining(), payloadLength - payloadRead);
                     if (read > 0) {
                         buffer.get(frameContent, payloadRead, read);
-
-                        for (int i = 0; i < read; i++) {
-                            int frameIndex = payloadRead + i;
-                            int shift = 24 - (((framePayloadIndex + i) & 3) << 3);
-                            frameContent[frameIndex] = (byte) (frameContent[frameIndex]
-                                    ^ (byte) (maskingKey >>> shift));
-                        }
-
+                        unmask(frameContent, payloadRead, read, maskingKey, framePayloadIndex);
                         payloadRead += read;
                     }
                     framePayloadIndex += read;
@@ -199,6 +228,53 @@ public class WSDecoder {
         return null; // wait for more bytes
     }
 
+    /**
+     * Unmasks, in place, length bytes of data from offset: the frame's payload
+     * from its byte index. 8 bytes at a time, then the few left.
+     */
+    static void unmask(byte[] data, int offset, int length, int maskingKey, int index) {
+        int key = Integer.rotateLeft(maskingKey, (index & 3) << 3); // its first byte for data[offset]
+        int i = 0;
+        if (length >= 8) {
+            long mask = ((long) key << 32) | (key & 0xFFFFFFFFL);
+            ByteBuffer words = ByteBuffer.wrap(data); // big endian, as the key
+            for (int last = length - 8; i <= last; i += 8) {
+                words.putLong(offset + i, words.getLong(offset + i) ^ mask);
+            }
+        }
+        for (; i < length; i++) {
+            data[offset + i] ^= (byte) (key >>> (24 - ((i & 3) << 3)));
+        }
+    }
+
+    /**
+     * A message received partially: the payload in the buffer, a piece of it
+     * delivered as is. Null if none to deliver yet. The frame's end resets it.
+     */
+    private Frame readPiece(ByteBuffer buffer) throws ProtocolException {
+        int read = Math.min(buffer.remaining(), payloadLength - payloadRead);
+        byte[] piece = new byte[read];
+        buffer.get(piece);
+        unmask(piece, 0, read, maskingKey, framePayloadIndex);
+        payloadRead += read;
+        framePayloadIndex += read;
+        if (payloadRead < payloadLength) {
+            return read == 0 ? null : partialFrame(piece, false);
+        }
+        boolean last = finalFlag;
+        fragmentedOpCode = last ? -1 : messageOpcode;
+        resetFrame();
+        return read == 0 && !last ? null : partialFrame(piece, last);
+    }
+
+    private Frame partialFrame(byte[] piece, boolean last) throws ProtocolException {
+        if (compressed) {
+            piece = inflate(piece, last);
+        }
+        String text = messageOpcode == OPCODE_TEXT ? decodeUtf8(piece, last) : null;
+        return new Frame.PartialFrame(piece, text, last);
+    }
+
     private static boolean isSupportedOpcode(int opcode) {
         return opcode == OPCODE_CONT || opcode == OPCODE_TEXT || opcode == OPCODE_BINARY
                 || opcode == OPCODE_CLOSE || opcode == OPCODE_PING || opcode == OPCODE_PONG;
@@ -212,7 +288,63 @@ public class WSDecoder {
         content.append(frameContent, frameContent.length);
     }
 
+    /** Inflates the messages sent compressed, see {@link PerMessageDeflate} */
+    void setDeflate(PerMessageDeflate.Session deflate) {
+        this.deflate = deflate;
+    }
+
+    /** Delivers the data messages that follow in pieces, as read, see {@link Frame.PartialFrame} */
+    void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    // The message's payload, or a piece of it until last, inflated: no larger than maxSize
+    private byte[] inflate(byte[] data, boolean last) throws ProtocolException {
+        PerMessageDeflate.Session session = deflate;
+        Inflater inflater = session.inflater(partialMessage); // a message in pieces holds its own
+        boolean failed = true;
+        try {
+            DynamicBytes out = new DynamicBytes(Math.min(maxSize, Math.max(64, data.length * 4)));
+            byte[] buf = INFLATED.get();
+            for (byte[] input : last ? new byte[][]{data, DEFLATE_TAIL} : new byte[][]{data}) {
+                inflater.setInput(input);
+                while (true) {
+                    int n = inflater.inflate(buf);
+                    if (n == 0) {
+                        if (inflater.needsDictionary()) {
+                            throw new WebSocketException(1007, "Invalid compressed websocket payload");
+                        }
+                        break; // needs input, or a final block was sent
+                    }
+                    abortIfTooLarge((long) out.length() + n);
+                    out.append(buf, n);
+                }
+            }
+            failed = false;
+            return out.bytes();
+        } catch (DataFormatException e) {
+            throw new WebSocketException(1007, "Invalid compressed websocket payload");
+        } finally {
+            if (last || failed) {
+                session.inflated(inflater, failed);
+            }
+        }
+    }
+
+    // appended to each message, as sent before sync flushed
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    // inflated into, then copied: the IO thread's
+    private static final ThreadLocal<byte[]> INFLATED = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
     private Frame dataFrame(int opcode, byte[] data) throws ProtocolException {
+        if (compressed) {
+            data = inflate(data, true);
+        }
         switch (opcode) {
             case OPCODE_TEXT:
                 return new Frame.TextFrame(data, decodeUtf8(data, 0, data.length));
@@ -249,16 +381,154 @@ public class WSDecoder {
                 && status != 1006 && status != 1015;
     }
 
-    private static String decodeUtf8(byte[] data, int offset, int length)
-            throws WebSocketException {
-        try {
-            return StandardCharsets.UTF_8.newDecoder()
-                    .onMalformedInput(CodingErrorAction.REPORT)
-                    .onUnmappableCharacter(CodingErrorAction.REPORT)
-                    .decode(ByteBuffer.wrap(data, offset, length)).toString();
-        } catch (CharacterCodingException e) {
+    // a text payload, validated as it is decoded (RFC 3629, as checkUtf8)
+    static String decodeUtf8(byte[] data, int offset, int length) throws WebSocketException {
+        int end = offset + length;
+        int ascii = skipAscii(data, offset, end);
+        if (ascii == end) { // the usual case: copied once, no decoding
+            return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        // validated and decoded in the same pass, the ASCII prefix as is
+        char[] chars = new char[length];
+        int n = 0;
+        for (int i = offset; i < ascii; i++) {
+            chars[n++] = (char) data[i];
+        }
+        int i = ascii;
+        while (i < end) {
+            int c = data[i];
+            if (c >= 0) {
+                chars[n++] = (char) c;
+                i++;
+                continue;
+            }
+            c &= 0xFF;
+            if (c >= 0xC2 && c <= 0xDF && i + 1 < end) {
+                int c1 = data[i + 1];
+                if ((c1 & 0xC0) == 0x80) {
+                    chars[n++] = (char) (((c & 0x1F) << 6) | (c1 & 0x3F));
+                    i += 2;
+                    continue;
+                }
+            } else if (c >= 0xE0 && c <= 0xEF && i + 2 < end) {
+                int c1 = data[i + 1], c2 = data[i + 2];
+                int ch = ((c & 0x0F) << 12) | ((c1 & 0x3F) << 6) | (c2 & 0x3F);
+                if (((c1 & c2) & 0xC0) == 0x80 && ((c1 | c2) & 0x40) == 0 // continuation bytes
+                        && ch >= 0x800 && (ch < 0xD800 || ch > 0xDFFF)) { // not overlong nor a surrogate
+                    chars[n++] = (char) ch;
+                    i += 3;
+                    continue;
+                }
+            } else if (c >= 0xF0 && c <= 0xF4 && i + 3 < end) {
+                int c1 = data[i + 1], c2 = data[i + 2], c3 = data[i + 3];
+                int cp = ((c & 0x07) << 18) | ((c1 & 0x3F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F);
+                if (((c1 & c2 & c3) & 0xC0) == 0x80 && ((c1 | c2 | c3) & 0x40) == 0
+                        && cp >= 0x10000 && cp <= 0x10FFFF) {
+                    chars[n++] = Character.highSurrogate(cp);
+                    chars[n++] = Character.lowSurrogate(cp);
+                    i += 4;
+                    continue;
+                }
+            }
+            throw new WebSocketException(1007, "Invalid UTF-8 websocket payload");
+        }
+        return new String(chars, 0, n);
+    }
+
+    // valid UTF-8, decoded: as ISO-8859-1 if ASCII
+    private static String newString(byte[] data, int offset, int length) {
+        boolean ascii = skipAscii(data, offset, offset + length) == offset + length;
+        return new String(data, offset, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    // the index of the first byte of data[offset, end) that is not ASCII, end if none
+    private static int skipAscii(byte[] data, int offset, int end) {
+        int i = offset;
+        if (end - i >= 8) {
+            ByteBuffer words = ByteBuffer.wrap(data);
+            for (int last = end - 8; i <= last; i += 8) {
+                if ((words.getLong(i) & 0x8080808080808080L) != 0) {
+                    break;
+                }
+            }
+        }
+        while (i < end && data[i] >= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Validates data[offset, end) as UTF-8 (RFC 3629: no overlong forms,
+     * surrogates, or code points above U+10FFFF). Returns end if valid, the
+     * index of a character cut short by end, or ~ the index of an invalid one.
+     */
+    static int checkUtf8(byte[] data, int offset, int end) {
+        int i = offset;
+        while (i < end) {
+            int c = data[i] & 0xFF;
+            if (c < 0x80) {
+                i = skipAscii(data, i, end);
+                continue;
+            }
+            int n; // continuation bytes
+            int min = 0x80, max = 0xBF; // of the second byte
+            if (c >= 0xC2 && c <= 0xDF) {
+                n = 1;
+            } else if (c >= 0xE0 && c <= 0xEF) {
+                n = 2;
+                if (c == 0xE0) {
+                    min = 0xA0; // overlong
+                } else if (c == 0xED) {
+                    max = 0x9F; // surrogates
+                }
+            } else if (c >= 0xF0 && c <= 0xF4) {
+                n = 3;
+                if (c == 0xF0) {
+                    min = 0x90; // overlong
+                } else if (c == 0xF4) {
+                    max = 0x8F; // above U+10FFFF
+                }
+            } else {
+                return ~i;
+            }
+            if (i + 1 >= end) {
+                return i;
+            }
+            int c1 = data[i + 1] & 0xFF;
+            if (c1 < min || c1 > max) {
+                return ~i;
+            }
+            for (int j = 2; j <= n; j++) {
+                if (i + j >= end) {
+                    return i;
+                }
+                if ((data[i + j] & 0xC0) != 0x80) {
+                    return ~i;
+                }
+            }
+            i += n + 1;
+        }
+        return end;
+    }
+
+    // a piece of a text message: characters split across pieces are decoded with the next
+    private String decodeUtf8(byte[] piece, boolean last) throws WebSocketException {
+        byte[] data = piece;
+        if (utf8Left != null) {
+            data = new byte[utf8Left.length + piece.length];
+            System.arraycopy(utf8Left, 0, data, 0, utf8Left.length);
+            System.arraycopy(piece, 0, data, utf8Left.length, piece.length);
+            utf8Left = null;
+        }
+        int valid = checkUtf8(data, 0, data.length);
+        if (valid < 0 || (last && valid < data.length)) {
             throw new WebSocketException(1007, "Invalid UTF-8 websocket payload");
         }
+        if (valid < data.length) {
+            utf8Left = Arrays.copyOfRange(data, valid, data.length);
+        }
+        return newString(data, 0, valid);
     }
 
     public void reset() {
@@ -0,0 +1,129 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A connection's pending writes: ByteBuffers and {@link FileRegion}s, in a ring
+ * buffer. Consecutive buffers are written with one gathering write, up to
+ * {@link #IOV_MAX} of them, through a caller supplied array (the IO loop's), so
+ * writing allocates nothing. Tracks the bytes still to be written.
+ * <p>
+ * Not thread safe: guarded by the owning {@link ServerAtta}.
+ */
+class WriteQueue {
+    // max buffers per writev(2), Linux and macOS
+    static final int IOV_MAX = 1024;
+
+    private Object[] elements = new Object[4]; // power of 2
+    private int head = 0;
+    private int size = 0;
+    private long bytes = 0;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Bytes queued but not yet written, for backpressure */
+    long bytes() {
+        return bytes;
+    }
+
+    void add(ByteBuffer buffer) {
+        bytes += buffer.remaining();
+        push(buffer);
+    }
+
+    void add(FileRegion file) {
+        bytes += file.remaining();
+        push(file);
+    }
+
+    void addAll(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) {
+                add(b);
+            }
+        }
+    }
+
+    private void push(Object e) {
+        if (size == elements.length) {
+            Object[] grown = new Object[elements.length * 2];
+            int firstPart = Math.min(size, elements.length - head);
+            System.arraycopy(elements, head, grown, 0, firstPart);
+            System.arraycopy(elements, 0, grown, firstPart, size - firstPart);
+            elements = grown;
+            head = 0;
+        }
+        elements[(head + size) & (elements.length - 1)] = e;
+        size++;
+    }
+
+    private void poll() {
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+    }
+
+    /**
+     * Writes as much as the channel takes. {@code iov} is scratch space, left
+     * cleared. Returns true once the queue is empty.
+     */
+    boolean writeTo(GatheringByteChannel ch, ByteBuffer[] iov) throws IOException {
+        int mask = elements.length - 1;
+        while (size > 0) {
+            Object first = elements[head];
+            if (first instanceof FileRegion) {
+                FileRegion file = (FileRegion) first;
+                bytes -= file.transferTo(ch);
+                if (file.hasRemaining()) {
+                    return false;
+                }
+                file.close();
+                poll();
+                continue;
+            }
+
+            int n = 0;
+            int max = Math.min(size, iov.length);
+            while (n < max) {
+                Object e = elements[(head + n) & mask];
+                if (!(e instanceof ByteBuffer)) {
+                    break;
+                }
+                iov[n++] = (ByteBuffer) e;
+            }
+            try {
+                bytes -= n == 1 ? ch.write(iov[0]) : ch.write(iov, 0, n);
+                for (int i = 0; i < n; i++) {
+                    if (iov[i].hasRemaining()) {
+                        return false;
+                    }
+                    poll();
+                }
+            } finally {
+                for (int i = 0; i < n; i++) {
+                    iov[i] = null;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** The connection is closed: queued files are not going to be sent */
+    void clear() {
+        while (size > 0) {
+            if (elements[head] instanceof FileRegion) {
+                ((FileRegion) elements[head]).close();
+            }
+            poll();
+        }
+        bytes = 0;
+    }
+}
@@ -1,13 +1,46 @@
 package org.httpkit.server;
 
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class WsAtta extends ServerAtta {
 
     final public WSDecoder decoder;
     int closeStatus;
     String closeReason = "";
 
+    // messages received partially (see AsyncChannel#setPartialReceiveHandler):
+    // the bytes decoded but not yet handled, reading paused above maxBacklog
+    final int maxBacklog;
+    final AtomicLong backlog = new AtomicLong();
+    final AtomicBoolean readPaused = new AtomicBoolean(false);
+
     public WsAtta(AsyncChannel channel, int maxSize) {
         this.decoder = new WSDecoder(maxSize);
         this.channel = channel;
+        this.maxBacklog = maxSize;
+    }
+
+    @Override
+    boolean isReadPaused() {
+        return readPaused.get();
+    }
+
+    /** IO thread: a piece decoded, false if reading is to pause until handled */
+    boolean partialDecoded(int length) {
+        if (backlog.addAndGet(length) <= maxBacklog) {
+            return true;
+        }
+        readPaused.set(true);
+        // the handler may have caught up meanwhile, not seeing the pause
+        return backlog.get() <= maxBacklog / 2 && readPaused.compareAndSet(true, false);
+    }
+
+    /** A piece handled: reading resumed once half the backlog is */
+    void partialHandled(SelectionKey key, int length) {
+        if (backlog.addAndGet(-length) <= maxBacklog / 2 && readPaused.compareAndSet(true, false)) {
+            loop.queue(key, PendingKey.BODY_DRAINED);
+        }
     }
 }
@@ -5,13 +5,16 @@
    [org.httpkit.utils :as utils])
 
   (:import
-   [org.httpkit.server AsyncChannel HttpServer RingHandler ProxyProtocolOption HttpServer$AddressFinder HttpServer$ServerChannelFactory Frame$PingFrame Frame$PongFrame]
+   [org.httpkit.server AsyncChannel HttpServer RingHandler ProxyProtocolOption HttpServer$AddressFinder HttpServer$ServerChannelFactory Frame$PingFrame Frame$PongFrame
+    ConcurrencyLimiter ConcurrencyLimiter$Aimd ConcurrencyLimiter$Gradient ConcurrencyLimiter$Vegas
+    LaneScheduler RingHandler$ShedOldestPolicy AutoScalingExecutor StaticResponse Compression PerMessageDeflate
+    TopicRegistry]
    [org.httpkit.logger ContextLogger EventLogger EventNames]
    [java.net InetSocketAddress]
    [java.nio ByteBuffer]
    [java.nio.channels ServerSocketChannel]
    [java.util Base64]
-   [java.util.concurrent ArrayBlockingQueue ThreadPoolExecutor TimeUnit]
+   [java.util.concurrent ArrayBlockingQueue BlockingQueue ThreadPoolExecutor TimeUnit]
    java.security.MessageDigest))
 
 (set! *warn-on-reflection* true)
@@ -58,25 +61,177 @@
 
   When on JVM 21+, uses `newVirtualThreadPerTaskExecutor` by default.
   Otherwise creates a standard `ThreadPoolExecutor` with default min and max
-  thread count auto-selected based on currently available processor count."
-
-  [{:keys [queue-size n-min-threads n-max-threads prefix allow-virtual?] :as opts}]
-  (utils/new-worker
-    {:default-prefix "http-kit-server-worker-"
-     :default-queue-type :array
-     :default-queue-size (* 1024 20)
-     :n-min-threads-factor  1.0 ; => 8   threads on 8 core system, etc.
-     :n-max-threads-factor 16.0 ; => 128 threads on 8 core system, etc.
-     :keep-alive-msecs 0}
-
-    (assoc opts ; Support old `run-server` opts
-      :n-threads (get opts :n-threads (:thread             opts))
-      :prefix    (get opts :prefix    (:worker-name-prefix opts)))))
+  thread count auto-selected based on currently available processor count.
+
+  With `:autoscale` (true or {:keys [target-wait-ms interval-ms decision-logger]},
+  defaults 20 and 1000), creates an `AutoScalingExecutor` instead: every
+  interval it adds threads while tasks wait longer than the target and
+  throughput improves for it, and removes idle ones, between the min and max
+  thread counts. Each decision is a `run-server` :event-logger event (grow,
+  shrink or hold), and is given with the sample it was made on to
+  `(decision-logger event-name decision)`, eg:
+    \"threads=8->9 move=1 wait=31.2ms utilization=0.97 throughput=410.0/s\".
+  Failures go to the :error-logger."
+
+  [{:keys [queue-size n-min-threads n-max-threads prefix allow-virtual? autoscale] :as opts}]
+  (let [worker
+        (utils/new-worker
+          (merge
+            {:default-prefix "http-kit-server-worker-"
+             :default-queue-type :array
+             :default-queue-size (* 1024 20)
+             :n-min-threads-factor  1.0 ; => 8   threads on 8 core system, etc.
+             :n-max-threads-factor 16.0 ; => 128 threads on 8 core system, etc.
+             :keep-alive-msecs 0}
+            (when autoscale
+              {:new-pool
+               (fn [n-min-threads n-max-threads queue prefix]
+                 (let [{:keys [target-wait-ms interval-ms decision-logger]
+                        :or   {target-wait-ms 20 interval-ms 1000}}
+                       (when (map? autoscale) autoscale)
+                       pool (AutoScalingExecutor. (int n-min-threads) (int n-max-threads)
+                              (long target-wait-ms) (long interval-ms)
+                              ^BlockingQueue queue (str prefix))]
+                   (when decision-logger
+                     (.setDecisionLogger pool
+                       (reify ContextLogger (log [this event decision] (decision-logger event decision)))))
+                   pool))}))
+
+          (cond-> (assoc opts ; Support old `run-server` opts
+                    :n-threads (get opts :n-threads (:thread             opts))
+                    :prefix    (get opts :prefix    (:worker-name-prefix opts)))
+            autoscale (assoc :allow-virtual? false)))]
+
+    (if autoscale
+      (assoc worker :type :autoscaling)
+      worker)))
 
 (comment (new-worker {}))
 
+(defn concurrency-limiter
+  "Returns an adaptive `ConcurrencyLimiter` for `run-server`'s :concurrency-limiter.
+  It caps the requests in flight in the handler, adjusting the limit from their
+  latency (queued time included). Requests over the limit are answered 503 with a
+  Retry-After right away, instead of queueing until they are useless.
+
+  Algorithms:
+    :aimd     - +1 while the limit is used, times `:backoff` (default 0.9) for each
+                request slower than `:latency-threshold-ms` (default 1000).
+    :gradient - shrinks as latency rises over its long term average, beyond
+                `:tolerance` (default 1.5); grows while it holds.
+    :vegas    - keeps the queue estimated from latency over the lowest seen small.
+
+  Options: :initial-limit (default 20), :min-limit (1), :max-limit (1000)."
+  ([algorithm] (concurrency-limiter algorithm {}))
+  ([algorithm {:keys [initial-limit min-limit max-limit latency-threshold-ms backoff tolerance]
+               :or   {initial-limit 20 min-limit 1 max-limit 1000
+                      latency-threshold-ms 1000 backoff 0.9 tolerance 1.5}}]
+   (let [initial (int initial-limit) min (int min-limit) max (int max-limit)]
+     (case algorithm
+       :aimd     (ConcurrencyLimiter$Aimd.     initial min max (long latency-threshold-ms) (double backoff))
+       :gradient (ConcurrencyLimiter$Gradient. initial min max (double tolerance))
+       :vegas    (ConcurrencyLimiter$Vegas.    initial min max)))))
+
+(defn concurrency-limiter-state
+  "Returns {:keys [limit in-flight rejected latency-ms]} of a `ConcurrencyLimiter`,
+  for metrics."
+  [^ConcurrencyLimiter limiter]
+  {:limit      (.getLimit    limiter)
+   :in-flight  (.getInFlight limiter)
+   :rejected   (.getRejected limiter)
+   :latency-ms (/ (.getLatency limiter) 1e6)})
+
 (declare wrap-ring-websocket)
 
+(defn- rules-fn
+  "Returns (fn [ring-req]) -> the `k` of the first rule matching."
+  [k rules]
+  (let [matchers
+        (mapv
+          (fn [{:keys [uri uri-prefix request-method header websocket?] :as rule}]
+            (let [[h-name h-value] header]
+              [(get rule k)
+               (fn [ring-req]
+                 (and
+                   (or (nil? uri)            (= uri (:uri ring-req)))
+                   (or (nil? uri-prefix)     (str/starts-with? (str (:uri ring-req)) uri-prefix))
+                   (or (nil? request-method) (= request-method (:request-method ring-req)))
+                   (or (nil? header)         (= h-value (get-in ring-req [:headers h-name])))
+                   (or (nil? websocket?)     (= websocket? (boolean (:websocket? ring-req))))))]))
+          rules)]
+    (fn [ring-req]
+      (reduce (fn [_ [v match?]] (when (match? ring-req) (reduced v))) nil matchers))))
+
+(defn lane-fn
+  "Returns a `run-server` :lane-fn from rules, the first one matching gives the
+  lane. A rule matches when all its conditions do:
+    {:lane :health :uri \"/health\"}
+    {:lane :batch  :uri-prefix \"/export/\" :request-method :post}
+    {:lane :batch  :header [\"x-priority\" \"low\"]} ; lower case name
+    {:lane :batch  :websocket? true}"
+  [rules] (rules-fn :lane rules))
+
+(defn pool-fn
+  "Returns a `run-server` :pool-fn from rules like `lane-fn`'s, naming a :pool:
+    {:pool :reports :uri-prefix \"/reports/\"}"
+  [rules] (rules-fn :pool rules))
+
+(defn inline-fn
+  "Returns a `run-server` :inline-fn from rules like `lane-fn`'s: requests
+  matching any run inline.
+    [{:uri \"/health\"} {:uri-prefix \"/cached/\" :request-method :get}]"
+  [rules] (rules-fn ::inline? (mapv #(assoc % ::inline? true) rules)))
+
+(defn- bulkhead-pool
+  "Returns the ExecutorService of a `run-server` :pools value."
+  [pool-name spec]
+  (if (instance? java.util.concurrent.ExecutorService spec)
+    spec
+    (let [{:keys [rejection] :or {rejection :abort}} spec
+          pool
+          (:pool
+           (new-worker
+             (merge {:allow-virtual? false ; bounded: isolated
+                     :prefix (str "http-kit-server-" (name pool-name) "-")}
+               spec)))]
+      (when (and (= rejection :shed-oldest) (instance? ThreadPoolExecutor pool))
+        (.setRejectedExecutionHandler ^ThreadPoolExecutor pool (RingHandler$ShedOldestPolicy.)))
+      pool)))
+
+(defn lane-stats
+  "Returns {<lane-name> {:keys [depth dispatched rejected mean-wait-ms max-wait-ms]}}
+  of the HttpServer's :lanes, or nil if none."
+  [^HttpServer http-server]
+  (let [h (.getHandler http-server)]
+    (when-let [^LaneScheduler lanes (and (instance? RingHandler h) (.getLanes ^RingHandler h))]
+      (reduce-kv
+        (fn [m lane stats] (assoc m lane (reduce-kv (fn [m k v] (assoc m (keyword k) v)) {} stats)))
+        {} (into {} (.getStats lanes))))))
+
+(defn remaining-ms
+  "Returns the ms left before the Ring request's :deadline (< 0 once passed),
+  see `run-server`'s :request-deadline-ms and :deadline-header, or nil if it
+  has none. Eg: as the :timeout of the client requests made to answer it."
+  [ring-req]
+  (when-let [deadline (:deadline ring-req)]
+    (quot (- (long deadline) (System/nanoTime)) 1000000)))
+
+(defn static-response
+  "Returns the Ring response map encoded once, to be returned by handlers (or
+  `send!`) as is, for responses that are the same for every request: health
+  checks, robots.txt, etc. Each is written from the same buffers, with the
+  Connection header set per request, as for maps, and Server and Date added.
+  The body is read now: String, byte[], File, InputStream or seq of those.
+
+    (def health (static-response {:status 200 :body \"ok\"}))
+    (defn handler [req] (if (= (:uri req) \"/health\") health (app req)))
+
+  Handlers may also return a response they encoded, as a ByteBuffer[]:
+  written as is, the connection closed after unless HTTP/1.1 keeps it
+  alive."
+  ^StaticResponse [ring-resp]
+  (StaticResponse/compile ring-resp))
+
 (defn run-server
   "Starts a mostly[1] Ring-compatible HttpServer with options:
 
@@ -89,10 +244,108 @@
 
     :max-body                   ; Max HTTP body size in bytes (default: 8MB)
     :max-ws                     ; Max WebSocket message size in bytes (default: 4MB)
+    :ws-deflate                 ; Agrees on permessage-deflate with the WebSocket clients offering
+                                ; it: messages of :min-size bytes or more (default 64) compressed
+                                ; both ways. true, or {:min-size :level
+                                ;  :server-no-context-takeover? :client-no-context-takeover?
+                                ;  :client-max-window-bits}. Context takeover (default) keeps
+                                ; ~300KB of native memory per connection for the best ratio, a
+                                ; no-context-takeover? side borrows it per message instead.
+                                ; Default nil: declined.
     :max-line                   ; Max HTTP header line size in bytes (default: 8KB)
 
     :proxy-protocol             ; Proxy protocol e/o #{:disable :enable :optional}
 
+    :io-threads                 ; Number of selector loops doing socket reads, request decoding
+                                ; and deferred writes (default: 1). When > 1, a dedicated acceptor
+                                ; thread hands new connections to the loops.
+    :io-balance                 ; How new connections are spread over loops when :io-threads > 1,
+                                ; e/o #{:round-robin :least-loaded} (default :round-robin)
+    :reuse-port?                ; When true and :io-threads > 1, each loop binds its own listening
+                                ; socket with SO_REUSEPORT and the kernel spreads connections
+                                ; (Java 9+, IP addresses only). Default false.
+
+    :ssl-context                ; `javax.net.ssl.SSLContext` to serve HTTPS, terminating TLS in the
+                                ; IO loops. Sessions are cached by the context and can be resumed.
+    :ssl-handshake-pool         ; `java.util.concurrent.ExecutorService` running the SSLEngine's
+                                ; delegated handshake tasks off the IO loops. Defaults to a small
+                                ; pool owned by the server.
+    :http2?                     ; When true, also serves HTTP/2: negotiated with ALPN over TLS
+                                ; (Java 9+), else by prior knowledge or `Upgrade: h2c`. The
+                                ; streams of a connection are handled concurrently. Default false.
+    :http2-max-streams          ; Max concurrent HTTP/2 streams per connection (default 100)
+    :pipeline-depth             ; Max pipelined HTTP/1.1 requests of a connection handled
+                                ; concurrently on the worker pool. Responses are still written
+                                ; in request order. Default 1: one at a time.
+    :stream-request-body?       ; When true, HTTP/1 requests are handled as soon as their headers
+                                ; are read, `:body` being an InputStream fed as the body arrives.
+                                ; Reading the connection pauses while the handler is behind, so
+                                ; :max-body no longer costs heap. Default false.
+    :body-spill-threshold       ; Request bodies larger than this many bytes are written to a
+                                ; temporary file instead of the heap, `:body` being a
+                                ; `org.httpkit.server.SpilledBody` (an InputStream, `.map` for a
+                                ; MappedByteBuffer). The file is deleted once the response is
+                                ; complete. Default 0: disabled.
+    :write-high-watermark       ; Bytes queued for a slow client past which its channel is no longer
+                                ; `writable?` (default 64KB)
+    :write-low-watermark        ; Bytes queued below which it is `writable?` again, calling the
+                                ; `on-writable` handler (default 32KB)
+    :header-timeout-ms          ; Closes connections not sending a request's headers within this
+                                ; many ms of its first byte (of the connection for the first
+                                ; one, including the TLS handshake). Default 0: none.
+    :body-timeout-ms            ; Closes connections sending no request body bytes for this long
+                                ; while the server is reading the body. Default 0: none.
+    :keep-alive-timeout-ms      ; Closes connections idle between requests for this long.
+                                ; Default 0: none.
+    :ws-idle-timeout-ms         ; Closes WebSockets receiving no frames for this long. Default 0: none.
+    :concurrency-limiter        ; Adaptive limit of requests in flight, e/o #{:aimd :gradient :vegas}
+                                ; or a `ConcurrencyLimiter`, see `concurrency-limiter`. Requests
+                                ; over it get a 503 and Retry-After. Default nil: only the
+                                ; worker pool's queue limits.
+    :lanes                      ; Priority lanes queueing requests for a worker, eg:
+                                ;   [{:name :health :strict? true}  ; always first
+                                ;    {:name :api    :weight 8}      ; 8 of 9 workers freeing up
+                                ;    {:name :batch  :weight 1 :queue-size 100}]
+                                ; Weighted fair queuing between the lanes not :strict?, the
+                                ; first one is the default. :queue-size defaults to 20480.
+                                ; See `lane-stats`. Default nil: one FIFO queue.
+    :lane-fn                    ; (fn [ring-req]) -> lane name, called on the IO thread, or
+                                ; rules, see `lane-fn`. Default nil: the default lane.
+    :lane-parallelism           ; Requests handed to the worker pool at once. Default: its max
+                                ; threads if a `ThreadPoolExecutor`, else 16 per core.
+    :pools                      ; Bulkheads: named pools isolating classes of requests, eg:
+                                ;   {:reports {:n-threads 4 :queue-size 100 :rejection :shed-oldest}}
+                                ; An ExecutorService, or `new-worker` opts (threads, not virtual,
+                                ; by default) plus :rejection e/o #{:abort :shed-oldest}: past the
+                                ; queue size, a 503 to the new request (default) or the oldest one.
+    :pool-fn                    ; (fn [ring-req]) -> pool name, called on the IO thread, or rules,
+                                ; see `pool-fn`. Default nil, and unknown names: the :worker-pool.
+    :ws-pool                    ; Pool running WebSocket message handlers, like a :pools value.
+                                ; Default nil: the :worker-pool.
+    :inline-fn                  ; (fn [ring-req]) -> truthy to run the handler on the IO thread, or
+                                ; rules, see `inline-fn`. For trivial non-blocking handlers
+                                ; (health checks, cached or static responses): no hop to the
+                                ; worker pool, answering even when it is saturated, but the
+                                ; loop's other connections wait meanwhile. A handler with
+                                ; {:inline? true} meta runs all its requests inline.
+                                ; Default nil: none.
+    :inline-budget-ms           ; Inline handlers running longer are logged with the IO thread's
+                                ; stack trace. Default 10, 0: not watched.
+    :queue-target-ms            ; Sheds requests with a 503, without running the handler, when
+                                ; queued for a worker more than twice this long while none got
+                                ; one within it for :queue-interval-ms (default 100). CoDel.
+                                ; Default 0: none.
+    :request-deadline-ms        ; Deadline of requests, see `remaining-ms`: still queued for a
+                                ; worker by then, they get a 503. Default 0: none.
+    :deadline-header            ; Name of a request header with a shorter deadline, in ms, eg:
+                                ; \"x-request-timeout-ms\". Default nil: none.
+    :compression                ; Compresses responses with gzip or deflate as the request's
+                                ; Accept-Encoding allows: true, or {:min-size 1024 :level 6}.
+                                ; Textual Content-Types only (text, json, xml...), bodies of
+                                ; :min-size bytes or more, streamed ones flushed at each `send!`.
+                                ; Done on the worker threads: not for :inline-fn requests, nor
+                                ; files sent with sendfile. Default nil: none.
+
     :server-header              ; The \"Server\" header, disabled if nil. Default: \"http-kit\".
 
     :legacy-unsafe-remote-addr? ; If true (default), populates :remote-addr from
@@ -123,14 +376,23 @@
   The server also supports the following JVM properties:
 
      `org.http-kit.memmap-file-threshold`
-       Files above this size (in MB) are mapped into memory for efficiency when served.
-       Memory mapping could result to file locking. Defaults to 20 (MB).
+       Files above this size (in MB) are mapped into memory for efficiency when served
+       over TLS or HTTP/2. Memory mapping could result to file locking. Defaults to 20 (MB).
+       Over cleartext HTTP/1, `java.io.File`, `java.nio.file.Path` and
+       `java.nio.channels.FileChannel` bodies are sent with `FileChannel.transferTo`
+       (sendfile), without being read into memory.
 
   [1] Ref. http://http-kit.org/migration.html for differences."
 
   [handler
    & [{:keys [ip port max-body max-ws max-line
-              proxy-protocol worker-pool
+              proxy-protocol worker-pool io-threads io-balance reuse-port?
+              ws-deflate ssl-context ssl-handshake-pool http2? http2-max-streams pipeline-depth
+              stream-request-body? body-spill-threshold write-low-watermark write-high-watermark
+              header-timeout-ms body-timeout-ms keep-alive-timeout-ms ws-idle-timeout-ms
+              concurrency-limiter queue-target-ms queue-interval-ms
+              request-deadline-ms deadline-header compression lanes lane-fn lane-parallelism
+              pools pool-fn ws-pool inline-fn inline-budget-ms
               error-logger warn-logger event-logger event-names
               legacy-return-value? legacy-unsafe-remote-addr? legacy-content-length?
               server-header address-finder
@@ -142,6 +404,24 @@
               max-ws     4194304
               max-line   8192
               proxy-protocol :disable
+              io-threads 1
+              io-balance :round-robin
+              reuse-port? false
+              http2?     false
+              http2-max-streams 100
+              pipeline-depth 1
+              stream-request-body? false
+              body-spill-threshold 0
+              write-low-watermark  32768
+              write-high-watermark 65536
+              header-timeout-ms     0
+              body-timeout-ms       0
+              keep-alive-timeout-ms 0
+              ws-idle-timeout-ms    0
+              inline-budget-ms      10
+              queue-target-ms       0
+              queue-interval-ms     100
+              request-deadline-ms   0
               legacy-return-value? true
               legacy-unsafe-remote-addr? true
               server-header "http-kit"
@@ -174,13 +454,65 @@
               (format "Invalid event-names: (%s) %s"
                 (class event-names) (pr-str event-names)))))
 
-        worker-pool (or (force worker-pool) (:pool (new-worker (get opts :pool-opts opts))))
+        set-loggers! ; of an autoscaling pool
+        (fn [pool]
+          (when (instance? AutoScalingExecutor pool)
+            (doto ^AutoScalingExecutor pool
+              (.setEventLogger evt-logger evt-names)
+              (.setErrorLogger err-logger)))
+          pool)
+
+        worker-pool (set-loggers! (or (force worker-pool) (:pool (new-worker (get opts :pool-opts opts)))))
 
-        ^org.httpkit.server.IHandler h
+        ^RingHandler h
         (RingHandler.
          (wrap-ring-websocket handler) ring-async? worker-pool
          err-logger evt-logger evt-names server-header legacy-content-length?)
 
+        _ (when concurrency-limiter
+            (.setConcurrencyLimiter h
+              (if (keyword? concurrency-limiter)
+                (org.httpkit.server/concurrency-limiter concurrency-limiter)
+                concurrency-limiter)))
+        _ (.setQueueTarget h queue-target-ms queue-interval-ms)
+        _ (.setDeadline    h request-deadline-ms deadline-header)
+        _ (when compression
+            (.setCompression h
+              (if (map? compression)
+                (let [{:keys [min-size level] :or {min-size 1024 level -1}} compression]
+                  (Compression. (int min-size) (int level)))
+                (Compression.))))
+
+        _ (when lanes
+            (let [parallelism
+                  (or lane-parallelism
+                    (cond
+                      (instance? AutoScalingExecutor worker-pool) ; may grow to it
+                      (.getMaxThreads ^AutoScalingExecutor worker-pool)
+                      (instance? ThreadPoolExecutor worker-pool)
+                      (.getMaximumPoolSize ^ThreadPoolExecutor worker-pool)
+                      :else (* 16 (.availableProcessors (Runtime/getRuntime)))))
+                  scheduler (LaneScheduler. worker-pool (int parallelism))]
+              (doseq [{:keys [name weight strict? queue-size] :or {weight 1 queue-size 20480}} lanes]
+                (.addLane scheduler name (int weight) (boolean strict?) (int queue-size)))
+              (.setLanes h scheduler
+                (if (or (nil? lane-fn) (fn? lane-fn)) lane-fn (org.httpkit.server/lane-fn lane-fn)))))
+
+        _ (when pools
+            (.setPools h
+              (reduce-kv (fn [m k spec] (assoc m k (set-loggers! (bulkhead-pool k spec)))) {} pools)
+              (if (or (nil? pool-fn) (fn? pool-fn)) pool-fn (org.httpkit.server/pool-fn pool-fn))))
+        _ (when ws-pool
+            (.setWebSocketPool h (set-loggers! (bulkhead-pool :ws ws-pool))))
+
+        inline-fn
+        (cond
+          (fn? inline-fn) inline-fn
+          inline-fn       (org.httpkit.server/inline-fn inline-fn)
+          (:inline? (meta handler)) (fn [_] true))
+        _ (when inline-fn
+            (.setInline h inline-fn inline-budget-ms))
+
         ^ProxyProtocolOption proxy-enum
         (case proxy-protocol
           :enable   ProxyProtocolOption/ENABLED
@@ -203,7 +535,32 @@
                        err-logger
                        warn-logger
                        evt-logger
-                       evt-names)]
+                       evt-names
+                       (int io-threads)
+                       (boolean reuse-port?)
+                       (case io-balance
+                         :round-robin  false
+                         :least-loaded true))]
+    (when ssl-context
+      (.setSslContext s ssl-context ssl-handshake-pool))
+    (when http2?
+      (.setHttp2 s true (int http2-max-streams)))
+    (when ws-deflate
+      (.setWebSocketDeflate s
+        (if (map? ws-deflate)
+          (let [{:keys [min-size level server-no-context-takeover? client-no-context-takeover?
+                        client-max-window-bits]
+                 :or   {min-size 64 level -1 client-max-window-bits 15}} ws-deflate]
+            (PerMessageDeflate. (boolean server-no-context-takeover?)
+              (boolean client-no-context-takeover?) (int client-max-window-bits)
+              (int level) (int min-size)))
+          (PerMessageDeflate.))))
+    (.setPipelineDepth s (int pipeline-depth))
+    (.setStreamRequestBody s (boolean stream-request-body?))
+    (.setBodySpillThreshold s (int body-spill-threshold))
+    (.setWriteWatermarks s (int write-low-watermark) (int write-high-watermark))
+    (.setTimeouts s (int header-timeout-ms) (int body-timeout-ms)
+                    (int keep-alive-timeout-ms) (int ws-idle-timeout-ms))
     (.start s)
 
     (if-not legacy-return-value?
@@ -269,7 +626,9 @@
      "Sec-WebSocket-Accept" sec-ws-accept}))
 
 (defn send-websocket-handshake!
-  "Returns true iff successfully upgraded a valid WebSocket request."
+  "Returns true iff successfully upgraded a valid WebSocket request.
+  permessage-deflate is agreed on as the client offers, see `run-server`'s
+  :ws-deflate."
   [^AsyncChannel ch ring-req]
   (when-let [sec-ws-accept (websocket-handshake-check ring-req)]
     (send-checked-websocket-handshake! ch sec-ws-accept)
@@ -295,7 +654,8 @@
     When unspecified, `close-after-send?` defaults to true for HTTP channels
     and false for WebSocket.
 
-    Data form: {:headers _ :status _ :body _} or just body. Note that :headers
+    Data form: {:headers _ :status _ :body _} or just body, or a
+    `static-response` (sent whole, as with `close-after-send?`). Note that :headers
     and :status will be stripped for WebSocket and for HTTP streaming responses
     after the first.
 
@@ -324,7 +684,22 @@
       :going-away     : WebSocket closed by client (CLOSE_GOING_AWAY)
       :protocol-error : WebSocket closed by client (CLOSE_PROTOCOL_ERROR)
       :unsupported    : WebSocket closed by client (CLOSE_UNSUPPORTED)
-      :unknown        : WebSocket closed by client (unknown reason)"))
+      :unknown        : WebSocket closed by client (unknown reason)")
+
+  (queued-bytes [ch]
+    "Returns the number of bytes sent but not yet taken by the client's socket,
+    held on the heap meanwhile.")
+
+  (writable? [ch]
+    "Returns false once the bytes queued for the client go above the server's
+    :write-high-watermark, until they drain below :write-low-watermark.
+    `send!` still queues: producers should stop sending and wait for
+    `on-writable`.")
+
+  (on-writable [ch callback]
+    "Sets handler (fn []) for notification of the channel becoming writable
+    again, see `writable?`. Useful to pace HTTP streaming and WebSocket
+    producers to slow clients."))
 
 (extend-type AsyncChannel
   Channel
@@ -340,7 +715,47 @@
   (on-ping    [ch callback] (.setPingHandler    ch
                               (fn callback* [data]
                                 (.send ch (Frame$PongFrame. data) false)
-                                (callback data)))))
+                                (callback data))))
+
+  (queued-bytes [ch]          (.getQueuedBytes     ch))
+  (writable?    [ch]          (.isWritable         ch))
+  (on-writable  [ch callback] (.setWritableHandler ch callback)))
+
+;;;; Topics
+
+(defn topic-registry
+  "Returns a new registry of topics: groups of WebSocket channels, by name,
+  sent the same messages with `broadcast!`. Eg: chat rooms, feeds.
+
+    (def topics (topic-registry))
+    (defn handler [ring-req]
+      (as-channel ring-req
+        {:on-open  (fn [ch] (subscribe! topics :room-1 ch))
+         :on-close (fn [ch _] (unsubscribe! topics :room-1 ch))}))
+    (broadcast! topics :room-1 \"hello\")"
+  ^TopicRegistry []
+  (TopicRegistry.))
+
+(defn subscribe!
+  "Adds the channel to the named topic, created if none. Returns true if it
+  was not a member already."
+  [^TopicRegistry registry topic ^AsyncChannel ch]
+  (.subscribe registry topic ch))
+
+(defn unsubscribe!
+  "Removes the channel from the named topic. Returns true if it was a member.
+  Closed channels are also dropped by the next `broadcast!`."
+  [^TopicRegistry registry topic ^AsyncChannel ch]
+  (.unsubscribe registry topic ch))
+
+(defn broadcast!
+  "Sends data, a String (text message) or byte[] (binary), to the WebSocket
+  channels of the named topic. Its frame is encoded once and the same bytes
+  queued to each connection, without taking the channels' locks: only those
+  compressing with context takeover (see `run-server`'s :ws-deflate) encode
+  their own. Returns the number of channels sent to."
+  [^TopicRegistry registry topic data]
+  (.broadcast registry topic data))
 
 (defmacro with-channel
   "DEPRECATED: this macro has potential race conditions, Ref. #318.
@@ -371,9 +786,16 @@
   Main options:
     :init       - (fn [ch])             for misc pre-handshake setup.
     :on-receive - (fn [ch message])     called for client WebSocket messages.
+    :on-receive-partial - (fn [ch data final?]) called instead with each piece
+                  of the client's WebSocket messages as read, in order: a String
+                  for text, byte[] for binary, `final?` true for the last one.
+                  Messages can then be larger than :max-ws, which bounds each
+                  piece and those received but not yet handled: reading waits
+                  for the handler to catch up. Eg: to stream uploads to disk.
     :on-ping    - (fn [ch data])        called for client WebSocket pings.
     :on-close   - (fn [ch status-code]) called when AsyncChannel is closed.
     :on-open    - (fn [ch])             called when AsyncChannel is ready for `send!`, etc.
+    :on-writable - (fn [ch])            called when AsyncChannel is `writable?` again.
 
   See `Channel` protocol for more info on handlers and `AsyncChannel`s.
   See `org.httpkit.timer` ns for optional timeout utils.
@@ -405,18 +827,21 @@
            :on-close   (fn [ch status-code] (println \"on-close:\"   status-code))
            :on-open    (fn [ch]             (println \"on-open:\"    ch))})))"
 
-  [ring-req {:keys [on-receive on-ping on-close on-open init on-handshake-error]
+  [ring-req {:keys [on-receive on-receive-partial on-ping on-close on-open on-writable init
+                    on-handshake-error]
              :or   {on-handshake-error (fn [ch] (send! ch bad-ring-websocket-resp true))}}]
 
   (when-let [ch (:async-channel ring-req)]
 
     (when-let [f init]     (f ch))
     (when-let [f on-close] (org.httpkit.server/on-close ch (partial f ch)))
+    (when-let [f on-writable] (org.httpkit.server/on-writable ch (partial f ch)))
 
     (if (:websocket? ring-req)
       (if-let [sec-ws-accept (websocket-handshake-check ring-req)]
         (do
           (when-let [f on-receive] (org.httpkit.server/on-receive ch (partial f ch)))
+          (when-let [f on-receive-partial] (.setPartialReceiveHandler ^AsyncChannel ch (partial f ch)))
           (when-let [f on-ping]    (org.httpkit.server/on-ping    ch (partial f ch)))
           (send-checked-websocket-handshake! ch sec-ws-accept)
           (when-let [f on-open] (f ch)))
@@ -50,7 +50,7 @@
   [{:as   _internal-opts
     :keys [default-queue-type default-queue-size default-prefix
            n-min-threads-factor n-max-threads-factor
-           keep-alive-msecs]
+           keep-alive-msecs new-pool]
     :or
     {default-queue-type :array
      default-prefix "http-kit-worker-"
@@ -99,10 +99,12 @@
          :queue-size    queue-size
          :queue         queue
          :pool
-         (ThreadPoolExecutor.
-           (int n-min-threads)
-           (int n-max-threads)
-           (int keep-alive-msecs) TimeUnit/MILLISECONDS
-           ^BlockingQueue queue factory)}))))
+         (if new-pool ; (fn [n-min-threads n-max-threads queue prefix]) -> ExecutorService
+           (new-pool n-min-threads n-max-threads queue (or prefix default-prefix))
+           (ThreadPoolExecutor.
+             (int n-min-threads)
+             (int n-max-threads)
+             (int keep-alive-msecs) TimeUnit/MILLISECONDS
+             ^BlockingQueue queue factory))}))))
 
 (comment (new-worker {} {}))
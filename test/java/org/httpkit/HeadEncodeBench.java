@@ -0,0 +1,89 @@
+package org.httpkit;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The head of a typical Ring response, from its header map to bytes: the
+ * previous encoder, camelCasing and validating every name and formatting
+ * Content-Length as a String into a new DynamicBytes, against
+ * {@link HttpUtils#HttpEncode}. In responses per second on one thread, and
+ * bytes allocated per response.
+ * <p>
+ * Usage: HeadEncodeBench [seconds]
+ */
+public class HeadEncodeBench {
+
+    static final byte[] BODY = "{\"id\":42,\"name\":\"http-kit\"}".getBytes();
+
+    // the previous HttpUtils.encodeHead, Content-Length set as it did
+    static ByteBuffer previousEncode(int status, Map<String, Object> ring, String serverHeader) {
+        HeaderMap headers = new HeaderMap();
+        for (Map.Entry<String, Object> e : ring.entrySet()) {
+            headers.put(HttpUtils.camelCase(e.getKey()), e.getValue());
+        }
+        headers.remove(HttpUtils.CONTENT_LENGTH);
+        headers.put(HttpUtils.CONTENT_LENGTH, Integer.toString(BODY.length));
+        if (serverHeader != null && !headers.containsKey("Server")) {
+            headers.put("Server", serverHeader);
+        }
+        if (!headers.containsKey("Date")) {
+            headers.put("Date", DateFormatter.getDate());
+        }
+        DynamicBytes bytes = new DynamicBytes(196);
+        byte[] bs = HttpStatus.valueOf(status).getInitialLineBytes();
+        bytes.append(bs, bs.length);
+        headers.encodeHeaders(bytes);
+        return ByteBuffer.wrap(bytes.get(), 0, bytes.length());
+    }
+
+    static ByteBuffer encode(int status, Map<String, Object> ring, String serverHeader) {
+        HeaderMap headers = HeaderMap.camelCase(ring);
+        return HttpUtils.HttpEncode(status, headers, BODY, serverHeader)[0];
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static Object sink;
+
+    static void run(Map<String, Object> ring, boolean previous, int seconds, boolean print) {
+        long probe = allocated();
+        long overhead = allocated() - probe; // of the measurement itself
+        long responses = 0;
+        long allocated = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            long before = allocated();
+            for (int i = 0; i < 1000; i++) {
+                sink = previous ? previousEncode(200, ring, "http-kit") : encode(200, ring, "http-kit");
+            }
+            allocated += allocated() - before - overhead;
+            responses += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-9s %12.0f responses/s %8.1f bytes/response%n",
+                previous ? "previous" : "encoder", responses * 1e9 / elapsed,
+                (double) allocated / responses);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Map<String, Object> ring = new TreeMap<String, Object>();
+        ring.put("content-type", "application/json; charset=utf-8");
+        ring.put("cache-control", "no-cache");
+        ring.put("x-request-id", "4f9a1c2e-7b3d-4e8f-9a0b-1c2d3e4f5a6b");
+
+        run(ring, true, 2, false); // warm up
+        run(ring, false, 2, false);
+        run(ring, true, seconds, true);
+        run(ring, false, seconds, true);
+    }
+}
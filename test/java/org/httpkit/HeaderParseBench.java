@@ -0,0 +1,97 @@
+package org.httpkit;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The headers of a typical browser request, parsed line by line as the
+ * decoders do: a String per line split into a TreeMap, as before, against the
+ * bytes of the line added to a {@link HeaderTable}. In ns and bytes allocated
+ * per request.
+ * <p>
+ * Usage: HeaderParseBench [seconds]
+ */
+public class HeaderParseBench {
+
+    static final byte[] HEADERS = (
+        "Host: example.com\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+        + "Accept: */*\r\n"
+        + "Accept-Language: en-US,en;q=0.9\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Referer: https://example.com/items\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Origin: https://example.com\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cookie: session=0123456789abcdef\r\n"
+        + "Sec-Fetch-Dest: empty\r\n"
+        + "Sec-Fetch-Mode: cors\r\n"
+        + "Sec-Fetch-Site: same-origin\r\n"
+        + "Priority: u=0\r\n"
+        + "Pragma: no-cache\r\n"
+        + "Cache-Control: no-cache\r\n\r\n").getBytes();
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static Map<String, Object> parseStrings(LineReader reader, ByteBuffer buffer) throws Exception {
+        Map<String, Object> headers = new TreeMap<String, Object>();
+        String line = reader.readLine(buffer);
+        while (!line.isEmpty()) {
+            HttpUtils.splitAndAddHeader(line, headers);
+            line = reader.readLine(buffer);
+        }
+        return headers;
+    }
+
+    static Map<String, Object> parseBytes(LineReader reader, ByteBuffer buffer) throws Exception {
+        HeaderTable headers = new HeaderTable();
+        int length = reader.readLineBytes(buffer);
+        while (length > 0) {
+            HttpUtils.splitAndAddHeader(reader.lineBytes(), length, headers);
+            length = reader.readLineBytes(buffer);
+        }
+        return headers;
+    }
+
+    static Object sink;
+
+    static void run(boolean bytes, int seconds, boolean print) throws Exception {
+        LineReader reader = new LineReader(8192);
+        ByteBuffer buffer = ByteBuffer.wrap(HEADERS);
+        long probe = allocated();
+        long overhead = allocated() - probe; // of the measurement itself
+        long requests = 0;
+        long allocated = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            long before = allocated();
+            for (int i = 0; i < 1000; i++) {
+                buffer.clear();
+                Map<String, Object> headers = bytes ? parseBytes(reader, buffer) : parseStrings(reader, buffer);
+                sink = headers.get("content-type");
+            }
+            allocated += allocated() - before - overhead;
+            requests += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-12s %8.1f ns/request %8.1f bytes/request%n",
+                bytes ? "HeaderTable" : "TreeMap", (double) elapsed / requests,
+                (double) allocated / requests);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        run(false, 2, false); // warm up
+        run(true, 2, false);
+        run(false, seconds, true);
+        run(true, seconds, true);
+    }
+}
@@ -0,0 +1,105 @@
+package org.httpkit;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderTableTest {
+
+    private static void add(HeaderTable headers, String line) throws ProtocolException {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        HttpUtils.splitAndAddHeader(bytes, bytes.length, headers);
+    }
+
+    @Test
+    public void parsesLikeTheStringParser() throws ProtocolException {
+        String[] lines = {"Host: example.com", "Content-Type:\ttext/html; charset=utf-8 ",
+            "X-Custom-Header: a", "x-custom-header: b", "Set-Cookie: a=1", "SET-COOKIE: b=2",
+            "Accept-Encoding: gzip, deflate, br", "X-Empty:", "Connection: keep-alive"};
+        HeaderTable table = new HeaderTable();
+        Map<String, Object> tree = new TreeMap<String, Object>();
+        for (String line : lines) {
+            add(table, line);
+            HttpUtils.splitAndAddHeader(line, tree);
+        }
+        assertEquals(tree, table);
+        assertEquals(tree, new TreeMap<String, Object>(table));
+        assertEquals("a\nb", table.get("x-custom-header"));
+        assertEquals("", table.get("x-empty"));
+        assertEquals("example.com", table.get("HOST")); // ignoring case
+
+        Iterator<String> names = table.keySet().iterator(); // in the order received
+        assertEquals("host", names.next());
+        assertEquals("content-type", names.next());
+    }
+
+    @Test
+    public void internsKnownNamesAndValues() throws ProtocolException {
+        HeaderTable a = new HeaderTable();
+        HeaderTable b = new HeaderTable();
+        add(a, "Accept-Encoding: gzip, deflate, br");
+        add(b, "accept-encoding: gzip, deflate, br");
+        assertSame(a.keySet().iterator().next(), b.keySet().iterator().next());
+        assertSame(a.get("accept-encoding"), b.get("accept-encoding"));
+
+        add(a, "X-Unknown: Gzip");
+        add(b, "X-Unknown: Gzip");
+        assertEquals(a.get("x-unknown"), b.get("x-unknown"));
+        assertFalse(a.get("x-unknown") == b.get("x-unknown"));
+    }
+
+    @Test
+    public void growsAndRemoves() throws ProtocolException {
+        HeaderTable headers = new HeaderTable();
+        for (int i = 0; i < 100; i++) {
+            add(headers, "X-Header-" + i + ": " + i);
+        }
+        assertEquals(100, headers.size());
+        assertEquals("42", headers.get("x-header-42"));
+
+        assertEquals("42", headers.remove("X-Header-42"));
+        assertNull(headers.get("x-header-42"));
+        assertEquals("43", headers.get("x-header-43"));
+        assertEquals(99, headers.size());
+
+        headers.put("x-forwarded-for", "10.0.0.1");
+        assertTrue(headers.containsKey("x-forwarded-for"));
+        headers.clear();
+        assertTrue(headers.isEmpty());
+        assertNull(headers.get("x-header-1"));
+    }
+
+    @Test
+    public void foldsTheCaseOfLettersOnly() throws ProtocolException {
+        HeaderTable headers = new HeaderTable();
+        add(headers, "X~: 1");
+        add(headers, "X^: 2"); // '^' | 0x20 is '~'
+        assertEquals(2, headers.size());
+        assertEquals("1", headers.get("x~"));
+        assertEquals("2", headers.get("x^"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsInvalidNames() throws ProtocolException {
+        add(new HeaderTable(), "Bad Header: value");
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsControlCharactersInValues() throws ProtocolException {
+        add(new HeaderTable(), "X-Test: a\u0001b");
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsLinesWithoutAName() throws ProtocolException {
+        add(new HeaderTable(), ": value");
+    }
+}
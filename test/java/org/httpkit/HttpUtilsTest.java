@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import static org.httpkit.HttpUtils.HttpEncode;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class HttpUtilsTest {
@@ -79,4 +80,33 @@ public class HttpUtilsTest {
         assertTrue(response.toString().startsWith("HTTP/1.1 500 "));
         assertTrue(response.toString().endsWith("I/O error encoding response"));
     }
+
+    @Test
+    public void encodesResponseHeads() {
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/html; charset=utf-8");
+        headers.put("Set-Cookie", clojure.lang.PersistentVector.create("a=1", "b=2"));
+        headers.put("X-Count", 1234567890123L);
+        headers.put("Content-Disposition", "attachment; filename=\"r\u00e9sum\u00e9.txt\"");
+        ByteBuffer head = HttpEncode(201, headers, "hello", "http-kit")[0];
+        String response = StandardCharsets.UTF_8.decode(head.duplicate()).toString();
+        String date = response.substring(response.indexOf("Date: "));
+
+        assertEquals("HTTP/1.1 201 Created\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "Set-Cookie: a=1\r\n"
+                + "Set-Cookie: b=2\r\n"
+                + "X-Count: 1234567890123\r\n"
+                + "Content-Disposition: attachment; filename=\"r\u00e9sum\u00e9.txt\"\r\n"
+                + "content-length: 5\r\n"
+                + "Server: http-kit\r\n"
+                + date, response);
+        assertTrue(date.matches("Date: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n\r\n"));
+        assertEquals(head.remaining(), head.array().length); // not the encoder's buffer
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInjectedServerHeaders() {
+        HttpEncode(200, new HeaderMap(), "body", "http-kit\r\nInjected: yes");
+    }
 }
@@ -0,0 +1,111 @@
+package org.httpkit.server;
+
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AutoScalingExecutorTest {
+
+    @Test
+    public void growsWhileTasksWaitAndShrinksWhenIdle() throws Exception {
+        final List<String> events = new Vector<String>();
+        // adjusted by hand
+        AutoScalingExecutor pool = new AutoScalingExecutor(1, 8, 5, 3600000,
+            new LinkedBlockingQueue<Runnable>(), "autoscaling-test-");
+        pool.setEventLogger(new EventLogger<String>() {
+            public void log(String event) {
+                events.add(event);
+            }
+        }, EventNames.DEFAULT);
+
+        for (int i = 0; i < 100; i++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        Thread.sleep(100);
+        pool.adjust(); // waiting, busy: grows
+        assertEquals(2, pool.getCorePoolSize());
+        Thread.sleep(100);
+        pool.adjust(); // and the throughput improved: grows again
+        assertEquals(3, pool.getCorePoolSize());
+        assertEquals(EventNames.DEFAULT.serverPoolGrow, events.get(0));
+
+        while (pool.getQueue().size() > 0 || pool.getActiveCount() > 0) {
+            Thread.sleep(10);
+        }
+        pool.adjust(); // samples the end of the load
+        int threads = pool.getCorePoolSize();
+        Thread.sleep(100);
+        pool.adjust(); // idle
+        assertEquals(threads - 1, pool.getCorePoolSize());
+        assertEquals(EventNames.DEFAULT.serverPoolShrink, events.get(events.size() - 1));
+        assertTrue(pool.getLastDecision().contains("move=-1"));
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void logsEveryDecisionAndFailure() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(false);
+        final List<String> decisions = new Vector<String>();
+        final List<Throwable> errors = new Vector<Throwable>();
+        AutoScalingExecutor pool = new AutoScalingExecutor(1, 8, 5, 3600000,
+            new LinkedBlockingQueue<Runnable>(), "autoscaling-test-") {
+            @Override
+            public long getCompletedTaskCount() {
+                if (failing.get()) {
+                    throw new IllegalStateException("sampling failed");
+                }
+                return super.getCompletedTaskCount();
+            }
+        };
+        pool.setDecisionLogger(new ContextLogger<String, String>() {
+            public void log(String event, String decision) {
+                decisions.add(event + " " + decision);
+            }
+        });
+        pool.setErrorLogger(new ContextLogger<String, Throwable>() {
+            public void log(String message, Throwable e) {
+                errors.add(e);
+            }
+        });
+
+        pool.adjust(); // idle at its min: holds, logged too
+        assertEquals(1, decisions.size());
+        assertTrue(decisions.get(0), decisions.get(0).startsWith(
+            EventNames.DEFAULT.serverPoolHold + " threads=1->1 move=0 wait="));
+        assertTrue(decisions.get(0).contains("utilization="));
+        assertTrue(decisions.get(0).contains("throughput="));
+
+        failing.set(true);
+        pool.adjust();
+        assertEquals(1, errors.size());
+        assertEquals("sampling failed", errors.get(0).getMessage());
+        assertTrue(pool.getLastDecision().startsWith("failed"));
+
+        failing.set(false);
+        pool.adjust(); // carries on
+        assertEquals(2, decisions.size());
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,53 @@
+package org.httpkit.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoDelTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void shedsOnlyWhileTheQueueStands() {
+        CoDel codel = new CoDel(5, 100);
+        long now = System.nanoTime();
+        // a burst: long sojourns, but the queue drains within the interval
+        assertFalse(codel.shouldShed(50 * MS, now));
+        assertFalse(codel.shouldShed(1 * MS, now + 10 * MS));
+        assertFalse(codel.shouldShed(50 * MS, now + 120 * MS));
+        assertFalse(codel.isOverloaded());
+
+        // standing: no request got a worker within the target for an interval
+        for (long t = 130; t < 240; t += 10) {
+            codel.shouldShed(20 * MS, now + t * MS);
+        }
+        assertTrue(codel.isOverloaded());
+        assertTrue(codel.shouldShed(20 * MS, now + 250 * MS));
+        assertFalse(codel.shouldShed(8 * MS, now + 260 * MS)); // fresh enough
+
+        // drained: back to normal after the next interval
+        codel.shouldShed(1 * MS, now + 270 * MS);
+        codel.shouldShed(1 * MS, now + 400 * MS);
+        assertFalse(codel.isOverloaded());
+        assertFalse(codel.shouldShed(20 * MS, now + 410 * MS));
+    }
+
+    @Test
+    public void judgesNoIntervalWithoutRequests() {
+        CoDel codel = new CoDel(5, 100);
+        long now = System.nanoTime();
+        // the first request, after an idle first interval
+        assertFalse(codel.shouldShed(1 * MS, now + 150 * MS));
+        assertFalse(codel.isOverloaded());
+        assertFalse(codel.shouldShed(20 * MS, now + 160 * MS));
+
+        // standing, then idle: the next request is not shed for it
+        for (long t = 170; t < 350; t += 10) {
+            codel.shouldShed(20 * MS, now + t * MS);
+        }
+        assertTrue(codel.shouldShed(20 * MS, now + 350 * MS));
+        assertFalse(codel.shouldShed(20 * MS, now + 1000 * MS));
+        assertFalse(codel.isOverloaded());
+    }
+}
@@ -0,0 +1,202 @@
+package org.httpkit.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.httpkit.HeaderMap;
+import org.httpkit.HttpMethod;
+import org.httpkit.HttpVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionTest {
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static HttpRequest request(String acceptEncoding) {
+        HttpRequest req = new HttpRequest(HttpMethod.GET, "/", HttpVersion.HTTP_1_1, false);
+        req.headers = new TreeMap<String, Object>();
+        if (acceptEncoding != null) {
+            req.headers.put("accept-encoding", acceptEncoding);
+        }
+        return req;
+    }
+
+    @Test
+    public void negotiatesTheCodingPreferred() {
+        assertEquals("gzip", Compression.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", Compression.negotiate("deflate, gzip"));
+        assertEquals("deflate", Compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", Compression.negotiate("br\ndeflate"));
+        assertEquals("gzip", Compression.negotiate("*"));
+        assertEquals("deflate", Compression.negotiate("gzip;q=0, *"));
+        assertNull(Compression.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(Compression.negotiate("br, identity"));
+        assertNull(Compression.negotiate(null));
+    }
+
+    @Test
+    public void compressesTextualTypesOnly() {
+        assertTrue(Compression.isCompressibleType("text/html; charset=utf-8"));
+        assertTrue(Compression.isCompressibleType("application/json"));
+        assertTrue(Compression.isCompressibleType("application/vnd.api+json"));
+        assertTrue(Compression.isCompressibleType("application/javascript"));
+        assertFalse(Compression.isCompressibleType("image/png"));
+        assertFalse(Compression.isCompressibleType("image/svg+xml")); // a NON_TEXT_CONTENT_TYPES
+        assertFalse(Compression.isCompressibleType(
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+        assertFalse(Compression.isCompressibleType(null));
+    }
+
+    @Test
+    public void compressesBodiesAboveTheMinSize() throws IOException {
+        Compression compression = new Compression(100, 6);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("compress me ").append(i).append('\n');
+        }
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Etag", "\"v1\"");
+        ByteBuffer gzipped = compression.compress(request("gzip"), 200, headers, body);
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertEquals("W/\"v1\"", headers.get("Etag"));
+        assertTrue(gzipped.remaining() < body.length / 2);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(bytes(gzipped)))));
+
+        headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        ByteBuffer deflated = compression.compress(request("deflate"), 200, headers, body);
+        assertEquals("deflate", headers.get("Content-Encoding"));
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(bytes(deflated)))));
+
+        headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        assertEquals(4, compression.compress(request("gzip"), 200, headers, "tiny").remaining());
+        assertNull(headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary")); // would be compressed if longer
+
+        headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        assertEquals(body.length, compression.compress(request(null), 200, headers, body).remaining());
+        assertNull(headers.get("Content-Encoding"));
+    }
+
+    @Test
+    public void streamsFlushingEachPiece() throws IOException {
+        Compression compression = new Compression(1024, -1);
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/event-stream");
+        headers.put("Vary", "Origin");
+        Compression.Encoder encoder = compression.stream(request("gzip"), 200, headers);
+        assertEquals("Origin, Accept-Encoding", headers.get("Vary"));
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        wire.write(bytes(encoder.write(ByteBuffer.wrap("data: 1\n\n".getBytes()), false)));
+        // what was sent so far decompresses: the client needs no more to see it
+        InputStream partial = new GZIPInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        byte[] first = new byte[9];
+        assertEquals(9, partial.read(first));
+        assertEquals("data: 1\n\n", new String(first));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(9);
+        direct.put("data: 2\n\n".getBytes()).flip();
+        wire.write(bytes(encoder.write(direct, false)));
+        wire.write(bytes(encoder.write(null, true)));
+        assertTrue(encoder.isFinished());
+        assertEquals("data: 1\n\ndata: 2\n\n",
+            new String(readAll(new GZIPInputStream(new ByteArrayInputStream(wire.toByteArray())))));
+    }
+
+    @Test
+    public void poolsDeflatersPerLevel() throws IOException {
+        Deflater fast = Compression.borrowDeflater(true, 1);
+        Compression.releaseDeflater(fast, true, 1);
+        Deflater best = Compression.borrowDeflater(true, 9);
+        assertNotSame(fast, best); // not handed out again at another level
+        Compression.releaseDeflater(best, true, 9);
+        assertSame(fast, Compression.borrowDeflater(true, 1));
+        Compression.releaseDeflater(fast, true, 1);
+
+        // a piece sent at each level, on the same thread, decompresses once received
+        for (int level : new int[]{1, 9, 1}) {
+            HeaderMap headers = new HeaderMap();
+            headers.put("Content-Type", "text/event-stream");
+            Compression.Encoder encoder = new Compression(0, level).stream(request("gzip"), 200, headers);
+            byte[] piece = ("data: " + level + "\n\n").getBytes();
+            InputStream partial = new GZIPInputStream(new ByteArrayInputStream(
+                bytes(encoder.write(ByteBuffer.wrap(piece), false))));
+            byte[] read = new byte[piece.length];
+            assertEquals(piece.length, partial.read(read));
+            assertArrayEquals(piece, read);
+            encoder.write(null, true);
+        }
+    }
+
+    @Test
+    public void endsAnUnfinishedStream() {
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/event-stream");
+        Compression.Encoder encoder = new Compression(0, 6).stream(request("gzip"), 200, headers);
+        encoder.write(ByteBuffer.wrap("data: 1\n\n".getBytes()), false);
+        encoder.end();
+        assertTrue(encoder.isFinished());
+        encoder.end(); // again, a no-op
+        try {
+            encoder.write(ByteBuffer.wrap("data: 2\n\n".getBytes()), false);
+            fail("written after end");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void leavesEncodedAndPartialResponsesAlone() {
+        Compression compression = new Compression();
+        HeaderMap headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Content-Encoding", "br");
+        assertNull(compression.stream(request("gzip"), 200, headers));
+
+        headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        assertNull(compression.stream(request("gzip"), 206, headers));
+
+        headers = new HeaderMap();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Cache-Control", "no-transform");
+        assertNull(compression.stream(request("gzip"), 200, headers));
+        assertNull(headers.get("Vary"));
+    }
+}
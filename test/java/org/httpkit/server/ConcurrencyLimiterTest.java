@@ -0,0 +1,79 @@
+package org.httpkit.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+    private static final long MS = 1000000;
+
+    // n requests completing at once with the given latency
+    private static void load(ConcurrencyLimiter limiter, int n, long latency) {
+        int acquired = 0;
+        for (int i = 0; i < n && limiter.tryAcquire(); i++) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limiter.release(latency);
+        }
+    }
+
+    @Test
+    public void rejectsPastTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter.Vegas(2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+        limiter.release();
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+        assertEquals(1, limiter.retryAfterSeconds()); // no sample yet
+    }
+
+    @Test
+    public void aimdGrowsUnderLoadAndBacksOffWhenSlow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter.Aimd(10, 1, 100, 100, 0.5);
+        load(limiter, 2, 5 * MS); // light load: no reason to grow
+        assertEquals(10, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            load(limiter, 1000, 5 * MS);
+        }
+        assertEquals(100, limiter.getLimit());
+        assertTrue(limiter.getRejected() > 0);
+
+        load(limiter, 3, 500 * MS);
+        assertEquals(12, limiter.getLimit());
+    }
+
+    @Test
+    public void vegasFollowsTheQueueingDelay() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter.Vegas(10, 1, 200);
+        for (int i = 0; i < 5; i++) {
+            load(limiter, 1000, 10 * MS);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 10);
+
+        for (int i = 0; i < 5; i++) {
+            load(limiter, 1000, 20 * MS); // latency doubled: half of it queued
+        }
+        assertTrue(limiter.getLimit() < grown);
+    }
+
+    @Test
+    public void gradientShrinksOnALatencySpike() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter.Gradient(50, 1, 200, 1.5);
+        for (int i = 0; i < 20; i++) {
+            load(limiter, 1000, 10 * MS);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 50);
+
+        load(limiter, 10, 100 * MS);
+        assertTrue(limiter.getLimit() < grown / 2);
+        assertTrue(limiter.retryAfterSeconds() >= 1);
+    }
+}
@@ -0,0 +1,65 @@
+package org.httpkit.server;
+
+import org.httpkit.ProtocolException;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HpackTest {
+
+    private static ByteBuffer hex(String s) {
+        s = s.replace(" ", "");
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    // RFC 7541 C.4: requests with Huffman coding, sharing the dynamic table
+    @Test
+    public void decodesRfcRequestExamples() throws ProtocolException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096, 8192);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"),
+            decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache"),
+            decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+            decoder.decode(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")));
+    }
+
+    @Test
+    public void encodedHeadersDecode() throws ProtocolException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(4096, 8192);
+        String[] headers = {":status", "200", "content-type", "text/html; charset=utf-8",
+            "server", "http-kit", "date", "Sun, 18 Oct 2026 17:06:15 GMT", "x-custom", "été"};
+        for (int round = 0; round < 3; round++) { // later rounds hit the dynamic table
+            ByteBuffer block = ByteBuffer.allocate(512);
+            for (int i = 0; i < headers.length; i += 2) {
+                encoder.encode(block, headers[i], headers[i + 1]);
+            }
+            block.flip();
+            List<String> decoded = decoder.decode(block);
+            assertEquals(Arrays.asList(headers), decoded);
+        }
+    }
+
+    @Test
+    public void rejectsOversizedTableUpdate() {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096, 8192);
+        try {
+            decoder.decode(hex("3fe1 3f")); // size update to 8192
+            fail("Expected the table size update to be rejected");
+        } catch (ProtocolException expected) {
+        }
+    }
+}
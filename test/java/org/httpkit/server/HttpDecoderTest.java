@@ -335,4 +335,73 @@ public class HttpDecoderTest {
         }
         throw new AssertionError("Expected invalid close payload to be rejected");
     }
+
+    @Test
+    public void streamsBodiesAfterTheHeaders() throws Exception {
+        HttpDecoder decoder = decoder(ProxyProtocolOption.DISABLED);
+        decoder.streamBodies = true;
+        ByteBuffer input = ByteBuffer.wrap(("POST /a HTTP/1.1\r\nHost: localhost\r\n" +
+            "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n").getBytes());
+        HttpRequest request = decoder.decode(input);
+        assertTrue(decoder.isStreamingBody());
+        assertFalse(decoder.streamBody(input));
+        assertFalse(decoder.streamBody(ByteBuffer.wrap("6\r\n world\r\n0\r\n".getBytes())));
+        input = ByteBuffer.wrap("\r\nGET /b HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        assertTrue(decoder.streamBody(input));
+        assertFalse(decoder.isStreamingBody());
+
+        java.io.DataInputStream body = new java.io.DataInputStream(request.getBody());
+        byte[] bytes = new byte[11];
+        body.readFully(bytes);
+        assertEquals("hello world", new String(bytes));
+        assertEquals(-1, body.read());
+        assertEquals("/b", decoder.decode(input).uri); // the next request follows
+
+        decoder.reset();
+        try {
+            decode(decoder, "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2048\r\n\r\n");
+            fail("Expected max body to apply to streamed bodies");
+        } catch (RequestTooLargeException expected) {
+        }
+    }
+
+    @Test
+    public void spillsBodiesPastTheThreshold() throws Exception {
+        HttpDecoder decoder = decoder(ProxyProtocolOption.DISABLED);
+        decoder.spillThreshold = 8;
+        HttpRequest small = decode(decoder, "POST / HTTP/1.1\r\nHost: localhost\r\n" +
+            "Content-Length: 5\r\n\r\nhello");
+        assertFalse(small.getBody() instanceof SpilledBody);
+
+        decoder.reset();
+        HttpRequest fixed = decode(decoder, "POST / HTTP/1.1\r\nHost: localhost\r\n" +
+            "Content-Length: 11\r\n\r\nhello world");
+        SpilledBody body = (SpilledBody) fixed.getBody();
+        assertEquals(11, body.size());
+        java.nio.MappedByteBuffer mapped = body.map();
+        assertEquals('w', mapped.get(6));
+        byte[] bytes = new byte[11];
+        new java.io.DataInputStream(body).readFully(bytes);
+        assertEquals("hello world", new String(bytes));
+        assertEquals(-1, body.read());
+        assertTrue(java.nio.file.Files.exists(body.path()));
+        fixed.releaseBody(); // the response is complete
+        assertFalse(java.nio.file.Files.exists(body.path()));
+
+        // buffered in memory first, spilled once past the threshold
+        decoder.reset();
+        assertNull(decoder.decode(ByteBuffer.wrap(("POST / HTTP/1.1\r\nHost: localhost\r\n" +
+            "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n").getBytes())));
+        HttpRequest chunked = decoder.decode(ByteBuffer.wrap("6\r\n world\r\n0\r\n\r\n".getBytes()));
+        body = (SpilledBody) chunked.getBody();
+        new java.io.DataInputStream(body).readFully(bytes);
+        assertEquals("hello world", new String(bytes));
+        chunked.releaseBody();
+
+        // the connection closes mid-body
+        decoder.reset();
+        assertNull(decode(decoder, "POST / HTTP/1.1\r\nHost: localhost\r\n" +
+            "Content-Length: 11\r\n\r\nhello"));
+        decoder.close();
+    }
 }
@@ -736,4 +736,728 @@ public class HttpServerProtocolTest {
             server.join();
         }
     }
+
+    @Test
+    public void spreadsConnectionsOverIoThreads() throws Exception {
+        final java.util.Set<String> loops = java.util.Collections.synchronizedSet(
+            new java.util.HashSet<String>());
+
+        IHandler handler = new IHandler() {
+            @Override
+            public void handle(HttpRequest request, RespCallback callback) {
+                loops.add(Thread.currentThread().getName());
+                callback.run(HttpEncode(200, new HeaderMap(), "ok"));
+            }
+
+            @Override
+            public void handle(AsyncChannel channel, Frame frame) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status, String reason) {
+            }
+
+            @Override
+            public void close(int timeoutMs) {
+            }
+        };
+
+        HttpServer server = new HttpServer(new HttpServer.AddressFinder() {
+                public java.net.SocketAddress findAddress() {
+                    return new java.net.InetSocketAddress("127.0.0.1", 0);
+                }
+            }, new HttpServer.ServerChannelFactory() {
+                public java.nio.channels.ServerSocketChannel createChannel(java.net.SocketAddress address)
+                        throws IOException {
+                    return java.nio.channels.ServerSocketChannel.open();
+                }
+            }, handler, 1024, 1024, 1024, ProxyProtocolOption.DISABLED, "http-kit", false,
+            ContextLogger.ERROR_PRINTER, HttpServer.DEFAULT_WARN_LOGGER, EventLogger.NOP, EventNames.DEFAULT,
+            3, false, false);
+        server.start();
+
+        try {
+            for (int i = 0; i < 6; i++) {
+                Socket socket = new Socket("127.0.0.1", server.getPort());
+                socket.setSoTimeout(10000);
+                try {
+                    socket.getOutputStream().write(
+                        "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                    String response = new String(readAll(socket.getInputStream()),
+                        StandardCharsets.US_ASCII);
+                    assertTrue(response.startsWith("HTTP/1.1 200"));
+                    assertTrue(response.endsWith("ok"));
+                } finally {
+                    socket.close();
+                }
+            }
+            assertEquals(3, loops.size());
+            assertFalse(loops.contains(HttpServer.THREAD_NAME));
+        } finally {
+            if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+            server.join();
+        }
+    }
+
+    private static boolean loopStarted(String name) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void runsReusePortLoopsFromTheChannelFactory() throws Exception {
+        final AtomicInteger channels = new AtomicInteger();
+        final HttpServer server = new HttpServer(new HttpServer.AddressFinder() {
+                public java.net.SocketAddress findAddress() {
+                    return new java.net.InetSocketAddress("127.0.0.1", 0);
+                }
+            }, new HttpServer.ServerChannelFactory() {
+                public java.nio.channels.ServerSocketChannel createChannel(java.net.SocketAddress address)
+                        throws IOException {
+                    channels.incrementAndGet();
+                    return java.nio.channels.ServerSocketChannel.open();
+                }
+            }, NOOP_HANDLER, 1024, 1024, 1024, ProxyProtocolOption.DISABLED, "http-kit", false,
+            ContextLogger.ERROR_PRINTER, HttpServer.DEFAULT_WARN_LOGGER, EventLogger.NOP, EventNames.DEFAULT,
+            3, true, false);
+        assertEquals(3, channels.get());
+
+        Thread runner = new Thread(server, "runner");
+        runner.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!loopStarted(HttpServer.THREAD_NAME + "-3")) { // the last one, loop 1 runs in runner
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertTrue(server.isAlive());
+            assertFalse(loopStarted(HttpServer.THREAD_NAME + "-1"));
+        } finally {
+            server.stop(1000);
+            server.join(); // the loops run() started too
+            runner.join(10000);
+        }
+        assertFalse(runner.isAlive());
+        assertFalse(server.isAlive());
+    }
+
+    static javax.net.ssl.SSLContext serverSslContext() throws Exception {
+        java.security.KeyStore ks = java.security.KeyStore.getInstance("JKS");
+        java.io.FileInputStream in = new java.io.FileInputStream("test/ssl_keystore");
+        try {
+            ks.load(in, "123456".toCharArray());
+        } finally {
+            in.close();
+        }
+        javax.net.ssl.KeyManagerFactory kmf = javax.net.ssl.KeyManagerFactory.getInstance(
+            javax.net.ssl.KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "123456".toCharArray());
+        javax.net.ssl.SSLContext context = javax.net.ssl.SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    static javax.net.ssl.SSLContext trustAllSslContext() throws Exception {
+        javax.net.ssl.SSLContext context = javax.net.ssl.SSLContext.getInstance("TLS");
+        context.init(null, new javax.net.ssl.TrustManager[]{new javax.net.ssl.X509TrustManager() {
+            public void checkClientTrusted(java.security.cert.X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(java.security.cert.X509Certificate[] chain, String authType) {
+            }
+
+            public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                return new java.security.cert.X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+
+    @Test
+    public void terminatesTlsAndResumesSessions() throws Exception {
+        final StringBuilder body = new StringBuilder();
+        while (body.length() < 100 * 1024) {
+            body.append("0123456789abcdef");
+        }
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        IHandler handler = new IHandler() {
+            @Override
+            public void handle(HttpRequest request, RespCallback callback) {
+                seen.set(request.isSecure + ":" + request.serverPort);
+                HeaderMap headers = new HeaderMap();
+                callback.run(HttpEncode(200, headers, body.toString()));
+            }
+
+            @Override
+            public void handle(AsyncChannel channel, Frame frame) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status, String reason) {
+            }
+
+            @Override
+            public void close(int timeoutMs) {
+            }
+        };
+
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler,
+            1024 * 1024, 8192, 1024, ProxyProtocolOption.DISABLED);
+        server.setSslContext(serverSslContext(), null);
+        server.start();
+
+        javax.net.ssl.SSLSocketFactory factory = trustAllSslContext().getSocketFactory();
+        byte[][] sessionIds = new byte[2][];
+        try {
+            for (int i = 0; i < 2; i++) {
+                javax.net.ssl.SSLSocket socket = (javax.net.ssl.SSLSocket)
+                    factory.createSocket("127.0.0.1", server.getPort());
+                socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+                socket.setSoTimeout(10000);
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n"
+                        + "Connection: close\r\n\r\nhello").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    String response = new String(readAll(socket.getInputStream()),
+                        StandardCharsets.US_ASCII);
+                    assertTrue(response.startsWith("HTTP/1.1 200"));
+                    assertTrue(response.endsWith(body.toString()));
+                    sessionIds[i] = socket.getSession().getId();
+                } finally {
+                    socket.close();
+                }
+            }
+            assertEquals("true:443", seen.get());
+            assertTrue(java.util.Arrays.equals(sessionIds[0], sessionIds[1]));
+        } finally {
+            if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+            server.join();
+        }
+    }
+
+    private static byte[] h2Frame(int type, int flags, int streamId, byte[] payload) {
+        return java.nio.ByteBuffer.allocate(9 + payload.length)
+            .put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8))
+            .put((byte) payload.length).put((byte) type).put((byte) flags).putInt(streamId)
+            .put(payload).array();
+    }
+
+    private static byte[] h2Request(Hpack.Encoder encoder, int streamId, String path) {
+        java.nio.ByteBuffer block = java.nio.ByteBuffer.allocate(256);
+        encoder.encode(block, ":method", "GET");
+        encoder.encode(block, ":scheme", "http");
+        encoder.encode(block, ":path", path);
+        encoder.encode(block, ":authority", "localhost");
+        byte[] payload = new byte[block.position()];
+        block.flip();
+        block.get(payload);
+        return h2Frame(Http2Connection.HEADERS,
+            Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM, streamId, payload);
+    }
+
+    @Test
+    public void multiplexesHttp2Streams() throws Exception {
+        // "/slow" only completes once "/fast", sent after it on the same connection, is handled
+        final CountDownLatch fastHandled = new CountDownLatch(1);
+        final ExecutorService workers = Executors.newFixedThreadPool(2);
+        IFn application = new AFn() {
+            @Override
+            public Object invoke(Object request) {
+                Map<?, ?> req = (Map<?, ?>) request;
+                String body = req.get(ClojureRing.URI) + " " + req.get(ClojureRing.PROTOCOL);
+                if (body.startsWith("/slow")) {
+                    try {
+                        body += " " + fastHandled.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    fastHandled.countDown();
+                }
+                Map<Object, Object> response = new HashMap<Object, Object>();
+                response.put(ClojureRing.BODY, body);
+                return response;
+            }
+        };
+        RingHandler handler = new RingHandler(application, false, workers);
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler,
+            1024, 1024, 1024, ProxyProtocolOption.DISABLED);
+        server.setHttp2(true, 10);
+        server.start();
+
+        try {
+            Socket socket = new Socket("127.0.0.1", server.getPort());
+            socket.setSoTimeout(10000);
+            try {
+                OutputStream out = socket.getOutputStream();
+                Hpack.Encoder encoder = new Hpack.Encoder();
+                out.write(Http2Connection.PREFACE);
+                out.write(h2Frame(Http2Connection.SETTINGS, 0, 0, new byte[0]));
+                out.write(h2Request(encoder, 1, "/slow"));
+                out.write(h2Request(encoder, 3, "/fast"));
+
+                java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream());
+                Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+                Map<Integer, String> responses = new HashMap<Integer, String>();
+                int ended = 0;
+                while (ended < 2) {
+                    int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                    int type = in.readUnsignedByte();
+                    int flags = in.readUnsignedByte();
+                    int streamId = in.readInt();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (type == Http2Connection.HEADERS) {
+                        java.util.List<String> fields = decoder.decode(java.nio.ByteBuffer.wrap(payload));
+                        assertEquals(":status", fields.get(0));
+                        responses.put(streamId, fields.get(1));
+                    } else if (type == Http2Connection.DATA) {
+                        responses.put(streamId, responses.get(streamId) + " "
+                            + new String(payload, StandardCharsets.US_ASCII));
+                    }
+                    if ((type == Http2Connection.HEADERS || type == Http2Connection.DATA)
+                            && (flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                        ended++;
+                    }
+                }
+                assertEquals("200 /slow HTTP/2.0 true", responses.get(1));
+                assertEquals("200 /fast HTTP/2.0", responses.get(3));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+            server.join();
+            workers.shutdown();
+        }
+    }
+
+    // the head of a response read from `in`, without the trailing CRLFCRLF
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new java.io.EOFException(head.toString());
+            }
+            head.append((char) b);
+        }
+        return head.substring(0, head.length() - 4);
+    }
+
+    private static byte[] readBody(java.io.DataInputStream in, String head) throws IOException {
+        head = head.toLowerCase(java.util.Locale.ROOT);
+        int at = head.indexOf("content-length: ") + "content-length: ".length();
+        int end = head.indexOf("\r\n", at);
+        byte[] body = new byte[Integer.parseInt(head.substring(at, end < 0 ? head.length() : end))];
+        in.readFully(body);
+        return body;
+    }
+
+    @Test
+    public void sendsFileBodiesWithTransferTo() throws Exception {
+        final java.io.File file = java.io.File.createTempFile("http-kit", ".bin");
+        file.deleteOnExit();
+        final byte[] content = new byte[3 * 1024 * 1024 + 7];
+        new java.util.Random(42).nextBytes(content);
+        java.nio.file.Files.write(file.toPath(), content);
+        final AtomicReference<java.nio.channels.FileChannel> channel =
+            new AtomicReference<java.nio.channels.FileChannel>();
+
+        IFn application = new AFn() {
+            @Override
+            public Object invoke(Object request) {
+                String uri = (String) ((Map<?, ?>) request).get(ClojureRing.URI);
+                Map<Object, Object> response = new HashMap<Object, Object>();
+                if (uri.equals("/file")) {
+                    response.put(ClojureRing.BODY, file);
+                } else if (uri.equals("/path")) {
+                    response.put(ClojureRing.BODY, file.toPath());
+                } else if (uri.equals("/channel")) {
+                    try {
+                        java.nio.channels.FileChannel ch = new java.io.FileInputStream(file).getChannel();
+                        ch.position(7);
+                        channel.set(ch);
+                        response.put(ClojureRing.BODY, ch);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    response.put(ClojureRing.BODY, "after");
+                }
+                return response;
+            }
+        };
+        for (boolean tls : new boolean[]{false, true}) {
+            // closed with the server
+            RingHandler handler = new RingHandler(application, false, Executors.newSingleThreadExecutor());
+            HttpServer server = new HttpServer("127.0.0.1", 0, handler,
+                1024, 1024, 1024, ProxyProtocolOption.DISABLED);
+            if (tls) { // buffered, records are encrypted in user space
+                server.setSslContext(serverSslContext(), null);
+            }
+            server.start();
+            try {
+                Socket socket = tls
+                    ? trustAllSslContext().getSocketFactory().createSocket("127.0.0.1", server.getPort())
+                    : new Socket("127.0.0.1", server.getPort());
+                socket.setSoTimeout(10000);
+                try {
+                    socket.getOutputStream().write((
+                        "GET /file HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                        "GET /path HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                        "GET /channel HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                        "GET /after HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    ).getBytes(StandardCharsets.US_ASCII));
+                    java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream());
+                    for (int i = 0; i < 2; i++) {
+                        String head = readHead(in);
+                        assertTrue(head, head.startsWith("HTTP/1.1 200"));
+                        assertTrue(java.util.Arrays.equals(content, readBody(in, head)));
+                    }
+                    String head = readHead(in);
+                    assertTrue(java.util.Arrays.equals(
+                        java.util.Arrays.copyOfRange(content, 7, content.length), readBody(in, head)));
+                    head = readHead(in);
+                    assertEquals("after", new String(readBody(in, head), StandardCharsets.US_ASCII));
+                    assertFalse(channel.get().isOpen());
+                } finally {
+                    socket.close();
+                }
+            } finally {
+                if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+                server.join();
+            }
+        }
+    }
+
+    @Test
+    public void handlesPipelinedRequestsConcurrentlyInOrder() throws Exception {
+        // "/slow" only completes once "/fast", pipelined after it, is handled
+        final CountDownLatch fastHandled = new CountDownLatch(1);
+        final java.io.File file = java.io.File.createTempFile("http-kit", ".txt");
+        file.deleteOnExit();
+        java.nio.file.Files.write(file.toPath(), "file".getBytes(StandardCharsets.US_ASCII));
+        IFn application = new AFn() {
+            @Override
+            public Object invoke(Object request) {
+                String body = (String) ((Map<?, ?>) request).get(ClojureRing.URI);
+                Map<Object, Object> response = new HashMap<Object, Object>();
+                if (body.equals("/slow")) {
+                    try {
+                        body += " " + fastHandled.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else if (body.equals("/fast")) {
+                    fastHandled.countDown();
+                }
+                response.put(ClojureRing.BODY, body.equals("/file") ? file : body);
+                return response;
+            }
+        };
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        HttpServer server = new HttpServer("127.0.0.1", 0, new RingHandler(application, false, workers),
+            1024, 1024, 1024, ProxyProtocolOption.DISABLED);
+        server.setPipelineDepth(4);
+        server.start();
+
+        try {
+            Socket socket = new Socket("127.0.0.1", server.getPort());
+            socket.setSoTimeout(10000);
+            try {
+                socket.getOutputStream().write((
+                    "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    "GET /file HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                    // can not be pipelined: handled once the others are answered
+                    "GET /last HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                ).getBytes(StandardCharsets.US_ASCII));
+                java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream());
+                for (String expected : new String[]{"/slow true", "/fast", "file", "/last"}) {
+                    String head = readHead(in);
+                    assertTrue(head, head.startsWith("HTTP/1.1 200"));
+                    assertEquals(expected, new String(readBody(in, head), StandardCharsets.US_ASCII));
+                }
+                assertEquals(-1, in.read());
+            } finally {
+                socket.close();
+            }
+        } finally {
+            if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+            server.join();
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    public void streamsRequestBodiesToTheHandler() throws Exception {
+        final AtomicReference<CountDownLatch> handled = new AtomicReference<CountDownLatch>();
+        IFn application = new AFn() {
+            @Override
+            public Object invoke(Object request) {
+                handled.get().countDown();
+                InputStream body = (InputStream) ((Map<?, ?>) request).get(ClojureRing.BODY);
+                long total = 0;
+                int sum = 0;
+                byte[] buffer = new byte[8192];
+                try {
+                    for (int n; body != null && (n = body.read(buffer)) != -1; total += n) {
+                        for (int i = 0; i < n; i++) {
+                            sum += buffer[i];
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                Map<Object, Object> response = new HashMap<Object, Object>();
+                response.put(ClojureRing.BODY, total + " " + sum);
+                return response;
+            }
+        };
+        // several windows: reading the connection pauses and resumes
+        final int size = 4 * RequestBody.WINDOW;
+        byte[] chunk = new byte[size / 8];
+        int sum = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+            sum += chunk[i];
+        }
+        for (boolean tls : new boolean[]{false, true}) {
+            handled.set(new CountDownLatch(1));
+            ExecutorService workers = Executors.newFixedThreadPool(2);
+            HttpServer server = new HttpServer("127.0.0.1", 0, new RingHandler(application, false, workers),
+                size, 1024, 1024, ProxyProtocolOption.DISABLED);
+            if (tls) {
+                server.setSslContext(serverSslContext(), null);
+            }
+            server.setStreamRequestBody(true);
+            server.start();
+            try {
+                Socket socket = tls
+                    ? trustAllSslContext().getSocketFactory().createSocket("127.0.0.1", server.getPort())
+                    : new Socket("127.0.0.1", server.getPort());
+                socket.setSoTimeout(10000);
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("POST /fixed HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + size + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    // dispatched before the body is sent
+                    assertTrue(handled.get().await(10, TimeUnit.SECONDS));
+                    for (int i = 0; i < 8; i++) {
+                        out.write(chunk);
+                    }
+                    out.write("POST /chunked HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                    for (int i = 0; i < 3; i++) {
+                        out.write((Integer.toHexString(chunk.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                        out.write(chunk);
+                        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                    }
+                    out.write("0\r\n\r\nGET /empty HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+
+                    java.io.DataInputStream in = new java.io.DataInputStream(socket.getInputStream());
+                    String[] expected = {size + " " + 8 * sum, 3 * chunk.length + " " + 3 * sum, "0 0"};
+                    for (String e : expected) {
+                        String head = readHead(in);
+                        String body = new String(readBody(in, head), StandardCharsets.US_ASCII);
+                        assertTrue(head + body, head.startsWith("HTTP/1.1 200"));
+                        assertEquals(e, body);
+                    }
+                } finally {
+                    socket.close();
+                }
+            } finally {
+                if (server.getStatus() == HttpServer.Status.RUNNING) server.stop(1000);
+                server.join();
+                workers.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void channelStopsBeingWritableAboveTheHighWatermark() throws Exception {
+        final AtomicReference<AsyncChannel> channel = new AtomicReference<AsyncChannel>();
+        final CountDownLatch started = new CountDownLatch(1);
+        IHandler handler = new IHandler() {
+            @Override
+            public void handle(HttpRequest request, RespCallback callback) {
+                try {
+                    Map<Object, Object> response = new HashMap<Object, Object>();
+                    response.put(ClojureRing.BODY, "");
+                    request.channel.send(response, false); // streaming
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                channel.set(request.channel);
+                started.countDown();
+            }
+
+            @Override
+            public void handle(AsyncChannel channel, Frame frame) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status, String reason) {
+            }
+
+            @Override
+            public void close(int timeoutMs) {
+            }
+        };
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024, 1024, ProxyProtocolOption.DISABLED);
+        server.setWriteWatermarks(64 * 1024, 128 * 1024);
+        server.start();
+        try {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(8192);
+            socket.connect(new java.net.InetSocketAddress("127.0.0.1", server.getPort()));
+            socket.setSoTimeout(10000);
+            try {
+                socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+
+                // the client does not read: the socket's buffers fill up, then the queue
+                final AsyncChannel ch = channel.get();
+                String chunk = new String(new char[64 * 1024]).replace('\0', 'x');
+                long sent = 0;
+                for (int i = 0; i < 10000 && ch.isWritable(); i++) {
+                    ch.send(chunk, false);
+                    sent += chunk.length();
+                }
+                assertFalse(ch.isWritable());
+                assertTrue(ch.getQueuedBytes() > 128 * 1024);
+
+                final CountDownLatch writable = new CountDownLatch(1);
+                ch.setWritableHandler(new AFn() {
+                    @Override
+                    public Object invoke() {
+                        writable.countDown();
+                        return null;
+                    }
+                });
+                InputStream in = socket.getInputStream();
+                byte[] bytes = new byte[64 * 1024];
+                long received = 0;
+                while (writable.getCount() > 0 && received < sent) {
+                    received += in.read(bytes);
+                }
+                assertTrue(writable.await(10, TimeUnit.SECONDS));
+                assertTrue(ch.isWritable());
+                assertTrue(ch.getQueuedBytes() <= 64 * 1024);
+                ch.serverClose(0);
+                readAll(in);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.stop(1000);
+            server.join();
+        }
+    }
+
+    // -1 once the server closed the connection, or the socket was reset
+    private static int readClosed(Socket socket) {
+        try {
+            return socket.getInputStream().read();
+        } catch (java.net.SocketTimeoutException e) {
+            throw new AssertionError("Still open");
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Test
+    public void closesConnectionsStuckInAPhase() throws Exception {
+        IHandler handler = new IHandler() {
+            @Override
+            public void handle(HttpRequest request, RespCallback callback) {
+                callback.run(HttpEncode(200, new HeaderMap(), "ok"));
+            }
+
+            @Override
+            public void handle(AsyncChannel channel, Frame frame) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status) {
+            }
+
+            @Override
+            public void clientClose(AsyncChannel channel, int status, String reason) {
+            }
+
+            @Override
+            public void close(int timeoutMs) {
+            }
+        };
+        HttpServer server = new HttpServer("127.0.0.1", 0, handler, 1024, 1024, 1024, ProxyProtocolOption.DISABLED);
+        server.setTimeouts(500, 500, 500, 0);
+        server.start();
+        try {
+            Socket silent = new Socket("127.0.0.1", server.getPort());
+            Socket slowloris = new Socket("127.0.0.1", server.getPort());
+            Socket slowBody = new Socket("127.0.0.1", server.getPort());
+            Socket idle = new Socket("127.0.0.1", server.getPort());
+            try {
+                for (Socket socket : new Socket[]{silent, slowloris, slowBody, idle}) {
+                    socket.setSoTimeout(5000);
+                }
+                idle.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+                java.io.DataInputStream in = new java.io.DataInputStream(idle.getInputStream());
+                String head = readHead(in);
+                assertEquals("ok", new String(readBody(in, head), StandardCharsets.US_ASCII));
+
+                slowBody.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Length: 10\r\n\r\n12345").getBytes(StandardCharsets.US_ASCII));
+
+                // a byte every 100ms does not extend the header deadline
+                long start = System.nanoTime();
+                slowloris.getOutputStream().write("GET / HTTP/1.1\r\nHost: l".getBytes(StandardCharsets.US_ASCII));
+                try {
+                    for (int i = 0; i < 30; i++) {
+                        Thread.sleep(100);
+                        slowloris.getOutputStream().write('o');
+                    }
+                } catch (IOException closed) {
+                }
+                assertEquals(-1, readClosed(slowloris));
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+
+                assertEquals(-1, readClosed(silent));
+                assertEquals(-1, readClosed(slowBody));
+                assertEquals(-1, readClosed(idle));
+            } finally {
+                silent.close();
+                slowloris.close();
+                slowBody.close();
+                idle.close();
+            }
+        } finally {
+            server.stop(1000);
+            server.join();
+        }
+    }
 }
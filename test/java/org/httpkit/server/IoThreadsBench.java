@@ -0,0 +1,139 @@
+package org.httpkit.server;
+
+import org.httpkit.HeaderMap;
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.httpkit.HttpUtils.HttpEncode;
+
+/**
+ * Loopback throughput of the server with 1..N IO loops.
+ * The handler answers on the IO thread, so the loops are the bottleneck.
+ * <p>
+ * Usage: IoThreadsBench [max-io-threads] [connections] [seconds] [reuse-port]
+ */
+public class IoThreadsBench {
+
+    static final byte[] REQUEST = "GET /bench HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    static class InlineHandler implements IHandler {
+        public void handle(HttpRequest request, RespCallback callback) {
+            HeaderMap headers = new HeaderMap();
+            headers.put("Content-Type", "text/plain");
+            callback.run(HttpEncode(200, headers, "hello world"));
+        }
+
+        public void handle(AsyncChannel channel, Frame frame) {
+        }
+
+        public void clientClose(AsyncChannel channel, int status) {
+        }
+
+        public void clientClose(AsyncChannel channel, int status, String reason) {
+        }
+
+        public void close(int timeoutMs) {
+        }
+    }
+
+    // Reads one response with a Content-Length body
+    static void readResponse(InputStream in, byte[] buf) throws IOException {
+        int read = 0, headerEnd = -1, length = -1;
+        while (true) {
+            int n = in.read(buf, read, buf.length - read);
+            if (n < 0) {
+                throw new IOException("closed");
+            }
+            read += n;
+            if (headerEnd < 0) {
+                String head = new String(buf, 0, read, "ISO-8859-1").toLowerCase();
+                int idx = head.indexOf("\r\n\r\n");
+                if (idx >= 0) {
+                    headerEnd = idx + 4;
+                    int cl = head.indexOf("content-length: ") + "content-length: ".length();
+                    length = Integer.parseInt(head.substring(cl, head.indexOf("\r\n", cl)));
+                }
+            }
+            if (headerEnd >= 0 && read >= headerEnd + length) {
+                return;
+            }
+        }
+    }
+
+    static long run(int ioThreads, boolean reusePort, int connections, final int seconds)
+            throws Exception {
+        HttpServer server = new HttpServer(new HttpServer.AddressFinder() {
+            public SocketAddress findAddress() {
+                return new InetSocketAddress("127.0.0.1", 0);
+            }
+        }, new HttpServer.ServerChannelFactory() {
+            public ServerSocketChannel createChannel(SocketAddress address) throws IOException {
+                return ServerSocketChannel.open();
+            }
+        }, new InlineHandler(), 1024 * 1024, 8192, 1024 * 1024, ProxyProtocolOption.DISABLED,
+                "http-kit", false, ContextLogger.ERROR_PRINTER, HttpServer.DEFAULT_WARN_LOGGER,
+                EventLogger.NOP, EventNames.DEFAULT, ioThreads, reusePort, false);
+        server.start();
+        final int port = server.getPort();
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+        for (int i = 0; i < connections; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    byte[] buf = new byte[4096];
+                    long count = 0;
+                    try (Socket socket = new Socket("127.0.0.1", port)) {
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = socket.getInputStream();
+                        while (System.currentTimeMillis() < deadline) {
+                            out.write(REQUEST);
+                            readResponse(in, buf);
+                            count++;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        total.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        server.stop(100);
+        server.join();
+        return total.get() / seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        boolean reusePort = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        run(1, false, connections, 2); // warm up
+        long base = 0;
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            long rps = run(n, reusePort, connections, seconds);
+            if (n == 1) {
+                base = rps;
+            }
+            System.out.printf("io-threads %2d: %8d req/s (x%.2f)%n", n, rps, (double) rps / base);
+        }
+    }
+}
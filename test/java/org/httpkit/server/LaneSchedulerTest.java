@@ -0,0 +1,117 @@
+package org.httpkit.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LaneSchedulerTest {
+
+    // runs what it is handed when told to
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void strictFirstThenByWeight() {
+        ManualExecutor execs = new ManualExecutor();
+        LaneScheduler scheduler = new LaneScheduler(execs, 1);
+        LaneScheduler.Lane health = scheduler.addLane("health", 1, true, 10);
+        LaneScheduler.Lane api = scheduler.addLane("api", 3, false, 100);
+        LaneScheduler.Lane batch = scheduler.addLane("batch", 1, false, 100);
+        assertEquals(api, scheduler.getLane(null));
+        assertEquals(api, scheduler.getLane("unknown"));
+
+        List<String> order = new ArrayList<String>();
+        scheduler.execute(record(order, "first"), batch); // takes the only slot
+        for (int i = 0; i < 8; i++) {
+            scheduler.execute(record(order, "batch"), batch);
+        }
+        for (int i = 0; i < 8; i++) {
+            scheduler.execute(record(order, "api"), api);
+        }
+        scheduler.execute(record(order, "health"), health);
+        assertEquals(1, execs.tasks.size());
+
+        execs.tasks.get(0).run();
+        assertEquals("first", order.get(0));
+        assertEquals("health", order.get(1));
+        // api gets 3 of every 4 while both wait, "first" counted
+        List<String> weighted = new ArrayList<String>(order);
+        weighted.remove("health");
+        int api8 = 0;
+        for (String name : weighted.subList(0, 8)) {
+            if (name.equals("api")) {
+                api8++;
+            }
+        }
+        assertEquals(6, api8);
+        assertEquals(18, order.size());
+        assertEquals(0, scheduler.getRunning());
+
+        Map<String, Object> stats = scheduler.getStats().get("batch");
+        assertEquals(9L, stats.get("dispatched"));
+        assertEquals(0, stats.get("depth"));
+    }
+
+    @Test
+    public void rejectsWhenTheLaneIsFull() {
+        ManualExecutor execs = new ManualExecutor();
+        LaneScheduler scheduler = new LaneScheduler(execs, 2);
+        LaneScheduler.Lane lane = scheduler.addLane("default", 1, false, 1);
+        List<String> order = new ArrayList<String>();
+        scheduler.execute(record(order, "a"), lane);
+        scheduler.execute(record(order, "b"), lane);
+        scheduler.execute(record(order, "c"), lane); // waits
+        try {
+            scheduler.execute(record(order, "d"), lane);
+            fail("expected a rejection");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(2, execs.tasks.size());
+        execs.tasks.get(1).run();
+        execs.tasks.get(0).run();
+        assertEquals("[b, c, a]", order.toString());
+        assertEquals(1L, scheduler.getStats().get("default").get("rejected"));
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void countsTheExecutorsRejections() {
+        LaneScheduler scheduler = new LaneScheduler(new Executor() {
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException("Queue full");
+            }
+        }, 2);
+        LaneScheduler.Lane lane = scheduler.addLane("default", 1, false, 1);
+        try {
+            scheduler.execute(record(new ArrayList<String>(), "a"), lane);
+            fail("expected a rejection");
+        } catch (RejectedExecutionException expected) {
+        }
+        Map<String, Object> stats = scheduler.getStats().get("default");
+        assertEquals(0L, stats.get("dispatched"));
+        assertEquals(1L, stats.get("rejected"));
+        assertEquals(0.0, stats.get("mean-wait-ms"));
+        assertEquals(0.0, stats.get("max-wait-ms"));
+        assertEquals(0, scheduler.getRunning());
+    }
+}
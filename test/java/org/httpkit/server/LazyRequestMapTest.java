@@ -0,0 +1,63 @@
+package org.httpkit.server;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.RT;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LazyRequestMapTest {
+
+    private static HttpRequest request() throws Exception {
+        HttpDecoder decoder = new HttpDecoder(1024, 1024, ProxyProtocolOption.DISABLED, false);
+        return decoder.decode(ByteBuffer.wrap(("POST /p?q=1 HTTP/1.1\r\nHost: localhost:8080\r\n"
+            + "Cookie: a=1\r\nCookie: b=2\r\nContent-Length: 2\r\n\r\nhi").getBytes()));
+    }
+
+    @Test
+    public void looksUpTheRequest() throws Exception {
+        HttpRequest req = request();
+        IPersistentMap m = ClojureRing.buildRequestMap(req);
+        assertEquals("/p", m.valAt(ClojureRing.URI));
+        assertEquals("q=1", m.valAt(ClojureRing.QUERY_STRING));
+        assertSame(Keyword.intern("post"), m.valAt(ClojureRing.REQUEST_METHOD));
+        assertEquals(8080, m.valAt(ClojureRing.SERVER_PORT));
+        assertEquals(2, m.valAt(ClojureRing.CONTENT_LENGTH));
+        assertEquals("a=1;b=2", ((Map) m.valAt(ClojureRing.HEADERS)).get("cookie"));
+        assertSame(m.valAt(ClojureRing.BODY), m.valAt(ClojureRing.BODY));
+        assertTrue(m.containsKey(ClojureRing.QUERY_STRING));
+        assertFalse(m.containsKey(ClojureRing.DEADLINE));
+        assertNull(m.valAt(Keyword.intern("params")));
+        assertEquals(16, m.count());
+
+        req.deadline = 42;
+        assertEquals(17, m.count());
+        assertEquals(42L, m.valAt(ClojureRing.DEADLINE));
+    }
+
+    @Test
+    public void behavesAsAPlainMap() throws Exception {
+        IPersistentMap m = ClojureRing.buildRequestMap(request());
+        Object body = m.valAt(ClojureRing.BODY);
+        IPersistentMap copy = PersistentHashMap.create((Map) m);
+        assertEquals(copy, m);
+        assertEquals(m, copy);
+        assertEquals(copy.hashCode(), m.hashCode());
+        assertEquals(16, RT.count(RT.seq(m)));
+
+        IPersistentMap assoced = m.assoc(Keyword.intern("params"), "x");
+        assertEquals("x", assoced.valAt(Keyword.intern("params")));
+        assertSame(body, assoced.valAt(ClojureRing.BODY));
+        assertEquals(15, m.without(ClojureRing.BODY).count());
+        assertEquals(16, m.count()); // unchanged
+    }
+}
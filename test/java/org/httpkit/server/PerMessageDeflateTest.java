@@ -0,0 +1,185 @@
+package org.httpkit.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.httpkit.HttpUtils;
+import org.httpkit.ProtocolException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PerMessageDeflateTest {
+
+    // a frame as sent by the server, as a client would: masked, with a zero key
+    private static ByteBuffer masked(ByteBuffer frame) {
+        byte[] b = new byte[frame.remaining()];
+        frame.get(b);
+        int header = (b[1] & 0x7f) == 126 ? 4 : (b[1] & 0x7f) == 127 ? 10 : 2;
+        ByteBuffer out = ByteBuffer.allocate(b.length + 4);
+        out.put(b, 0, header).put(new byte[4]).put(b, header, b.length - header).flip();
+        out.put(1, (byte) (b[1] | 0x80));
+        return out;
+    }
+
+    private static byte[] text(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("{\"event\":\"tick\",\"n\":").append(i % 10).append("}");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void negotiatesTheFirstAcceptableOffer() {
+        PerMessageDeflate config = new PerMessageDeflate();
+        assertEquals("permessage-deflate",
+            config.negotiate("permessage-deflate; client_max_window_bits").response);
+        assertEquals("permessage-deflate; server_no_context_takeover",
+            config.negotiate("permessage-deflate; server_max_window_bits=10, "
+                + "permessage-deflate; server_no_context_takeover").response);
+        assertNull(config.negotiate("x-webkit-deflate-frame"));
+        assertNull(config.negotiate("permessage-deflate; unknown"));
+        assertNull(config.negotiate("permessage-deflate; server_no_context_takeover; server_no_context_takeover"));
+        assertNull(config.negotiate(null));
+
+        PerMessageDeflate lean = new PerMessageDeflate(true, true, 10, 6, 0);
+        PerMessageDeflate.Session session = lean.negotiate("permessage-deflate; client_max_window_bits");
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover; "
+            + "client_max_window_bits=10", session.response);
+        assertEquals(false, session.serverContextTakeover);
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+            lean.negotiate("permessage-deflate").response); // not offered: not to be limited
+    }
+
+    @Test
+    public void compressesAndInflatesWithContextTakeover() throws ProtocolException {
+        PerMessageDeflate.Session server = new PerMessageDeflate().negotiate("permessage-deflate");
+        PerMessageDeflate.Session client = new PerMessageDeflate().negotiate("permessage-deflate");
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(client);
+        byte[] message = text(20);
+        int first = 0;
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = server.encode(WSDecoder.OPCODE_TEXT, message, message.length);
+            assertEquals(0xc1, frame.get(0) & 0xff); // FIN, RSV1, text
+            if (i == 0) {
+                first = frame.remaining();
+            } else {
+                assertTrue(frame.remaining() < first / 2); // the first one helps
+            }
+            Frame decoded = decoder.decode(masked(frame));
+            decoder.reset();
+            assertEquals(new String(message, StandardCharsets.UTF_8), ((Frame.TextFrame) decoded).getText());
+        }
+        ByteBuffer small = server.encode(WSDecoder.OPCODE_BINARY, new byte[]{1, 2}, 2);
+        assertEquals(0x82, small.get(0) & 0xff); // under minSize: as is
+        server.end();
+        client.end();
+    }
+
+    @Test
+    public void compressesEachMessageOnItsOwnWithoutContextTakeover() throws ProtocolException {
+        PerMessageDeflate config = new PerMessageDeflate(true, true, 15, 6, 0);
+        PerMessageDeflate.Session server = config.negotiate("permessage-deflate");
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(config.negotiate("permessage-deflate"));
+        byte[] message = text(20);
+        ByteBuffer first = server.encode(WSDecoder.OPCODE_BINARY, message, message.length);
+        ByteBuffer second = server.encode(WSDecoder.OPCODE_BINARY, message, message.length);
+        assertEquals(first, second);
+        assertTrue(Arrays.equals(message, decoder.decode(masked(second)).data));
+    }
+
+    @Test
+    public void compressesWithADeflaterWhoseLevelChanged() throws ProtocolException {
+        Deflater deflater = new Deflater(6, true);
+        deflater.setLevel(1); // the next deflate returns early, having set the level only
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(new PerMessageDeflate().negotiate("permessage-deflate"));
+        byte[] message = text(20);
+        ByteBuffer frame = HttpUtils.WsEncode(WSDecoder.OPCODE_BINARY, message, message.length, deflater);
+        assertEquals(0xc2, frame.get(0) & 0xff);
+        assertTrue(Arrays.equals(message, decoder.decode(masked(frame)).data));
+        deflater.end();
+    }
+
+    @Test
+    public void inflatesFragmentedMessages() throws ProtocolException {
+        PerMessageDeflate.Session server = new PerMessageDeflate().negotiate("permessage-deflate");
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(new PerMessageDeflate().negotiate("permessage-deflate"));
+        byte[] message = text(50);
+        ByteBuffer whole = masked(server.encode(WSDecoder.OPCODE_TEXT, message, message.length));
+        byte[] b = new byte[whole.remaining()];
+        whole.get(b);
+        int header = (b[1] & 0x7f) == 126 ? 8 : 6;
+        byte[] payload = Arrays.copyOfRange(b, header, b.length);
+        int half = payload.length / 2;
+        ByteBuffer first = ByteBuffer.allocate(6 + half);
+        first.put((byte) 0x41).put((byte) (0x80 | half)).put(new byte[4]).put(payload, 0, half).flip();
+        int rest = payload.length - half;
+        ByteBuffer second = ByteBuffer.allocate(6 + rest);
+        second.put((byte) 0x80).put((byte) (0x80 | rest)).put(new byte[4]).put(payload, half, rest).flip();
+        assertNull(decoder.decode(first));
+        assertTrue(Arrays.equals(message, decoder.decode(second).data));
+    }
+
+    @Test
+    public void inflatesMessagesReceivedPartially() throws ProtocolException {
+        PerMessageDeflate config = new PerMessageDeflate(true, true, 15, 6, 0);
+        PerMessageDeflate.Session server = config.negotiate("permessage-deflate");
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(config.negotiate("permessage-deflate"));
+        decoder.setPartial(true);
+        WSDecoder other = new WSDecoder(1 << 20); // another connection of the IO thread
+        other.setDeflate(config.negotiate("permessage-deflate"));
+        byte[] message = text(200);
+        ByteBuffer frame = masked(server.encode(WSDecoder.OPCODE_TEXT, message, message.length));
+        StringBuilder received = new StringBuilder();
+        boolean last = false;
+        while (frame.hasRemaining()) {
+            ByteBuffer read = frame.slice();
+            read.limit(Math.min(read.remaining(), 50));
+            frame.position(frame.position() + read.limit());
+            Frame.PartialFrame piece = (Frame.PartialFrame) decoder.decode(read);
+            if (piece != null) {
+                received.append((String) piece.getMessage());
+                last = piece.last;
+            }
+            byte[] small = text(2);
+            assertTrue(Arrays.equals(small, other.decode(masked(server.encode(WSDecoder.OPCODE_BINARY, small, small.length))).data));
+            other.reset();
+        }
+        assertTrue(last);
+        assertEquals(new String(message, StandardCharsets.UTF_8), received.toString());
+    }
+
+    @Test
+    public void enforcesTheLimitOnTheInflatedSize() throws ProtocolException {
+        PerMessageDeflate.Session server = new PerMessageDeflate().negotiate("permessage-deflate");
+        byte[] zeros = new byte[100000];
+        ByteBuffer bomb = server.encode(WSDecoder.OPCODE_BINARY, zeros, zeros.length);
+        assertTrue(bomb.remaining() < 1000);
+        WSDecoder decoder = new WSDecoder(10000);
+        decoder.setDeflate(new PerMessageDeflate().negotiate("permessage-deflate"));
+        try {
+            decoder.decode(masked(bomb));
+            fail("Expected the inflated message to be too large");
+        } catch (WebSocketException e) {
+            assertEquals(1009, e.getCloseStatus());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsCompressedMessagesUnlessNegotiated() throws ProtocolException {
+        PerMessageDeflate.Session server = new PerMessageDeflate().negotiate("permessage-deflate");
+        byte[] message = text(20);
+        new WSDecoder(1 << 20).decode(masked(server.encode(WSDecoder.OPCODE_TEXT, message, message.length)));
+    }
+}
@@ -0,0 +1,115 @@
+package org.httpkit.server;
+
+import static org.httpkit.server.ClojureRing.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashMap;
+
+/**
+ * The Ring request map of a typical browser request: the eager
+ * PersistentHashMap it replaced, against {@link LazyRequestMap}. A handler
+ * reading two keys, then one reading the headers and the body after a
+ * middleware assoc'ed :params. In ns and bytes allocated per request, the
+ * request itself decoded beforehand.
+ * <p>
+ * Usage: RequestMapBench [seconds]
+ */
+public class RequestMapBench {
+
+    // the previous ClojureRing.buildRequestMap
+    static IPersistentMap eagerRequestMap(HttpRequest req) {
+        ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+        if (req.deadline != 0) {
+            m = m.assoc(DEADLINE, req.deadline);
+        }
+        return
+            m
+            .assoc(SERVER_PORT, req.serverPort)
+            .assoc(SERVER_NAME, req.serverName)
+            .assoc(PROTOCOL, req.protocol())
+            .assoc(REMOTE_ADDR, req.getRemoteAddr())
+            .assoc(URI, req.uri)
+            .assoc(QUERY_STRING, req.queryString)
+            .assoc(SCHEME, req.isSecure ? HTTPS : HTTP)
+            .assoc(ASYC_CHANNEL, req.channel)
+            .assoc(WEBSOCKET, req.isWebSocket)
+            .assoc(REQUEST_METHOD, req.method.KEY)
+            .assoc(START_TIME, req.startTime)
+            .assoc(HEADERS, PersistentArrayMap.create(ringHeaders(req.headers)))
+            .assoc(CONTENT_TYPE, req.contentType)
+            .assoc(CONTENT_LENGTH, req.contentLength)
+            .assoc(CHARACTER_ENCODING, req.charset)
+            .assoc(BODY, req.getBody())
+            .persistent();
+    }
+
+    static final Keyword PARAMS = Keyword.intern("params");
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static Object handle(IPersistentMap m, boolean middleware) {
+        if (!middleware) {
+            return m.valAt(URI) == null ? null : m.valAt(REQUEST_METHOD);
+        }
+        IPersistentMap withParams = m.assoc(PARAMS, PersistentArrayMap.EMPTY);
+        ((java.util.Map) withParams.valAt(HEADERS)).get("accept");
+        return withParams.valAt(BODY);
+    }
+
+    static Object sink;
+
+    static void run(HttpRequest req, boolean lazy, boolean middleware, int seconds, boolean print) {
+        long probe = allocated();
+        long overhead = allocated() - probe; // of the measurement itself
+        long requests = 0;
+        long allocated = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            long before = allocated();
+            for (int i = 0; i < 1000; i++) {
+                IPersistentMap m = lazy ? buildRequestMap(req) : eagerRequestMap(req);
+                sink = handle(m, middleware);
+            }
+            allocated += allocated() - before - overhead;
+            requests += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-6s %-10s %8.1f ns/request %8.1f bytes/request%n",
+                lazy ? "lazy" : "eager", middleware ? "middleware" : "2 keys",
+                (double) elapsed / requests, (double) allocated / requests);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        HttpDecoder decoder = new HttpDecoder(8192, 8192, ProxyProtocolOption.DISABLED, false);
+        HttpRequest req = decoder.decode(ByteBuffer.wrap((
+            "GET /api/items?page=2 HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Cookie: session=0123456789abcdef\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes()));
+        req.remoteAddr = new java.net.InetSocketAddress("127.0.0.1", 54321);
+
+        for (boolean middleware : new boolean[]{false, true}) {
+            run(req, false, middleware, 2, false); // warm up
+            run(req, true, middleware, 2, false);
+            run(req, false, middleware, seconds, true);
+            run(req, true, middleware, seconds, true);
+        }
+    }
+}
@@ -1,19 +1,25 @@
 package org.httpkit.server;
 
+import clojure.lang.AFn;
 import clojure.lang.IPersistentMap;
 import clojure.lang.PersistentArrayMap;
 import org.httpkit.LineTooLargeException;
 import org.httpkit.ProtocolException;
 import org.httpkit.RequestTooLargeException;
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
 import org.httpkit.server.MockClojureHandler;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -33,7 +39,7 @@ public class RingHandlerTest {
         RingHandler ringHandler = new RingHandler(new MockClojureHandler(aDummyResponse()), false, testWorkerPool);
         ringHandler.handle(aDummyRequest(), new MockRespCallback(assertionItems));
 
-        Thread.sleep(50);
+        awaitResponse(assertionItems);
 
         assertDummyRequestReceived(assertionItems);
     }
@@ -45,11 +51,133 @@ public class RingHandlerTest {
         RingHandler ringHandler = new RingHandler(1, new MockClojureHandler(aDummyResponse()), false, "some-prefix", 2, "http-kit");
         ringHandler.handle(aDummyRequest(), new MockRespCallback(assertionItems));
 
-        Thread.sleep(50);
+        awaitResponse(assertionItems);
 
         assertDummyRequestReceived(assertionItems);
     }
 
+    @Test
+    public void bulkheadPoolShedsItsOldestQueuedRequest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AFn slow = new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return aDummyResponse();
+            }
+        };
+        ThreadPoolExecutor reports = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        reports.setRejectedExecutionHandler(new RingHandler.ShedOldestPolicy());
+        ExecutorService defaultPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        RingHandler ringHandler = new RingHandler(slow, false, defaultPool);
+        ringHandler.setPools(Collections.<Object, ExecutorService>singletonMap("reports", reports), new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                return "reports";
+            }
+        });
+
+        Vector<String> running = new Vector<String>();
+        Vector<String> oldest = new Vector<String>();
+        Vector<String> newest = new Vector<String>();
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(running));
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(oldest));
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(newest)); // queue full
+
+        Assert.assertThat(oldest.size(), is(1));
+        Assert.assertThat(oldest.firstElement(), containsString("503"));
+        release.countDown();
+        ringHandler.close(1000);
+        Assert.assertTrue(reports.isTerminated());
+        assertDummyRequestReceived(running);
+        assertDummyRequestReceived(newest);
+    }
+
+    @Test
+    public void autoscalingBulkheadPoolShedsItsOldestQueuedRequest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AFn slow = new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return aDummyResponse();
+            }
+        };
+        AutoScalingExecutor reports = new AutoScalingExecutor(1, 1, 20, 3600000,
+            new ArrayBlockingQueue<Runnable>(1), "autoscaling-reports-");
+        reports.setRejectedExecutionHandler(new RingHandler.ShedOldestPolicy());
+        ExecutorService defaultPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        RingHandler ringHandler = new RingHandler(slow, false, defaultPool);
+        ringHandler.setPools(Collections.<Object, ExecutorService>singletonMap("reports", reports), new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                return "reports";
+            }
+        });
+
+        Vector<String> running = new Vector<String>();
+        Vector<String> oldest = new Vector<String>();
+        Vector<String> newest = new Vector<String>();
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(running));
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(oldest));
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(newest)); // queue full
+
+        Assert.assertThat(oldest.size(), is(1));
+        Assert.assertThat(oldest.firstElement(), containsString("503"));
+        release.countDown();
+        ringHandler.close(1000);
+        Assert.assertTrue(reports.isTerminated());
+        assertDummyRequestReceived(running);
+        assertDummyRequestReceived(newest);
+    }
+
+    @Test
+    public void inlineHandlersRunOnTheCallingThreadWatched() throws Exception {
+        final Vector<String> logged = new Vector<String>();
+        ContextLogger<String, Throwable> errorLogger = new ContextLogger<String, Throwable>() {
+            public void log(String message, Throwable error) {
+                logged.add(message);
+            }
+        };
+        final Thread caller = Thread.currentThread();
+        AFn slow = new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                Assert.assertSame(caller, Thread.currentThread());
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return aDummyResponse();
+            }
+        };
+        ExecutorService saturated = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        saturated.shutdown(); // rejects all
+        RingHandler ringHandler = new RingHandler(slow, false, saturated, errorLogger,
+            EventLogger.NOP, EventNames.DEFAULT, "http-kit", true);
+        ringHandler.setInline(new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                return Boolean.TRUE;
+            }
+        }, 20);
+
+        Vector<String> responses = new Vector<String>();
+        ringHandler.handle(aDummyRequest(), new MockRespCallback(responses));
+        assertDummyRequestReceived(responses); // synchronously
+        Assert.assertThat(logged.size(), is(1));
+        Assert.assertThat(logged.firstElement(), containsString("inline handler running for"));
+        ringHandler.close(0);
+    }
 
     public class MockRespCallback extends RespCallback {
         private Vector<String> storage;
@@ -109,6 +237,15 @@ public class RingHandlerTest {
                 "x-forwarded-for: 0.0.0.0:80");
     }
 
+    // the first request of the JVM also loads the handler's classes
+    private void awaitResponse(Vector<String> assertionItems) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (assertionItems.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50); // not to miss a second one
+    }
+
     private void assertDummyRequestReceived(Vector<String> assertionItems) {
         Assert.assertThat("should return only one single response", assertionItems.size(), is(1));
         String element = assertionItems.firstElement();
@@ -270,4 +270,81 @@ public class RingResponseTest {
         assertTrue(callback.response().startsWith("HTTP/1.1 200 "));
         assertTrue(callback.response().endsWith("first"));
     }
+
+    @Test
+    public void requestsPastTheirDeadlineAreShedUnhandled() throws Exception {
+        final Map<Keyword, Object> response = new HashMap<Keyword, Object>();
+        final Object[] seen = new Object[1];
+        IFn handler = new AFn() {
+            @Override
+            public Object invoke(Object req) {
+                seen[0] = ((Map) req).get(ClojureRing.DEADLINE);
+                return response;
+            }
+        };
+        HttpRequest late = request("GET");
+        late.setStartTime(System.nanoTime() - 2000000000L);
+        late.deadline = late.startTime + 1000000000L;
+        CapturingCallback callback = new CapturingCallback();
+        new HttpHandler(late, callback, handler, false,
+            ContextLogger.ERROR_PRINTER, EventLogger.NOP, EventNames.DEFAULT,
+            "test-server", true).run();
+        assertTrue(callback.response().startsWith("HTTP/1.1 503 "));
+        assertEquals(null, seen[0]);
+
+        HttpRequest timely = request("GET");
+        timely.setStartTime(System.nanoTime());
+        timely.deadline = timely.startTime + 60000000000L;
+        callback = new CapturingCallback();
+        new HttpHandler(timely, callback, handler, false,
+            ContextLogger.ERROR_PRINTER, EventLogger.NOP, EventNames.DEFAULT,
+            "test-server", true).run();
+        assertTrue(callback.response().startsWith("HTTP/1.1 200 "));
+        assertEquals(timely.deadline, seen[0]);
+    }
+
+    private String respondWith(HttpRequest request, final Object response) {
+        IFn handler = new AFn() {
+            @Override
+            public Object invoke(Object ignored) {
+                return response;
+            }
+        };
+        CapturingCallback callback = new CapturingCallback();
+        new HttpHandler(request, callback, handler, false,
+            ContextLogger.ERROR_PRINTER, EventLogger.NOP, EventNames.DEFAULT,
+            "test-server", true).run();
+        return callback.response().replaceAll("Date: [^\r]*\r\n", "");
+    }
+
+    @Test
+    public void staticResponsesAreEncodedAsTheirRingMap() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("content-type", "text/plain");
+        final Map<Keyword, Object> map = new HashMap<Keyword, Object>();
+        map.put(ClojureRing.STATUS, 201);
+        map.put(ClojureRing.HEADERS, headers);
+        map.put(ClojureRing.BODY, "hello");
+        StaticResponse compiled = StaticResponse.compile(map);
+
+        HttpRequest closing = request("GET");
+        closing.isKeepAlive = false;
+        HttpRequest[] requests = {request("GET"), request("HEAD"), closing, request("GET")};
+        for (HttpRequest request : requests) { // the same lines, maybe in another order
+            String[] expected = respondWith(request, map).split("\r\n");
+            String[] actual = respondWith(request, compiled).split("\r\n");
+            java.util.Arrays.sort(expected);
+            java.util.Arrays.sort(actual);
+            assertEquals(java.util.Arrays.asList(expected), java.util.Arrays.asList(actual));
+        }
+        assertTrue(respondWith(closing, compiled).contains("Connection: Close\r\n"));
+        assertTrue(respondWith(requests[0], compiled).endsWith("\r\n\r\nhello"));
+    }
+
+    @Test
+    public void rawResponsesAreWrittenAsReturned() throws Exception {
+        final ByteBuffer[] raw = {ByteBuffer.wrap("HTTP/1.1 204 No Content\r\n\r\n".getBytes())};
+        assertEquals("HTTP/1.1 204 No Content\r\n\r\n", respondWith(request("GET"), raw));
+        assertEquals("HTTP/1.1 204 No Content\r\n\r\n", respondWith(request("GET"), raw));
+    }
 }
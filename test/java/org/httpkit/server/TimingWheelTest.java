@@ -0,0 +1,67 @@
+package org.httpkit.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static List<TimingWheel.Timeout> expired(TimingWheel wheel, long now) {
+        List<TimingWheel.Timeout> expired = new ArrayList<TimingWheel.Timeout>();
+        for (TimingWheel.Timeout t = wheel.advance(now); t != null; t = t.next) {
+            expired.add(t);
+        }
+        return expired;
+    }
+
+    @Test
+    public void expiresOnlyWhatIsDue() {
+        TimingWheel wheel = new TimingWheel(1000);
+        TimingWheel.Timeout soon = new TimingWheel.Timeout(null, null);
+        TimingWheel.Timeout later = new TimingWheel.Timeout(null, null);
+        TimingWheel.Timeout cancelled = new TimingWheel.Timeout(null, null);
+        wheel.arm(soon, HttpServer.TIMEOUT_HEADER, 250, 1000);
+        wheel.arm(later, HttpServer.TIMEOUT_BODY, 2000, 1000);
+        wheel.arm(cancelled, HttpServer.TIMEOUT_BODY, 250, 1000);
+        wheel.cancel(cancelled);
+        assertEquals(0, cancelled.phase);
+
+        assertTrue(expired(wheel, 1200).isEmpty());
+        List<TimingWheel.Timeout> due = expired(wheel, 1300);
+        assertEquals(1, due.size());
+        assertSame(soon, due.get(0));
+        assertEquals(HttpServer.TIMEOUT_HEADER, soon.phase); // kept for the caller
+
+        // re-armed on activity: pushed back
+        wheel.arm(later, HttpServer.TIMEOUT_BODY, 2000, 2900);
+        assertTrue(expired(wheel, 3100).isEmpty());
+        assertSame(later, expired(wheel, 4900).get(0));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void keepsDeadlinesMoreThanATurnAway() {
+        TimingWheel wheel = new TimingWheel(0);
+        TimingWheel.Timeout far = new TimingWheel.Timeout(null, null);
+        TimingWheel.Timeout near = new TimingWheel.Timeout(null, null);
+        wheel.arm(far, HttpServer.TIMEOUT_KEEP_ALIVE, 120000, 0); // a few turns
+        wheel.arm(near, HttpServer.TIMEOUT_WS, 100, 0);
+        long now = 0;
+        for (; now < 119900; now += TimingWheel.TICK_MS) {
+            for (TimingWheel.Timeout t : expired(wheel, now)) {
+                assertSame(near, t);
+            }
+        }
+        assertFalse(wheel.isEmpty());
+        // a loop stalled past several turns still finds it
+        assertSame(far, expired(wheel, 500000).get(0));
+        assertNull(wheel.advance(600000));
+    }
+}
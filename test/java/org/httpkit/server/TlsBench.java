@@ -0,0 +1,126 @@
+package org.httpkit.server;
+
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback TLS benchmark: handshakes/sec with a new connection per request, with
+ * and without session resumption, then keep-alive request throughput.
+ * <p>
+ * Usage: TlsBench [connections] [seconds] [protocol, eg: TLSv1.2]
+ */
+public class TlsBench {
+
+    enum Mode { FULL_HANDSHAKE, RESUMED, KEEP_ALIVE }
+
+    static final byte[] REQUEST = IoThreadsBench.REQUEST;
+    static final byte[] CLOSE_REQUEST =
+        "GET /bench HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+
+    static long run(final Mode mode, int connections, final int seconds, final String protocol)
+            throws Exception {
+        HttpServer server = new HttpServer(new HttpServer.AddressFinder() {
+            public SocketAddress findAddress() {
+                return new InetSocketAddress("127.0.0.1", 0);
+            }
+        }, new HttpServer.ServerChannelFactory() {
+            public ServerSocketChannel createChannel(SocketAddress address) throws IOException {
+                return ServerSocketChannel.open();
+            }
+        }, new IoThreadsBench.InlineHandler(), 1024 * 1024, 8192, 1024 * 1024,
+                ProxyProtocolOption.DISABLED, "http-kit", false, ContextLogger.ERROR_PRINTER,
+                HttpServer.DEFAULT_WARN_LOGGER, EventLogger.NOP, EventNames.DEFAULT, 1, false, false);
+        server.setSslContext(HttpServerProtocolTest.serverSslContext(), null);
+        server.start();
+
+        final int port = server.getPort();
+        final SSLContext client = HttpServerProtocolTest.trustAllSslContext();
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+        for (int i = 0; i < connections; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    SSLSocketFactory factory = client.getSocketFactory();
+                    byte[] buf = new byte[4096];
+                    long count = 0;
+                    try {
+                        if (mode == Mode.KEEP_ALIVE) {
+                            SSLSocket socket = open(factory, port, protocol);
+                            try {
+                                OutputStream out = socket.getOutputStream();
+                                InputStream in = socket.getInputStream();
+                                while (System.currentTimeMillis() < deadline) {
+                                    out.write(REQUEST);
+                                    IoThreadsBench.readResponse(in, buf);
+                                    count++;
+                                }
+                            } finally {
+                                socket.close();
+                            }
+                        } else {
+                            while (System.currentTimeMillis() < deadline) {
+                                SSLSocket socket = open(factory, port, protocol);
+                                try {
+                                    socket.getOutputStream().write(CLOSE_REQUEST);
+                                    IoThreadsBench.readResponse(socket.getInputStream(), buf);
+                                    count++;
+                                    if (mode == Mode.FULL_HANDSHAKE) {
+                                        socket.getSession().invalidate();
+                                    }
+                                } finally {
+                                    socket.close();
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        total.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        server.stop(100);
+        server.join();
+        return total.get() / seconds;
+    }
+
+    static SSLSocket open(SSLSocketFactory factory, int port, String protocol) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        if (protocol != null) {
+            socket.setEnabledProtocols(new String[]{protocol});
+        }
+        return socket;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String protocol = args.length > 2 ? args[2] : null;
+
+        run(Mode.RESUMED, connections, 2, protocol); // warm up
+        for (Mode mode : Mode.values()) {
+            long rps = run(mode, connections, seconds, protocol);
+            System.out.printf("%-15s %8d %s%n", mode, rps,
+                mode == Mode.KEEP_ALIVE ? "req/s" : "handshakes/s");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.httpkit.server;
+
+import org.httpkit.logger.ContextLogger;
+import org.httpkit.logger.EventLogger;
+import org.httpkit.logger.EventNames;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback fan-out of a WebSocket message to N connections: send! on each
+ * channel versus {@link Topic#broadcast}, in CPU ns and bytes allocated by
+ * the sending thread per message and per connection. The clients only read
+ * and count the bytes.
+ * <p>
+ * Usage: TopicBench [connections] [messages] [message bytes]
+ */
+public class TopicBench {
+
+    static final byte[] UPGRADE = ("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+        + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+        .getBytes();
+
+    static class WsHandler extends IoThreadsBench.InlineHandler {
+        final Topic topic = new Topic("bench");
+        final List<AsyncChannel> channels = new ArrayList<AsyncChannel>();
+
+        @Override
+        public void handle(HttpRequest request, RespCallback callback) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put("Upgrade", "websocket");
+            headers.put("Connection", "Upgrade");
+            headers.put("Sec-WebSocket-Accept", "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+            request.channel.sendHandshake(headers);
+            topic.subscribe(request.channel);
+            synchronized (channels) {
+                channels.add(request.channel);
+            }
+        }
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long cpu() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    // reads, counting, until stopped
+    static Thread drain(final Selector selector, final AtomicLong received) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (selector.isOpen()) {
+                        selector.select(100);
+                        for (SelectionKey key : selector.selectedKeys()) {
+                            buf.clear();
+                            int n = ((SocketChannel) key.channel()).read(buf);
+                            if (n > 0) {
+                                received.addAndGet(n);
+                            }
+                        }
+                        selector.selectedKeys().clear();
+                    }
+                } catch (Exception ignore) {
+                }
+            }
+        }, "drain");
+        t.start();
+        return t;
+    }
+
+    static void run(boolean broadcast, WsHandler handler, String message, int messages,
+                    AtomicLong received, boolean print) throws Exception {
+        long expected = received.get();
+        int frame = org.httpkit.HttpUtils.WsEncode(WSDecoder.OPCODE_TEXT, message.getBytes("UTF-8")).remaining();
+        List<AsyncChannel> channels = handler.channels;
+        long probe = allocated();
+        long overhead = allocated() - probe;
+        long allocated = 0;
+        long start = cpu();
+        for (int i = 0; i < messages; i++) {
+            long before = allocated();
+            if (broadcast) {
+                handler.topic.broadcast(message);
+            } else {
+                for (AsyncChannel ch : channels) {
+                    ch.send(message, false);
+                }
+            }
+            allocated += allocated() - before - overhead;
+        }
+        long elapsed = cpu() - start;
+        expected += (long) frame * messages * channels.size();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        if (print) {
+            long fanOut = (long) messages * channels.size();
+            System.out.printf("%-10s %10.1f us/message %8.1f ns/connection %8.1f bytes allocated/connection%s%n",
+                broadcast ? "broadcast" : "send!", elapsed / 1000.0 / messages, (double) elapsed / fanOut,
+                (double) allocated / fanOut, received.get() < expected ? " (not all received)" : "");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        WsHandler handler = new WsHandler();
+        HttpServer server = new HttpServer(new HttpServer.AddressFinder() {
+            public SocketAddress findAddress() {
+                return new InetSocketAddress("127.0.0.1", 0);
+            }
+        }, new HttpServer.ServerChannelFactory() {
+            public ServerSocketChannel createChannel(SocketAddress address) throws IOException {
+                return ServerSocketChannel.open();
+            }
+        }, handler, 1024 * 1024, 8192, 1024 * 1024,
+                ProxyProtocolOption.DISABLED, "http-kit", false, ContextLogger.ERROR_PRINTER,
+                HttpServer.DEFAULT_WARN_LOGGER, EventLogger.NOP, EventNames.DEFAULT, 1, false, false);
+        server.start();
+
+        Selector selector = Selector.open();
+        List<SocketChannel> clients = new ArrayList<SocketChannel>();
+        ByteBuffer head = ByteBuffer.allocate(1024);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+            ch.write(ByteBuffer.wrap(UPGRADE));
+            head.clear();
+            while (head.position() < 4 || head.get(head.position() - 1) != '\n'
+                    || head.get(head.position() - 3) != '\n') {
+                ch.read(head);
+            }
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+            clients.add(ch);
+        }
+        while (handler.channels.size() < connections) {
+            Thread.sleep(10);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("{\"event\":\"tick\"}");
+        }
+        String message = sb.substring(0, size);
+        AtomicLong received = new AtomicLong();
+        Thread drain = drain(selector, received);
+
+        run(false, handler, message, messages / 4, received, false); // warm up
+        run(true, handler, message, messages / 4, received, false);
+        run(false, handler, message, messages, received, true);
+        run(true, handler, message, messages, received, true);
+
+        selector.close();
+        drain.join();
+        for (SocketChannel ch : clients) {
+            ch.close();
+        }
+        server.stop(1000);
+    }
+}
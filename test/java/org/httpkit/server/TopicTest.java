@@ -0,0 +1,87 @@
+package org.httpkit.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.httpkit.HttpUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TopicTest {
+
+    @Test
+    public void registersTopicsAsFirstSubscribedTo() {
+        TopicRegistry registry = new TopicRegistry();
+        AsyncChannel a = new AsyncChannel(null, null);
+        AsyncChannel b = new AsyncChannel(null, null);
+        assertNull(registry.get("room"));
+        assertTrue(registry.subscribe("room", a));
+        assertFalse(registry.subscribe("room", a));
+        assertTrue(registry.subscribe("room", b));
+        Topic room = registry.topic("room");
+        assertSame(room, registry.get("room"));
+        assertEquals(2, room.size());
+        assertTrue(registry.unsubscribe("room", a));
+        assertFalse(registry.unsubscribe("room", a));
+        assertFalse(registry.unsubscribe("other", b));
+        assertEquals(0, registry.broadcast("other", "hi"));
+        assertSame(room, registry.remove("room"));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void dropsClosedChannelsAndSkipsHttpOnes() {
+        Topic topic = new Topic("t");
+        AsyncChannel closed = new AsyncChannel(null, null);
+        AsyncChannel http = new AsyncChannel(null, null); // never upgraded
+        topic.subscribe(closed);
+        topic.subscribe(http);
+        closed.onClose(-1);
+        assertEquals(0, topic.broadcast("hi"));
+        assertFalse(topic.isSubscribed(closed));
+        assertTrue(topic.isSubscribed(http));
+    }
+
+    @Test
+    public void encodesTheFrameOnce() {
+        Topic.Message m = new Topic.Message("hello");
+        ByteBuffer first = m.frame(null);
+        ByteBuffer second = m.frame(null);
+        assertNotSame(first, second);
+        assertTrue(first.isReadOnly());
+        assertTrue(first.isDirect());
+        assertEquals(HttpUtils.WsEncode(WSDecoder.OPCODE_TEXT, "hello".getBytes(StandardCharsets.UTF_8)), first);
+        first.position(first.limit()); // written to one connection: not to the others
+        assertEquals(7, second.remaining());
+        assertEquals(7, m.frame(null).remaining());
+
+        Topic.Message binary = new Topic.Message(new byte[]{1, 2, 3});
+        assertEquals(0x82, binary.frame(null).get(0) & 0xff);
+    }
+
+    @Test
+    public void sharesTheFrameCompressedWithoutContextTakeover() {
+        PerMessageDeflate config = new PerMessageDeflate(true, true, 15, 6, 0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("{\"event\":\"tick\"}");
+        }
+        Topic.Message m = new Topic.Message(sb.toString());
+        ByteBuffer a = m.frame(config.negotiate("permessage-deflate"));
+        ByteBuffer b = m.frame(config.negotiate("permessage-deflate"));
+        assertEquals(0xc1, a.get(0) & 0xff); // FIN, RSV1, text
+        assertEquals(a, b);
+        assertTrue(a.remaining() < sb.length() / 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void broadcastsStringsAndBytesOnly() {
+        new Topic("t").broadcast(42);
+    }
+}
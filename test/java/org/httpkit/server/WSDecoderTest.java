@@ -0,0 +1,211 @@
+package org.httpkit.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.httpkit.ProtocolException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WSDecoderTest {
+
+    // a client frame, masked
+    static byte[] frame(int b0, byte[] payload) {
+        int[] key = {0x12, 0x34, 0x56, 0x78};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(b0);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length < 65536) {
+            out.write(0x80 | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) ((long) payload.length >>> (8 * i)));
+            }
+        }
+        for (int k : key) {
+            out.write(k);
+        }
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ key[i & 3]);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) {
+            out.write(p, 0, p.length);
+        }
+        return out.toByteArray();
+    }
+
+    // decodes the bytes fed a few at a time, as read from a socket
+    static List<Frame> decode(WSDecoder decoder, byte[] bytes, int readSize) throws ProtocolException {
+        List<Frame> frames = new ArrayList<Frame>();
+        for (int i = 0; i < bytes.length; i += readSize) {
+            ByteBuffer read = ByteBuffer.wrap(bytes, i, Math.min(readSize, bytes.length - i));
+            while (read.hasRemaining()) {
+                Frame f = decoder.decode(read);
+                if (f != null) {
+                    frames.add(f);
+                    if (!(f instanceof Frame.PartialFrame)) {
+                        decoder.reset();
+                    }
+                }
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void decodesFragmentedMessagesWhole() throws ProtocolException {
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        byte[] bytes = concat(frame(0x01, "hel".getBytes()), frame(0x89, "p".getBytes()),
+            frame(0x80, "lo".getBytes()));
+        List<Frame> frames = decode(decoder, bytes, 3);
+        assertEquals(2, frames.size());
+        assertTrue(frames.get(0) instanceof Frame.PingFrame);
+        assertEquals("hello", ((Frame.TextFrame) frames.get(1)).getText());
+    }
+
+    @Test
+    public void deliversPiecesAsRead() throws ProtocolException {
+        WSDecoder decoder = new WSDecoder(16); // the limit of pieces, not of messages
+        decoder.setPartial(true);
+        String message = "héllo wörld, € 😀!"; // characters of 2, 3 and 4 bytes
+        byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = concat(frame(0x01, Arrays.copyOfRange(utf8, 0, 10)),
+            frame(0x89, "p".getBytes()), // a ping in between
+            frame(0x00, Arrays.copyOfRange(utf8, 10, 20)),
+            frame(0x80, Arrays.copyOfRange(utf8, 20, utf8.length)),
+            frame(0x82, new byte[]{1, 2, 3}));
+        for (int readSize = 1; readSize < 20; readSize++) {
+            StringBuilder text = new StringBuilder();
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            int pings = 0, lasts = 0;
+            for (Frame f : decode(decoder, bytes, readSize)) {
+                if (f instanceof Frame.PingFrame) {
+                    pings++;
+                    continue;
+                }
+                Frame.PartialFrame piece = (Frame.PartialFrame) f;
+                assertTrue(piece.data.length <= readSize);
+                if (piece.getMessage() instanceof String) {
+                    assertEquals(0, binary.size());
+                    text.append((String) piece.getMessage());
+                } else {
+                    binary.write(piece.data, 0, piece.data.length);
+                }
+                lasts += piece.last ? 1 : 0;
+            }
+            assertEquals(message, text.toString());
+            assertArrayEquals(new byte[]{1, 2, 3}, binary.toByteArray());
+            assertEquals(1, pings);
+            assertEquals(2, lasts);
+        }
+    }
+
+    @Test
+    public void endsMessagesWithAnEmptyFinalFrame() throws ProtocolException {
+        WSDecoder decoder = new WSDecoder(1024);
+        decoder.setPartial(true);
+        List<Frame> frames = decode(decoder, concat(frame(0x02, new byte[]{1}), frame(0x80, new byte[0])), 64);
+        assertEquals(2, frames.size());
+        assertFalse(((Frame.PartialFrame) frames.get(0)).last);
+        assertTrue(((Frame.PartialFrame) frames.get(1)).last);
+        assertEquals(0, frames.get(1).data.length);
+    }
+
+    @Test
+    public void rejectsInvalidUtf8SplitAcrossPieces() throws ProtocolException {
+        WSDecoder decoder = new WSDecoder(1024);
+        decoder.setPartial(true);
+        byte[] truncated = {'a', (byte) 0xe2, (byte) 0x82}; // a 3 bytes character, cut short
+        List<Frame> frames = decode(decoder, frame(0x01, truncated), 64);
+        assertEquals("a", ((Frame.PartialFrame) frames.get(0)).getMessage());
+        try {
+            decode(decoder, frame(0x80, new byte[]{'b'}), 64);
+            fail("Expected invalid UTF-8");
+        } catch (WebSocketException e) {
+            assertEquals(1007, e.getCloseStatus());
+        }
+    }
+
+    @Test
+    public void unmasksAtAnyOffset() {
+        Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            byte[] data = new byte[random.nextInt(40)];
+            random.nextBytes(data);
+            int key = random.nextInt();
+            int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+            int length = data.length - offset;
+            int index = random.nextInt(100); // of data[offset] in the frame's payload
+            byte[] expected = data.clone();
+            for (int i = 0; i < length; i++) {
+                expected[offset + i] ^= (byte) (key >>> (24 - (((index + i) & 3) << 3)));
+            }
+            WSDecoder.unmask(data, offset, length, key, index);
+            assertArrayEquals(expected, data);
+        }
+    }
+
+    @Test
+    public void validatesUtf8AsTheJdkDoes() throws WebSocketException {
+        byte[][] invalid = {
+            {(byte) 0xc0, (byte) 0x80}, // overlong
+            {(byte) 0xe0, (byte) 0x80, (byte) 0x80},
+            {(byte) 0xed, (byte) 0xa0, (byte) 0x80}, // a surrogate
+            {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80}, // above U+10FFFF
+            {(byte) 0xf5, (byte) 0x80, (byte) 0x80, (byte) 0x80},
+            {'a', (byte) 0x80},
+            {(byte) 0xe2, 'a', 'b'},
+        };
+        for (byte[] b : invalid) {
+            assertTrue(WSDecoder.checkUtf8(b, 0, b.length) < 0);
+        }
+        byte[] cut = "ab€".getBytes(StandardCharsets.UTF_8);
+        assertEquals(2, WSDecoder.checkUtf8(cut, 0, cut.length - 1));
+        assertEquals(cut.length, WSDecoder.checkUtf8(cut, 0, cut.length));
+
+        Random random = new Random(42);
+        CharsetDecoder jdk = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        for (int n = 0; n < 20000; n++) {
+            byte[] b = new byte[random.nextInt(12)];
+            for (int i = 0; i < b.length; i++) { // mostly ASCII, and bytes that start sequences
+                int r = random.nextInt(4);
+                b[i] = (byte) (r == 0 ? random.nextInt(128) : r == 1 ? 0x80 + random.nextInt(64) : 0xc0 + random.nextInt(64));
+            }
+            boolean valid;
+            String expected = null;
+            try {
+                expected = jdk.decode(ByteBuffer.wrap(b)).toString();
+                valid = true;
+            } catch (CharacterCodingException e) {
+                valid = false;
+            }
+            assertEquals(Arrays.toString(b), valid, WSDecoder.checkUtf8(b, 0, b.length) == b.length);
+            if (valid) {
+                assertEquals(expected, WSDecoder.decodeUtf8(b, 0, b.length));
+            }
+        }
+    }
+}
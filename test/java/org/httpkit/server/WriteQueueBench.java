@@ -0,0 +1,117 @@
+package org.httpkit.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The write queue on its own: a streaming / WebSocket like connection queues
+ * small buffers while the socket takes a few KB per writable event. Compares
+ * {@link WriteQueue} with the LinkedList and per-write array it replaced, in
+ * ns and bytes allocated per drained buffer.
+ * <p>
+ * Usage: WriteQueueBench [buffers per burst] [socket bytes per write] [seconds]
+ */
+public class WriteQueueBench {
+
+    // the previous HttpServer.doWrite
+    static boolean linkedListWrite(WriteQueueTest.SlowChannel ch, LinkedList<ByteBuffer> toWrites) {
+        int size = toWrites.size();
+        if (size == 1) {
+            ch.write(toWrites.get(0));
+        } else if (size > 0) {
+            ByteBuffer[] buffers = new ByteBuffer[size];
+            toWrites.toArray(buffers);
+            ch.write(buffers, 0, buffers.length);
+        }
+        Iterator<ByteBuffer> ite = toWrites.iterator();
+        while (ite.hasNext()) {
+            if (!ite.next().hasRemaining()) {
+                ite.remove();
+            }
+        }
+        return toWrites.isEmpty();
+    }
+
+    // a sink that does not keep the bytes
+    static class Sink extends WriteQueueTest.SlowChannel {
+        Sink() {
+            super(0);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(limit, src.remaining());
+            src.position(src.position() + n);
+            limit -= n;
+            return n;
+        }
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void run(boolean linkedList, int burst, int socketBytes, int seconds, boolean print)
+            throws IOException {
+        byte[] frame = new byte[64];
+        ByteBuffer[] iov = new ByteBuffer[WriteQueue.IOV_MAX];
+        LinkedList<ByteBuffer> list = new LinkedList<ByteBuffer>();
+        WriteQueue queue = new WriteQueue();
+        Sink ch = new Sink();
+        // allocated by the producer in both cases, not counted
+        ByteBuffer[] frames = new ByteBuffer[burst];
+        for (int i = 0; i < burst; i++) {
+            frames[i] = ByteBuffer.wrap(frame);
+        }
+
+        long probe = allocated();
+        long overhead = allocated() - probe; // of the measurement itself
+        long buffers = 0;
+        long allocated = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            for (int round = 0; round < 1000; round++) {
+                for (ByteBuffer f : frames) {
+                    f.clear();
+                }
+                long before = allocated();
+                for (ByteBuffer f : frames) {
+                    if (linkedList) {
+                        list.add(f);
+                    } else {
+                        queue.add(f);
+                    }
+                }
+                boolean done = false;
+                while (!done) { // one writable event each
+                    ch.limit = socketBytes;
+                    done = linkedList ? linkedListWrite(ch, list) : queue.writeTo(ch, iov);
+                }
+                allocated += allocated() - before - overhead;
+                buffers += burst;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-10s %8.1f ns/buffer %8.1f bytes/buffer%n",
+                linkedList ? "LinkedList" : "WriteQueue",
+                (double) elapsed / buffers, (double) allocated / buffers);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int burst = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int socketBytes = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        run(true, burst, socketBytes, 2, false); // warm up
+        run(false, burst, socketBytes, 2, false);
+        run(true, burst, socketBytes, seconds, true);
+        run(false, burst, socketBytes, seconds, true);
+    }
+}
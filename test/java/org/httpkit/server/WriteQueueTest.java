@@ -0,0 +1,111 @@
+package org.httpkit.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+
+    // takes at most `limit` bytes per write, like a full socket buffer
+    static class SlowChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int limit;
+        int maxBuffers = 0; // most buffers seen in one gathering write
+
+        SlowChannel(int limit) {
+            this.limit = limit;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            maxBuffers = Math.max(maxBuffers, length);
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int n = Math.min(limit, src.remaining());
+            for (int i = 0; i < n; i++) {
+                written.write(src.get());
+            }
+            limit -= n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes());
+    }
+
+    @Test
+    public void writesInOrderAcrossPartialWritesAndGrowth() throws IOException {
+        WriteQueue queue = new WriteQueue();
+        StringBuilder expected = new StringBuilder();
+        ByteBuffer[] iov = new ByteBuffer[3];
+        SlowChannel ch = new SlowChannel(5);
+        int next = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < round % 7; i++) { // wraps around, grows
+                String s = "<" + next++ + ">";
+                expected.append(s);
+                queue.add(buffer(s));
+            }
+            ch.limit = 7;
+            queue.writeTo(ch, iov);
+        }
+        assertEquals(expected.length() - ch.written.size(), queue.bytes());
+        ch.limit = Integer.MAX_VALUE;
+        assertTrue(queue.writeTo(ch, iov));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.bytes());
+        assertEquals(expected.toString(), ch.written.toString());
+        assertEquals(3, ch.maxBuffers); // capped by the iov
+        for (ByteBuffer b : iov) {
+            assertNull(b);
+        }
+    }
+
+    @Test
+    public void sendsFileRegionsBetweenBuffers() throws IOException {
+        File file = File.createTempFile("http-kit", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "file-content".getBytes());
+
+        WriteQueue queue = new WriteQueue();
+        queue.add(buffer("head|"));
+        queue.add(FileRegion.of(file));
+        queue.add(buffer("|tail"));
+        assertEquals(22, queue.bytes());
+
+        SlowChannel ch = new SlowChannel(8);
+        ByteBuffer[] iov = new ByteBuffer[WriteQueue.IOV_MAX];
+        assertFalse(queue.writeTo(ch, iov));
+        assertEquals(14, queue.bytes());
+        ch.limit = Integer.MAX_VALUE;
+        assertTrue(queue.writeTo(ch, iov));
+        assertEquals("head|file-content|tail", ch.written.toString());
+    }
+}
@@ -0,0 +1,124 @@
+package org.httpkit.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The WebSocket payload on its own, across message sizes: unmasking a byte at
+ * a time (as it was) versus {@link WSDecoder#unmask}, and text decoded with a
+ * CharsetDecoder (as it was) versus {@link WSDecoder#decodeUtf8}, for ASCII
+ * and for mostly non-ASCII text. In ns and bytes allocated per message.
+ * <p>
+ * Usage: WsDecodeBench [seconds per case]
+ */
+public class WsDecodeBench {
+
+    static final int[] SIZES = {16, 128, 1024, 16 * 1024, 256 * 1024};
+
+    // the previous WSDecoder unmasking
+    static void unmaskBytes(byte[] data, int length, int maskingKey) {
+        for (int i = 0; i < length; i++) {
+            int shift = 24 - ((i & 3) << 3);
+            data[i] = (byte) (data[i] ^ (byte) (maskingKey >>> shift));
+        }
+    }
+
+    // the previous WSDecoder#decodeUtf8
+    static String decodeCharset(byte[] data) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, 0, data.length)).toString();
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static byte[] text(int size, boolean ascii) {
+        String unit = ascii ? "{\"event\":\"tick\",\"n\":42} " : "h\u00e9llo w\u00f6rld \u20ac \ud83d\ude00 ";
+        StringBuilder sb = new StringBuilder();
+        while (sb.toString().getBytes(StandardCharsets.UTF_8).length < size) {
+            sb.append(unit);
+        }
+        byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+        int end = size;
+        while (end < b.length && (b[end] & 0xC0) == 0x80) {
+            end--; // not to cut a character
+        }
+        return Arrays.copyOf(b, end);
+    }
+
+    interface Case {
+        int run() throws Exception; // something of the result, not to be optimized away
+    }
+
+    static void measure(String name, int size, double seconds, boolean print, Case c) throws Exception {
+        long probe = allocated();
+        long overhead = allocated() - probe;
+        long ops = 0;
+        long sink = 0;
+        long before = allocated();
+        long start = System.nanoTime();
+        long deadline = start + (long) (seconds * 1e9);
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 64; i++) {
+                sink += c.run();
+            }
+            ops += 64;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocated() - before - overhead;
+        if (print) {
+            System.out.printf("%-16s %7d B %10.1f ns/msg %8.0f MB/s %10.1f bytes allocated/msg%s%n", name, size,
+                (double) elapsed / ops, (double) size * ops / elapsed * 1000, (double) allocated / ops,
+                sink == 42 ? " " : "");
+        }
+    }
+
+    static void all(double seconds, boolean print) throws Exception {
+        final int key = 0x12345678;
+        for (final int size : SIZES) {
+            final byte[] data = text(size, true);
+            measure("unmask bytes", data.length, seconds, print, new Case() {
+                public int run() {
+                    unmaskBytes(data, data.length, key);
+                    return data[0];
+                }
+            });
+            measure("unmask words", data.length, seconds, print, new Case() {
+                public int run() {
+                    WSDecoder.unmask(data, 0, data.length, key, 0);
+                    return data[0];
+                }
+            });
+        }
+        for (final boolean ascii : new boolean[]{true, false}) {
+            for (int size : SIZES) {
+                final byte[] data = text(size, ascii);
+                String kind = ascii ? " ascii" : " utf-8";
+                measure("charset" + kind, data.length, seconds, print, new Case() {
+                    public int run() throws Exception {
+                        return decodeCharset(data).length();
+                    }
+                });
+                measure("fused" + kind, data.length, seconds, print, new Case() {
+                    public int run() throws Exception {
+                        return WSDecoder.decodeUtf8(data, 0, data.length).length();
+                    }
+                });
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        all(0.2, false); // warm up
+        all(seconds, true);
+    }
+}
@@ -0,0 +1,139 @@
+package org.httpkit.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.httpkit.HttpUtils;
+
+/**
+ * permessage-deflate on its own: JSON like messages, each a little different
+ * from the one before, framed as sent. Compares plain frames with compressed
+ * ones, with and without context takeover, in bytes on the wire, CPU ns and
+ * bytes allocated per message; then the client's inflated by
+ * {@link WSDecoder}.
+ * <p>
+ * Usage: WsDeflateBench [message bytes] [seconds]
+ */
+public class WsDeflateBench {
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long cpu() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    static byte[][] messages(int size) {
+        byte[][] messages = new byte[64][];
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int j = 0; sb.length() < size; j++) {
+                sb.append("{\"id\":").append(i * 1000 + j).append(",\"symbol\":\"HK").append(j % 7)
+                    .append("\",\"price\":").append(100 + (i * j) % 37).append(".25,\"side\":\"")
+                    .append(j % 2 == 0 ? "buy" : "sell").append("\"},");
+            }
+            sb.setCharAt(sb.length() - 1, ']');
+            messages[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return messages;
+    }
+
+    // the frame as a client sends it: masked, with a zero key
+    static ByteBuffer masked(ByteBuffer frame) {
+        byte[] b = new byte[frame.remaining()];
+        frame.get(b);
+        int header = (b[1] & 0x7f) == 126 ? 4 : (b[1] & 0x7f) == 127 ? 10 : 2;
+        ByteBuffer out = ByteBuffer.allocate(b.length + 4);
+        out.put(b, 0, header).put(new byte[4]).put(b, header, b.length - header);
+        out.flip();
+        out.put(1, (byte) (b[1] | 0x80));
+        return out;
+    }
+
+    static void run(String name, PerMessageDeflate config, byte[][] messages, int seconds, boolean print) {
+        PerMessageDeflate.Session session = config == null ? null : config.negotiate("permessage-deflate");
+        long probe = allocated();
+        long overhead = allocated() - probe;
+        long count = 0, wire = 0, payload = 0, allocated = 0;
+        long start = cpu();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < deadline) {
+            long before = allocated();
+            for (byte[] m : messages) {
+                ByteBuffer frame = session == null
+                    ? HttpUtils.WsEncode(WSDecoder.OPCODE_TEXT, m, m.length)
+                    : session.encode(WSDecoder.OPCODE_TEXT, m, m.length);
+                wire += frame.remaining();
+                payload += m.length;
+            }
+            allocated += allocated() - before - overhead;
+            count += messages.length;
+        }
+        long elapsed = cpu() - start;
+        if (session != null) {
+            session.end();
+        }
+        if (print) {
+            System.out.printf("encode %-12s %8.1f wire bytes/msg (%5.1f%%) %8.1f ns/msg %8.1f bytes allocated/msg%n",
+                name, (double) wire / count, 100.0 * wire / payload, (double) elapsed / count,
+                (double) allocated / count);
+        }
+    }
+
+    static void inflate(String name, PerMessageDeflate config, byte[][] messages, int seconds, boolean print)
+            throws Exception {
+        PerMessageDeflate.Session server = config.negotiate("permessage-deflate");
+        PerMessageDeflate.Session client = config.negotiate("permessage-deflate");
+        // encoded once, in order: the inflater's context follows the deflater's
+        ByteBuffer[] frames = new ByteBuffer[messages.length * 16];
+        for (int i = 0; i < frames.length; i++) {
+            byte[] m = messages[i % messages.length];
+            frames[i] = masked(server.encode(WSDecoder.OPCODE_TEXT, m, m.length));
+        }
+        WSDecoder decoder = new WSDecoder(1 << 20);
+        decoder.setDeflate(client);
+        long probe = allocated();
+        long overhead = allocated() - probe;
+        long count = 0, allocated = 0;
+        long start = cpu();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < deadline && (config.serverNoContextTakeover || count < frames.length)) {
+            ByteBuffer frame = frames[(int) (count % frames.length)];
+            frame.rewind();
+            long before = allocated();
+            decoder.decode(frame);
+            decoder.reset();
+            allocated += allocated() - before - overhead;
+            count++;
+        }
+        long elapsed = cpu() - start;
+        server.end();
+        client.end();
+        if (print) {
+            System.out.printf("decode %-12s %8.1f ns/msg %8.1f bytes allocated/msg (%d messages)%n",
+                name, (double) elapsed / count, (double) allocated / count, count);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[][] messages = messages(size);
+        PerMessageDeflate takeover = new PerMessageDeflate();
+        PerMessageDeflate noTakeover = new PerMessageDeflate(true, true, 15, -1, 64);
+
+        run("plain", null, messages, 2, false); // warm up
+        run("takeover", takeover, messages, 2, false);
+        run("no-takeover", noTakeover, messages, 2, false);
+        run("plain", null, messages, seconds, true);
+        run("takeover", takeover, messages, seconds, true);
+        run("no-takeover", noTakeover, messages, seconds, true);
+
+        inflate("no-takeover", noTakeover, messages, 2, false);
+        inflate("takeover", takeover, messages, seconds, true);
+        inflate("no-takeover", noTakeover, messages, seconds, true);
+    }
+}
@@ -1,10 +1,13 @@
 (ns org.httpkit.java-protocol-test
   (:require [clojure.test :refer [deftest is]])
   (:import
-   [org.httpkit HttpUtilsTest]
+   [org.httpkit HttpUtilsTest HeaderTableTest]
    [org.httpkit.client HttpClientDecoderTest RespListenerTest]
    [org.httpkit.server AsyncChannelCloseTest HttpDecoderTest
-    HttpServerProtocolTest RingResponseTest]
+    HttpServerProtocolTest RingResponseTest HpackTest WriteQueueTest
+    TimingWheelTest ConcurrencyLimiterTest CoDelTest LaneSchedulerTest
+    RingHandlerTest AutoScalingExecutorTest LazyRequestMapTest CompressionTest
+    PerMessageDeflateTest TopicTest WSDecoderTest]
    [org.httpkit.timer TimerServiceTest]
    [org.junit.runner JUnitCore]))
 
@@ -12,8 +15,11 @@
   (let [result
         (JUnitCore/runClasses
           (into-array Class
-            [HttpUtilsTest HttpClientDecoderTest RespListenerTest
+            [HttpUtilsTest HeaderTableTest HttpClientDecoderTest RespListenerTest
              AsyncChannelCloseTest HttpDecoderTest HttpServerProtocolTest
-             RingResponseTest TimerServiceTest]))]
+             RingResponseTest TimerServiceTest HpackTest WriteQueueTest
+             TimingWheelTest ConcurrencyLimiterTest CoDelTest LaneSchedulerTest
+             RingHandlerTest AutoScalingExecutorTest LazyRequestMapTest CompressionTest
+             PerMessageDeflateTest TopicTest WSDecoderTest]))]
     (is (.wasSuccessful result)
       (pr-str (map str (.getFailures result))))))
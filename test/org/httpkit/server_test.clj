@@ -9,11 +9,12 @@
         org.httpkit.server
         org.httpkit.timer)
   (:require [clj-http.client :as http]
+            [clojure.string :as str]
             [org.httpkit.ws-test :as ws]
             [org.httpkit.client :as client])
   (:import [java.io FileInputStream]
            org.httpkit.SpecialHttpClient
-           [java.net InetSocketAddress]
+           [java.net InetSocketAddress Socket]
            [java.nio.channels ServerSocketChannel]
            (java.nio.file Files)
            (java.util.concurrent CountDownLatch ThreadPoolExecutor TimeUnit ArrayBlockingQueue)))
@@ -730,3 +731,276 @@
 
     (.await after-latch)
     (is (= @state_ :after-join))))
+
+;;;; Server options
+
+(defn- get-all
+  "GETs the url n times at once, returns the responses, bodies as text."
+  [url n & [opts]]
+  (mapv deref (doall (repeatedly n #(client/get url (merge {:as :text} opts))))))
+
+(deftest test-io-threads
+  (doseq [opts [{:io-threads 3}
+                {:io-threads 3 :io-balance :least-loaded}
+                {:io-threads 3 :reuse-port? true}]]
+    (testing opts
+      (let [server (run-server (fn [_] {:status 200 :body "ok"})
+                     (merge {:port 0 :legacy-return-value? false} opts))]
+        (try
+          (is (every? #(= [200 "ok"] [(:status %) (:body %)])
+                (get-all (str "http://localhost:" (server-port server)) 12)))
+          (finally @(server-stop! server)))))))
+
+(deftest test-io-threads-channel-factory
+  (let [channels (atom 0)
+        server (run-server (fn [_] {:status 200 :body "ok"})
+                 {:port 0 :legacy-return-value? false :io-threads 3 :reuse-port? true
+                  :channel-factory (fn [_] (swap! channels inc) (ServerSocketChannel/open))})]
+    (try
+      (is (= 3 @channels)) ; one per loop
+      (is (= "ok" (:body (first (get-all (str "http://localhost:" (server-port server)) 1)))))
+      (finally @(server-stop! server)))))
+
+(defn- server-ssl-context ^javax.net.ssl.SSLContext []
+  (let [ks  (doto (java.security.KeyStore/getInstance "JKS")
+              (.load (FileInputStream. "test/ssl_keystore") (.toCharArray "123456")))
+        kmf (doto (javax.net.ssl.KeyManagerFactory/getInstance
+                    (javax.net.ssl.KeyManagerFactory/getDefaultAlgorithm))
+              (.init ks (.toCharArray "123456")))]
+    (doto (javax.net.ssl.SSLContext/getInstance "TLS")
+      (.init (.getKeyManagers kmf) nil nil))))
+
+(deftest test-ssl-context
+  (let [server (run-server (fn [req] {:status 200 :body (name (:scheme req))})
+                 {:port 0 :legacy-return-value? false :ssl-context (server-ssl-context)})
+        url    (str "https://localhost:" (server-port server))]
+    (try
+      (is (every? #(= [200 "https"] [(:status %) (:body %)])
+            (get-all url 4 {:insecure? true})))
+      (is (:error @(client/get (str "http://localhost:" (server-port server))
+                     {:as :text :timeout 2000}))
+        "no cleartext")
+      (finally @(server-stop! server)))))
+
+(deftest test-http2
+  (let [handler (fn [req] {:status 200 :body (str (:protocol req) " " (:uri req))})]
+    (testing "h2c, by Upgrade"
+      (let [server (run-server handler {:port 0 :legacy-return-value? false :http2? true})
+            ^java.net.http.HttpClient http
+            (-> (java.net.http.HttpClient/newBuilder)
+              (.version java.net.http.HttpClient$Version/HTTP_2)
+              (.build))]
+        (try
+          (doseq [uri ["/a" "/b" "/c"]]
+            (let [^java.net.http.HttpResponse resp
+                  (.send http
+                    (.build (java.net.http.HttpRequest/newBuilder
+                              (java.net.URI. (str "http://localhost:" (server-port server) uri))))
+                    (java.net.http.HttpResponse$BodyHandlers/ofString))]
+              (is (= java.net.http.HttpClient$Version/HTTP_2 (.version resp)))
+              (is (= (str "HTTP/2.0 " uri) (.body resp)))))
+          (finally @(server-stop! server)))))
+
+    (testing "h2, by ALPN"
+      (let [server (run-server handler {:port 0 :legacy-return-value? false :http2? true
+                                        :ssl-context (server-ssl-context)})
+            trust  (doto (javax.net.ssl.TrustManagerFactory/getInstance
+                           (javax.net.ssl.TrustManagerFactory/getDefaultAlgorithm))
+                     (.init (doto (java.security.KeyStore/getInstance "JKS")
+                              (.load (FileInputStream. "test/ssl_keystore") (.toCharArray "123456")))))
+            ctx    (doto (javax.net.ssl.SSLContext/getInstance "TLS")
+                     (.init nil (.getTrustManagers trust) nil))]
+        (try
+          (with-open [^javax.net.ssl.SSLSocket socket
+                      (.createSocket (.getSocketFactory ctx) "localhost" (int (server-port server)))]
+            (.setSoTimeout socket 5000)
+            (.setSSLParameters socket
+              (doto (.getSSLParameters socket)
+                (.setApplicationProtocols (into-array String ["h2" "http/1.1"]))))
+            (.startHandshake socket)
+            (is (= "h2" (.getApplicationProtocol socket))))
+          (finally @(server-stop! server)))))))
+
+(deftest test-pipeline-depth
+  (let [fast-started (CountDownLatch. 1)
+        server (run-server
+                 (fn [req]
+                   (case (:uri req)
+                     ;; handled concurrently: answers once the next request has started
+                     "/slow" {:status 200 :body (str "slow " (.await fast-started 5 TimeUnit/SECONDS))}
+                     "/fast" (do (.countDown fast-started) {:status 200 :body "fast"})
+                     {:status 200 :body "end"}))
+                 {:port 0 :legacy-return-value? false :pipeline-depth 2})]
+    (try
+      (with-open [socket (doto (Socket. "localhost" (int (server-port server))) (.setSoTimeout 5000))]
+        (doto (.getOutputStream socket)
+          (.write (.getBytes (str "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                               "GET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                               ;; not pipelined: waits for the others
+                               "GET /end HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")))
+          (.flush))
+        (let [response (slurp (.getInputStream socket))]
+          (is (re-find #"(?s)slow true.*fast.*end" response) "concurrently, answered in order")))
+      (finally @(server-stop! server)))))
+
+(deftest test-connection-timeouts
+  (let [server (run-server (fn [_] {:status 200 :body "ok"})
+                 {:port 0 :legacy-return-value? false
+                  :header-timeout-ms 200 :keep-alive-timeout-ms 200})
+        closed-within? ; ms, the server closing the connection after the bytes are sent
+        (fn [^String sent ms]
+          (with-open [socket (doto (Socket. "localhost" (int (server-port server))) (.setSoTimeout 5000))]
+            (doto (.getOutputStream socket) (.write (.getBytes sent)) (.flush))
+            (let [start (System/currentTimeMillis)
+                  read  (slurp (.getInputStream socket))] ; until closed
+              [(< (- (System/currentTimeMillis) start) ms) read])))]
+    (try
+      (testing "idle between requests"
+        (let [[closed? read] (closed-within? "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n" 3000)]
+          (is closed?)
+          (is (str/ends-with? read "ok"))))
+      (testing "headers not sent"
+        (is (= [true ""] (closed-within? "GET / HTTP/1.1\r\nHost: loc" 3000))))
+      (finally @(server-stop! server)))))
+
+(deftest test-concurrency-limiter
+  (let [started (CountDownLatch. 1)
+        release (CountDownLatch. 1)
+        limiter (concurrency-limiter :aimd {:initial-limit 1 :max-limit 1})
+        server  (run-server
+                  (fn [_] (.countDown started) (.await release 5 TimeUnit/SECONDS) {:status 200 :body "ok"})
+                  {:port 0 :legacy-return-value? false :concurrency-limiter limiter})
+        url     (str "http://localhost:" (server-port server))]
+    (try
+      (let [first-resp (client/get url {:as :text})]
+        (is (.await started 5 TimeUnit/SECONDS))
+        (let [{:keys [status headers]} @(client/get url {:as :text})]
+          (is (= 503 status) "over the limit")
+          (is (:retry-after headers)))
+        (.countDown release)
+        (is (= 200 (:status @first-resp)))
+        (is (= 1 (:rejected (concurrency-limiter-state limiter)))))
+      (finally @(server-stop! server)))))
+
+(deftest test-request-deadline
+  (let [started (CountDownLatch. 1)
+        release (CountDownLatch. 1)
+        server  (run-server
+                  (fn [req]
+                    (when (= "/block" (:uri req))
+                      (.countDown started)
+                      (.await release 5 TimeUnit/SECONDS))
+                    {:status 200 :body (str (remaining-ms req))})
+                  {:port 0 :legacy-return-value? false :request-deadline-ms 2000
+                   :deadline-header "x-request-timeout-ms"
+                   :worker-pool (ThreadPoolExecutor. 1 1 0 TimeUnit/MILLISECONDS (ArrayBlockingQueue. 10))})
+        url     (str "http://localhost:" (server-port server))]
+    (try
+      (let [{:keys [status body]} @(client/get url {:as :text})]
+        (is (= 200 status))
+        (is (< 0 (Long/parseLong body) 2001)))
+      (let [blocking (client/get (str url "/block") {:as :text})]
+        (is (.await started 5 TimeUnit/SECONDS))
+        (let [queued (client/get url {:as :text :headers {"x-request-timeout-ms" "100"}})]
+          (Thread/sleep 300)
+          (.countDown release)
+          (is (= 503 (:status @queued)) "past its deadline while queued")
+          (is (= 200 (:status @blocking)))))
+      (finally @(server-stop! server)))))
+
+(deftest test-lanes
+  (let [server (run-server (fn [_] {:status 200 :body "ok"})
+                 {:port 0 :legacy-return-value? false
+                  :lanes   [{:name :api :weight 8} {:name :batch :weight 1 :queue-size 10}]
+                  :lane-fn [{:lane :batch :uri-prefix "/export/"}]})
+        url    (str "http://localhost:" (server-port server))]
+    (try
+      (is (every? #(= 200 (:status %)) (get-all (str url "/users") 3)))
+      (is (every? #(= 200 (:status %)) (get-all (str url "/export/users") 2)))
+      (let [stats (lane-stats server)]
+        (is (= 3 (get-in stats [:api   :dispatched])))
+        (is (= 2 (get-in stats [:batch :dispatched]))))
+      (finally @(server-stop! server)))))
+
+(deftest test-pools
+  (let [server (run-server (fn [_] {:status 200 :body (.getName (Thread/currentThread))})
+                 {:port 0 :legacy-return-value? false
+                  :pools   {:reports {:n-threads 1 :queue-size 10}}
+                  :pool-fn [{:pool :reports :uri-prefix "/reports/"}]})
+        url    (str "http://localhost:" (server-port server))]
+    (try
+      (is (every? #(str/starts-with? (:body %) "http-kit-server-reports-")
+            (get-all (str url "/reports/daily") 3)))
+      (is (not-any? #(str/starts-with? (:body %) "http-kit-server-reports-")
+            (get-all (str url "/users") 3)))
+      (finally @(server-stop! server)))))
+
+(deftest test-autoscaling-worker-pool
+  (let [decision (promise)
+        {:keys [type pool]}
+        (new-worker {:autoscale {:target-wait-ms 10 :interval-ms 50
+                                 :decision-logger (fn [event sample] (deliver decision [event sample]))}
+                     :n-min-threads 1 :n-max-threads 4})]
+    (is (= :autoscaling type))
+    (is (instance? org.httpkit.server.AutoScalingExecutor pool))
+    (let [[event sample] (deref decision 5000 nil)]
+      (is (= "httpkit.server.pool.hold" event) "idle")
+      (is (str/starts-with? sample "threads=1->1 ")))
+    (.shutdown ^java.util.concurrent.ExecutorService pool))
+  (let [server (run-server (fn [_] {:status 200 :body (.getName (Thread/currentThread))})
+                 {:port 0 :legacy-return-value? false :autoscale true :n-min-threads 1 :n-max-threads 4})]
+    (try
+      (is (every? #(str/starts-with? (:body %) "http-kit-server-worker-")
+            (get-all (str "http://localhost:" (server-port server)) 4)))
+      (finally @(server-stop! server)))))
+
+(deftest test-autoscaling-pool-shed-oldest
+  (let [started (CountDownLatch. 1)
+        release (CountDownLatch. 1)
+        server  (run-server
+                  (fn [req]
+                    (when (= "/reports/block" (:uri req))
+                      (.countDown started)
+                      (.await release 5 TimeUnit/SECONDS))
+                    {:status 200 :body "ok"})
+                  {:port 0 :legacy-return-value? false
+                   :pools   {:reports {:autoscale true :n-min-threads 1 :n-max-threads 1
+                                       :queue-size 1 :rejection :shed-oldest}}
+                   :pool-fn [{:pool :reports :uri-prefix "/reports/"}]})
+        url     (str "http://localhost:" (server-port server) "/reports/")]
+    (try
+      (let [blocking (client/get (str url "block") {:as :text})]
+        (is (.await started 5 TimeUnit/SECONDS))
+        (let [oldest (client/get (str url "oldest") {:as :text})]
+          (Thread/sleep 200) ; queued
+          (let [newest (client/get (str url "newest") {:as :text})]
+            (is (= 503 (:status @oldest)) "shed for the newest")
+            (.countDown release)
+            (is (= 200 (:status @newest)))
+            (is (= 200 (:status @blocking))))))
+      (finally @(server-stop! server)))))
+
+(deftest test-compression
+  (let [body   (apply str (repeat 200 "compress me\n"))
+        server (run-server (fn [_] {:status 200 :headers {"Content-Type" "text/plain"} :body body})
+                 {:port 0 :legacy-return-value? false :compression {:min-size 1024 :level 1}})
+        fetch  (fn [accept-encoding] ; [headers body], as sent
+                 (with-open [socket (doto (Socket. "localhost" (int (server-port server))) (.setSoTimeout 5000))]
+                   (doto (.getOutputStream socket)
+                     (.write (.getBytes (str "GET / HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: "
+                                          accept-encoding "\r\nConnection: close\r\n\r\n")))
+                     (.flush))
+                   (let [response (String. (.readAllBytes (.getInputStream socket)) "ISO-8859-1")
+                         split    (.indexOf response "\r\n\r\n")]
+                     [(subs response 0 split) (.getBytes (subs response (+ split 4)) "ISO-8859-1")])))]
+    (try
+      (let [[headers ^bytes gzipped] (fetch "gzip")]
+        (is (re-find #"(?i)content-encoding: gzip" headers))
+        (is (re-find #"(?i)vary: accept-encoding" headers))
+        (is (< (alength gzipped) (count body)))
+        (is (= body (String. (.readAllBytes (java.util.zip.GZIPInputStream.
+                                               (java.io.ByteArrayInputStream. gzipped)))))))
+      (let [[headers ^bytes plain] (fetch "identity")]
+        (is (not (re-find #"(?i)content-encoding" headers)))
+        (is (= body (String. plain))))
+      (finally @(server-stop! server)))))
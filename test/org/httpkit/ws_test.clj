@@ -16,6 +16,7 @@
   (:import
    [java.io ByteArrayOutputStream InputStream]
    [java.net Socket]
+   [java.util.concurrent CountDownLatch TimeUnit]
    [org.httpkit.ws WebSocketClient]
    [org.httpkit  SpecialHttpClient]
    [org.httpkit.server AsyncChannel]))
@@ -139,10 +140,10 @@
         (String. (byte-array (map unchecked-byte bytes)) "UTF-8")
         (recur bytes)))))
 
-(defn- raw-websocket
-  ([] (raw-websocket 4348 "/echo"))
-  ([path] (raw-websocket 4348 path))
-  ([port path]
+(defn- websocket-handshake
+  "Opens a WebSocket to the server, extra-headers lines added to the request:
+  [socket head], head the 101 response's."
+  [port path extra-headers]
   (let [socket (doto (Socket. "localhost" (int port)) (.setSoTimeout 2000))
         out    (.getOutputStream socket)
         request
@@ -151,14 +152,20 @@
           "Upgrade: websocket\r\n"
           "Connection: Upgrade\r\n"
           "Sec-WebSocket-Version: 13\r\n"
+          extra-headers
           "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n")]
     (.write out (.getBytes request "UTF-8"))
     (.flush out)
     (let [head (read-http-head (.getInputStream socket))]
       (when-not (str/includes? head " 101 ")
         (.close socket)
-        (throw (ex-info "WebSocket handshake failed" {:response head}))))
-    socket)))
+        (throw (ex-info "WebSocket handshake failed" {:response head})))
+      [socket head])))
+
+(defn- raw-websocket
+  ([] (raw-websocket 4348 "/echo"))
+  ([path] (raw-websocket 4348 path))
+  ([port path] (first (websocket-handshake port path ""))))
 
 (deftest invalid-upgrades-return-http-errors
   (with-open [socket (doto (Socket. "localhost" 4348) (.setSoTimeout 2000))]
@@ -229,6 +236,7 @@
           (when (= -1 read) (throw (java.io.EOFException. "EOF during WebSocket payload")))
           (recur (+ offset read)))))
     {:final? (not (zero? (bit-and first 0x80)))
+     :rsv    (bit-and first 0x70)
      :opcode (bit-and first 0x0f)
      :body body}))
 
@@ -494,5 +502,125 @@
              [:server/close 1000 "normal closure"]
              [:client/close 1000 "normal closure"]])))))
 
+;;;; Server options
+
+(defn- echo-server [opts]
+  (run-server (fn [req] (as-channel req {:on-receive (fn [ch msg] (send! ch msg))}))
+    (merge {:port 0 :legacy-return-value? false} opts)))
+
+(defn- inflate-message ^String [^bytes body]
+  (let [inflater (java.util.zip.Inflater. true)
+        out      (ByteArrayOutputStream.)
+        buf      (byte-array 4096)]
+    (.setInput inflater (byte-array (concat body [0 0 -1 -1])))
+    (loop []
+      (let [n (.inflate inflater buf)]
+        (.write out buf 0 n)
+        (when (pos? n) (recur))))
+    (.end inflater)
+    (String. (.toByteArray out) "UTF-8")))
+
+(deftest test-ws-deflate
+  (let [server (echo-server {:ws-deflate {:min-size 64}})
+        port   (server-port server)
+        long   (apply str (repeat 20 "{\"event\":\"tick\"}"))]
+    (try
+      (let [[^Socket socket head]
+            (websocket-handshake port "/" "Sec-WebSocket-Extensions: permessage-deflate\r\n")]
+        (with-open [socket socket]
+          (is (re-find #"(?i)sec-websocket-extensions: permessage-deflate" head))
+          (write-frames! socket [(masked-frame true 0 0x1 long)])
+          (let [{:keys [rsv opcode body]} (read-frame socket)]
+            (is (= [0x40 0x1] [rsv opcode]) "compressed")
+            (is (< (alength ^bytes body) (count long)))
+            (is (= long (inflate-message body))))
+          (write-frames! socket [(masked-frame true 0 0x1 "short")])
+          (let [{:keys [rsv body]} (read-frame socket)]
+            (is (= 0 rsv) "under :min-size")
+            (is (= "short" (String. ^bytes body "UTF-8"))))))
+      (testing "not offered"
+        (let [[^Socket socket head] (websocket-handshake port "/" "")]
+          (with-open [socket socket]
+            (is (not (re-find #"(?i)sec-websocket-extensions" head)))
+            (write-frames! socket [(masked-frame true 0 0x1 long)])
+            (is (= [0 long] ((juxt :rsv #(String. ^bytes (:body %) "UTF-8")) (read-frame socket)))))))
+      (finally @(server-stop! server)))))
+
+(deftest test-topics
+  (let [topics  (topic-registry)
+        opened  (CountDownLatch. 3)
+        server  (run-server
+                  (fn [req]
+                    (let [topic (keyword (subs (:uri req) 1))]
+                      (as-channel req
+                        {:on-open  (fn [ch] (subscribe! topics topic ch) (.countDown opened))
+                         :on-close (fn [ch _] (unsubscribe! topics topic ch))})))
+                  {:port 0 :legacy-return-value? false})
+        port    (server-port server)
+        text    (fn [socket] (String. ^bytes (:body (read-frame socket)) "UTF-8"))]
+    (try
+      (with-open [^Socket a (raw-websocket port "/room-1")
+                  ^Socket b (raw-websocket port "/room-1")
+                  ^Socket c (raw-websocket port "/room-2")]
+        (is (.await opened 5 TimeUnit/SECONDS))
+        (is (= 2 (broadcast! topics :room-1 "hello")))
+        (is (= 1 (broadcast! topics :room-2 "other")))
+        (is (= ["hello" "hello" "other"] (map text [a b c])) "each its own topic's")
+        (is (= 0 (broadcast! topics :room-3 "nobody"))))
+      (finally @(server-stop! server)))))
+
+(deftest test-on-receive-partial
+  (let [server (run-server
+                 (fn [req]
+                   (let [pieces (atom [])]
+                     (as-channel req
+                       {:on-receive-partial
+                        (fn [ch data final?]
+                          (swap! pieces conj data)
+                          (when final?
+                            (send! ch (if (string? data)
+                                        (apply str @pieces)
+                                        (byte-array (mapcat seq @pieces))))
+                            (reset! pieces [])))})))
+                 {:port 0 :legacy-return-value? false :max-ws 100})
+        port   (server-port server)]
+    (try
+      (with-open [^Socket socket (raw-websocket port "/")]
+        (testing "larger than :max-ws, in pieces"
+          (let [fragment #(byte-array 100 (repeat (byte %)))]
+            (write-frames! socket [(masked-frame false 0 0x2 (fragment 1))
+                                   (masked-frame false 0 0x0 (fragment 2))
+                                   (masked-frame true  0 0x0 (fragment 3))])
+            (let [{:keys [opcode body]} (read-frame socket)]
+              (is (= 0x2 opcode))
+              (is (= (concat (repeat 100 1) (repeat 100 2) (repeat 100 3)) (seq ^bytes body))))))
+        (testing "text, a character split across pieces"
+          (let [utf8 (.getBytes "h\u00e9llo" "UTF-8")]
+            (write-frames! socket [(masked-frame false 0 0x1 (java.util.Arrays/copyOfRange utf8 0 2))
+                                   (masked-frame true  0 0x0 (java.util.Arrays/copyOfRange utf8 2 (alength utf8)))])
+            (let [{:keys [opcode body]} (read-frame socket)]
+              (is (= 0x1 opcode))
+              (is (= "h\u00e9llo" (String. ^bytes body "UTF-8")))))))
+      (finally @(server-stop! server)))))
+
+(deftest test-non-ascii-text-messages
+  (let [server (echo-server {:warn-logger (fn [_ _])})
+        port   (server-port server)
+        ;; 1, 2, 3 and 4 byte characters, the 4 byte one a surrogate pair
+        text   (apply str (repeat 1500 "a\u00e9\u20ac\ud83d\ude00"))]
+    (try
+      (with-open [^Socket socket (raw-websocket port "/")]
+        (doseq [message [text (subs text 3 1003) "\ud83d\ude00"]]
+          (write-frames! socket [(masked-frame true 0 0x1 message)])
+          (let [{:keys [opcode body]} (read-frame socket)]
+            (is (= 0x1 opcode))
+            (is (= message (String. ^bytes body "UTF-8"))))))
+      (with-open [^Socket socket (raw-websocket port "/")]
+        (write-frames! socket [(masked-frame true 0 0x1 (byte-array (map unchecked-byte [0x61 0xf0 0x9f 0x98])))])
+        (let [frame (read-frame socket)]
+          (is (= 0x8 (:opcode frame)))
+          (is (= 1007 (close-status frame)) "a character cut short")))
+      (finally @(server-stop! server)))))
+
 ;; ;; test many times, and connect result
 ;; ;; rm /tmp/test_results&& ./scripts/javac with-test && for i in {1..100}; do lein test org.httpkit.ws-test >> /tmp/test_results; done